@@ -0,0 +1,272 @@
+package dk.kb.netarchivesuite.solrwayback.export;
+
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoaderWeb;
+import dk.kb.netarchivesuite.solrwayback.solr.SRequest;
+import dk.kb.netarchivesuite.solrwayback.solr.SolrStreamDirect;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A server side WARC export job that can be resumed from any byte offset, e.g. after a dropped connection.
+ * <p>
+ * The export uses Solr cursorMark paging through {@link SolrStreamDirect}. While the export is delivered, checkpoints
+ * are recorded with the byte offset of the end of a fully delivered record, the cursorMark for the page holding
+ * the next document and the number of documents to skip in that page. When resuming from a given offset, the
+ * export is restarted from the nearest checkpoint at or before the offset and the bytes up to the offset are
+ * skipped. As the order of the documents is deterministic (sort with tie breaking on {@code id}) and the WARC
+ * records are constructed deterministically, the continuation is exact as long as the index and the (W)ARCs are
+ * not changed. If a record cannot be constructed, the export fails instead of skipping the record, as a skipped
+ * record would make the continuation differ from the original export.
+ * <p>
+ * Jobs are held in memory and are discarded when they have not been used for
+ * {@code export.warc.resume.minutes} minutes.
+ */
+public class ResumableWarcExport {
+    private static final Logger log = LoggerFactory.getLogger(ResumableWarcExport.class);
+
+    /**
+     * Solr page size. Must be stable for a job, as the cursorMark for a document is derived from its position.
+     */
+    private static final int PAGE_SIZE = 100;
+    /**
+     * Minimum distance in bytes between checkpoints.
+     */
+    private static final long CHECKPOINT_INTERVAL = 10*1024*1024;
+    private static final int MAX_JOBS = 100;
+
+    /**
+     * Access ordered, so that the first jobs are the least recently used.
+     */
+    private static final LinkedHashMap<String, ResumableWarcExport> jobs = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final String id;
+    private final String query;
+    private final String[] filterQueries;
+    private final boolean gzip;
+    private final long maxRecords;
+    private final long checkpointInterval;
+
+    // Guarded by this
+    private final TreeMap<Long, String> pageCursorMarks = new TreeMap<>(); // First document in page -> cursorMark
+    private final TreeMap<Long, Checkpoint> checkpoints = new TreeMap<>(); // Bytes -> checkpoint
+    private long lastAccess = System.currentTimeMillis();
+
+    /**
+     * Create and register an export job. The job is not started before {@link #open(long)} is called.
+     * @param query         Solr query for the records to export.
+     * @param filterQueries Solr filter queries. Can be empty.
+     * @param gzip          if true, each record is gzipped.
+     * @param maxRecords    the maximum number of records to export.
+     * @return the registered job.
+     */
+    public static ResumableWarcExport create(String query, String[] filterQueries, boolean gzip, long maxRecords) {
+        return create(query, filterQueries, gzip, maxRecords, CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Create and register an export job with an explicit distance between checkpoints.
+     * @param checkpointInterval minimum distance in bytes between checkpoints.
+     * @see #create(String, String[], boolean, long)
+     */
+    static ResumableWarcExport create(
+            String query, String[] filterQueries, boolean gzip, long maxRecords, long checkpointInterval) {
+        ResumableWarcExport job = new ResumableWarcExport(
+                UUID.randomUUID().toString(), query, filterQueries, gzip, maxRecords, checkpointInterval);
+        synchronized (jobs) {
+            removeExpired();
+            jobs.put(job.getId(), job);
+            Iterator<ResumableWarcExport> lru = jobs.values().iterator();
+            while (jobs.size() > MAX_JOBS) {
+                log.info("create: Removing export job " + lru.next() + " as there are more than " + MAX_JOBS + " jobs");
+                lru.remove();
+            }
+        }
+        log.debug("create: Created " + job);
+        return job;
+    }
+
+    /**
+     * @param id the ID of a job, as returned by {@link #getId()}.
+     * @return the job or null if the job is unknown or has expired.
+     */
+    public static ResumableWarcExport get(String id) {
+        synchronized (jobs) {
+            removeExpired();
+            return id == null ? null : jobs.get(id);
+        }
+    }
+
+    private static void removeExpired() {
+        long expired = System.currentTimeMillis() - PropertiesLoaderWeb.EXPORT_WARC_RESUME_MINUTES*60*1000L;
+        jobs.values().removeIf(job -> job.getLastAccess() < expired);
+    }
+
+    private ResumableWarcExport(String id, String query, String[] filterQueries, boolean gzip, long maxRecords,
+                                long checkpointInterval) {
+        this.id = id;
+        this.query = query;
+        this.filterQueries = filterQueries;
+        this.gzip = gzip;
+        this.maxRecords = maxRecords;
+        this.checkpointInterval = checkpointInterval;
+        checkpoints.put(0L, new Checkpoint(0, CursorMarkParams.CURSOR_MARK_START, 0, 0));
+    }
+
+    /**
+     * Start or resume the export.
+     * @param offset the byte offset in the full export to start from. 0 means from the beginning.
+     * @return the export, starting at the given offset.
+     * @throws EOFException if the offset is beyond the end of the export.
+     * @throws IOException if the stream could not be positioned at the offset.
+     */
+    public InputStream open(long offset) throws IOException {
+        Map.Entry<Long, Checkpoint> checkpoint;
+        synchronized (this) {
+            lastAccess = System.currentTimeMillis();
+            checkpoint = checkpoints.floorEntry(Math.max(0, offset));
+        }
+        final long baseBytes = checkpoint.getKey();
+        final Checkpoint base = checkpoint.getValue();
+        log.info(String.format(Locale.ROOT, "open: Starting export job %s at offset %d from checkpoint %d %s",
+                               id, offset, baseBytes, base));
+
+        long[] page = new long[]{base.pageDoc};
+        Iterator<SolrDocument> docs = SolrStreamDirect.iterate(
+                SRequest.builder()
+                        .query(query)
+                        .filterQueries(filterQueries)
+                        .fields("source_file_path", "source_file_offset")
+                        .pageSize(PAGE_SIZE)
+                        .adaptivePageSize(false) // Page positions are derived from PAGE_SIZE
+                        .cursorMark(base.cursorMark)
+                        .cursorMarkListener(cursorMark -> {
+                            addPage(page[0], cursorMark);
+                            page[0] += PAGE_SIZE;
+                        }));
+        for (long skip = 0 ; skip < base.skipDocs && docs.hasNext() ; skip++) {
+            docs.next();
+        }
+
+        final long baseDocs = base.pageDoc + base.skipDocs;
+        long[] records = new long[]{base.records};
+        InputStream export = new StreamingSolrWarcExportBufferedInputStream(docs, maxRecords - base.records, gzip)
+                .setRecordListener((localDocs, localBytes) ->
+                                           addCheckpoint(baseDocs + localDocs, ++records[0], baseBytes + localBytes));
+        try {
+            long toSkip = offset - baseBytes;
+            while (toSkip > 0) {
+                long skipped = export.skip(toSkip);
+                if (skipped <= 0) {
+                    if (export.read() == -1) {
+                        throw new EOFException(String.format(
+                                Locale.ROOT, "Offset %d is beyond the end of export job %s (%d bytes)",
+                                offset, id, offset - toSkip));
+                    }
+                    skipped = 1;
+                }
+                toSkip -= skipped;
+            }
+        } catch (IOException | RuntimeException e) {
+            export.close();
+            throw e;
+        }
+        return export;
+    }
+
+    private synchronized void addPage(long firstDoc, String cursorMark) {
+        pageCursorMarks.put(firstDoc, cursorMark);
+    }
+
+    /**
+     * Called when a record has been fully delivered.
+     * @param docs    the number of documents processed, counted from the start of the full export.
+     * @param records the number of records delivered, counted from the start of the full export.
+     * @param bytes   the number of bytes delivered, counted from the start of the full export.
+     */
+    private synchronized void addCheckpoint(long docs, long records, long bytes) {
+        lastAccess = System.currentTimeMillis();
+        Map.Entry<Long, Checkpoint> previous = checkpoints.floorEntry(bytes);
+        Map.Entry<Long, Checkpoint> next = checkpoints.higherEntry(bytes);
+        if (bytes - previous.getKey() < checkpointInterval ||
+            (next != null && next.getKey() - bytes < checkpointInterval)) {
+            return;
+        }
+        Map.Entry<Long, String> page = pageCursorMarks.floorEntry(docs);
+        if (page == null) {
+            return;
+        }
+        checkpoints.put(bytes, new Checkpoint(page.getKey(), page.getValue(), docs - page.getKey(), records));
+        // Pages before the checkpoint are only needed by other deliveries that are behind this one
+        // and they register their own pages
+        pageCursorMarks.headMap(page.getKey()).clear();
+    }
+
+    /**
+     * @return the ID for the job, used for resuming.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return true if each record in the export is gzipped.
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * @return the point in time where the job was last used, in milliseconds since Epoch.
+     */
+    public synchronized long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * @return the number of recorded checkpoints, including the one at the start of the export.
+     */
+    public synchronized int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResumableWarcExport(id=" + id + ", query='" + SRequest.limit(query, 40) + "', gzip=" + gzip +
+               ", checkpoints=" + checkpoints.size() + ", lastCheckpoint=" + checkpoints.lastKey() + " bytes)";
+    }
+
+    /**
+     * A position in the result set that corresponds to the end of a fully delivered record.
+     */
+    private static class Checkpoint {
+        final long pageDoc;      // The position of the first document in the page
+        final String cursorMark; // The cursorMark for the page
+        final long skipDocs;     // The number of documents in the page that has already been processed
+        final long records;      // The number of records delivered before the checkpoint, for maxRecords
+
+        Checkpoint(long pageDoc, String cursorMark, long skipDocs, long records) {
+            this.pageDoc = pageDoc;
+            this.cursorMark = cursorMark;
+            this.skipDocs = skipDocs;
+            this.records = records;
+        }
+
+        @Override
+        public String toString() {
+            return "Checkpoint(pageDoc=" + pageDoc + ", skipDocs=" + skipDocs + ", records=" + records +
+                   ", cursorMark='" + cursorMark + "')";
+        }
+    }
+}
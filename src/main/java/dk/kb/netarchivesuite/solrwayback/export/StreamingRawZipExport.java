@@ -1,8 +1,9 @@
 package dk.kb.netarchivesuite.solrwayback.export;
 
-import dk.kb.netarchivesuite.solrwayback.facade.Facade;
+import dk.kb.netarchivesuite.solrwayback.parsers.ArcParserFileResolver;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.solr.SRequest;
+import dk.kb.netarchivesuite.solrwayback.util.CollectionUtils;
 import org.apache.cxf.helpers.IOUtils;
 import org.apache.solr.common.SolrDocument;
 import org.slf4j.Logger;
@@ -10,6 +11,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -21,6 +23,11 @@ import java.util.zip.ZipOutputStream;
 public class StreamingRawZipExport {
     private static final Logger log = LoggerFactory.getLogger(StreamingRawZipExport.class);
 
+    /**
+     * The number of records to resolve at a time. Records in the same (W)ARC are resolved together, in offset order.
+     */
+    private static final int BATCH_SIZE = 100;
+
 
     /**
      * Streams content of specific type (e.g. HTML, images, PDF.) to a zip file.
@@ -41,11 +48,9 @@ public class StreamingRawZipExport {
 
         long streamedDocs;
         try (Stream<SolrDocument> docs = request.stream()) {
-            streamedDocs = docs
-                    .map(doc -> extractMetadata(doc, warcMetadata))
-                    .map(StreamingRawZipExport::safeGetArcEntry)
-                    .map(entry -> addArcEntryToZip(entry, zos, warcMetadata))
-                    .count();
+            streamedDocs = CollectionUtils.splitToLists(docs, BATCH_SIZE)
+                    .mapToLong(batch -> addBatchToZip(batch, zos, warcMetadata))
+                    .sum();
         }
         zos.close();
         output.close();
@@ -69,16 +74,29 @@ public class StreamingRawZipExport {
     }
 
     /**
-     * Safe streamable implementation of {@code Facade.getArcEntry}
-     * @param doc represents a SolrDocument, which contains info on the ARC/WARC filepath and offset for entries.
-     * @return     an arc entry, from the filepath and offset delivered by the solr document.
+     * Resolve the arc/warc entries for a batch of Solr documents and add them to the zip stream in document order.
+     * The entries are resolved with {@link ArcParserFileResolver#getArcEntries}, which reads the entries in each
+     * (W)ARC in offset order instead of jumping between (W)ARCs.
+     * @param docs         SolrDocuments, which contains info on the ARC/WARC filepath and offset for entries.
+     * @param zos          which entries gets added to.
+     * @param warcMetadata object to save metadata information to.
+     * @return             the number of added entries.
      */
-    private static ArcEntry safeGetArcEntry(SolrDocument doc) {
-        try {
-            return Facade.getArcEntry((String) doc.getFieldValue("source_file_path"), (long) doc.getFieldValue("source_file_offset"));
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    private long addBatchToZip(List<SolrDocument> docs, ZipOutputStream zos, WarcMetadataFromSolr warcMetadata) {
+        List<ArcEntry> entries = ArcParserFileResolver.getArcEntries(
+                docs,
+                doc -> (String) doc.getFieldValue("source_file_path"),
+                doc -> (long) doc.getFieldValue("source_file_offset"));
+        for (int i = 0 ; i < docs.size() ; i++) {
+            SolrDocument doc = docs.get(i);
+            if (entries.get(i) == null) {
+                throw new RuntimeException("Unable to resolve arc/warc entry for " + doc.getFieldValue("source_file_path") +
+                                           " offset " + doc.getFieldValue("source_file_offset"));
+            }
+            extractMetadata(doc, warcMetadata);
+            addArcEntryToZip(entries.get(i), zos, warcMetadata);
         }
+        return docs.size();
     }
 
     /**
@@ -4,11 +4,18 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.util.DelayedInputStream;
 import dk.kb.netarchivesuite.solrwayback.util.NamedConsumer;
 import dk.kb.netarchivesuite.solrwayback.util.StatusInputStream;
@@ -23,19 +30,61 @@ import dk.kb.netarchivesuite.solrwayback.parsers.ArcParserFileResolver;
 import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 
+/**
+ * Delivers the records referenced by Solr documents as a WARC stream, optionally with each record gzipped.
+ * <p>
+ * The records are resolved in a bounded pipeline: The headers for a batch of documents are resolved with
+ * {@link ArcParserFileResolver#getArcEntries}, after which reading of the payloads and gzipping of the records is
+ * done by a pool of worker threads, shared between all exports. The records are delivered in the order of the
+ * Solr documents.
+ * <p>
+ * Read-ahead is limited by the number of bytes for records that are resolved but not yet delivered, controlled with
+ * the property {@code export.warc.inflight.megabytes}. Records larger than this are not read ahead, but streamed
+ * when they are reached. The number of worker threads is controlled with {@code export.warc.threads}.
+ */
 public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
 
   private static final Logger log = LoggerFactory.getLogger(StreamingSolrWarcExportBufferedInputStream.class);
 
+  /**
+   * The number of records to resolve at a time. Records in the same (W)ARC are resolved together, in offset order.
+   */
+  private static final int BATCH_SIZE = 20;
+  /**
+   * The maximum number of records that are read ahead, per worker thread.
+   */
+  private static final int MAX_PENDING_PER_THREAD = 10;
+  /**
+   * The maximum number of bytes to cache on the heap for a single payload of a record that is too large for
+   * read-ahead. Such records are not counted in maxInFlightBytes, so their payloads are mostly cached on storage.
+   */
+  private static final int LAZY_HEAP_CACHE = 1024*1024;
+
+  private static ExecutorService executor = null;
+
   //private final SolrGenericStreaming solrClient;
   private final Iterator<SolrDocument> solrDocs;
   private final long maxRecords;
   private final boolean gzip;
-  private final List<InputStream> entryStreams = new ArrayList<>(); // Ideally a FIFO buffer, but not worth the hassle
+  private final long maxInFlightBytes;
+  private final int heapCache;
+  /**
+   * Records with headers resolved, that are not yet scheduled for delivery.
+   */
+  private final Deque<EntryAndHeaders> resolved = new ArrayDeque<>();
+  /**
+   * Records scheduled for delivery, in delivery order.
+   */
+  private final Deque<PendingRecord> pending = new ArrayDeque<>();
+  private InputStream current = null;
+  private long currentReserved = 0;
+  private long currentDocs = 0;
+  private long reservedBytes = 0; // For pending records and the current record
   private long docsWarcRead;
   private long docsArcRead;
-
-  private int heapCache = 10*1024*1024; // 10MB TODO: Make this an option
+  private long docsConsumed = 0; // From solrDocs, including unresolvable
+  private long bytesDelivered = 0;
+  private RecordListener recordListener = null;
 
   /**
    * Create a stream with WARC-content from the records referenced by the solrClient.
@@ -46,9 +95,7 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
    * @param gzip if true, the WARC-records will be gzipped. If false, they will be delivered as-is.
    */
   public StreamingSolrWarcExportBufferedInputStream(Iterator<SolrDocument> solrDocs, long maxRecords, boolean gzip) {
-    this.solrDocs = solrDocs;
-    this.maxRecords = maxRecords;
-    this.gzip = gzip;
+    this(solrDocs, maxRecords, gzip, PropertiesLoader.EXPORT_WARC_INFLIGHT_MEGABYTES*1024L*1024);
   }
 
   /**
@@ -60,9 +107,52 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
    * @param gzip if true, the WARC-records will be gzipped. If false, they will be delivered as-is.
    */
   public StreamingSolrWarcExportBufferedInputStream(Stream<SolrDocument> solrDocs, long maxRecords, boolean gzip) {
-    this.solrDocs = solrDocs.iterator();
+    this(solrDocs.iterator(), maxRecords, gzip);
+  }
+
+  /**
+   * Create a stream with WARC-content from the records referenced by the solrClient.
+   * @param solrDocs   the Solr documents specifying the records to stream. The documents MUST include the fields
+   *                   {@code source_file_path} and {@code source_file_offset}.
+   * @param maxRecords the maximum number of records to deliver.
+   * @param gzip if true, the WARC-records will be gzipped. If false, they will be delivered as-is.
+   * @param maxInFlightBytes the maximum number of bytes for records that are read ahead.
+   */
+  public StreamingSolrWarcExportBufferedInputStream(
+          Iterator<SolrDocument> solrDocs, long maxRecords, boolean gzip, long maxInFlightBytes) {
+    this.solrDocs = solrDocs;
     this.maxRecords = maxRecords;
     this.gzip = gzip;
+    this.maxInFlightBytes = Math.max(1, maxInFlightBytes);
+    // Read-ahead records are at most maxInFlightBytes. Payloads larger than this are cached on storage
+    this.heapCache = (int) Math.min(this.maxInFlightBytes, Integer.MAX_VALUE-8);
+  }
+
+  /**
+   * @param recordListener receives a notification each time a record has been fully delivered. Can be null.
+   * @return the stream, for chaining.
+   */
+  public StreamingSolrWarcExportBufferedInputStream setRecordListener(RecordListener recordListener) {
+    this.recordListener = recordListener;
+    return this;
+  }
+
+  /**
+   * @return the executor for resolving record content, shared between all exports.
+   */
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(Math.max(1, PropertiesLoader.EXPORT_WARC_THREADS), new ThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger(0);
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread t = new Thread(runnable, "warcexport_" + counter.getAndIncrement());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
   }
 
   @Override
@@ -73,121 +163,166 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
   }
   private final byte[] SINGLE_BYTE = new byte[1];
 
-  private long readFromCurrent = 0;
   private long processedStreams = 0;
 
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
     int totalRead = 0;
     while (len > 0) {
-      // Do we have streams available?
-      if (entryStreams.isEmpty()) {
-        // No streams. Try to load more
-        loadMore();
-        if (entryStreams.isEmpty()) {
-          // Still no streams. Stop processing
-          log.info("warcExport buffer empty. Warcs read:"+docsWarcRead +" arcs read:"+docsArcRead);
-          return totalRead == 0 ? -1 : totalRead; // -1 signals EOS
-        }
+      // Do we have a record available?
+      if (current == null && !nextRecord()) {
+        // No more records. Stop processing
+        log.info("warcExport buffer empty. Warcs read:"+docsWarcRead +" arcs read:"+docsArcRead);
+        return totalRead == 0 ? -1 : totalRead; // -1 signals EOS
       }
 
-      // There are streams. Read content from the first one
-      int read = entryStreams.get(0).read(b, off, len);
-      if (read == -1) { // The entryStream is empty. Remove it and go to the next
-        /* Too spammy
-          log.debug(String.format(Locale.ENGLISH, "Emptied entryStream #%d (contained %d bytes). " +
-                                                "Switching to next one or loadMore() if the buffer is empty",
-                                processedStreams+1, readFromCurrent));
-        */
-        try {
-          entryStreams.get(0).close();
-          processedStreams++;
-        } catch (Exception e) {
-            log.debug("boo", e);
-          log.warn("Error closing entryStream", e);
+      // There is a record. Read content from it
+      int read = current.read(b, off, len);
+      if (read == -1) { // The record is empty. Release it and go to the next
+        if (recordListener != null) {
+          recordListener.recordDelivered(currentDocs, bytesDelivered);
         }
-        entryStreams.remove(0);
-        readFromCurrent = 0;
+        closeCurrent();
+        processedStreams++;
         continue;
       }
 
       // We got some content. Update counters and loop to try and fill the input buffer fully
       totalRead += read;
-      readFromCurrent += read;
+      bytesDelivered += read;
       off += read;
       len -= read;
     }
-
-    if (totalRead == 0) {
-      log.debug("No more content in last remaining stream. Closing export. " +
-                "WARCS read: " + docsWarcRead + " ARCs read: " + docsArcRead);
-    }
     return totalRead == 0 ? -1 : totalRead; // -1 signals EOS
   }
   AtomicInteger c = new AtomicInteger(0);
   AtomicInteger cLazy = new AtomicInteger(0);
 
   /**
-   * Resolve more content streams and add them to {@link #entryStreams}.
+   * Take the first pending record as {@link #current}, waiting for it to be resolved if needed.
+   * @return true if there was a record, false if all records has been delivered.
+   * @throws IOException if the record could not be constructed.
    */
-  private void loadMore() {
+  private boolean nextRecord() throws IOException {
+    schedule();
+    PendingRecord next = pending.poll();
+    if (next == null) {
+      log.debug("nextRecord(): No more documents available after " + (docsWarcRead+docsArcRead) + " docs read");
+      return false;
+    }
     try {
-      if (docsWarcRead+docsArcRead > maxRecords) { //Stop loading more
-        log.info("loadMore(): Max documents reached (" + maxRecords + "). Stopping loading of more documents");
-        return;
+      current = next.get();
+    } catch (IOException e) {
+      reservedBytes -= next.reserved;
+      throw e;
+    }
+    currentReserved = next.reserved;
+    currentDocs = next.docs;
+    schedule(); // Keep the workers busy while the current record is delivered
+    return true;
+  }
+
+  private void closeCurrent() {
+    try {
+      current.close();
+    } catch (Exception e) {
+      log.warn("Error closing record stream", e);
+    }
+    current = null;
+    reservedBytes -= currentReserved;
+    currentReserved = 0;
+  }
+
+  /**
+   * Schedule resolved records for delivery, until the number of pending records or the number of bytes for
+   * records that are read ahead reaches its limit.
+   */
+  private void schedule() {
+    final int maxPending = MAX_PENDING_PER_THREAD*Math.max(1, PropertiesLoader.EXPORT_WARC_THREADS);
+    try {
+      while (pending.size() < maxPending) {
+        if (resolved.isEmpty() && !resolveMore()) {
+          return;
+        }
+        EntryAndHeaders next = resolved.peek();
+        long size = next.getEstimatedSize();
+        if (size > maxInFlightBytes) { // Too large for read-ahead: Stream when reached
+          pending.add(new PendingRecord(
+                  CompletableFuture.completedFuture(getLazyRecordStream(next)), 0, next.docs));
+        } else if (reservedBytes > 0 && reservedBytes + size > maxInFlightBytes) {
+          return; // Read-ahead limit reached
+        } else {
+          reservedBytes += size;
+          pending.add(new PendingRecord(getExecutor().submit(() -> getRecordStream(next)), size, next.docs));
+        }
+        resolved.poll();
       }
-      while (solrDocs.hasNext() && entryStreams.isEmpty()) {
-        // We stream eventhough there is only 1 element in preparation of batching at a later time
-        addRecordsToStream(Stream.of(solrDocs.next()));
+    } catch (Exception e) {
+      log.error("Unhandled exception in schedule", e);
+    }
+  }
+
+  /**
+   * Resolve the headers for the next batch of Solr documents and add them to {@link #resolved}.
+   * @return true if any records were resolved.
+   */
+  private boolean resolveMore() {
+    while (resolved.isEmpty() && solrDocs.hasNext()) {
+      long remaining = maxRecords - (docsWarcRead+docsArcRead);
+      if (remaining <= 0) { //Stop loading more
+        log.info("resolveMore(): Max documents reached (" + maxRecords + "). Stopping loading of more documents");
+        return false;
       }
-      // log.debug("Got " + (docs == null ? 0 : docs.size()) + " Solr documents");
-      if (entryStreams.isEmpty()) {
-        log.debug("loadMore(): No more documents available after " + (docsWarcRead+docsArcRead) + " docs read");
+      List<SolrDocument> batch = new ArrayList<>(BATCH_SIZE);
+      while (solrDocs.hasNext() && batch.size() < Math.min(BATCH_SIZE, remaining)) {
+        batch.add(solrDocs.next());
       }
-    } catch (Exception e) {
-      log.error("Unhandled exception in loadMore", e);
+      resolved.addAll(resolveEntries(batch));
     }
+    return !resolved.isEmpty();
   }
 
   /**
-   * Given a list of Solr records with WARC paths and offsets, derive WARC entry representations from these and
-   * send them to {@link #addRecordsToStream(List)}.
+   * Given a list of Solr records with WARC paths and offsets, derive WARC entry representations from these.
    * @param docs Solr documents with {@code source_file_path} and {@code source_file_offset} fields.
+   * @return the entries that could be resolved, in the order of the documents.
    */
-  private void addRecordsToStream(Stream<SolrDocument> docs) throws IOException {
-    AtomicInteger docCount = new AtomicInteger(0);
-    List<EntryAndHeaders> entriesAndHeaders = docs
-            .peek(doc -> docCount.incrementAndGet())
-            .map(this::docToEntry)
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
-
-    if (entriesAndHeaders.isEmpty()) {
-      log.info("addRecordsToStream: No WARC records derived from " + docCount.get() + " Solr documents");
-      return;
+  private List<EntryAndHeaders> resolveEntries(List<SolrDocument> docs) {
+    List<ArcEntry> entries = ArcParserFileResolver.getArcEntries(
+            docs,
+            doc -> (String) doc.getFieldValue("source_file_path"),
+            doc -> (Long) doc.getFieldValue("source_file_offset"));
+    List<EntryAndHeaders> entriesAndHeaders = new ArrayList<>(docs.size());
+    for (int i = 0 ; i < docs.size() ; i++) {
+      EntryAndHeaders entryAndHeaders = docToEntry(docs.get(i), entries.get(i));
+      docsConsumed++;
+      if (entryAndHeaders != null) {
+        entryAndHeaders.docs = docsConsumed;
+        entriesAndHeaders.add(entryAndHeaders);
+      }
     }
 
-    if (gzip) {
-      addGzipRecordsToStream(entriesAndHeaders);
-    } else {
-      addRecordsToStream(entriesAndHeaders);
+    if (entriesAndHeaders.isEmpty()) {
+      log.info("resolveEntries: No WARC records derived from " + docs.size() + " Solr documents");
     }
+    return entriesAndHeaders;
   }
 
   private long warcsResolveAttempt = 0;
 
   /**
    * Resolve a WARC entrys from the given Solr doc.
-   * @param doc a Solr document with {@code source_file_path} and {@code source_file_offset} fields.
+   * @param doc       a Solr document with {@code source_file_path} and {@code source_file_offset} fields.
+   * @param warcEntry the (W)ARC entry for the document or null if it could not be resolved.
    * @return a representation of the corresponding WARC record or null if it is unresolvable.
    */
-  private EntryAndHeaders docToEntry(SolrDocument doc) {
+  private EntryAndHeaders docToEntry(SolrDocument doc, ArcEntry warcEntry) {
     warcsResolveAttempt++;
     String source_file_path = (String) doc.getFieldValue("source_file_path");
-    long offset = (Long) doc.getFieldValue("source_file_offset");
+    Long offset = (Long) doc.getFieldValue("source_file_offset");
     EntryAndHeaders singleEntry;
     try {
-      singleEntry = getWARCEntryAndHeaderStream(source_file_path, offset);
+      singleEntry = getWARCEntryAndHeaderStream(source_file_path, offset, warcEntry);
     } catch (Exception e) {
       log.warn(String.format(Locale.ENGLISH, "Exception resolving (W)ARC entry representation #%d for %s#%d. Skipping entry",
                              warcsResolveAttempt + 1, source_file_path, offset));
@@ -201,55 +336,77 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
   }
 
   /**
-   * Given a list of WARC entry representations, construct InputStreams for the WARC content for these and add
-   * them to {@link #entryStreams}. If the content for a WARC entry if faulty, it is repaired (the WARC header
-   * {@code Content-Length} is adjusted). If the content cannot be resolved at all, an error is logged and the entry is
-   * skipped.
-   * @param entriesAndHeaders a list of WARC entry representations.
+   * Construct the full content of a WARC record, gzipped if {@link #gzip} is true. Called by the workers.
+   * If the content for a WARC entry if faulty, it is repaired (the WARC header {@code Content-Length} is adjusted).
+   * <p>
+   * The payload is held in memory by {@link #getWARCEntryStream(EntryAndHeaders, int)}, so uncompressed records are
+   * delivered directly from that. Gzipped records are compressed to memory, after which the uncompressed payload is
+   * released. Either way only one representation of the record is held while it is pending.
+   * @param entryAndHeaders a WARC entry representation.
+   * @return the WARC record, held in memory.
    */
-  private void addRecordsToStream(List<EntryAndHeaders> entriesAndHeaders) {
-    entriesAndHeaders.forEach(
-            entryAndHeader -> entryStreams.add(
-                    new DelayedInputStream(() -> getWARCEntryStream(entryAndHeader))));
+  private InputStream getRecordStream(EntryAndHeaders entryAndHeaders) throws IOException {
+    if (!gzip) {
+      return getWARCEntryStream(entryAndHeaders, heapCache);
+    }
+    RecordBuffer buffer = new RecordBuffer((int) Math.min(entryAndHeaders.getEstimatedSize(), heapCache));
+    try (InputStream record = getWARCEntryStream(entryAndHeaders, heapCache);
+         OutputStream out = new GZIPOutputStream(buffer)) {
+      IOUtils.copy(record, out);
+    }
+    return buffer.toInputStream();
   }
 
   /**
-   * Given a list of WARC entry representations, construct gzipped InputStreams for the WARC content for these and add
-   * them to {@link #entryStreams}. If the content for a WARC entry if faulty, it is repaired (the WARC header
-   * {@code Content-Length} is adjusted). If the content cannot be resolved at all, an error is logged and the entry is
-   * skipped.
-   * @param entriesAndHeaders a list of WARC entry representations.
-   * @throws IOException if the overall processing failed. This should not happen under normal circumstances.
+   * Memory buffer that delivers its content as a stream without copying it.
    */
-  private void addGzipRecordsToStream(List<EntryAndHeaders> entriesAndHeaders) throws IOException {
-    List<Consumer<OutputStream>> providers = new ArrayList<>(entriesAndHeaders.size());
-    for (EntryAndHeaders entryAndHeader: entriesAndHeaders) {
-      ArcEntry entry = entryAndHeader.entry;
-      try {
-        providers.add(new NamedConsumer<>( // Wrapping in NamedConsumer for logging and debugging
-                StreamBridge.gzip(out -> { // Add the lambda to the list for later activation
-                    cLazy.incrementAndGet();
-                    try {
-                        IOUtils.copy(getWARCEntryStream(entryAndHeader), out);
-                    } catch (Exception e) {
-                        log.warn(String.format(
-                                Locale.ENGLISH, "Exception during copying of bytes from export lambda #%d " +
+  private static class RecordBuffer extends ByteArrayOutputStream {
+    public RecordBuffer(int size) {
+      super(size);
+    }
+
+    public synchronized InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  /**
+   * Construct a stream for a WARC record, gzipped if {@link #gzip} is true, that is resolved when it is first read.
+   * Used for records that are too large for read-ahead. At most {@link #LAZY_HEAP_CACHE} bytes of the payload are
+   * cached on the heap. If the content cannot be resolved, reading from the returned stream fails.
+   * @param entryAndHeaders a WARC entry representation.
+   * @return a lazily resolved stream for the WARC record.
+   */
+  private InputStream getLazyRecordStream(EntryAndHeaders entryAndHeaders) {
+    if (!gzip) {
+      return new DelayedInputStream(() -> getWARCEntryStream(entryAndHeaders, LAZY_HEAP_CACHE));
+    }
+    ArcEntry entry = entryAndHeaders.entry;
+    Consumer<OutputStream> provider = new NamedConsumer<>( // Wrapping in NamedConsumer for logging and debugging
+            StreamBridge.gzip(out -> {
+              cLazy.incrementAndGet();
+              try {
+                IOUtils.copy(getWARCEntryStream(entryAndHeaders, LAZY_HEAP_CACHE), out);
+              } catch (Exception e) {
+                String message = String.format(
+                        Locale.ENGLISH, "Exception during copying of bytes from export lambda #%d " +
                                         "with payload size %d bytes for URL '%s'",
-                                cLazy.get(), entry.getBinaryArraySize(), entry.getUrl()), e);
-                    }
-                }), "url='" + entry.getUrl()));
-      } catch (Exception e) {
-        log.error(String.format(
+                        cLazy.get(), entry.getBinaryArraySize(), entry.getUrl());
+                log.warn(message, e);
+                // Propagated to the reader of the stream, as a partial record would corrupt the export
+                throw new RuntimeException(message, e);
+              }
+            }), "url='" + entry.getUrl());
+    return new DelayedInputStream(() -> {
+      try {
+        return StreamBridge.outputToInput(provider);
+      } catch (IOException e) {
+        throw new UncheckedIOException(String.format(
                 Locale.ENGLISH,
                 "Exception getting delayed stream for export lambda #%d with payload size %d bytes for URL '%s'",
                 c.incrementAndGet(), entry.getBinaryArraySize(), entry.getUrl()), e);
       }
-    }
-
-    // All the providers are added in a single call, so that they will all be processed by the same thread.
-    // If they are added one at a time, they will require a thread for each call.
-    //log.debug("loadMore() adding " + providers.size() + " lazy resolved records");
-    entryStreams.add(StreamBridge.outputToInput(providers));
+    });
   }
 
   /**
@@ -257,10 +414,11 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
    * If the payload for the WARC entry if faulty, the WARC header {@code Content-Length} is adjusted accordingly.
    * If the headers cannot be resolved, an exception is thrown.
    * @param entryAndHeaders a WARC entry representation.
+   * @param heapCache the maximum amount of bytes to cache on the heap. Larger payloads are cached on storage.
    * @throws RuntimeException if the headers of the WARC entry could be resolved or a similar show-stopping problem
    * were encountered.
    */
-  private InputStream getWARCEntryStream(EntryAndHeaders entryAndHeaders) {
+  private InputStream getWARCEntryStream(EntryAndHeaders entryAndHeaders, int heapCache) {
     final String id = entryAndHeaders.entry.getArcSource() + "#" + entryAndHeaders.entry.getOffset();
     try {
       // Retrieve the payload to local cache (heap or storage, depending on size)
@@ -370,25 +528,23 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
   }
 
   /**
-   * Resolve parsed (W)ARC entries as well as an explicit header stream.
+   * Resolve an explicit header stream for a parsed (W)ARC entry.
    * @param source_file_path a WARC file.
    * @param offset a WARC offset.
+   * @param warcEntry the parsed entry or null if it could not be resolved.
    * @return a pair consisting og (w)arcEntry and header stream.
    */
-  private EntryAndHeaders getWARCEntryAndHeaderStream(String source_file_path, long offset) {
-    ArcEntry warcEntry;
-    InputStream headers;
+  private EntryAndHeaders getWARCEntryAndHeaderStream(String source_file_path, long offset, ArcEntry warcEntry) {
+    ByteArrayInputStream headers;
+
+    if (warcEntry == null) { //This will only happen if warc file is not found etc. Should not happen for real.
+      log.warn("Error loading (w)arc:"+source_file_path + " offset:" + offset);
+      return null;
+    }
 
     // ARC
     if (source_file_path.toLowerCase().endsWith(".arc") || source_file_path.toLowerCase().endsWith(".arc.gz")){
       //log.info("skipping Arc record:"+source_file_path);
-      try{
-        warcEntry = ArcParserFileResolver.getArcEntry(source_file_path, offset);
-      }
-      catch(Exception e){ //This will only happen if warc file is not found etc. Should not happen for real.
-        log.warn("Error loading arc:"+source_file_path,e);
-        return null;
-      }
 
 
       String warcHeader = ArcHeader2WarcHeader.arcHeader2WarcHeader(warcEntry);
@@ -404,15 +560,6 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
       }
       docsArcRead++;
     } else {
-      try{
-        warcEntry = ArcParserFileResolver.getArcEntry(source_file_path,offset);
-      }
-      catch(Exception e){ //This will only happen if warc file is not found etc. Should not happen for real.
-        log.warn("Error loading warc:"+source_file_path,e);
-        return null;
-      }
-
-
       String warc2HeaderEncoding = warcEntry.getContentEncoding();
       Charset charset = Charset.forName(WarcParser.WARC_HEADER_ENCODING); //Default if none define or illegal charset
 
@@ -440,24 +587,91 @@ public class StreamingSolrWarcExportBufferedInputStream extends InputStream{
   private static class EntryAndHeaders {
     public final ArcEntry entry;
     public final InputStream headers;
+    private final long headersSize;
+    /**
+     * The number of Solr documents consumed up to and including the document for this entry.
+     */
+    public long docs = 0;
 
-    public EntryAndHeaders(ArcEntry entry, InputStream headers) {
+    public EntryAndHeaders(ArcEntry entry, ByteArrayInputStream headers) {
       this.entry = entry;
       this.headers = headers;
+      this.headersSize = headers.available();
+    }
+
+    /**
+     * @return the size of the uncompressed WARC record, as stated by the headers.
+     */
+    public long getEstimatedSize() {
+      return headersSize + Math.max(0, entry.getBinaryArraySize()) + 4;
     }
   }
 
   /**
-   * Non-failing close that ensures that all {@link #entryStreams} are closed.
+   * A record scheduled for delivery, with the number of bytes reserved for it in the read-ahead limit.
+   */
+  private static class PendingRecord {
+    public final Future<InputStream> content;
+    public final long reserved;
+    public final long docs;
+
+    public PendingRecord(Future<InputStream> content, long reserved, long docs) {
+      this.content = content;
+      this.reserved = reserved;
+      this.docs = docs;
+    }
+
+    /**
+     * Wait for the content to be resolved.
+     * @return the content.
+     * @throws IOException if the content could not be resolved. Skipping the record would silently produce an
+     *                     export that differs from the requested one.
+     */
+    public InputStream get() throws IOException {
+      try {
+        return content.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for WARC record");
+      } catch (ExecutionException e) {
+        throw new IOException("Exception resolving WARC record for Solr document #" + docs, e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Receives notifications when records have been fully delivered, e.g. for checkpointing of exports.
+   */
+  public interface RecordListener {
+    /**
+     * @param docs  the number of Solr documents consumed for the delivered records, including documents for
+     *              records that could not be resolved.
+     * @param bytes the total number of bytes delivered by the stream, ending with the delivered record.
+     */
+    void recordDelivered(long docs, long bytes);
+  }
+
+  /**
+   * Non-failing close that ensures that the current record is closed and that pending records are not resolved.
+   * If the Solr documents are {@link AutoCloseable}, they are closed, which stops prefetching of Solr pages.
    */
   @Override
   public void close() {
-    for (InputStream entryStream: entryStreams) {
+    if (current != null) {
+      closeCurrent();
+    }
+    if (solrDocs instanceof AutoCloseable) {
       try {
-        entryStream.close();
+        ((AutoCloseable) solrDocs).close();
       } catch (Exception e) {
-        log.error("Error closing cached entryStream during outer close()", e);
+        log.warn("Exception closing Solr documents", e);
       }
     }
+    for (PendingRecord record: pending) {
+      record.content.cancel(false); // No interrupt as that would close shared file channels
+    }
+    pending.clear();
+    resolved.clear();
+    reservedBytes = 0;
   }
 }
@@ -2,6 +2,7 @@ package dk.kb.netarchivesuite.solrwayback.facade;
 
 import dk.kb.netarchivesuite.solrwayback.concurrency.ImageSearchExecutor;
 import dk.kb.netarchivesuite.solrwayback.export.ContentStreams;
+import dk.kb.netarchivesuite.solrwayback.export.ResumableWarcExport;
 import dk.kb.netarchivesuite.solrwayback.export.StreamingRawZipExport;
 import dk.kb.netarchivesuite.solrwayback.export.StreamingSolrExportBufferedInputStream;
 import dk.kb.netarchivesuite.solrwayback.export.StreamingSolrWarcExportBufferedInputStream;
@@ -558,14 +559,43 @@ public class Facade {
                 SRequest.builder()
                                 .query(query)
                                 .filterQueries(filterqueries)
-                                .fields("source_file_path", "source_file_offset")
-                                .pageSize(100). // TODO: Why so low? The two fields are tiny and single-valued
+                                .fields("source_file_path", "source_file_offset").
                         expandResources(expandResources).
                         ensureUnique(ensureUnique));
 
         return new StreamingSolrWarcExportBufferedInputStream(solrDocs, max, gzip); // Use maximum export results from property-file
     }
 
+    /**
+     * Create a WARC export job that can be resumed from any byte offset with {@link #getWarcExport(String)}.
+     * The job is started with {@link ResumableWarcExport#open(long)}.
+     * @param gzip if true each entry in the WARC stream is GZIPped.
+     * @param query Solr query for the records to export.
+     * @param filterqueries Solr filter queries.
+     * @return a registered export job.
+     * @throws InvalidArgumentServiceException if the number of results exceeds {@code export.warc.maxresults}.
+     */
+    public static ResumableWarcExport createWarcExport(boolean gzip, String query, String... filterqueries) throws Exception {
+        long results = NetarchiveSolrClient.getInstance().countResults(query, filterqueries);
+        if (results > PropertiesLoaderWeb.EXPORT_WARC_MAXRESULTS) {
+            throw new InvalidArgumentServiceException("Number of results("+results+") for warc export exceeds the configured limit: "+PropertiesLoaderWeb.EXPORT_WARC_MAXRESULTS);
+        }
+        return ResumableWarcExport.create(query, filterqueries, gzip, PropertiesLoaderWeb.EXPORT_WARC_MAXRESULTS);
+    }
+
+    /**
+     * @param jobID the ID for a WARC export job, as returned by {@link ResumableWarcExport#getId()}.
+     * @return the export job.
+     * @throws NotFoundServiceException if the job is unknown or has expired.
+     */
+    public static ResumableWarcExport getWarcExport(String jobID) throws NotFoundServiceException {
+        ResumableWarcExport job = ResumableWarcExport.get(jobID);
+        if (job == null) {
+            throw new NotFoundServiceException("The WARC export job '" + jobID + "' is unknown or has expired");
+        }
+        return job;
+    }
+
     public static InputStream exportLinkGraphStreaming(String q) {
         SolrStreamingLinkGraphCSVExportClient solr = SolrStreamingLinkGraphCSVExportClient.createExporter(null, q);
         return new StreamingSolrExportBufferedInputStream(solr, 1000000); // 1 MIL
@@ -618,6 +648,24 @@ public class Facade {
             String groupField, Boolean flatten, String format, Boolean gzip,
             String query, String... filterQueries)
             throws IOException, InvalidArgumentServiceException, SolrServerException {
+        return exportFields(fields, expandResources, ensureUnique, groupField, flatten, format, gzip, null,
+                            query, filterQueries);
+    }
+
+    /**
+     * Export the search result for the given query and filterQuery as content for the requested fields.
+     * <p>
+     * If the {@code sort} and all {@code fields} are docValues fields, the Solr export handler will be used when
+     * possible, which is considerably faster than paging for large exports. See {@link SRequest#exportHandler}.
+     * @param sort          optional Solr sort, such as {@code crawl_date asc}. If not defined, the export is
+     *                      ordered by relevance.
+     * @see #exportFields(String, Boolean, Boolean, String, Boolean, String, Boolean, String, String...)
+     */
+    public static InputStream exportFields(
+            String fields, Boolean expandResources, Boolean ensureUnique,
+            String groupField, Boolean flatten, String format, Boolean gzip, String sort,
+            String query, String... filterQueries)
+            throws IOException, InvalidArgumentServiceException, SolrServerException {
         // TODO check that only allowed fields are selected!
 
         // Validate result set size
@@ -635,6 +683,9 @@ public class Facade {
                 expandResources(expandResources).
                 deduplicateFields(groupField).
                 ensureUnique(ensureUnique);
+        if (sort != null && !sort.isEmpty()) {
+            request.sort(sort);
+        }
 
         // Create stream
         //Stream<SolrDocument> docs = SolrGenericStreaming.stream(request);
@@ -1,6 +1,8 @@
 package dk.kb.netarchivesuite.solrwayback.interfaces;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public interface ArcFileLocationResolverInterface {
@@ -26,4 +28,14 @@ public interface ArcFileLocationResolverInterface {
   void setParameters(Map<String, String> parameters);
   void initialize();
 
+  /**
+   * Resolvers that discover changed locations for (W)ARC files, e.g. by rescanning folders, should call the listener
+   * with the names (without folders) of the files that were moved or removed, so that cached locations can be
+   * discarded. The default implementation ignores the listener, which is correct for stateless resolvers.
+   * @param listener receiver of file names for (W)ARC files with changed locations.
+   */
+  default void setLocationChangeListener(Consumer<Collection<String>> listener) {
+    // Stateless resolvers never change locations
+  }
+
 }
@@ -15,6 +15,9 @@
 package dk.kb.netarchivesuite.solrwayback.interfaces;
 
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.util.FileChannelPool;
+import dk.kb.netarchivesuite.solrwayback.util.HTTPRangeClient;
+import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
 import dk.kb.netarchivesuite.solrwayback.util.SkippingHTTPInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +29,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.function.LongFunction;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
@@ -46,6 +55,9 @@ public class ArcSource implements Supplier<InputStream> {
 
     private final String source;
     private final Supplier<InputStream> supplier;
+    private final LongFunction<InputStream> offsetSupplier;
+    private final Path file;              // Only set for sources on the local file system
+    private final FileChannelPool pool;   // Only set if file channels are pooled
 
     /**
      * It is highly recommended to ensure that the {@link InputStream} delivered by the {@code supplier} handles
@@ -54,8 +66,26 @@ public class ArcSource implements Supplier<InputStream> {
      * @param source the source (URL, file path or similar) of the ArcData.
      */
     public ArcSource(String source, Supplier<InputStream> supplier) {
+        this(source, supplier, null);
+    }
+
+    /**
+     * @param source         the source (URL, file path or similar) of the ArcData.
+     * @param supplier       delivers streams positioned at the beginning of the data.
+     * @param offsetSupplier delivers streams positioned at a given offset in the data.
+     *                       If null, {@code supplier} is used and the stream is skipped to the offset.
+     */
+    public ArcSource(String source, Supplier<InputStream> supplier, LongFunction<InputStream> offsetSupplier) {
+        this(source, supplier, offsetSupplier, null, null);
+    }
+
+    private ArcSource(String source, Supplier<InputStream> supplier, LongFunction<InputStream> offsetSupplier,
+                      Path file, FileChannelPool pool) {
         this.source = source;
         this.supplier = supplier;
+        this.offsetSupplier = offsetSupplier;
+        this.file = file;
+        this.pool = pool;
     }
 
     /**
@@ -74,6 +104,73 @@ public class ArcSource implements Supplier<InputStream> {
         return supplier.get();
     }
 
+    /**
+     * @param offset the starting point in the (W)ARC file.
+     * @return a stream with the content of an ARC or a WARC file, starting at {@code offset}.
+     * @throws IOException if the stream could not be positioned at the offset.
+     */
+    public InputStream get(long offset) throws IOException {
+        if (offsetSupplier != null) {
+            return offsetSupplier.apply(offset);
+        }
+        InputStream is = supplier.get();
+        try {
+            InputStreamUtils.skipFully(is, offset);
+        } catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+        return is;
+    }
+
+    /**
+     * @return true if the data is a file on the local file system, which means that
+     *         {@link #transferTo(long, long, WritableByteChannel)} can be used.
+     */
+    public boolean isLocalFile() {
+        return file != null;
+    }
+
+    /**
+     * @return the file for the data if {@link #isLocalFile()} is true, else null.
+     */
+    public Path getLocalFile() {
+        return file;
+    }
+
+    /**
+     * Transfer bytes from the (W)ARC directly to the target with {@link FileChannel#transferTo}, without passing
+     * them through {@code InputStream}s. If the target is a file or socket channel, the bytes do not pass the Java
+     * heap. Only possible if {@link #isLocalFile()} is true.
+     * @param position the starting point in the (W)ARC file.
+     * @param count    the number of bytes to transfer. Bytes beyond the end of the file are ignored.
+     * @param target   the receiver of the bytes. The target is not closed.
+     * @return the number of transferred bytes.
+     * @throws IOException if the transfer failed.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (file == null) {
+            throw new UnsupportedOperationException("Direct transfer is only supported for local files, not '" +
+                                                    source + "'");
+        }
+        if (pool != null) {
+            return pool.transferTo(file, position, count, target);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return FileChannelPool.transferFully(channel, position, count, target);
+        }
+    }
+
+    /**
+     * Hint that the records at the given offsets will be requested shortly. Sources where there is an overhead
+     * for each request, such as HTTP, can use this to fetch the records in bulk.
+     * The default implementation does nothing.
+     * @param offsets record offsets in the (W)ARC.
+     */
+    public void prefetch(Collection<Long> offsets) {
+        // No prefetching per default
+    }
+
     /**
      * Construct an ArcSource from a file path.
      * <p>
@@ -82,7 +179,10 @@ public class ArcSource implements Supplier<InputStream> {
      * @return an ArcSource for the given file.
      */
     public static ArcSource fromFile(String file) {
-        return new ArcSource(file, () -> {
+        if (PropertiesLoader.WARC_SOURCE_FILE_CHANNELS > 0) {
+            return fromFileChannel(file, FileChannelPool.getInstance());
+        }
+        Supplier<InputStream> supplier = () -> {
             try {
                 // TODO: Verify that Files.newInputStream supports efficient skipping then switch to that
                 return new FileInputStream(file);
@@ -93,17 +193,48 @@ public class ArcSource implements Supplier<InputStream> {
                 log.error("Unable to create FileInputStream for (W)ARC '" + file + "'", e);
                 throw new RuntimeException("Unable to create FileInputStream for (W)ARC '" + file + "'", e);
             }
-        });
+        };
+        return new ArcSource(file, supplier, null, Path.of(file), null);
+    }
+
+    /**
+     * Construct an ArcSource from a file path, where content is read from channels kept open in the given
+     * {@code pool}. Opening the file is only done once for multiple requests and skipping to a given offset
+     * is free.
+     * @param file a file on the local file system.
+     * @param pool the pool to get channels from.
+     * @return an ArcSource for the given file.
+     */
+    public static ArcSource fromFileChannel(String file, FileChannelPool pool) {
+        final Path path = Path.of(file);
+        LongFunction<InputStream> offsetSupplier = offset -> {
+            try {
+                return pool.getInputStream(path, offset);
+            } catch (FileNotFoundException e) {
+                log.error("FileNotFoundException trying to access (W)ARC '{}'", file);
+                throw new RuntimeException("FileNotFoundException trying to access (W)ARC '" + file + "'", e);
+            } catch (Exception e) {
+                log.error("Unable to open channel for (W)ARC '" + file + "'", e);
+                throw new RuntimeException("Unable to open channel for (W)ARC '" + file + "'", e);
+            }
+        };
+        return new ArcSource(file, () -> offsetSupplier.apply(0), offsetSupplier, path, pool);
     }
 
     /**
      * Construct an ArcSource from a http(s) URL.
      * <p>
+     * If {@link PropertiesLoader#WARC_SOURCE_HTTP_FALLBACK} is false, a {@link HTTPArcSource} with pooled
+     * connections is returned. Else a source that supports servers without range requests is returned.
+     * <p>
      * Consider using the general {@link #create(String)} instead of this method.
      * @param httpURL an URL for a WARC.
      * @return an ArcSource for the given file.
      */
     public static ArcSource fromHTTP(String httpURL) {
+        if (!PropertiesLoader.WARC_SOURCE_HTTP_FALLBACK) {
+            return new HTTPArcSource(httpURL, HTTPRangeClient.getInstance());
+        }
         final URL url;
         try {
             url = new URL(httpURL);
@@ -12,9 +12,18 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.regex.Pattern;
 
 /**
@@ -30,10 +39,17 @@ import java.util.regex.Pattern;
  warc.file.resolver.parameters.autoresolver.pattern=.*[.]w?arc([.]gz)?
  warc.file.resolver.parameters.autoresolver.rescan.enabled=false
  warc.file.resolver.parameters.autoresolver.rescan.seconds=1200
+ warc.file.resolver.parameters.autoresolver.snapshot=/home/sw/solrwayback_cache/warcnames.snapshot
+ warc.file.resolver.parameters.autoresolver.scan.threads=8
  </pre>
  * Only the {@code roots} parameter is mandatory.
  * {@code pattern}, {@code rescan.enabled} and {@code rescan.seconds} has the
- * defaults shown above
+ * defaults shown above. {@code snapshot} is optional: If specified, the result of the latest scan is stored in
+ * the given file and used on startup, so that lookups are possible while the initial scan is running.
+ * <p>
+ * Folders are scanned in parallel using {@code scan.threads} threads. Rescans only list the content of folders
+ * where the modification time has changed since the previous scan. Note that some network file systems do not
+ * update the modification time of folders reliably: In that case, disable rescans and restart to rescan.
  */
 // TODO: Unit test (use the WARCs in test/resources)
 // TODO: Sample solrwayback.properties entries
@@ -50,6 +66,15 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
     public static final boolean RESCAN_ENABLED_DEFAULT = false;
     public static final String  RESCAN_SECONDS_KEY = "autoresolver.rescan.seconds";
     public static final long    RESCAN_SECONDS_DEFAULT = 60;
+    public static final String  SNAPSHOT_KEY = "autoresolver.snapshot";
+    public static final String  SCAN_THREADS_KEY = "autoresolver.scan.threads";
+    public static final int     SCAN_THREADS_DEFAULT = 8;
+
+    /**
+     * Folders modified less than this number of milliseconds before they were listed are always re-listed,
+     * as file systems might have coarse modification time granularity.
+     */
+    private static final long MTIME_GRANULARITY_MS = 2000;
 
     public enum STATE {
         /** Initial scan is running: Lookups will lock until the scan has finished. */
@@ -62,12 +87,26 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
     /**
      * Map from filename to path: {@code /a/b/c/test.warc} becomes {@code test.warc} -> {@code /a/b/c}.
      */
-    private Map<String, String> WARCS = new HashMap<>();
+    private volatile WarcNameIndex WARCS = WarcNameIndex.EMPTY;
     private final List<Path> roots = new ArrayList<>();
     private Pattern filePattern;
     private boolean rescanEnabled;
     private long rescanSeconds;
-    private STATE state = STATE.initializing;
+    private Path snapshot = null;
+    private int scanThreads;
+    private volatile STATE state = STATE.initializing;
+    /**
+     * Folder content from the latest scan, used for skipping listing of unchanged folders in subsequent scans.
+     */
+    private Map<Path, FolderState> folderStates = new HashMap<>();
+
+    // Progress for the current or latest scan
+    private volatile long scanStartTime = 0;
+    private volatile long scanEndTime = 0;
+    private final AtomicLong foldersScanned = new AtomicLong(0);
+    private final AtomicLong foldersUnchanged = new AtomicLong(0);
+    private final AtomicLong filesFound = new AtomicLong(0);
+    private Consumer<Collection<String>> locationChangeListener = null;
 
     /**
      * Constructs an AutoFileResolver in its uni-initialized state.
@@ -112,6 +151,12 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
         rescanSeconds = parameters.containsKey(RESCAN_SECONDS_KEY) ?
                 Long.parseLong(parameters.get(RESCAN_SECONDS_KEY)) :
                 RESCAN_SECONDS_DEFAULT;
+        snapshot = parameters.containsKey(SNAPSHOT_KEY) ?
+                Path.of(parameters.get(SNAPSHOT_KEY)) :
+                null;
+        scanThreads = parameters.containsKey(SCAN_THREADS_KEY) ?
+                Integer.parseInt(parameters.get(SCAN_THREADS_KEY)) :
+                SCAN_THREADS_DEFAULT;
 
         log.info("Assigned parameters for {}", this);
     }
@@ -133,7 +178,7 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
     @SuppressWarnings("BusyWait")
     @Override
     public void run() {
-        long scanCount = 0;
+        long scanCount = loadSnapshot() ? 1 : 0;
         do { // 1 scan is guaranteed, even if rescanEnabled is false
             state = scanCount++ == 0 ? STATE.initializing : STATE.scanning;
             scanFull();
@@ -150,53 +195,219 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
     }
 
     /**
-     * Perform a full scan for WARCs from all roots.
+     * Perform a full scan for WARCs from all roots. Folders that are unchanged since the previous scan are not listed.
      * The collected mappings only takes effect when the scan has fully completed.
      */
     private synchronized void scanFull() {
+        scanStartTime = System.currentTimeMillis();
+        scanEndTime = 0;
+        foldersScanned.set(0);
+        foldersUnchanged.set(0);
+        filesFound.set(0);
+        log.info("Starting scan for (W)ARC from roots {} using {} threads. This might take a while",
+                 roots, scanThreads);
+
+        Map<Path, FolderState> newFolderStates = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool(scanThreads);
+        try {
+            for (Path root : roots) {
+                pool.invoke(new ScanTask(root, folderStates, newFolderStates));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        folderStates = newFolderStates;
+
+        // Sorted for deterministic handling of duplicate names
+        WarcNameIndex.Builder builder = new WarcNameIndex.Builder();
+        newFolderStates.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> entry.getValue().addFiles(entry.getKey().toString(), builder));
+        WarcNameIndex oldWARCs = WARCS;
+        WARCS = builder.build();
+        notifyChanges(oldWARCs, WARCS);
+
+        scanEndTime = System.currentTimeMillis();
+        log.info("Finished scan for WARCs from {} roots in {} seconds. Number of registered files: {}. {}",
+                 roots.size(), (scanEndTime - scanStartTime) / 1000, WARCS.size(), getProgress());
+        storeSnapshot();
+    }
+
+    /**
+     * Load the WARC mappings from {@link #snapshot} if it is defined and exists.
+     * @return true if a snapshot was loaded.
+     */
+    private boolean loadSnapshot() {
+        if (snapshot == null || !Files.exists(snapshot)) {
+            return false;
+        }
         final long startTime = System.currentTimeMillis();
-        log.info("Starting scan for (W)ARC from roots {}. This might take a while", roots);
+        try {
+            WARCS = WarcNameIndex.read(snapshot);
+            log.info("Loaded {} from snapshot '{}' in {} ms",
+                     WARCS, snapshot, System.currentTimeMillis() - startTime);
+            return true;
+        } catch (Exception e) {
+            log.warn("Unable to load WARC name snapshot '" + snapshot + "'. Performing full scan", e);
+            return false;
+        }
+    }
 
-        Map<String, String> newWARCs = new HashMap<>();
-        for (Path root : roots) {
-            scanRoot(root, newWARCs);
+    /**
+     * Store the current WARC mappings in {@link #snapshot} if it is defined.
+     */
+    private void storeSnapshot() {
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            if (snapshot.getParent() != null) {
+                Files.createDirectories(snapshot.getParent());
+            }
+            WARCS.write(snapshot);
+            log.debug("Stored {} as snapshot '{}'", WARCS, snapshot);
+        } catch (Exception e) {
+            log.warn("Unable to store WARC name snapshot '" + snapshot + "'", e);
         }
-        WARCS = newWARCs;
+    }
 
-        log.info("Finished scan for WARCs from {} roots in {} seconds. Number of registered files: {}",
-                 roots.size(), (System.currentTimeMillis() - startTime) / 1000, WARCS.size());
+    /**
+     * Inform the {@link #locationChangeListener} about WARCs that has been added, moved or removed between the
+     * two scans. Added WARCs are included as lookups for unknown WARCs falls back to {@code source_file_path}.
+     * @param oldWARCs the WARC map from the previous scan.
+     * @param newWARCs the WARC map from the current scan.
+     */
+    private void notifyChanges(WarcNameIndex oldWARCs, WarcNameIndex newWARCs) {
+        if (locationChangeListener == null || oldWARCs.size() == 0) {
+            return;
+        }
+        Set<String> changed = oldWARCs.diff(newWARCs);
+        if (!changed.isEmpty()) {
+            log.info("Rescan detected {} added, moved or removed WARCs", changed.size());
+            locationChangeListener.accept(changed);
+        }
     }
 
     /**
-     * Scan recursively from the given {@code path} and add WARC files to the {@code warcs} map.
-     * @param path  folder to scan from.
-     * @param warcs map for collecting WARC to folder mappings.
+     * Scans a folder and forks scans of its sub folders. If the folder is unchanged since the previous scan,
+     * the content from the previous scan is reused instead of listing the folder.
      */
-    private void scanRoot(Path path, Map<String, String> warcs) {
-        final String location = path.toString(); // TODO: Check that it does not end in '/'
-        // Performance note: We do not use the more convenient Files.walk as we want to ensure that location is
-        // the same object for same path, in order to save heap space for the map
-        try (DirectoryStream<Path> pathEntries = Files.newDirectoryStream(path)) {
-            pathEntries.forEach(pathEntry -> {
-                if (Files.isDirectory(pathEntry)) {
-                    scanRoot(pathEntry, warcs);
-                    return;
+    private class ScanTask extends RecursiveAction {
+        private final Path folder;
+        private final Map<Path, FolderState> previous;
+        private final Map<Path, FolderState> current;
+
+        public ScanTask(Path folder, Map<Path, FolderState> previous, Map<Path, FolderState> current) {
+            this.folder = folder;
+            this.previous = previous;
+            this.current = current;
+        }
+
+        @Override
+        protected void compute() {
+            FolderState folderState;
+            try {
+                long lastModified = Files.getLastModifiedTime(folder).toMillis();
+                FolderState old = previous.get(folder);
+                if (old != null && old.isUnchanged(lastModified)) {
+                    folderState = old;
+                    foldersUnchanged.incrementAndGet();
+                } else {
+                    folderState = listFolder(lastModified);
                 }
-                String filename = pathEntry.getFileName().toString();
-                if (!filePattern.matcher(filename).matches()) {
-                    log.trace("Scanner encountered non-matching file '{}'", filename); //spamming too much during build
-                    return;
+            } catch (AccessDeniedException e) {
+                log.debug("AccessDeniedException for path '{}'", folder);
+                return;
+            } catch (IOException e) {
+                log.warn("Exception while scanning the content of folder '" + folder + "'", e);
+                return;
+            }
+            current.put(folder, folderState);
+            foldersScanned.incrementAndGet();
+            filesFound.addAndGet(folderState.fileCount());
+
+            invokeAll(Arrays.stream(folderState.subFolders)
+                              .map(subFolder -> new ScanTask(subFolder, previous, current))
+                              .collect(Collectors.toList()));
+        }
+
+        private FolderState listFolder(long lastModified) throws IOException {
+            final long listTime = System.currentTimeMillis();
+            List<Path> subFolders = new ArrayList<>();
+            StringBuilder files = new StringBuilder();
+            try (DirectoryStream<Path> pathEntries = Files.newDirectoryStream(folder)) {
+                for (Path pathEntry: pathEntries) {
+                    if (Files.isDirectory(pathEntry)) {
+                        subFolders.add(pathEntry);
+                        continue;
+                    }
+                    String filename = pathEntry.getFileName().toString();
+                    if (!filePattern.matcher(filename).matches()) {
+                        log.trace("Scanner encountered non-matching file '{}'", filename); //spamming too much during build
+                        continue;
+                    }
+                    if (files.length() > 0) {
+                        files.append('/');
+                    }
+                    files.append(filename);
                 }
-                if (warcs.containsKey(filename)) {
-                    log.warn("The WARC name '{}' in folder '{}' is already present in folder '{}'",
-                             filename, location, warcs.get(filename));
+            }
+            return new FolderState(lastModified, listTime, files.toString(), subFolders.toArray(new Path[0]));
+        }
+    }
+
+    /**
+     * The content of a single folder, as seen at a given time.
+     */
+    private static class FolderState {
+        final long lastModified;
+        final long listTime;
+        /**
+         * Names of matching files, separated by {@code /} as that cannot be part of a filename.
+         * This is much more compact than a {@code String[]}.
+         */
+        final String files;
+        final Path[] subFolders;
+
+        public FolderState(long lastModified, long listTime, String files, Path[] subFolders) {
+            this.lastModified = lastModified;
+            this.listTime = listTime;
+            this.files = files;
+            this.subFolders = subFolders;
+        }
+
+        /**
+         * @param lastModified the current modification time for the folder.
+         * @return true if the content of the folder can be assumed to be the same as when it was listed.
+         */
+        boolean isUnchanged(long lastModified) {
+            return this.lastModified == lastModified && lastModified < listTime - MTIME_GRANULARITY_MS;
+        }
+
+        int fileCount() {
+            if (files.isEmpty()) {
+                return 0;
+            }
+            int count = 1;
+            for (int i = 0 ; i < files.length() ; i++) {
+                if (files.charAt(i) == '/') {
+                    count++;
                 }
-                warcs.put(filename, location);
-            });
-        } catch (AccessDeniedException e) {
-            log.debug("AccessDeniedException for path '{}'", path);
-        } catch (IOException e) {
-            log.warn("Exception while scanning the content of folder '" + path + "'", e);
+            }
+            return count;
+        }
+
+        void addFiles(String location, WarcNameIndex.Builder warcs) {
+            if (files.isEmpty()) {
+                return;
+            }
+            int start = 0;
+            int end;
+            while ((end = files.indexOf('/', start)) != -1) {
+                warcs.add(files.substring(start, end), location);
+                start = end+1;
+            }
+            warcs.add(files.substring(start), location);
         }
     }
 
@@ -220,6 +431,11 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
         return ArcSource.fromFile(finalPath);
     }
 
+    @Override
+    public void setLocationChangeListener(Consumer<Collection<String>> listener) {
+        this.locationChangeListener = listener;
+    }
+
     /**
      * @return the state of the resolver: Initializing, scanning or dormant.
      */
@@ -227,6 +443,20 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
         return state;
     }
 
+    /**
+     * @return human readable progress and throughput for the current or latest scan.
+     */
+    public String getProgress() {
+        if (scanStartTime == 0) {
+            return "No scan started";
+        }
+        long ms = Math.max(1, (scanEndTime == 0 ? System.currentTimeMillis() : scanEndTime) - scanStartTime);
+        return String.format(Locale.ENGLISH,
+                             "%s: %d folders (%d unchanged) with %d WARCs in %d seconds (%.1f folders/second)",
+                             state, foldersScanned.get(), foldersUnchanged.get(), filesFound.get(),
+                             ms/1000, foldersScanned.get()*1000.0/ms);
+    }
+
     @Override
     public String toString() {
         return "AutoFileResolver(" +
@@ -234,7 +464,9 @@ public class AutoFileResolver implements ArcFileLocationResolverInterface, Runna
                ", filePattern=" + filePattern +  "'" +
                ", rescanEnabled=" + rescanEnabled +
                ", rescanSeconds=" + rescanSeconds +
+               ", scanThreads=" + scanThreads +
                ", state=" + state +
+               ", progress='" + getProgress() + "'" +
                ", #WARCS=" + WARCS.size() +
                '}';
     }
@@ -0,0 +1,117 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.interfaces;
+
+import dk.kb.netarchivesuite.solrwayback.solr.TimeCache;
+import dk.kb.netarchivesuite.solrwayback.util.HTTPRangeClient;
+import dk.kb.netarchivesuite.solrwayback.util.HTTPRangeInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link ArcSource} for (W)ARCs available through HTTP servers that supports range requests.
+ * <p>
+ * Content is fetched with {@link HTTPRangeClient}, which keeps connections alive between requests.
+ * Callers that knows that multiple records from the same (W)ARC will be needed can call {@link #prefetch(Collection)}
+ * to fetch the start of all the records with a single multi-range request.
+ */
+public class HTTPArcSource extends ArcSource {
+    private static final Logger log = LoggerFactory.getLogger(HTTPArcSource.class);
+
+    /**
+     * The number of bytes to prefetch for each record. This is enough to hold the headers and the content of most
+     * small records, such as CSS and icons.
+     */
+    public static final int PREFETCH_BYTES = 16*1024;
+
+    /**
+     * Shared across sources, as the same (W)ARC might be represented by different sources.
+     */
+    private static final TimeCache<byte[]> prefetched =
+            new TimeCache<>(10000, 60*1000, 32*1024*1024, o -> ((byte[])o).length);
+
+    private final HTTPRangeClient client;
+    private final URI uri;
+
+    /**
+     * @param source an HTTP or HTTPS URL for a (W)ARC.
+     * @param client the client to use for requests.
+     */
+    public HTTPArcSource(String source, HTTPRangeClient client) {
+        super(source, null);
+        this.client = client;
+        try {
+            this.uri = URI.create(source);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unable to construct URI from '" + source + "'", e);
+        }
+    }
+
+    @Override
+    public InputStream get() {
+        return get(0);
+    }
+
+    @Override
+    public InputStream get(long offset) {
+        byte[] head = prefetched.get(key(offset));
+        return new HTTPRangeInputStream(client, uri, offset, head);
+    }
+
+    /**
+     * Fetch the first {@link #PREFETCH_BYTES} of the records at the given offsets using as few requests as possible.
+     * Subsequent calls to {@link #get(long)} for the offsets will start with the prefetched bytes.
+     * @param offsets record offsets in the (W)ARC.
+     */
+    @Override
+    public void prefetch(Collection<Long> offsets) {
+        List<long[]> ranges = new ArrayList<>(offsets.size());
+        List<Long> starts = new ArrayList<>(offsets.size());
+        for (Long offset: offsets) {
+            if (!prefetched.containsKey(key(offset))) {
+                ranges.add(new long[]{offset, offset + PREFETCH_BYTES});
+                starts.add(offset);
+            }
+        }
+        if (ranges.isEmpty()) {
+            return;
+        }
+        try {
+            List<byte[]> heads = client.getRanges(uri, ranges);
+            for (int i = 0 ; i < heads.size() ; i++) {
+                prefetched.put(key(starts.get(i)), heads.get(i));
+            }
+        } catch (IOException e) {
+            // Not fatal: The records will be fetched individually
+            log.warn("Unable to prefetch " + ranges.size() + " records from " + uri, e);
+        }
+    }
+
+    private String key(long offset) {
+        return getSource() + "#" + offset;
+    }
+
+    @Override
+    public String toString() {
+        return "HTTPArcSource(source='" + getSource() + "')";
+    }
+}
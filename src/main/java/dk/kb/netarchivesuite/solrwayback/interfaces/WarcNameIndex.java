@@ -0,0 +1,378 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.interfaces;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable and compact map from (W)ARC filename to folder, used by {@link AutoFileResolver}.
+ * <p>
+ * Filenames are stored as UTF-8 in a single packed byte array, sorted by unsigned byte order, and looked up using
+ * binary search. Each distinct folder is stored once and referenced by index. Compared to a
+ * {@code HashMap<String, String>} this reduces the overhead from about 150 bytes per entry to 8 bytes + the UTF-8
+ * representation of the filename.
+ * <p>
+ * The index can be stored as a snapshot file with {@link #write(Path)} and loaded with {@link #read(Path)}.
+ */
+public class WarcNameIndex {
+    private static final Logger log = LoggerFactory.getLogger(WarcNameIndex.class);
+
+    private static final int MAGIC = 0x5741524E; // WARN: WARc Names
+    private static final int VERSION = 1;
+
+    public static final WarcNameIndex EMPTY = new Builder().build();
+
+    private final String[] folders;
+    private final byte[] names;
+    private final int[] nameOffsets; // size() + 1 entries
+    private final int[] folderIDs;
+
+    private WarcNameIndex(String[] folders, byte[] names, int[] nameOffsets, int[] folderIDs) {
+        this.folders = folders;
+        this.names = names;
+        this.nameOffsets = nameOffsets;
+        this.folderIDs = folderIDs;
+    }
+
+    /**
+     * @param filename the name of a (W)ARC file without folder, e.g. {@code 12345.warc.gz}.
+     * @return the folder holding the file or null if the file is not known.
+     */
+    public String get(String filename) {
+        int index = indexOf(filename.getBytes(StandardCharsets.UTF_8));
+        return index < 0 ? null : folders[folderIDs[index]];
+    }
+
+    /**
+     * @return the number of filenames in the index.
+     */
+    public int size() {
+        return folderIDs.length;
+    }
+
+    /**
+     * @return the number of distinct folders in the index.
+     */
+    public int folderCount() {
+        return folders.length;
+    }
+
+    /**
+     * @return the approximate number of bytes on the heap used by the index.
+     */
+    public long estimateBytes() {
+        long bytes = names.length + 4L * nameOffsets.length + 4L * folderIDs.length;
+        for (String folder: folders) {
+            bytes += 40 + folder.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Call the consumer with all filename and folder pairs, in filename order.
+     * @param consumer receives filenames and folders.
+     */
+    public void forEach(BiConsumer<String, String> consumer) {
+        for (int i = 0 ; i < size() ; i++) {
+            consumer.accept(getName(i), folders[folderIDs[i]]);
+        }
+    }
+
+    /**
+     * Determine the filenames that are added, removed or in another folder in {@code other}, compared to this index.
+     * @param other another index.
+     * @return the filenames that differ between the two indexes.
+     */
+    public Set<String> diff(WarcNameIndex other) {
+        Set<String> changed = new HashSet<>();
+        int i = 0;
+        int j = 0;
+        while (i < size() || j < other.size()) {
+            int c = i == size() ? 1 :
+                    j == other.size() ? -1 :
+                    compare(names, nameOffsets[i], nameOffsets[i+1],
+                            other.names, other.nameOffsets[j], other.nameOffsets[j+1]);
+            if (c < 0) {
+                changed.add(getName(i++));
+            } else if (c > 0) {
+                changed.add(other.getName(j++));
+            } else {
+                if (!folders[folderIDs[i]].equals(other.folders[other.folderIDs[j]])) {
+                    changed.add(getName(i));
+                }
+                i++;
+                j++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Store the index as a snapshot file. The snapshot is written to a temporary file, which is moved to
+     * {@code snapshot} when complete.
+     * @param snapshot the destination file.
+     * @throws IOException if the snapshot could not be written.
+     */
+    public void write(Path snapshot) throws IOException {
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(folders.length);
+            for (String folder: folders) {
+                out.writeUTF(folder);
+            }
+            out.writeInt(folderIDs.length);
+            out.writeInt(names.length);
+            out.write(names);
+            for (int offset: nameOffsets) {
+                out.writeInt(offset);
+            }
+            for (int folderID: folderIDs) {
+                out.writeInt(folderID);
+            }
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a snapshot written by {@link #write(Path)}.
+     * @param snapshot a snapshot file.
+     * @return the index from the snapshot.
+     * @throws IOException if the snapshot could not be read or was not a valid snapshot.
+     */
+    public static WarcNameIndex read(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("The file '" + snapshot + "' is not a WARC name snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("The WARC name snapshot '" + snapshot + "' has version " + version +
+                                      " while only version " + VERSION + " is supported");
+            }
+            String[] folders = new String[in.readInt()];
+            for (int i = 0 ; i < folders.length ; i++) {
+                folders[i] = in.readUTF();
+            }
+            int size = in.readInt();
+            byte[] names = new byte[in.readInt()];
+            in.readFully(names);
+            int[] nameOffsets = new int[size+1];
+            for (int i = 0 ; i < nameOffsets.length ; i++) {
+                nameOffsets[i] = in.readInt();
+            }
+            int[] folderIDs = new int[size];
+            for (int i = 0 ; i < size ; i++) {
+                folderIDs[i] = in.readInt();
+            }
+            return new WarcNameIndex(folders, names, nameOffsets, folderIDs);
+        }
+    }
+
+    private String getName(int index) {
+        return new String(names, nameOffsets[index], nameOffsets[index+1]-nameOffsets[index], StandardCharsets.UTF_8);
+    }
+
+    private int indexOf(byte[] key) {
+        int low = 0;
+        int high = size()-1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(names, nameOffsets[mid], nameOffsets[mid+1], key, 0, key.length);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Unsigned lexicographical comparison of byte ranges.
+     */
+    private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        int aLength = aEnd-aStart;
+        int bLength = bEnd-bStart;
+        int length = Math.min(aLength, bLength);
+        for (int i = 0 ; i < length ; i++) {
+            int c = (a[aStart+i] & 0xFF) - (b[bStart+i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    @Override
+    public String toString() {
+        return "WarcNameIndex(#names=" + size() + ", #folders=" + folders.length +
+               ", bytes≈" + estimateBytes()/1024 + "KB)";
+    }
+
+    /**
+     * Collects filename and folder pairs for a {@link WarcNameIndex}.
+     * If the same filename is added multiple times, the last folder is used.
+     * <p>
+     * The builder is not thread safe.
+     */
+    public static class Builder {
+        private final Map<String, Integer> folderIDs = new HashMap<>();
+        private final List<String> folders = new ArrayList<>();
+        private byte[] names = new byte[1024];
+        private int namesSize = 0;
+        private int[] nameOffsets = new int[64];
+        private int[] nameFolders = new int[64];
+        private int size = 0;
+
+        /**
+         * Add a filename and folder pair.
+         * @param filename the name of a (W)ARC file without folder.
+         * @param folder   the folder holding the file.
+         * @return the builder for chaining.
+         */
+        public Builder add(String filename, String folder) {
+            Integer folderID = folderIDs.get(folder);
+            if (folderID == null) {
+                folderID = folders.size();
+                folders.add(folder);
+                folderIDs.put(folder, folderID);
+            }
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+            if (namesSize + name.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length*2, namesSize + name.length));
+            }
+            if (size == nameOffsets.length) {
+                nameOffsets = Arrays.copyOf(nameOffsets, size*2);
+                nameFolders = Arrays.copyOf(nameFolders, size*2);
+            }
+            System.arraycopy(name, 0, names, namesSize, name.length);
+            nameOffsets[size] = namesSize;
+            nameFolders[size] = folderID;
+            namesSize += name.length;
+            size++;
+            return this;
+        }
+
+        /**
+         * Add all the pairs from the given index.
+         * @param index an existing index.
+         * @return the builder for chaining.
+         */
+        public Builder addAll(WarcNameIndex index) {
+            index.forEach(this::add);
+            return this;
+        }
+
+        /**
+         * @return the number of added pairs, including duplicates.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Sort the added filenames and create the index.
+         * @return an immutable index with the added pairs.
+         */
+        public WarcNameIndex build() {
+            int[] order = new int[size];
+            for (int i = 0 ; i < size ; i++) {
+                order[i] = i;
+            }
+            // Stable sort, so that the last of duplicate filenames is the last in the sorted order
+            mergeSort(order, new int[size], 0, size);
+
+            byte[] sortedNames = new byte[namesSize];
+            int[] sortedOffsets = new int[size+1];
+            int[] sortedFolders = new int[size];
+            int count = 0;
+            int namesPos = 0;
+            for (int i = 0 ; i < size ; i++) {
+                int entry = order[i];
+                if (i+1 < size && compareEntries(entry, order[i+1]) == 0) {
+                    log.warn("The WARC name '{}' in folder '{}' is also present in folder '{}'",
+                             new String(names, nameOffsets[entry], nameLength(entry), StandardCharsets.UTF_8),
+                             folders.get(nameFolders[entry]), folders.get(nameFolders[order[i+1]]));
+                    continue;
+                }
+                System.arraycopy(names, nameOffsets[entry], sortedNames, namesPos, nameLength(entry));
+                sortedOffsets[count] = namesPos;
+                sortedFolders[count] = nameFolders[entry];
+                namesPos += nameLength(entry);
+                count++;
+            }
+            sortedOffsets[count] = namesPos;
+
+            return new WarcNameIndex(folders.toArray(new String[0]),
+                                     Arrays.copyOf(sortedNames, namesPos),
+                                     Arrays.copyOf(sortedOffsets, count+1),
+                                     Arrays.copyOf(sortedFolders, count));
+        }
+
+        private int nameLength(int entry) {
+            return (entry == size-1 ? namesSize : nameOffsets[entry+1]) - nameOffsets[entry];
+        }
+
+        private int compareEntries(int entry1, int entry2) {
+            return compare(names, nameOffsets[entry1], nameOffsets[entry1] + nameLength(entry1),
+                           names, nameOffsets[entry2], nameOffsets[entry2] + nameLength(entry2));
+        }
+
+        private void mergeSort(int[] order, int[] buffer, int start, int end) {
+            if (end - start < 2) {
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            mergeSort(order, buffer, start, mid);
+            mergeSort(order, buffer, mid, end);
+            if (compareEntries(order[mid-1], order[mid]) <= 0) {
+                return; // Already ordered
+            }
+            System.arraycopy(order, start, buffer, start, end-start);
+            int left = start;
+            int right = mid;
+            for (int i = start ; i < end ; i++) {
+                if (right == end || (left < mid && compareEntries(buffer[left], buffer[right]) <= 0)) {
+                    order[i] = buffer[left++];
+                } else {
+                    order[i] = buffer[right++];
+                }
+            }
+        }
+    }
+}
@@ -100,6 +100,7 @@ public class InitializationContextListener implements ServletContextListener {
     public void contextDestroyed(ServletContextEvent sce) {
         try {        
           log.info("solrwayback shutting down...");
+          NetarchiveSolrClient.shutdown();
         } catch (Exception e) {
             log.error("failed to shutdown solrwayback", e);
         }
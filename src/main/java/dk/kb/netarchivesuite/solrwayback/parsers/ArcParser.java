@@ -3,7 +3,7 @@ package dk.kb.netarchivesuite.solrwayback.parsers;
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
-import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
+import dk.kb.netarchivesuite.solrwayback.util.PooledGZIPInputStream;
 import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,13 +12,14 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Locale;
-import java.util.zip.GZIPInputStream;
 
 public class ArcParser extends  ArcWarcFileParserAbstract{
 
   private static final Logger log = LoggerFactory.getLogger(ArcParser.class);
   public static final String newLineChar ="\r\n"; //This is warc header ending, but the header is also only used for display or warc export
   public static String ARC_HEADER_ENCODING ="ISO-8859-1";
+
+  private static final byte[] ARC_URL_START = HeaderParser.name("http");
   /*
    *Header example:
    *http://www.radionyt.dk/forum/Default.asp?mode=message&Id=10846&ForumId=31 86.58.185.215 20090610094553 text/html 35257
@@ -48,14 +49,9 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
       arcEntry.setSource(arcSource);
       arcEntry.setOffset(arcEntryPosition);
 
-      try (InputStream is = arcSource.get()) {
-          InputStreamUtils.skipFully(is, arcEntryPosition);
-
-          try (BufferedInputStream bis = new BufferedInputStream(is)) {
-              loadArcHeader(bis, arcEntry);
-
-              //log.debug("Arc entry : totalsize:"+totalSize +" headersize:"+headerSize+" binary size:"+binarySize);
-          }
+      try (InputStream is = arcSource.get(arcEntryPosition)) {
+          loadArcHeader(is, arcEntry);
+          //log.debug("Arc entry : totalsize:"+totalSize +" headersize:"+headerSize+" binary size:"+binarySize);
           return arcEntry;
       }
   }
@@ -67,75 +63,73 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
     arcEntry.setSource(arcSource);
     arcEntry.setOffset(arcEntryPosition);
 
-    try (InputStream is = arcSource.get()) {
-        InputStreamUtils.skipFully(is, arcEntryPosition);
-
+    try (InputStream is = arcSource.get(arcEntryPosition)) {
         // log.info("file is zipped:"+arcFilePath);
-        try (GZIPInputStream stream = new GZIPInputStream(is);
-             BufferedInputStream  bis= new BufferedInputStream(stream)) {
-
-            loadArcHeader(bis, arcEntry);
-
+        try (InputStream stream = new PooledGZIPInputStream(is)) {
+            loadArcHeader(stream, arcEntry);
             //System.out.println("Arc entry : totalsize:"+totalSize +" binary size:"+binarySize +" firstHeadersize:"+byteCount);
         }
     }
     return arcEntry;
   }
 
+  private static void loadArcHeader(InputStream is, ArcEntry arcEntry) throws IOException {
+    HeaderParser parser = HeaderParser.acquire(is);
+    try {
+      loadArcHeader(parser, arcEntry);
+    } finally {
+      parser.release();
+    }
+  }
 
   /**
    * ARC files does not have multiple ARC headers for entries.
-   * ARC entries start with {@code URL timestamp mime length} followed directly by HTTP-headers.
+   * ARC entries start with {@code URL IP timestamp mime length} followed directly by HTTP-headers.
    * <p>
    * This method populated the given {@code arcEntry} with information from the single ARC-specific line as well
    * as information from the HTTP-headers.
-   * @param bis stream positioned at the start of an ARC-entry. Afterwards it will be positioned at the start of content.
+   * @param parser parser positioned at the start of an ARC-entry. Afterwards it will be positioned at the start of content.
    * @param arcEntry the ARC entry representation to populate.
    */
-  private static void loadArcHeader(BufferedInputStream bis, ArcEntry arcEntry) throws IOException{
-
-    StringBuilder headerLinesBuffer = new StringBuilder();
+  private static void loadArcHeader(HeaderParser parser, ArcEntry arcEntry) throws IOException{
 
-    String line = readLine(bis); // First line
-    headerLinesBuffer.append(line+newLineChar);
-
-    if  (!(line.startsWith("http"))) //No version check yet
+    parser.readLine(); // First line
+    if  (!parser.startsWith(ARC_URL_START)) //No version check yet
     {            
-      throw new IllegalArgumentException("ARC header does not start with http : "+line);
+      throw new IllegalArgumentException("ARC header does not start with http : "+parser.getLine());
     }            
-    
-    arcEntry.setFileName(getArcLastUrlPart(line));                    
-    String waybackDate = getWaybackDate(line);                    
+
+    String line = parser.getLine();
+    int urlEnd = line.indexOf(' ');
+    int ipEnd = urlEnd == -1 ? -1 : line.indexOf(' ', urlEnd+1);
+    int dateEnd = ipEnd == -1 ? -1 : line.indexOf(' ', ipEnd+1);
+    if (dateEnd == -1) {
+      throw new IllegalArgumentException("ARC header does not contain URL, IP and timestamp: "+line);
+    }
+    String url = line.substring(0, urlEnd);
+    String waybackDate = line.substring(ipEnd+1, dateEnd);
+    arcEntry.setFileName(getLastUrlPart(url));
     arcEntry.setCrawlDate(DateUtils.convertWaybackDate2SolrDate(waybackDate));          
     arcEntry.setWaybackDate(waybackDate);
-    arcEntry.setUrl(getArcUrl(line));
-    arcEntry.setIp(getIp(line));            
-      System.out.println(line);
-
-    String[] split = line.split(" ");
-    int totalSize = Integer.parseInt(split[split.length - 1]);
-
-    int byteCount=0; //Bytes of second header
+    arcEntry.setUrl(url);
+    arcEntry.setIp(line.substring(urlEnd+1, ipEnd));
 
-    LineAndByteCount lc =readLineCount(bis);
-    line=lc.getLine();
-    arcEntry.setStatus_code(getStatusCode(line));
-    headerLinesBuffer.append(line+newLineChar);
-    byteCount +=lc.getByteCount();                    
+    long totalSize = parser.getLong(line.lastIndexOf(' ')+1);
+    long firstLineBytes = parser.getConsumed();
 
-    while (!"".equals(line)) { // End of warc second header block is an empty line
-      lc =readLineCount(bis);
-      line=lc.getLine();
-      headerLinesBuffer.append(line+newLineChar);
-      byteCount +=lc.getByteCount();                    
+    parser.readLine();
+    arcEntry.setStatus_code(parser.getStatusCode());
 
-      populateArcHeader(arcEntry, line);        
+    while (parser.readLine()) { // End of warc second header block is an empty line
+      populateArcHeader(arcEntry, parser);        
     }
-    arcEntry.setHeader(headerLinesBuffer.toString());
-    
-    int binarySize = totalSize-byteCount;                                                   
+    arcEntry.setHeaderBytes(parser.getHeaderBytes());
+
+    long byteCount = parser.getConsumed() - firstLineBytes; //Bytes of second header
+    long binarySize = totalSize-byteCount;                                                   
     arcEntry.setContentLength(binarySize); //trust the load, not the http-header for arc-files
     arcEntry.setBinaryArraySize(binarySize);      
+    arcEntry.setHeaderLength(parser.getConsumed());
   }
 
 
@@ -155,131 +149,42 @@ public class ArcParser extends  ArcWarcFileParserAbstract{
   public static BufferedInputStream lazyLoadContent(ArcSource arcSource, long arcEntryPosition) throws IOException {
       ArcEntry arcEntry = new ArcEntry(); // We just throw away the header info anyway 
 
-      InputStream is = arcSource.get();
-      InputStreamUtils.skipFully(is, arcEntryPosition);
-
+      InputStream is = arcSource.get(arcEntryPosition);
       if (arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz")){ //It is zipped
           // log.info("file is zipped:"+arcFilePath);
-          GZIPInputStream zipStream = new GZIPInputStream(is);
-          BufferedInputStream  bis = new BufferedInputStream(zipStream);
-          loadArcHeader(bis, arcEntry);
-          
-          BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
-          return new BufferedInputStream(maxStream); // It's a mess to use nested BufferedInputStreams...
-          
-      } else {
-          BufferedInputStream  bis = new BufferedInputStream(is);
-          loadArcHeader(bis, arcEntry);
-          BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
-          return new BufferedInputStream(maxStream);
+          is = new PooledGZIPInputStream(is);
       }
-      
-  }
 
-    public static String readLine(BufferedInputStream bis) throws IOException{
-      StringBuffer buf = new StringBuffer();
-      int current = 0; // CRLN || LN
-      while ((current = bis.read()) != '\r' && current != '\n') {
-        buf.append((char) current);
-      }
-      if (current == '\r') {
-        bis.read(); // line ends with 10 13
+      HeaderParser parser = HeaderParser.acquire(is);
+      try {
+          loadArcHeader(parser, arcEntry);
+          BoundedInputStream maxStream = new BoundedInputStream(parser.getRemaining(), arcEntry.getBinaryArraySize());
+          return new BufferedInputStream(maxStream);
+      } finally {
+          parser.release();
       }
-
-
-      return buf.toString();
-
-    }
-
-    public static LineAndByteCount readLineCount(BufferedInputStream  bis) throws IOException {
-    int count = 0;
-    StringBuffer buf = new StringBuffer();
-    int current = 0; // CRLN || LN
-
-    count++; //Also count linefeed
-    while ((current = bis.read()) != '\r' && current != '\n') {             
-      buf.append((char) current);
-      count++;
-    }
-    if (current == '\r') {
-      bis.read(); // line ends with 10 13
-      count++;
-    }       
-    LineAndByteCount lc = new LineAndByteCount();
-    lc.setLine(buf.toString());
-    lc.setByteCount(count);
-
-    return lc;
-
   }
 
-
-  private static String getArcLastUrlPart(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    String fullUrl = split[0];
-    String paths[] = fullUrl.split("/");
-    String fileName = paths[paths.length - 1];
-    if (fileName == null){
-      fileName="";
-    }
-    return fileName.trim();
-  }
-
-
-  private static String getArcUrl(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    String fullUrl = split[0];
-    return fullUrl.trim();
-  }
-
-  private static String getIp(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    return split[1];
-  }
-
-  private static String getWaybackDate(String arcHeaderLine) {
-    String[] split = arcHeaderLine.split(" ");
-    return split[2];                                
-  }
-
-  private static void populateArcHeader(ArcEntry arcEntry, String headerLine) {
-    if (headerLine.toLowerCase().startsWith("content-length:")) {      
-      String[] split = headerLine.split(":");
-      //arcEntry.setContentLength(Integer.parseInt(split[1].trim())); //Dont trust server. Use binary size.        
-    } else if (headerLine.toLowerCase().startsWith("content-type:")) {
+  private static void populateArcHeader(ArcEntry arcEntry, HeaderParser parser) {
+    // Content-Length is ignored: Dont trust server. Use binary size.
+    if (parser.startsWith(CONTENT_TYPE)) {
       //text/html; charset=
-      String[] part1 = headerLine.split(":");
-      String[] part2= part1[1].split(";");                                  
-      arcEntry.setContentType(part2[0].trim());
-      
-      if (part2.length == 2){
-        String charsetString = part2[1].trim();
-        if (charsetString.toLowerCase().startsWith("charset=")){
-          String  charset= charsetString.substring(8).replace("\"", "");
-          arcEntry.setContentCharset( charset);
-        }                    
-      }
-      
+      setContentTypeAndCharset(arcEntry, parser.getValue(CONTENT_TYPE.length));
     }
-    else if (headerLine.toLowerCase().startsWith("content-encoding:")) {
-      //text/html; charset=
-      String[] contentHeader = headerLine.split(":");                                  
-      
-      arcEntry.setContentEncoding(contentHeader[1].trim());
+    else if (parser.startsWith(CONTENT_ENCODING)) {
+      arcEntry.setContentEncoding(parser.getValue(CONTENT_ENCODING.length));
       //log.info("setting content encoding:"+contentHeader[1].trim());
     }
-    else if (headerLine.toLowerCase().startsWith("location:")) {                                      
-      arcEntry.setRedirectUrl(headerLine.substring(9).trim());
+    else if (parser.startsWith(LOCATION)) {
+      arcEntry.setRedirectUrl(parser.getValue(LOCATION.length));
     }
-    else if (headerLine.toLowerCase().startsWith("transfer-encoding:")) {                                      
-        String transferEncoding=headerLine.substring(18).trim();
+    else if (parser.startsWith(TRANSFER_ENCODING)) {
+        String transferEncoding = parser.getValue(TRANSFER_ENCODING.length);
 //        log.debug("transfer-encoding:"+transferEncoding);
-        if (transferEncoding.equalsIgnoreCase("chunked")) {
+        if (transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
             arcEntry.setChunked(true);
          }
       }    
-    
-    
   }  
   
 }
@@ -3,34 +3,168 @@ package dk.kb.netarchivesuite.solrwayback.parsers;
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcFileLocationResolverInterface;
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.interfaces.RewriteLocationResolver;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.service.exception.NotFoundServiceException;
+import dk.kb.netarchivesuite.solrwayback.solr.TimeCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
 
 /*
  * This class will resolve the arc-file location using source_file_path from the index.
  * The resolver class is defined in solrwayback.properties.
  * Default is the identity resolver, which can be used if file locations seen from solrwayback is the same as source_file_path
  * 
- * When a file has been resolved it will cache the location making future requests fasters. 
- * TODO implement a max cache size.
- *  
+ * When a file has been resolved it will cache the location making future requests fasters.
+ * The cache is bounded by warc.file.resolver.cache.size and warc.file.resolver.cache.seconds.
+ * Resolvers that detect moved or removed files, such as AutoFileResolver, invalidates the cached locations for them.
+ *
  * It will just call the ArcFileParserFactory with the resolved filename.
  * 
  */
 public class ArcParserFileResolver {
 
-  private static final HashMap<String, ArcSource> cache = new HashMap<>();
+  // Created on first use, so that the size and age bounds are taken from the loaded properties
+  private static volatile TimeCache<ArcSource> cache = null;
 
   private static ArcFileLocationResolverInterface resolver = new RewriteLocationResolver(); // Default
   private static final Logger log = LoggerFactory.getLogger(ArcFileLocationResolverInterface.class);
 
   public static void setArcFileLocationResolver(ArcFileLocationResolverInterface resolverImpl) {
+    cache = null; // Locations from the previous resolver are not valid
     resolver = resolverImpl;
+    resolver.setLocationChangeListener(ArcParserFileResolver::invalidate);
+  }
+
+  /**
+   * @return the cache for resolved (W)ARC locations, created from the current properties if not already existing.
+   */
+  static TimeCache<ArcSource> getCache() {
+    TimeCache<ArcSource> current = cache;
+    if (current == null) {
+      synchronized (ArcParserFileResolver.class) {
+        if (cache == null) {
+          cache = new TimeCache<>(PropertiesLoader.WARC_FILE_RESOLVER_CACHE_SIZE,
+                                  PropertiesLoader.WARC_FILE_RESOLVER_CACHE_SECONDS * 1000L);
+        }
+        current = cache;
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Hint that the records at the given offsets in the given (W)ARC will be requested shortly.
+   * For remote (W)ARCs this allows for fetching the records in bulk. Failures are logged and otherwise ignored.
+   * @param source_file_path the (W)ARC as stated in the index.
+   * @param offsets          record offsets in the (W)ARC.
+   */
+  public static void prefetch(String source_file_path, Collection<Long> offsets) {
+    final String path = source_file_path.trim();
+    try {
+      getCache().get(path, () -> resolver.resolveArcFileLocation(path)).prefetch(offsets);
+    } catch (Exception e) {
+      log.debug("Unable to prefetch " + offsets.size() + " records from '" + path + "'", e);
+    }
+  }
+
+  /**
+   * Resolve the entries for multiple (W)ARC records. The requests are grouped by (W)ARC and the records in each
+   * (W)ARC are read in ascending offset order using the same {@link ArcSource}, so that the reads for a (W)ARC are
+   * sequential instead of jumping between (W)ARCs in request order. Remote (W)ARCs are
+   * {@link ArcSource#prefetch(Collection) prefetched} in bulk.
+   * <p>
+   * Only the headers are read: Binaries are loaded on demand, as for {@link #getArcEntry(String, long)}.
+   * @param requests     the records to resolve, e.g. Solr documents.
+   * @param pathGetter   delivers the (W)ARC as stated in the index ({@code source_file_path}) for a request.
+   * @param offsetGetter delivers the offset of the record in the (W)ARC for a request.
+   * @return the entries in the same order as the requests. Entries that could not be resolved are null.
+   */
+  public static <T> List<ArcEntry> getArcEntries(
+          List<T> requests, Function<T, String> pathGetter, ToLongFunction<T> offsetGetter) {
+    ArcEntry[] entries = new ArcEntry[requests.size()];
+    long[] offsets = new long[requests.size()];
+    Map<String, List<Integer>> byPath = new LinkedHashMap<>();
+    for (int i = 0 ; i < requests.size() ; i++) {
+      try {
+        String path = pathGetter.apply(requests.get(i)).trim();
+        offsets[i] = offsetGetter.applyAsLong(requests.get(i));
+        byPath.computeIfAbsent(path, p -> new ArrayList<>()).add(i);
+      } catch (RuntimeException e) {
+        log.warn("Unable to get (W)ARC path and offset for request #" + i + ": " + requests.get(i), e);
+      }
+    }
+
+    byPath.forEach((path, indices) -> {
+      indices.sort((i1, i2) -> Long.compare(offsets[i1], offsets[i2]));
+      ArcSource arcSource;
+      try {
+        arcSource = getCache().get(path, () -> resolver.resolveArcFileLocation(path));
+      } catch (Exception e) {
+        log.warn("Unable to resolve (W)ARC '" + path + "' for " + indices.size() + " records", e);
+        return;
+      }
+      if (indices.size() > 1) {
+        arcSource.prefetch(indices.stream().map(i -> offsets[i]).collect(Collectors.toList()));
+      }
+      for (int index: indices) {
+        try {
+          entries[index] = ArcFileParserFactory.getArcEntry(arcSource, offsets[index]);
+        } catch (Exception e) {
+          log.warn("Unable to resolve record at offset " + offsets[index] + " in (W)ARC '" + path + "'", e);
+        }
+      }
+    });
+    return Arrays.asList(entries);
+  }
+
+  /**
+   * Remove the cached locations for the given file names.
+   * @param fileNames names of (W)ARC files without folders, e.g. {@code 12345.warc.gz}.
+   */
+  public static void invalidate(Collection<String> fileNames) {
+    if (fileNames.isEmpty()) {
+      return;
+    }
+    Set<String> names = fileNames instanceof Set ? (Set<String>)fileNames : new HashSet<>(fileNames);
+    TimeCache<ArcSource> locations = getCache();
+    int removed = 0;
+    for (String source_file_path: locations.keySet()) { // keySet is a copy
+      if (names.contains(new File(source_file_path).getName()) && locations.remove(source_file_path) != null) {
+        removed++;
+      }
+    }
+    log.debug("Invalidated {} cached (W)ARC locations due to {} changed files", removed, names.size());
+  }
+
+  /**
+   * Remove all cached (W)ARC locations.
+   */
+  public static void clearCache() {
+    getCache().clear();
+  }
+
+  /**
+   * @return statistics for the (W)ARC location cache.
+   */
+  public static String getCacheStats() {
+    TimeCache<ArcSource> locations = getCache();
+    return String.format("ArcSource cache: size=%d/%d, hits=%d/%d",
+                         locations.size(), locations.capacity(), locations.getHits(), locations.getCalls());
   }
 
   /*
@@ -47,17 +181,13 @@ public class ArcParserFileResolver {
     String source_file_path = source_file_path_org.trim();
 
     try {
-      ArcSource arcSource = cache.get(source_file_path);
-      if (arcSource == null) {
-
-        arcSource = resolver.resolveArcFileLocation(source_file_path);
-        cache.put(source_file_path, arcSource);
-      }
+      ArcSource arcSource = getCache().get(source_file_path, () -> resolver.resolveArcFileLocation(source_file_path));
 
       return ArcFileParserFactory.getArcEntry(arcSource, offset);
 
     } catch (Exception e) {
-      if (e instanceof RuntimeException && e.getCause() instanceof FileNotFoundException) {
+      if (e instanceof FileNotFoundException ||
+          (e instanceof RuntimeException && e.getCause() instanceof FileNotFoundException)) {
         // The only thing throwing FileNotFoundExceptions should be ArcSource.get and that already logs errors
         throw new NotFoundServiceException("Unable to locate (W)ARC '" + source_file_path + "'");
       }
@@ -1,14 +1,124 @@
 package dk.kb.netarchivesuite.solrwayback.parsers;
 
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import dk.kb.netarchivesuite.solrwayback.util.GzipCheckpointIndex;
+import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
+import dk.kb.netarchivesuite.solrwayback.util.PooledGZIPInputStream;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
 public class ArcWarcFileParserAbstract {
   private static final Logger log = LoggerFactory.getLogger(ArcWarcFileParserAbstract.class);
 
+  protected static final byte[] CONTENT_TYPE = HeaderParser.name("Content-Type:");
+  protected static final byte[] CONTENT_LENGTH = HeaderParser.name("Content-Length:");
+  protected static final byte[] CONTENT_ENCODING = HeaderParser.name("Content-Encoding:");
+  protected static final byte[] LOCATION = HeaderParser.name("Location:");
+  protected static final byte[] TRANSFER_ENCODING = HeaderParser.name("Transfer-Encoding:");
+
   public static int getStatusCode(String line){//HTTP/1.1 302 Object moved      
     String[] tokens = line.split(" ");
     String status = tokens[1];
     return Integer.parseInt(status);     
   }
+
+  /**
+   * @param url an URL, such as {@code http://www.example.com/images/foo.jpg}.
+   * @return the last non-empty path part of the URL, such as {@code foo.jpg}.
+   */
+  protected static String getLastUrlPart(String url) {
+    int end = url.length();
+    while (end > 0 && url.charAt(end-1) == '/') {
+      end--;
+    }
+    return url.substring(url.lastIndexOf('/', end-1)+1, end).trim();
+  }
+
+  /**
+   * Sets content type and, if present, charset from a HTTP header value such as {@code text/html; charset=utf-8}.
+   * @param entry the entry to update.
+   * @param contentTypeValue the value of a HTTP {@code Content-Type} header.
+   */
+  protected static void setContentTypeAndCharset(ArcEntry entry, String contentTypeValue) {
+    int semicolon = contentTypeValue.indexOf(';');
+    if (semicolon == -1) {
+      entry.setContentType(contentTypeValue.trim());
+      return;
+    }
+    entry.setContentType(contentTypeValue.substring(0, semicolon).trim());
+    for (String parameter: contentTypeValue.substring(semicolon+1).split(";")) {
+      parameter = parameter.trim();
+      if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+        //Some times Content-Type: text/html; charset="utf-8" instead of Content-Type: text/html; charset=utf-8
+        entry.setContentCharset(parameter.substring(8)); // The setter removes quotes
+        return;
+      }
+    }
+  }
+
+  /**
+   * Constructs a stream for the binary content of an entry where the headers has already been parsed, without
+   * parsing the headers again.
+   * <p>
+   * For uncompressed (W)ARCs the stream is opened directly at the start of the binary content.
+   * For gzip-compressed (W)ARCs the gzip member is opened at {@code entryPosition} and the uncompressed headers
+   * are skipped.
+   * <p>
+   * The caller should take care to close the returned {@code InputStream} after use as failing to do so
+   * might cause resource leaks.
+   * @param arcSource     source of the raw (W)ARC.
+   * @param entryPosition where in the (W)ARC the entry (the gzip member for compressed (W)ARCs) is positioned.
+   * @param headerLength  the number of uncompressed bytes from the start of the entry to the binary content.
+   * @param binarySize    the number of bytes in the binary content.
+   * @return a stream with the binary content from a (W)ARC entry.
+   * @throws IOException if the binary could not be read.
+   */
+  public static BufferedInputStream loadBinary(
+      ArcSource arcSource, long entryPosition, long headerLength, long binarySize) throws IOException {
+    return loadBinary(arcSource, entryPosition, headerLength, binarySize, 0);
+  }
+
+  /**
+   * Constructs a stream for the binary content of an entry, starting {@code binaryOffset} bytes into the binary.
+   * <p>
+   * For gzip-compressed (W)ARCs with a {@link GzipCheckpointIndex}, inflation starts from the nearest checkpoint
+   * before the wanted position. Without an index, the content before the wanted position is inflated and skipped.
+   * @param arcSource     source of the raw (W)ARC.
+   * @param entryPosition where in the (W)ARC the entry (the gzip member for compressed (W)ARCs) is positioned.
+   * @param headerLength  the number of uncompressed bytes from the start of the entry to the binary content.
+   * @param binarySize    the number of bytes in the binary content.
+   * @param binaryOffset  the start position in the binary content.
+   * @return a stream with the binary content from a (W)ARC entry, starting at {@code binaryOffset}.
+   * @throws IOException if the binary could not be read.
+   * @see #loadBinary(ArcSource, long, long, long)
+   */
+  public static BufferedInputStream loadBinary(ArcSource arcSource, long entryPosition, long headerLength,
+                                               long binarySize, long binaryOffset) throws IOException {
+    long skip = headerLength + binaryOffset;
+    InputStream binary;
+    if (arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz")){ //It is zipped
+      GzipCheckpointIndex index = binaryOffset > 0 ? GzipCheckpointIndex.get(arcSource) : null;
+      binary = index == null ? null : index.open(arcSource, entryPosition, skip);
+      if (binary == null) {
+        InputStream is = arcSource.get(entryPosition);
+        try {
+          binary = new PooledGZIPInputStream(is);
+          InputStreamUtils.skipFully(binary, skip);
+        } catch (IOException | RuntimeException e) {
+          is.close();
+          throw e;
+        }
+      }
+    } else {
+      binary = arcSource.get(entryPosition + skip);
+    }
+    return new BufferedInputStream(new BoundedInputStream(binary, Math.max(0, binarySize - binaryOffset)));
+  }
 }
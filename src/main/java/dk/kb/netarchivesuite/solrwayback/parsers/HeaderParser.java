@@ -0,0 +1,272 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Line based parser for (W)ARC and HTTP headers, working directly on bytes.
+ * <p>
+ * Lines are located by scanning an internal buffer for line breaks and are stored (CRLF-terminated, regardless of
+ * the line breaks used in the source) in a header buffer. Matching of header names and parsing of numbers are done
+ * on the bytes, so only the header values that are used are converted to Strings.
+ * <p>
+ * Parsers are reused per thread through {@link #acquire(InputStream)} and must be handed back with
+ * {@link #release()}. Instances are not thread safe.
+ */
+public class HeaderParser {
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+    private static final int BUFFER_SIZE = 8192;
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAX_KEPT_HEADER_SIZE = 65536;
+
+    private static final ThreadLocal<HeaderParser> pool = ThreadLocal.withInitial(HeaderParser::new);
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+    private InputStream in = null;
+
+    private byte[] header = new byte[HEADER_SIZE];
+    private int headerSize = 0;
+    private int lineStart = 0; // In header
+    private int lineEnd = 0;   // In header, exclusive and before CRLF
+    private long consumed = 0; // Bytes read from in for the lines, including line breaks
+
+    /**
+     * Get a parser for the given stream. The parser for the current thread is reused if it is not in use.
+     * @param in a stream positioned at the start of a header block.
+     * @return a parser ready for {@link #readLine()}.
+     */
+    public static HeaderParser acquire(InputStream in) {
+        HeaderParser parser = pool.get();
+        if (parser.in != null) { // Nested use
+            parser = new HeaderParser();
+        }
+        parser.reset(in);
+        return parser;
+    }
+
+    /**
+     * Free the parser for reuse. Derived values such as {@link #getHeaderBytes()} must be retrieved before release.
+     */
+    public void release() {
+        in = null;
+        if (header.length > MAX_KEPT_HEADER_SIZE) {
+            header = new byte[HEADER_SIZE];
+        }
+        headerSize = 0;
+    }
+
+    private void reset(InputStream in) {
+        this.in = in;
+        bufferPos = 0;
+        bufferLimit = 0;
+        headerSize = 0;
+        lineStart = 0;
+        lineEnd = 0;
+        consumed = 0;
+    }
+
+    /**
+     * Read the next line. A line is terminated by LF or CR. In the case of CR, the following character (LF) is also
+     * consumed.
+     * @return true if the line is non-empty, false if it is empty (the end of a header block).
+     * @throws EOFException if the stream ended before the line was terminated.
+     */
+    public boolean readLine() throws IOException {
+        lineStart = headerSize;
+        while (true) {
+            if (bufferPos == bufferLimit && !fill()) {
+                throw new EOFException("Unexpected end of stream while parsing headers after " + consumed + " bytes");
+            }
+            int start = bufferPos;
+            int end = start;
+            while (end < bufferLimit && buffer[end] != '\r' && buffer[end] != '\n') {
+                end++;
+            }
+            appendHeader(buffer, start, end-start);
+            consumed += end-start;
+            bufferPos = end;
+            if (end < bufferLimit) { // Found line break
+                byte lineBreak = buffer[bufferPos++];
+                consumed++;
+                if (lineBreak == '\r') {
+                    if (bufferPos == bufferLimit && !fill()) {
+                        throw new EOFException("Unexpected end of stream after CR after " + consumed + " bytes");
+                    }
+                    bufferPos++; // line ends with 13 10
+                    consumed++;
+                }
+                break;
+            }
+        }
+        lineEnd = headerSize;
+        appendHeader(CRLF, 0, CRLF.length);
+        return lineEnd > lineStart;
+    }
+
+    /**
+     * @return the current line as a String. Prefer the byte based methods for the hot path.
+     */
+    public String getLine() {
+        return new String(header, lineStart, lineEnd-lineStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param prefix ASCII prefix, typically a header name including colon, such as {@code "Content-Length:"}.
+     * @return true if the current line starts with the prefix, ignoring case.
+     */
+    public boolean startsWith(byte[] prefix) {
+        if (lineEnd-lineStart < prefix.length) {
+            return false;
+        }
+        for (int i = 0 ; i < prefix.length ; i++) {
+            byte b = header[lineStart+i];
+            if (b != prefix[i] && toLower(b) != toLower(prefix[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param from the position in the line to extract from, typically the length of the header name.
+     * @return the rest of the line from the given position, with leading and trailing whitespace removed.
+     */
+    public String getValue(int from) {
+        int start = skipWhitespace(lineStart+from);
+        int end = lineEnd;
+        while (end > start && isWhitespace(header[end-1])) {
+            end--;
+        }
+        return new String(header, start, end-start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param from the position in the line to parse from, typically the length of the header name.
+     * @return the number starting at the first non-whitespace character from the given position.
+     * @throws NumberFormatException if there is no number at the position.
+     */
+    public long getLong(int from) {
+        int pos = skipWhitespace(lineStart+from);
+        long value = 0;
+        int digitStart = pos;
+        while (pos < lineEnd && header[pos] >= '0' && header[pos] <= '9') {
+            value = value*10 + (header[pos++]-'0');
+        }
+        if (pos == digitStart || value < 0) {
+            throw new NumberFormatException("Unable to parse number from '" + getLine() + "' at position " + from);
+        }
+        return value;
+    }
+
+    /**
+     * Extract the status code from a HTTP status line, such as {@code HTTP/1.1 302 Object moved}.
+     * @return the status code.
+     * @throws NumberFormatException if there is no status code.
+     */
+    public int getStatusCode() {
+        int pos = lineStart;
+        while (pos < lineEnd && header[pos] != ' ') {
+            pos++;
+        }
+        if (pos == lineEnd) {
+            throw new NumberFormatException("Unable to locate HTTP status code in '" + getLine() + "'");
+        }
+        return (int) getLong(pos+1-lineStart);
+    }
+
+    /**
+     * @return the length of the current line in bytes, excluding the line break.
+     */
+    public int getLineLength() {
+        return lineEnd-lineStart;
+    }
+
+    /**
+     * @return the number of bytes consumed from the source stream for the lines read so far, including line breaks.
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * @return all lines read so far, each terminated by CRLF.
+     */
+    public byte[] getHeaderBytes() {
+        return Arrays.copyOf(header, headerSize);
+    }
+
+    /**
+     * Construct a stream that continues from the position after the last line read. This is used when the parser is
+     * positioned at the start of the binary. The parser can be released after calling this method.
+     * @return the remaining content of the stream given in {@link #acquire(InputStream)}.
+     */
+    public InputStream getRemaining() {
+        if (bufferPos == bufferLimit) {
+            return in;
+        }
+        return new SequenceInputStream(
+                new ByteArrayInputStream(Arrays.copyOfRange(buffer, bufferPos, bufferLimit)), in);
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        bufferPos = 0;
+        bufferLimit = read;
+        return true;
+    }
+
+    private void appendHeader(byte[] bytes, int offset, int length) {
+        if (headerSize+length > header.length) {
+            header = Arrays.copyOf(header, Math.max(header.length*2, headerSize+length));
+        }
+        System.arraycopy(bytes, offset, header, headerSize, length);
+        headerSize += length;
+    }
+
+    private int skipWhitespace(int pos) {
+        while (pos < lineEnd && isWhitespace(header[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a'-'A')) : b;
+    }
+
+    /**
+     * @param name ASCII header name, such as {@code "Content-Type:"}.
+     * @return the name as bytes, for use with {@link #startsWith(byte[])}.
+     */
+    public static byte[] name(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,21 +0,0 @@
-package dk.kb.netarchivesuite.solrwayback.parsers;
-
-public class LineAndByteCount {
-private String line;
-private int byteCount;
-
-public String getLine() {
-  return line;
-}
-public void setLine(String line) {
-  this.line = line;
-}
-public int getByteCount() {
-  return byteCount;
-}
-public void setByteCount(int byteCount) {
-  this.byteCount = byteCount;
-}
-
-  
-}
@@ -4,24 +4,27 @@ import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry.TYPE;
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
-import dk.kb.netarchivesuite.solrwayback.util.InputStreamUtils;
+import dk.kb.netarchivesuite.solrwayback.util.PooledGZIPInputStream;
 import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Locale;
-import java.util.zip.GZIPInputStream;
 
 public class WarcParser extends  ArcWarcFileParserAbstract {
 
   private static final Logger log = LoggerFactory.getLogger(WarcParser.class);
-  private static final String newLineChar ="\r\n";
   public static String WARC_HEADER_ENCODING ="ISO-8859-1";
 
+  private static final byte[] WARC_VERSION = HeaderParser.name("WARC/");
+  private static final byte[] WARC_TARGET_URI = HeaderParser.name("WARC-Target-URI:");
+  private static final byte[] WARC_DATE = HeaderParser.name("WARC-Date:");
+  private static final byte[] WARC_TYPE = HeaderParser.name("WARC-Type:");
+  private static final byte[] WARC_PAYLOAD_DIGEST = HeaderParser.name("WARC-Payload-Digest:");
+
 
   /*
    *Header example(notice the two different parts):
@@ -63,67 +66,64 @@ public class WarcParser extends  ArcWarcFileParserAbstract {
     warcEntry.setSource(arcSource);
     warcEntry.setOffset(warcEntryPosition);
     
-    try (InputStream is = arcSource.get()) {
-        InputStreamUtils.skipFully(is, warcEntryPosition);
-        try (BufferedInputStream bis = new BufferedInputStream(is)) {
-            loadWarcHeader(bis, warcEntry);            
-            //log.debug("Arc entry : totalsize:"+totalSize +" headersize:"+headerSize+" binary size:"+binarySize);
-        }
+    try (InputStream is = arcSource.get(warcEntryPosition)) {
+        loadWarcHeader(is, warcEntry);
+        //log.debug("Arc entry : totalsize:"+totalSize +" headersize:"+headerSize+" binary size:"+binarySize);
         return warcEntry;
     }
   }
 
   /*
    * Will load the header information into the warcEntry
-   * The  BufferedInputStream will be returned with pointer in start of binary 
    * warcEntry will have binaryArraySize defined
-   * 
    */
-  private static void loadWarcHeader(BufferedInputStream bis, ArcEntry warcEntry) throws IOException {
+  private static void loadWarcHeader(InputStream is, ArcEntry warcEntry) throws IOException {
+    HeaderParser parser = HeaderParser.acquire(is);
+    try {
+      loadWarcHeader(parser, warcEntry);
+    } finally {
+      parser.release();
+    }
+  }
 
-    StringBuffer headerLinesBuffer = new StringBuffer();
-    String line = readLine(bis); // First line
-    headerLinesBuffer.append(line+newLineChar);
+  /*
+   * Will load the header information into the warcEntry
+   * The parser will be positioned at the start of binary
+   * warcEntry will have binaryArraySize defined
+   * 
+   */
+  private static void loadWarcHeader(HeaderParser parser, ArcEntry warcEntry) throws IOException {
 
-    if  (!(line.startsWith("WARC/"))) //No version check yet
+    parser.readLine(); // First line
+    if  (!parser.startsWith(WARC_VERSION)) //No version check yet
     {            
-      throw new IllegalArgumentException("WARC header is not WARC/'version', instead it is : "+line);
+      throw new IllegalArgumentException("WARC header is not WARC/'version', instead it is : "+parser.getLine());
     }            
 
-    while (!"".equals(line)) { // End of warc first header block is an empty line
-      line = readLine(bis);                
-      headerLinesBuffer.append(line+newLineChar);
-      populateWarcFirstHeader(warcEntry, line);             
-
+    while (parser.readLine()) { // End of warc first header block is an empty line
+      populateWarcFirstHeader(warcEntry, parser);
     }
+    long firstHeaderBytes = parser.getConsumed();
 
-    int byteCount=0; //Bytes of second header
-   
     if( !(warcEntry.getType() == ArcEntry.TYPE.RESOURCE)){       
-      LineAndByteCount lc =readLineCount(bis);
-      line=lc.getLine();
-      warcEntry.setStatus_code(getStatusCode(line));
-      headerLinesBuffer.append(line+newLineChar);
-      byteCount +=lc.getByteCount();                    
+      parser.readLine();
+      warcEntry.setStatus_code(parser.getStatusCode());
 
-      while (!"".equals(line)) { // End of warc second header block is an empty line
-        lc =readLineCount(bis);         
-        line=lc.getLine();        
-        headerLinesBuffer.append(line+newLineChar);
-        byteCount +=lc.getByteCount(); 
-        populateWarcSecondHeader(warcEntry, line);                                              
+      while (parser.readLine()) { // End of warc second header block is an empty line
+        populateWarcSecondHeader(warcEntry, parser);
       }        
-      warcEntry.setHeader(headerLinesBuffer.toString());
     }
     else {  //For type RESOURCE we fake http status.
       warcEntry.setStatus_code(200); //fake it . Warc-indexer does the same
-      warcEntry.setHeader(headerLinesBuffer.toString());
     }
+    warcEntry.setHeaderBytes(parser.getHeaderBytes());
 
+    long byteCount = parser.getConsumed() - firstHeaderBytes; //Bytes of second header
     long totalSize= warcEntry.getWarcEntryContentLength();
     long binarySize = totalSize-byteCount;
 
     warcEntry.setBinaryArraySize(binarySize);
+    warcEntry.setHeaderLength(parser.getConsumed());
   }
 
   public static ArcEntry getWarcEntryZipped(ArcSource arcSource, long warcEntryPosition) throws Exception {
@@ -133,24 +133,14 @@ public class WarcParser extends  ArcWarcFileParserAbstract {
     warcEntry.setSource(arcSource);
     warcEntry.setOffset(warcEntryPosition);
 
-    try (InputStream is = arcSource.get()) {
-        InputStreamUtils.skipFully(is, warcEntryPosition);
-
+    try (InputStream is = arcSource.get(warcEntryPosition)) {
         // log.info("file is zipped:"+arcFilePath);
-        try (GZIPInputStream stream = new GZIPInputStream(is);
-             BufferedInputStream  bis= new BufferedInputStream(stream)) {
-
-            loadWarcHeader(bis, warcEntry);
-
+        try (InputStream stream = new PooledGZIPInputStream(is)) {
+            loadWarcHeader(stream, warcEntry);
             //System.out.println("Arc entry : totalsize:"+totalSize +" binary size:"+binarySize +" firstHeadersize:"+byteCount);
         }
     }
     return warcEntry;
-      /*
-          System.out.println("-------- binary start");
-          System.out.println(new String(chars));
-          System.out.println("-------- slut");
-       */
   }
 
 
@@ -170,157 +160,80 @@ public class WarcParser extends  ArcWarcFileParserAbstract {
   public static BufferedInputStream lazyLoadBinary(ArcSource arcSource, long arcEntryPosition) throws IOException{
     ArcEntry arcEntry = new ArcEntry(); // We just throw away the header info anyway 
 
-    InputStream is = arcSource.get();
-    InputStreamUtils.skipFully(is, arcEntryPosition);
-
+    InputStream is = arcSource.get(arcEntryPosition);
     if (arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz")){ //It is zipped
       // log.info("file is zipped:"+arcFilePath);
-      GZIPInputStream zipStream = new GZIPInputStream(is);
-      BufferedInputStream  bis= new BufferedInputStream(zipStream);
-      loadWarcHeader(bis, arcEntry);
-
-      BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
-      return new BufferedInputStream(maxStream); // It's a mess to use nested BufferedInputStreams...
+      is = new PooledGZIPInputStream(is);
+    }
 
-    } else {
-      BufferedInputStream  bis = new BufferedInputStream(is);
-      loadWarcHeader(bis, arcEntry);
-      BoundedInputStream maxStream = new BoundedInputStream(bis, arcEntry.getBinaryArraySize());
+    HeaderParser parser = HeaderParser.acquire(is);
+    try {
+      loadWarcHeader(parser, arcEntry);
+      BoundedInputStream maxStream = new BoundedInputStream(parser.getRemaining(), arcEntry.getBinaryArraySize());
       return new BufferedInputStream(maxStream);
+    } finally {
+      parser.release();
     }
-
   }
 
   public static String getWarcLastUrlPart(String warcHeaderLine) {        
     //Example:
     //WARC-Target-URI: http://www.boerkopcykler.dk/images/low_Trance-27.5-2-LTD-_20112013_151813.jpg
-    String urlPath = warcHeaderLine.substring(16); // Skip WARC-Target-URI:                     
-    String paths[] = urlPath.split("/");
-    String fileName = paths[paths.length - 1];
-    //log.debug("file:"+fileName +" was extracted from URL:"+warcHeaderLine);
-    if (fileName == null){
-      fileName="";
-    }
-    return fileName.trim();
-  }
-
-  private static String getWarcUrl(String warcHeaderLine) {        
-    //Example:
-    //WARC-Target-URI: http://www.boerkopcykler.dk/images/low_Trance-27.5-2-LTD-_20112013_151813.jpg
-    String urlPath = warcHeaderLine.substring(16);                      
-    return urlPath.trim();
+    return getLastUrlPart(warcHeaderLine.substring(16)); // Skip WARC-Target-URI:
   }
 
-  private static void populateWarcFirstHeader(ArcEntry warcEntry, String headerLine) {
+  private static void populateWarcFirstHeader(ArcEntry warcEntry, HeaderParser parser) {
     //log.debug("Parsing warc headerline(part 1):"+headerLine);                              
-    if (headerLine.startsWith("WARC-Target-URI:")) {
-      warcEntry.setFileName(getWarcLastUrlPart(headerLine));
-      warcEntry.setUrl(getWarcUrl(headerLine));
+    if (parser.startsWith(WARC_TARGET_URI)) {
+      String url = parser.getValue(WARC_TARGET_URI.length);
+      warcEntry.setFileName(getLastUrlPart(url));
+      warcEntry.setUrl(url);
     }    
 
     //Example:
     //Content-Length: 31131
-    else if (headerLine.startsWith("Content-Length:")) {
-      String[] contentLine = headerLine.split(" ");
-      long totalSize = Long.parseLong(contentLine[1].trim());               
-      warcEntry.setWarcEntryContentLength(totalSize);                       
+    else if (parser.startsWith(CONTENT_LENGTH)) {
+      warcEntry.setWarcEntryContentLength(parser.getLong(CONTENT_LENGTH.length));
     }       
 
-    else if (headerLine.startsWith("WARC-Date:")) {
-      String[] contentLine = headerLine.split(" ");
-      String crawlDate =contentLine[1].trim();  //Zulu/UTC time   : 2020-04-28T08:17:36Z                                
+    else if (parser.startsWith(WARC_DATE)) {
+      String crawlDate = parser.getValue(WARC_DATE.length);  //Zulu/UTC time   : 2020-04-28T08:17:36Z
       warcEntry.setCrawlDate(crawlDate);                         
       String waybackDate = DateUtils.convertUtcDate2WaybackDate(crawlDate);             
       warcEntry.setWaybackDate(waybackDate);                          
     }
-    else if (headerLine.startsWith("WARC-Type:")) {
-      String[] contentLine = headerLine.split(" ");
-      warcEntry.setType(TYPE.valueOf(contentLine[1].trim().toUpperCase()));   // will fail if new type is found          
+    else if (parser.startsWith(WARC_TYPE)) {
+      // will fail if new type is found
+      warcEntry.setType(TYPE.valueOf(parser.getValue(WARC_TYPE.length).toUpperCase(Locale.ROOT)));
+    }
+    else if (parser.startsWith(WARC_PAYLOAD_DIGEST)) {
+      warcEntry.setPayloadDigest(parser.getValue(WARC_PAYLOAD_DIGEST.length));
     }
-
-
   }
 
-  private static void populateWarcSecondHeader(ArcEntry warcEntry, String headerLine) {
+  private static void populateWarcSecondHeader(ArcEntry warcEntry, HeaderParser parser) {
     //  log.debug("parsing warc headerline(part 2):"+headerLine);                
     //Content-Type: image/jpeg
     // or Content-Type: text/html; charset=windows-1252          
-    if (headerLine.toLowerCase().startsWith("content-type:")) {            
-      String[] part1 = headerLine.split(":");
-      String[] part2= part1[1].split(";");                        
-      warcEntry.setContentType(part2[0].trim());          
-      if (part2.length == 2){
-        String charset = part2[1].trim();
-        if (charset.startsWith("charset=")){                                   
-          String headerEncoding=charset.substring(8).replace("\"", ""); ////Some times Content-Type: text/html; charset="utf-8" instead of Content-Type: text/html; charset=utf-8
-          warcEntry.setContentCharset(charset.substring(8));
-        }                                   
-      }
-
-
+    if (parser.startsWith(CONTENT_TYPE)) {
+      setContentTypeAndCharset(warcEntry, parser.getValue(CONTENT_TYPE.length));
     }  //Content-Length: 31131
-    else if (headerLine.toLowerCase().startsWith("content-length:")) {
-      String[] contentLine = headerLine.split(":");
-      long totalSize = Long.parseLong(contentLine[1].trim());               
-      warcEntry.setContentLength(totalSize);                       
+    else if (parser.startsWith(CONTENT_LENGTH)) {
+      warcEntry.setContentLength(parser.getLong(CONTENT_LENGTH.length));
     }
-    else if (headerLine.toLowerCase().startsWith("content-encoding:")) {
-      String[] contentLine = headerLine.split(":");               
-      warcEntry.setContentEncoding(contentLine[1].trim().replace("\"", "")); //Some times Content-Type: text/html; charset="utf-8" instead of Content-Type: text/html; charset=utf-8                       
+    else if (parser.startsWith(CONTENT_ENCODING)) {
+      warcEntry.setContentEncoding(parser.getValue(CONTENT_ENCODING.length)); //Some times Content-Type: text/html; charset="utf-8" instead of Content-Type: text/html; charset=utf-8
     }
-    else if (headerLine.toLowerCase().startsWith("location:")) {                                      
-      warcEntry.setRedirectUrl(headerLine.substring(9).trim());
+    else if (parser.startsWith(LOCATION)) {
+      warcEntry.setRedirectUrl(parser.getValue(LOCATION.length));
     }
-    else if (headerLine.toLowerCase().startsWith("transfer-encoding:")) {                                      
-      String transferEncoding=headerLine.substring(18).trim();
+    else if (parser.startsWith(TRANSFER_ENCODING)) {
+      String transferEncoding = parser.getValue(TRANSFER_ENCODING.length);
       //log.debug("transfer-encoding:"+transferEncoding);
-      if (transferEncoding.indexOf("chunked") > 0) { //multivalued
+      if (transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) { //multivalued
         warcEntry.setChunked(true);
       }
     }    
-
-
-
-
-  }
-
-  public static String readLine(BufferedInputStream  bis) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    int current = 0; // CRLN || LN
-    while ((current = bis.read()) != '\r' && current != '\n') {             
-      baos.write((byte) current);  
-    }
-    if (current == '\r') {
-      bis.read(); // line ends with 10 13        
-    }
-
-    return baos.toString(WARC_HEADER_ENCODING);
-  }
-
-  public static LineAndByteCount readLineCount(BufferedInputStream  bis) throws IOException {
-    int count = 0;
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-    int current = 0; // CRLN || LN
-
-    count++; //Also count linefeed
-    while ((current = bis.read()) != '\r' && current != '\n') {             
-      baos.write((byte)current);       
-      count++;
-    }
-    if (current == '\r') {
-      bis.read(); // line ends with 10 13
-      count++;
-    }       
-    LineAndByteCount lc = new LineAndByteCount();
-    lc.setLine(baos.toString(WARC_HEADER_ENCODING));
-    lc.setByteCount(count);
-
-    return lc;
-
   }
 
-
-
-
 }
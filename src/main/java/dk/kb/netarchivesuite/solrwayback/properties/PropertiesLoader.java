@@ -34,6 +34,16 @@ public class PropertiesLoader {
     private static final String WARC_FILE_RESOLVER_PARAMETERS_PROPERTY="warc.file.resolver.parameters";
     private static final String WARC_SOURCE_HTTP_FALLBACK_PROPERTY = "warc.file.resolver.source.http.readfallback";
     // The now deprecated ArcHTTPResolver used this property to specify readfallback
+    private static final String WARC_SOURCE_HTTP_MAX_CONNECTIONS_PROPERTY = "warc.file.resolver.source.http.maxconnections";
+    private static final String WARC_SOURCE_FILE_CHANNELS_PROPERTY = "warc.file.resolver.source.file.channels";
+    private static final String WARC_FILE_RESOLVER_CACHE_SIZE_PROPERTY = "warc.file.resolver.cache.size";
+    private static final String WARC_FILE_RESOLVER_CACHE_SECONDS_PROPERTY = "warc.file.resolver.cache.seconds";
+    private static final String WARC_GZINDEX_ENABLED_PROPERTY = "warc.file.gzindex.enabled";
+    private static final String WARC_GZINDEX_FOLDER_PROPERTY = "warc.file.gzindex.folder";
+    private static final String WARC_PAYLOAD_CACHE_MEGABYTES_PROPERTY = "warc.file.payload.cache.megabytes";
+    private static final String WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES_PROPERTY = "warc.file.payload.cache.maxrecord.kilobytes";
+    private static final String EXPORT_WARC_THREADS_PROPERTY = "export.warc.threads";
+    private static final String EXPORT_WARC_INFLIGHT_MEGABYTES_PROPERTY = "export.warc.inflight.megabytes";
     private static final String WARC_SOURCE_HTTP_FALLBACK_LEGACY_PROPERTY = "warc.file.resolver.parameters.readfallback";
     private static final String WAYBACK_BASEURL_PROPERTY="wayback.baseurl";
     private static final String CHROME_COMMAND_PROPERTY="chrome.command";
@@ -45,6 +55,10 @@ public class PropertiesLoader {
     private static final String SOLR_SERVER_CACHING_PROPERTY="solr.server.caching";
     private static final String SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY="solr.server.caching.max.entries";
     private static final String SOLR_SERVER_CACHING_AGE_SECONDS_PROPERTY="solr.server.caching.age.seconds";
+    private static final String SOLR_SERVER_CACHING_MAX_MEGABYTES_PROPERTY="solr.server.caching.max.megabytes";
+    private static final String SOLR_SERVER_CACHING_NEAREST_FILE_PROPERTY="solr.server.caching.nearest.file";
+    private static final String SOLR_SERVER_CACHING_NEAREST_MEGABYTES_PROPERTY="solr.server.caching.nearest.megabytes";
+    private static final String SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES_PROPERTY="solr.server.caching.nearest.bucket.minutes";
     public static final String SOLR_SERVER_CHECK_INTERVAL_PROPERTY = "solr.server.check.interval.seconds";
 
     // Used by SolrStreamShard
@@ -52,6 +66,14 @@ public class PropertiesLoader {
     public static final String SOLR_STREAM_SHARD_AUTO_MIN_SHARDS_PROPERTY = "solr.export.sharddivide.autolimit.shards.default";
     public static final String SOLR_STREAM_SHARD_AUTO_MIN_HITS_PROPERTY = "solr.export.sharddivide.autolimit.hits.default";
     public static final String SOLR_STREAM_SHARD_DIVIDE_CONCURRENT_MAX_PROPERTY = "solr.export.sharddivide.concurrent.max";
+    public static final String SOLR_STREAM_PREFETCH_PAGES_PROPERTY = "solr.export.prefetch.pages";
+    public static final String SOLR_STREAM_STREAMING_RESPONSE_PROPERTY = "solr.export.streaming.response";
+    public static final String SOLR_STREAM_EXPORT_HANDLER_PROPERTY = "solr.export.handler";
+    public static final String SOLR_STREAM_PAGESIZE_ADAPTIVE_PROPERTY = "solr.export.pagesize.adaptive";
+    public static final String SOLR_STREAM_PAGESIZE_MIN_PROPERTY = "solr.export.pagesize.min";
+    public static final String SOLR_STREAM_PAGESIZE_MAX_PROPERTY = "solr.export.pagesize.max";
+    public static final String SOLR_STREAM_PAGESIZE_TARGET_KB_PROPERTY = "solr.export.pagesize.target.kilobytes";
+    public static final String SOLR_STREAM_PAGESIZE_TARGET_MS_PROPERTY = "solr.export.pagesize.target.ms";
 
     private static final String URL_NORMALISER_PROPERTY="url.normaliser";
     
@@ -69,6 +91,28 @@ public class PropertiesLoader {
     public static String WARC_FILE_RESOLVER_CLASS = null;
     public static Map<String, String> WARC_FILE_RESOLVER_PARAMETERS= new HashMap<>();
     public static boolean WARC_SOURCE_HTTP_FALLBACK = false;
+    public static int WARC_SOURCE_FILE_CHANNELS = 256; // 0 means no pooling
+    public static int WARC_SOURCE_HTTP_MAX_CONNECTIONS = 8; // Per host
+    public static int WARC_FILE_RESOLVER_CACHE_SIZE = 10000;
+    public static int WARC_FILE_RESOLVER_CACHE_SECONDS = 86400;
+    /**
+     * Sidecar indexes for random access into large records in gzip-compressed (W)ARCs.
+     * See {@link dk.kb.netarchivesuite.solrwayback.util.GzipCheckpointIndex}.
+     */
+    public static boolean WARC_GZINDEX_ENABLED = true;
+    public static String WARC_GZINDEX_FOLDER = null; // null means next to the (W)ARCs
+    /**
+     * Off-heap cache for the binaries of small records.
+     * See {@link dk.kb.netarchivesuite.solrwayback.util.PayloadCache}.
+     */
+    public static int WARC_PAYLOAD_CACHE_MEGABYTES = 100; // 0 means no caching
+    public static int WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES = 64;
+    /**
+     * Worker threads and read-ahead limit for WARC export.
+     * See {@link dk.kb.netarchivesuite.solrwayback.export.StreamingSolrWarcExportBufferedInputStream}.
+     */
+    public static int EXPORT_WARC_THREADS = 4;
+    public static int EXPORT_WARC_INFLIGHT_MEGABYTES = 100;
     public static String PID_COLLECTION_NAME = null;
     public static String WORDCLOUD_STOPWORDS;
     public static LinkedHashMap<String,String> SOLR_PARAMS_MAP= new LinkedHashMap<String,String>(); 
@@ -77,6 +121,15 @@ public class PropertiesLoader {
     public static boolean WARC_FILES_VERIFY_COLLECTION=false;
     public static int SOLR_SERVER_CACHING_MAX_ENTRIES=1000; //default value
     public static int SOLR_SERVER_CACHING_AGE_SECONDS=36584600; //default value 1 year (effectively disabled)
+    public static int SOLR_SERVER_CACHING_MAX_MEGABYTES=-1; //default value: No limit on heap usage
+    /**
+     * Persistent cache for resolving URLs to nearest captures during playback. Disabled if null.
+     * Used by {@link dk.kb.netarchivesuite.solrwayback.solr.NearestCaptureCache}
+     * through {@link dk.kb.netarchivesuite.solrwayback.solr.NetarchiveSolrClient}.
+     */
+    public static String SOLR_SERVER_CACHING_NEAREST_FILE=null;
+    public static int SOLR_SERVER_CACHING_NEAREST_MEGABYTES=100;
+    public static int SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES=24*60;
     /**
      * How often the status (available, unavailable, changed) of the backing Solr is checked.
      *
@@ -94,6 +147,18 @@ public class PropertiesLoader {
     public static long SOLR_STREAM_SHARD_AUTO_MIN_HITS = 5000L;
     // Maximum number of concurrent shard divided connections, shared between all shard divided calls
     public static int SOLR_STREAM_SHARD_DIVIDE_CONCURRENT_MAX = 20;
+    // Used by SolrStreamDirect: The number of pages to request from Solr while the current page is processed
+    public static int SOLR_STREAM_PREFETCH_PAGES = 1;
+    // Used by SolrStreamDirect: Whether to deliver documents while the Solr response is being received
+    public static boolean SOLR_STREAM_STREAMING_RESPONSE = true;
+    // Used by SolrStreamFactory: Whether to use the Solr /export handler when the request allows for it
+    public static boolean SOLR_STREAM_EXPORT_HANDLER = true;
+    // Used by SolrStreamDirect: Adjustment of page size toward a target response size and latency
+    public static boolean SOLR_STREAM_PAGESIZE_ADAPTIVE = true;
+    public static int SOLR_STREAM_PAGESIZE_MIN = 10;
+    public static int SOLR_STREAM_PAGESIZE_MAX = 10000;
+    public static long SOLR_STREAM_PAGESIZE_TARGET_KB = 4096;
+    public static long SOLR_STREAM_PAGESIZE_TARGET_MS = 1000;
 
     public static int SCREENSHOT_PREVIEW_TIMEOUT = 10;//default
 
@@ -128,6 +193,16 @@ public class PropertiesLoader {
             // Legacy support
             WARC_SOURCE_HTTP_FALLBACK = Boolean.parseBoolean(serviceProperties.getProperty(WARC_SOURCE_HTTP_FALLBACK_LEGACY_PROPERTY, "false"));
             WARC_SOURCE_HTTP_FALLBACK = Boolean.parseBoolean(serviceProperties.getProperty(WARC_SOURCE_HTTP_FALLBACK_PROPERTY, Boolean.toString(WARC_SOURCE_HTTP_FALLBACK)));
+            WARC_SOURCE_HTTP_MAX_CONNECTIONS = Integer.parseInt(serviceProperties.getProperty(WARC_SOURCE_HTTP_MAX_CONNECTIONS_PROPERTY, Integer.toString(WARC_SOURCE_HTTP_MAX_CONNECTIONS)).trim());
+            WARC_SOURCE_FILE_CHANNELS = Integer.parseInt(serviceProperties.getProperty(WARC_SOURCE_FILE_CHANNELS_PROPERTY, Integer.toString(WARC_SOURCE_FILE_CHANNELS)).trim());
+            WARC_FILE_RESOLVER_CACHE_SIZE = Integer.parseInt(serviceProperties.getProperty(WARC_FILE_RESOLVER_CACHE_SIZE_PROPERTY, Integer.toString(WARC_FILE_RESOLVER_CACHE_SIZE)).trim());
+            WARC_FILE_RESOLVER_CACHE_SECONDS = Integer.parseInt(serviceProperties.getProperty(WARC_FILE_RESOLVER_CACHE_SECONDS_PROPERTY, Integer.toString(WARC_FILE_RESOLVER_CACHE_SECONDS)).trim());
+            WARC_GZINDEX_ENABLED = Boolean.parseBoolean(serviceProperties.getProperty(WARC_GZINDEX_ENABLED_PROPERTY, Boolean.toString(WARC_GZINDEX_ENABLED)).trim());
+            WARC_GZINDEX_FOLDER = serviceProperties.getProperty(WARC_GZINDEX_FOLDER_PROPERTY, WARC_GZINDEX_FOLDER);
+            WARC_PAYLOAD_CACHE_MEGABYTES = Integer.parseInt(serviceProperties.getProperty(WARC_PAYLOAD_CACHE_MEGABYTES_PROPERTY, Integer.toString(WARC_PAYLOAD_CACHE_MEGABYTES)).trim());
+            WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES = Integer.parseInt(serviceProperties.getProperty(WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES_PROPERTY, Integer.toString(WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES)).trim());
+            EXPORT_WARC_THREADS = Integer.parseInt(serviceProperties.getProperty(EXPORT_WARC_THREADS_PROPERTY, Integer.toString(EXPORT_WARC_THREADS)).trim());
+            EXPORT_WARC_INFLIGHT_MEGABYTES = Integer.parseInt(serviceProperties.getProperty(EXPORT_WARC_INFLIGHT_MEGABYTES_PROPERTY, Integer.toString(EXPORT_WARC_INFLIGHT_MEGABYTES)).trim());
             PID_COLLECTION_NAME = serviceProperties.getProperty(PID_COLLECTION_NAME_PROPERTY);
             loadArcResolverParameters(serviceProperties);
             String timeout  = serviceProperties.getProperty(SCREENSHOT_PREVIEW_TIMEOUT_PROPERTY);
@@ -136,6 +211,14 @@ public class PropertiesLoader {
             SOLR_STREAM_SHARD_AUTO_MIN_SHARDS = Long.parseLong(serviceProperties.getProperty(SOLR_STREAM_SHARD_AUTO_MIN_SHARDS_PROPERTY, Long.toString(SOLR_STREAM_SHARD_AUTO_MIN_SHARDS)));
             SOLR_STREAM_SHARD_AUTO_MIN_HITS = Long.parseLong(serviceProperties.getProperty(SOLR_STREAM_SHARD_AUTO_MIN_HITS_PROPERTY, Long.toString(SOLR_STREAM_SHARD_AUTO_MIN_HITS)));
             SOLR_STREAM_SHARD_DIVIDE_CONCURRENT_MAX = Integer.parseInt(serviceProperties.getProperty(SOLR_STREAM_SHARD_DIVIDE_CONCURRENT_MAX_PROPERTY, Integer.toString(SOLR_STREAM_SHARD_DIVIDE_CONCURRENT_MAX)));
+            SOLR_STREAM_PREFETCH_PAGES = Integer.parseInt(serviceProperties.getProperty(SOLR_STREAM_PREFETCH_PAGES_PROPERTY, Integer.toString(SOLR_STREAM_PREFETCH_PAGES)).trim());
+            SOLR_STREAM_STREAMING_RESPONSE = Boolean.parseBoolean(serviceProperties.getProperty(SOLR_STREAM_STREAMING_RESPONSE_PROPERTY, Boolean.toString(SOLR_STREAM_STREAMING_RESPONSE)).trim());
+            SOLR_STREAM_EXPORT_HANDLER = Boolean.parseBoolean(serviceProperties.getProperty(SOLR_STREAM_EXPORT_HANDLER_PROPERTY, Boolean.toString(SOLR_STREAM_EXPORT_HANDLER)).trim());
+            SOLR_STREAM_PAGESIZE_ADAPTIVE = Boolean.parseBoolean(serviceProperties.getProperty(SOLR_STREAM_PAGESIZE_ADAPTIVE_PROPERTY, Boolean.toString(SOLR_STREAM_PAGESIZE_ADAPTIVE)).trim());
+            SOLR_STREAM_PAGESIZE_MIN = Integer.parseInt(serviceProperties.getProperty(SOLR_STREAM_PAGESIZE_MIN_PROPERTY, Integer.toString(SOLR_STREAM_PAGESIZE_MIN)).trim());
+            SOLR_STREAM_PAGESIZE_MAX = Integer.parseInt(serviceProperties.getProperty(SOLR_STREAM_PAGESIZE_MAX_PROPERTY, Integer.toString(SOLR_STREAM_PAGESIZE_MAX)).trim());
+            SOLR_STREAM_PAGESIZE_TARGET_KB = Long.parseLong(serviceProperties.getProperty(SOLR_STREAM_PAGESIZE_TARGET_KB_PROPERTY, Long.toString(SOLR_STREAM_PAGESIZE_TARGET_KB)).trim());
+            SOLR_STREAM_PAGESIZE_TARGET_MS = Long.parseLong(serviceProperties.getProperty(SOLR_STREAM_PAGESIZE_TARGET_MS_PROPERTY, Long.toString(SOLR_STREAM_PAGESIZE_TARGET_MS)).trim());
 
             URL waybacksURL = new URL (WAYBACK_BASEURL);
             WAYBACK_SERVER_PORT =  waybacksURL.getPort();
@@ -155,8 +238,17 @@ public class PropertiesLoader {
                 if (serviceProperties.containsKey(SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY)) {
                     SOLR_SERVER_CACHING_MAX_ENTRIES = Integer.parseInt(serviceProperties.getProperty(SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY).trim());
                 }
+                if (serviceProperties.containsKey(SOLR_SERVER_CACHING_MAX_MEGABYTES_PROPERTY)) {
+                    SOLR_SERVER_CACHING_MAX_MEGABYTES = Integer.parseInt(serviceProperties.getProperty(SOLR_SERVER_CACHING_MAX_MEGABYTES_PROPERTY).trim());
+                }
             }
 
+            SOLR_SERVER_CACHING_NEAREST_FILE = serviceProperties.getProperty(SOLR_SERVER_CACHING_NEAREST_FILE_PROPERTY);
+            SOLR_SERVER_CACHING_NEAREST_MEGABYTES = Integer.parseInt(serviceProperties.getProperty(
+                    SOLR_SERVER_CACHING_NEAREST_MEGABYTES_PROPERTY, Integer.toString(SOLR_SERVER_CACHING_NEAREST_MEGABYTES)).trim());
+            SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES = Integer.parseInt(serviceProperties.getProperty(
+                    SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES_PROPERTY, Integer.toString(SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES)).trim());
+
             SOLR_SERVER_CHECK_INTERVAL = Integer.parseInt(serviceProperties.getProperty(
                     SOLR_SERVER_CHECK_INTERVAL_PROPERTY, Integer.toString(SOLR_SERVER_CHECK_INTERVAL)));
 
@@ -182,18 +274,40 @@ public class PropertiesLoader {
             log.info("Property:"+ WARC_FILE_RESOLVER_CLASS_PROPERTY +" = " + WARC_FILE_RESOLVER_CLASS);
             log.info("Property:"+ WARC_FILE_RESOLVER_PARAMETERS_PROPERTY +" = " + WARC_FILE_RESOLVER_PARAMETERS);
             log.info("Property:"+ WARC_SOURCE_HTTP_FALLBACK_PROPERTY + " = " + WARC_SOURCE_HTTP_FALLBACK);
+            log.info("Property:"+ WARC_SOURCE_HTTP_MAX_CONNECTIONS_PROPERTY + " = " + WARC_SOURCE_HTTP_MAX_CONNECTIONS);
+            log.info("Property:"+ WARC_SOURCE_FILE_CHANNELS_PROPERTY + " = " + WARC_SOURCE_FILE_CHANNELS);
+            log.info("Property:"+ WARC_FILE_RESOLVER_CACHE_SIZE_PROPERTY + " = " + WARC_FILE_RESOLVER_CACHE_SIZE);
+            log.info("Property:"+ WARC_FILE_RESOLVER_CACHE_SECONDS_PROPERTY + " = " + WARC_FILE_RESOLVER_CACHE_SECONDS);
+            log.info("Property:"+ WARC_GZINDEX_ENABLED_PROPERTY + " = " + WARC_GZINDEX_ENABLED);
+            log.info("Property:"+ WARC_GZINDEX_FOLDER_PROPERTY + " = " + WARC_GZINDEX_FOLDER);
+            log.info("Property:"+ WARC_PAYLOAD_CACHE_MEGABYTES_PROPERTY + " = " + WARC_PAYLOAD_CACHE_MEGABYTES);
+            log.info("Property:"+ WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES_PROPERTY + " = " + WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES);
+            log.info("Property:"+ EXPORT_WARC_THREADS_PROPERTY + " = " + EXPORT_WARC_THREADS);
+            log.info("Property:"+ EXPORT_WARC_INFLIGHT_MEGABYTES_PROPERTY + " = " + EXPORT_WARC_INFLIGHT_MEGABYTES);
             log.info("Property:"+ URL_NORMALISER_PROPERTY +" = " +  URL_NORMALISER);
             log.info("Property:"+ PID_COLLECTION_NAME_PROPERTY +" = " +  PID_COLLECTION_NAME);
             log.info("Property:"+ WARC_FILES_VERIFY_COLLECTION_PROPERTY  +" = " + WARC_FILES_VERIFY_COLLECTION);
             log.info("Property:"+ SOLR_SERVER_CACHING_PROPERTY +" = " +  SOLR_SERVER_CACHING);
             log.info("Property:"+ SOLR_SERVER_CACHING_AGE_SECONDS_PROPERTY +" = " +  SOLR_SERVER_CACHING_AGE_SECONDS);
             log.info("Property:"+ SOLR_SERVER_CACHING_MAX_ENTRIES_PROPERTY +" = " +  SOLR_SERVER_CACHING_MAX_ENTRIES);
+            log.info("Property:"+ SOLR_SERVER_CACHING_MAX_MEGABYTES_PROPERTY +" = " +  SOLR_SERVER_CACHING_MAX_MEGABYTES);
+            log.info("Property:"+ SOLR_SERVER_CACHING_NEAREST_FILE_PROPERTY +" = " +  SOLR_SERVER_CACHING_NEAREST_FILE);
+            log.info("Property:"+ SOLR_SERVER_CACHING_NEAREST_MEGABYTES_PROPERTY +" = " +  SOLR_SERVER_CACHING_NEAREST_MEGABYTES);
+            log.info("Property:"+ SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES_PROPERTY +" = " +  SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES);
             log.info("Property:"+ SOLR_SERVER_CHECK_INTERVAL_PROPERTY +" = " +  SOLR_SERVER_CHECK_INTERVAL);
             log.info("Property:"+ SOLR_SEARCH_PARAMS_PROPERTY+" loaded map: " +  SOLR_PARAMS_MAP);
             log.info("Property:"+ SOLR_STREAM_SHARD_DIVIDE_PROPERTY + " = " + SOLR_STREAM_SHARD_DIVIDE);
             log.info("Property:" + SOLR_STREAM_SHARD_AUTO_MIN_SHARDS_PROPERTY + " = " + SOLR_STREAM_SHARD_AUTO_MIN_SHARDS);
             log.info("Property:" + SOLR_STREAM_SHARD_AUTO_MIN_HITS_PROPERTY + " = " + SOLR_STREAM_SHARD_AUTO_MIN_HITS);
             log.info("Property:" + SOLR_STREAM_SHARD_DIVIDE_CONCURRENT_MAX_PROPERTY + " = " + SOLR_STREAM_SHARD_DIVIDE_CONCURRENT_MAX);
+            log.info("Property:" + SOLR_STREAM_PREFETCH_PAGES_PROPERTY + " = " + SOLR_STREAM_PREFETCH_PAGES);
+            log.info("Property:" + SOLR_STREAM_STREAMING_RESPONSE_PROPERTY + " = " + SOLR_STREAM_STREAMING_RESPONSE);
+            log.info("Property:" + SOLR_STREAM_EXPORT_HANDLER_PROPERTY + " = " + SOLR_STREAM_EXPORT_HANDLER);
+            log.info("Property:" + SOLR_STREAM_PAGESIZE_ADAPTIVE_PROPERTY + " = " + SOLR_STREAM_PAGESIZE_ADAPTIVE);
+            log.info("Property:" + SOLR_STREAM_PAGESIZE_MIN_PROPERTY + " = " + SOLR_STREAM_PAGESIZE_MIN);
+            log.info("Property:" + SOLR_STREAM_PAGESIZE_MAX_PROPERTY + " = " + SOLR_STREAM_PAGESIZE_MAX);
+            log.info("Property:" + SOLR_STREAM_PAGESIZE_TARGET_KB_PROPERTY + " = " + SOLR_STREAM_PAGESIZE_TARGET_KB);
+            log.info("Property:" + SOLR_STREAM_PAGESIZE_TARGET_MS_PROPERTY + " = " + SOLR_STREAM_PAGESIZE_TARGET_MS);
         } catch (Exception e) {
             e.printStackTrace(); // Acceptable as this is catastrophic
             log.error("Could not load property file '" + propertyPath + "'",e);
@@ -60,6 +60,7 @@ public class PropertiesLoaderWeb {
     public static final String EXPORT_CSV_MAXRESULTS_PROPERTY = "export.csv.maxresults";
     public static final String EXPORT_WARC_EXPANDED_MAXRESULTS_PROPERTY = "export.warc.expanded.maxresults";
     public static final String EXPORT_ZIP_MAXRESULTS_PROPERTY ="export.csv.maxresults";
+    public static final String EXPORT_WARC_RESUME_MINUTES_PROPERTY = "export.warc.resume.minutes";
 
     public static final String EXPORT_CSV_FIELDS_PROPERTY = "export.csv.fields";
     public static final String ABOUT_TEXT_FILE_PROPERTY = "about.text.file";
@@ -95,6 +96,7 @@ public class PropertiesLoaderWeb {
     public static long EXPORT_WARC_MAXRESULTS=1000000; // 1M default
     public static long EXPORT_WARC_EXPANDED_MAXRESULTS=100000; // 500K default
     public static long EXPORT_ZIP_MAXRESULTS=1000000; // 1M default
+    public static int EXPORT_WARC_RESUME_MINUTES=120; // Idle time before a resumable WARC export is discarded
     public static boolean ALLOW_EXPORT_WARC;
     public static boolean ALLOW_EXPORT_CSV;
     public static boolean ALLOW_EXPORT_ZIP;
@@ -184,6 +186,7 @@ public class PropertiesLoaderWeb {
             TOP_LEFT_LOGO_IMAGE_LINK = serviceProperties.getProperty(TOP_LEFT_LOGO_IMAGE_LINK_PROPERTY);
 
             WARC_ENTRY_TEXT_MAX_CHARACTERS = getInt(WARC_ENTRY_TEXT_MAX_CHARACTERS_PROPERTY, WARC_ENTRY_TEXT_MAX_CHARACTERS);
+            EXPORT_WARC_RESUME_MINUTES = getInt(EXPORT_WARC_RESUME_MINUTES_PROPERTY, EXPORT_WARC_RESUME_MINUTES);
 
             String csv_max_results= serviceProperties.getProperty(EXPORT_CSV_MAXRESULTS_PROPERTY);
             String warc_max_results= serviceProperties.getProperty(EXPORT_WARC_MAXRESULTS_PROPERTY);
@@ -276,6 +279,7 @@ public class PropertiesLoaderWeb {
             log.info("Property:"+ EXPORT_WARC_MAXRESULTS_PROPERTY +" = " + EXPORT_WARC_MAXRESULTS);
             log.info("Property:"+ EXPORT_WARC_EXPANDED_MAXRESULTS_PROPERTY +" = " + EXPORT_WARC_EXPANDED_MAXRESULTS);
             log.info("Property:"+ EXPORT_ZIP_MAXRESULTS_PROPERTY + " = " + EXPORT_ZIP_MAXRESULTS);
+            log.info("Property:"+ EXPORT_WARC_RESUME_MINUTES_PROPERTY + " = " + EXPORT_WARC_RESUME_MINUTES);
             log.info("Property:"+ EXPORT_CSV_FIELDS_PROPERTY +" = " + EXPORT_CSV_FIELDS);
             log.info("Property:"+ WAYBACK_SERVER_PROPERTY +" = " + WAYBACK_SERVER);			
             log.info("Property:"+ MAPS_LATITUDE_PROPERTY+" = " +MAPS_LATITUDE);
@@ -4,10 +4,12 @@ package dk.kb.netarchivesuite.solrwayback.service;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.channels.Channels;
 import java.text.DateFormat;
 import java.text.Normalizer;
 import java.text.SimpleDateFormat;
@@ -33,10 +35,12 @@ import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dk.kb.netarchivesuite.solrwayback.export.ResumableWarcExport;
 import dk.kb.netarchivesuite.solrwayback.facade.Facade;
 import dk.kb.netarchivesuite.solrwayback.image.ImageUtils;
 import dk.kb.netarchivesuite.solrwayback.normalise.Normalisation;
@@ -52,6 +56,7 @@ import dk.kb.netarchivesuite.solrwayback.service.exception.InvalidArgumentServic
 import dk.kb.netarchivesuite.solrwayback.service.exception.NotFoundServiceException;
 import dk.kb.netarchivesuite.solrwayback.service.exception.SolrWaybackServiceException;
 import dk.kb.netarchivesuite.solrwayback.solr.NetarchiveSolrClient;
+import dk.kb.netarchivesuite.solrwayback.util.ByteRange;
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
 import dk.kb.netarchivesuite.solrwayback.util.UrlUtils;
 
@@ -61,6 +66,13 @@ import dk.kb.netarchivesuite.solrwayback.util.UrlUtils;
 public class SolrWaybackResource {
 
   private static final Logger log = LoggerFactory.getLogger(SolrWaybackResource.class);
+
+  // Tomcat sendfile: If supported by the connector, the file region in the request attributes is sent by the kernel
+  // after the response headers, instead of the response entity
+  static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
   
   
   /*
@@ -220,7 +232,8 @@ public class SolrWaybackResource {
   @GET
   @Path("/downloadRaw")
   @Produces(MediaType.APPLICATION_OCTET_STREAM)    
-  public Response downloadRaw(@QueryParam("source_file_path") String source_file_path, @QueryParam("offset") long offset) throws SolrWaybackServiceException {
+  public Response downloadRaw(@QueryParam("source_file_path") String source_file_path, @QueryParam("offset") long offset,
+                              @Context HttpServletRequest httpRequest) throws SolrWaybackServiceException {
     try {
 
         
@@ -247,9 +260,8 @@ public class SolrWaybackResource {
         return responseRedirect;
       }
       
-      InputStream in = arcEntry.getBinaryNoChunking(); //Stream entry. Dechucking require as tomcat/apache also chunks.
-      
-      ResponseBuilder response = null;
+      //Stream entry. Dechucking require as tomcat/apache also chunks.
+      ResponseBuilder response = binaryResponse(arcEntry, httpRequest, ByteRange.toETag(arcEntry.getPayloadDigest()));
       try{        
         String contentType = arcEntry.getContentType();
         if (arcEntry.getContentCharset() != null){ //Do I also have to check contentType not null?
@@ -262,12 +274,12 @@ public class SolrWaybackResource {
             //log.debug("No content charset in warc-header, using full contentType from tika:"+doc.getContentType() + " for  "+source_file_path +" offset:"+offset +" content-type:"+doc.getContentType());            
             contentType=doc.getContentType(); 
         }               
-        response= Response.ok((Object) in).type(contentType);          
+        response.type(contentType);          
       }
       catch (Exception e){         
         IndexDoc indexDoc = NetarchiveSolrClient.getInstance().getArcEntry(source_file_path, offset); 
          log.warn("Error setting HTTP header Content-Type:'"+arcEntry.getContentType() +"' using index Content-Type:'"+indexDoc.getContentType()+"'");         
-         response = Response.ok((Object) in).type(indexDoc.getContentType()); 
+         response.type(indexDoc.getContentType()); 
       }
             
       if (arcEntry.getFileName() != null){
@@ -287,6 +299,90 @@ public class SolrWaybackResource {
     }
   }
 
+  public Response downloadRaw(String source_file_path, long offset) throws SolrWaybackServiceException {
+    return downloadRaw(source_file_path, offset, null);
+  }
+
+  /**
+   * Creates a response with the binary for the entry, sans HTTP headers and de-chunked.
+   * <p>
+   * If the binary is not chunked, the HTTP request headers {@code Range} and {@code If-Range} are honoured with a
+   * {@code 206 Partial Content} response, which starts reading directly at the requested position in the (W)ARC.
+   * For gzip-compressed (W)ARCs this requires a {@link dk.kb.netarchivesuite.solrwayback.util.GzipCheckpointIndex}.
+   * For uncompressed (W)ARCs on the local file system, non-chunked binaries are transferred directly from the
+   * file to the response, using Tomcat sendfile if available, see {@link #transferBinary}.
+   * If {@code If-None-Match} matches the entity tag, {@code 304 Not Modified} is returned.
+   * @param arcEntry    the entry to deliver.
+   * @param httpRequest the request. If null, the full binary is always delivered.
+   * @param etag        entity tag for the binary or null if the binary has no stable identity,
+   *                    e.g. if it has been rewritten by playback.
+   * @return a response builder, ready for content type and other headers to be set.
+   */
+  ResponseBuilder binaryResponse(ArcEntry arcEntry, HttpServletRequest httpRequest, String etag) throws IOException {
+    if (httpRequest != null && ByteRange.ifNoneMatchMatches(httpRequest.getHeader("If-None-Match"), etag)) {
+      return Response.status(Response.Status.NOT_MODIFIED).header("ETag", etag);
+    }
+
+    ByteRange range = null;
+    if (httpRequest != null && ByteRange.ifRangeHolds(httpRequest.getHeader("If-Range"), etag)) {
+      range = ByteRange.parse(httpRequest.getHeader("Range"), arcEntry.getBinaryArraySize());
+    }
+
+    ResponseBuilder response;
+    boolean transferable = arcEntry.isBinaryTransferable();
+    boolean chunked = arcEntry.isBinaryChunked();
+    if (range != null && !chunked) {
+      if (!range.isSatisfiable()) {
+        return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE).
+                header("Content-Range", range.getContentRange());
+      }
+      Object entity = transferable ?
+              transferBinary(arcEntry, httpRequest, range.getStart(), range.getRangeLength()) :
+              new BoundedInputStream(arcEntry.getBinaryRaw(range.getStart()), range.getRangeLength());
+      response = Response.status(Response.Status.PARTIAL_CONTENT).entity(entity).
+              header("Content-Range", range.getContentRange()).
+              header("Content-Length", range.getRangeLength());
+    } else if (transferable && !chunked) {
+      response = Response.ok(transferBinary(arcEntry, httpRequest, 0, arcEntry.getBinaryArraySize())).
+              header("Content-Length", arcEntry.getBinaryArraySize());
+    } else {
+      response = Response.ok((Object) arcEntry.getBinaryNoChunking());
+    }
+
+    if (!chunked) {
+      response.header("Accept-Ranges", "bytes");
+    }
+    if (etag != null) {
+      response.header("ETag", etag);
+    }
+    return response;
+  }
+
+  /**
+   * Deliver the given part of the binary directly from the (W)ARC file.
+   * <p>
+   * If the servlet container is Tomcat with sendfile support, the file region is handed to Tomcat through the
+   * {@code org.apache.tomcat.sendfile.*} request attributes and the bytes never enter the JVM. Otherwise the bytes are
+   * transferred with {@link ArcEntry#transferBinaryRaw}. As the servlet API only provides an {@code OutputStream},
+   * that goes through a heap buffer in the channel wrapper, but avoids the chain of buffered input streams.
+   * @param arcEntry    an entry where {@link ArcEntry#isBinaryTransferable()} is true.
+   * @param httpRequest the request, used for sendfile. If null, sendfile is not used.
+   * @param start       the start position in the binary.
+   * @param length      the maximum number of bytes to deliver.
+   * @return an entity that transfers the given part of the binary to the response.
+   */
+  private StreamingOutput transferBinary(ArcEntry arcEntry, HttpServletRequest httpRequest, long start, long length) {
+    if (httpRequest != null && Boolean.TRUE.equals(httpRequest.getAttribute(SENDFILE_SUPPORT))) {
+      long position = arcEntry.getBinaryFilePosition() + start;
+      long count = Math.max(0, Math.min(length, arcEntry.getBinaryArraySize() - start));
+      httpRequest.setAttribute(SENDFILE_FILENAME, arcEntry.getArcSource().getLocalFile().toAbsolutePath().toString());
+      httpRequest.setAttribute(SENDFILE_START, position);
+      httpRequest.setAttribute(SENDFILE_END, position + count);
+      return output -> {}; // Tomcat ignores the entity and sends the file region
+    }
+    return output -> arcEntry.transferBinaryRaw(start, length, Channels.newChannel(output));
+  }
+
   
 
   @GET
@@ -311,13 +407,64 @@ public class SolrWaybackResource {
   @GET
   @Path("/export/warc")    
   @Produces(MediaType.APPLICATION_OCTET_STREAM)    
-  public Response exportWarc(@QueryParam("query") String q, @QueryParam("fq") List<String> fq, @QueryParam("gzip") boolean gzip) throws SolrWaybackServiceException {
+  public Response exportWarc(@QueryParam("query") String q, @QueryParam("fq") List<String> fq, @QueryParam("gzip") boolean gzip,
+                             @QueryParam("resume") String resume, @QueryParam("offset") long offset) throws SolrWaybackServiceException {
    
     //This is also required even if the option is removed on the web-page.
     if (!PropertiesLoaderWeb.ALLOW_EXPORT_WARC){ 
       throw new InvalidArgumentServiceException("Export to warc not allowed!");
     }    
-    return exportWarcImpl(q, fq, gzip, false, false);
+    return exportWarcResumable(q, fq, gzip, resume, offset);
+  }
+
+  /**
+   * Start a new WARC export or resume an existing one. The ID of the export job is returned in the header
+   * {@code X-Export-Job} and can be used with {@code resume} to continue the export from {@code offset} bytes,
+   * e.g. after a dropped connection. When resuming, {@code query}, {@code fq} and {@code gzip} are taken from the job.
+   */
+  private Response exportWarcResumable(String q, List<String> fqList, boolean gzip, String resume, long offset)
+          throws SolrWaybackServiceException {
+    InputStream is = null;
+    try {
+      ResumableWarcExport job;
+      if (resume == null || resume.isEmpty()) {
+        log.debug("Export warc. gzip="+gzip +" query:"+q +" filterquery:"+fqList);
+        if (offset != 0) {
+          throw new InvalidArgumentServiceException("offset can only be used with resume");
+        }
+        job = Facade.createWarcExport(gzip, q, fqList.toArray(new String[0]));
+      } else {
+        log.info("Resuming warc export job " + resume + " from offset " + offset);
+        job = Facade.getWarcExport(resume);
+      }
+      if (offset < 0) {
+        throw new InvalidArgumentServiceException("offset must be >= 0 but was " + offset);
+      }
+      try {
+        is = job.open(offset);
+      } catch (EOFException e) {
+        throw new InvalidArgumentServiceException(e.getMessage());
+      }
+
+      String template = "solrwayback_$DATETIME.warc";
+      if (job.isGzip()) {
+          template += ".gz";
+      }
+      return Response.ok(is).
+              header("Content-Disposition", getDisposition(template)).
+              header("X-Export-Job", job.getId()).
+              build();
+    } catch (Exception e) {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException ex) {
+          log.error("Error closing export stream", e);
+        }
+      }
+      log.error("Error in export warc",e);
+      throw handleServiceExceptions(e);
+    }
   }
   
   @GET
@@ -427,6 +574,7 @@ public class SolrWaybackResource {
                                @QueryParam("flatten") Boolean flatten,
                                @QueryParam("format") String format,
                                @QueryParam("gzip") Boolean gzip,
+                               @QueryParam("sort") String sort,
                                @QueryParam("fq") String... filters                     
           ) throws SolrWaybackServiceException {
     if (!PropertiesLoaderWeb.ALLOW_EXPORT_CSV){
@@ -435,11 +583,11 @@ public class SolrWaybackResource {
     format = format == null ? "csv" : format;
     gzip = Boolean.TRUE.equals(gzip); // Guard against NullPointerException later on
     try {
-      log.debug("{} export. Query:'{}, filterquery:'{}', fields:'{}', expandResources:{}, ensureUnique:{}, flatten:{}, groupfield:{}, gzip:{}",
+      log.debug("{} export. Query:'{}, filterquery:'{}', fields:'{}', expandResources:{}, ensureUnique:{}, flatten:{}, groupfield:{}, gzip:{}, sort:'{}'",
                 format, q, filters, fields,
                 Boolean.TRUE.equals(expandResources), Boolean.TRUE.equals(ensureUnique), Boolean.TRUE.equals(flatten),
-                groupField, gzip);
-      InputStream is = Facade.exportFields(fields, expandResources, ensureUnique, groupField, flatten, format, gzip, q, filters);
+                groupField, gzip, sort);
+      InputStream is = Facade.exportFields(fields, expandResources, ensureUnique, groupField, flatten, format, gzip, sort, q, filters);
       // TODO: Set MIME-type and compression flag
       String filenameTemplate = "solrwayback_$DATETIME." + format + (gzip ? ".gz" : "");
       return Response.ok(is).header("Content-Disposition", getDisposition(filenameTemplate)).build();
@@ -529,7 +677,7 @@ public class SolrWaybackResource {
       }
       //log.info("Found url with harvesttime:"+doc.getUrl() +" and arc:"+doc.getArc_full());        
       log.info("return viewImpl for type:"+doc.getMimeType() +" and url:"+doc.getUrl());
-      return viewImpl(doc.getSource_file_path() , doc.getOffset(),false, null); //NO TOOLBAR!
+      return viewImpl(doc.getSource_file_path() , doc.getOffset(),false, null, null); //NO TOOLBAR!
       
                      
     } catch (Exception e) {
@@ -671,7 +819,7 @@ public class SolrWaybackResource {
         String refererUrl = httpRequest.getHeader("referer");       
         log.info("url not with domain:"+url +" referer:"+refererUrl);         
         IndexDoc doc = Facade.matchRelativeUrlForDomain(refererUrl,url,solrDate);           
-        return downloadRaw(doc.getSource_file_path(),doc.getOffset());      
+        return downloadRaw(doc.getSource_file_path(),doc.getOffset(), httpRequest);      
       }      
             
       //log.info("solrDate="+solrDate +" , url="+url);
@@ -702,7 +850,7 @@ public class SolrWaybackResource {
            
       //log.debug("return viewImpl for type:"+doc.getMimeType() +" and url:"+doc.getUrl());
           
-      Response viewImpl = viewImpl(doc.getSource_file_path() , doc.getOffset(),true, lenient);
+      Response viewImpl = viewImpl(doc.getSource_file_path() , doc.getOffset(),true, lenient, httpRequest);
       
       return viewImpl;
     } catch (Exception e) {
@@ -767,7 +915,7 @@ public class SolrWaybackResource {
          throw new NotFoundServiceException("URL:"+pwidUrl +" and time:"+onlyUTC + " is not found in collection:"+thisCollectionName);
        }
 
-      return viewImpl(doc.getSource_file_path() , doc.getOffset(),true, null);
+      return viewImpl(doc.getSource_file_path() , doc.getOffset(),true, null, httpRequest);
     } catch (Exception e) {
       throw handleServiceExceptions(e);
     }
@@ -889,7 +1037,7 @@ public class SolrWaybackResource {
           throws SolrWaybackServiceException {
     try {
 
-      return viewImpl(source_file_path, offset,showToolbar, lenient);
+      return viewImpl(source_file_path, offset,showToolbar, lenient, null);
 
     } catch (Exception e) {
       throw handleServiceExceptions(e);
@@ -926,7 +1074,8 @@ public class SolrWaybackResource {
   }
 */
 
-  private Response viewImpl(String source_file_path, long offset,Boolean showToolbar, Boolean lenient) throws Exception{
+  private Response viewImpl(String source_file_path, long offset,Boolean showToolbar, Boolean lenient,
+                            HttpServletRequest httpRequest) throws Exception{
     
       if (PropertiesLoader.PLAYBACK_DISABLED) {          
           throw new InvalidArgumentServiceException("Playback has been disabled in the configuration");
@@ -961,7 +1110,12 @@ public class SolrWaybackResource {
    //log.debug("setting contentype:"+contentType);
 //          
    
-   ResponseBuilder response = Response.ok(arcEntry.getBinaryNoChunking()).type(contentType );
+   ResponseBuilder response;
+   if (arcEntry.isHasBeenDecompressed()) { // Rewritten by playback
+     response = Response.ok(arcEntry.getBinaryNoChunking()).type(contentType );
+   } else { // Served as it is, so ranges (video seeking etc.) can be supported
+     response = binaryResponse(arcEntry, httpRequest, ByteRange.toETag(arcEntry.getPayloadDigest())).type(contentType );
+   }
 
     if (arcEntry.isHasBeenDecompressed()){ //Will have if playback (HTML, Twitter, etc.) has replaced the content
     	response.header("Content-Encoding", "identity"); //Not required, but will make it easier to see it has been applied.
@@ -1027,7 +1181,7 @@ public class SolrWaybackResource {
       IndexDoc doc = Facade.resolveRelativUrlForResource(source_file_path, Long.parseLong(offsetStr), leakUrl);
       log.info("Resolved leak to doc url:"+doc.getUrl());  
       log.info("Resolved leak to doc offset:"+doc.getOffset());      
-      return downloadRaw(doc.getSource_file_path(), doc.getOffset());
+      return downloadRaw(doc.getSource_file_path(), doc.getOffset(), httpRequest);
     }
     catch(Exception e){
       throw handleServiceExceptions(e);
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 
 import dk.kb.netarchivesuite.solrwayback.encoders.Sha1Hash;
 import dk.kb.netarchivesuite.solrwayback.facade.Facade;
+import dk.kb.netarchivesuite.solrwayback.parsers.ArcParserFileResolver;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoaderWeb;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntryDescriptor;
@@ -57,6 +58,7 @@ import dk.kb.netarchivesuite.solrwayback.service.exception.SolrWaybackServiceExc
 import dk.kb.netarchivesuite.solrwayback.solr.NetarchiveSolrClient;
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
 import dk.kb.netarchivesuite.solrwayback.util.FileUtil;
+import dk.kb.netarchivesuite.solrwayback.util.PayloadCache;
 
 
 @Path("/frontend/")
@@ -290,6 +292,45 @@ public class SolrWaybackResourceWeb {
     }
 
 
+    /**
+     * Returns statistics for the cache for Solr responses: Number of entries, approximate heap usage, hits etc.
+     *
+     * The cache is controlled by the properties {@code solr.server.caching*}.
+     * See {@link dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader} for further information.
+     * @return cache statistics or {@code N/A} if caching is not enabled.
+     */
+    @GET
+    @Path("solr/cache/stats")
+    @Produces(MediaType.TEXT_PLAIN +"; charset=UTF-8")
+    public String getSolrCacheStats() throws SolrWaybackServiceException {
+        try {
+            return NetarchiveSolrClient.getInstance().getCacheStats();
+        } catch (Exception e) {
+            log.error("Unable to retrieve Solr cache statistics", e);
+            throw handleServiceExceptions(e);
+        }
+    }
+
+    /**
+     * Returns statistics for the caches used when reading (W)ARC records: Resolved (W)ARC locations and
+     * binaries of small records.
+     *
+     * The caches are controlled by the properties {@code warc.file.resolver.cache*} and
+     * {@code warc.file.payload.cache*}.
+     * @return cache statistics.
+     */
+    @GET
+    @Path("warc/cache/stats")
+    @Produces(MediaType.TEXT_PLAIN +"; charset=UTF-8")
+    public String getWarcCacheStats() throws SolrWaybackServiceException {
+        try {
+            return ArcParserFileResolver.getCacheStats() + "\n" + PayloadCache.getInstance();
+        } catch (Exception e) {
+            log.error("Unable to retrieve (W)ARC cache statistics", e);
+            throw handleServiceExceptions(e);
+        }
+    }
+
     @GET
     @Path("/help/search")
     @Produces( MediaType.TEXT_PLAIN)
@@ -10,10 +10,10 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Locale;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.xml.bind.annotation.XmlRootElement;
@@ -21,6 +21,8 @@ import javax.xml.bind.annotation.XmlRootElement;
 import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
 import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoaderWeb;
 import dk.kb.netarchivesuite.solrwayback.util.LimitedReader;
+import dk.kb.netarchivesuite.solrwayback.util.PayloadCache;
+import dk.kb.netarchivesuite.solrwayback.util.PooledGZIPInputStream;
 import it.unimi.dsi.fastutil.Arrays;
 import org.apache.commons.httpclient.ChunkedInputStream;
 import org.apache.commons.io.Charsets;
@@ -30,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.netarchivesuite.solrwayback.parsers.ArcParser;
+import dk.kb.netarchivesuite.solrwayback.parsers.ArcWarcFileParserAbstract;
 import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
 
 //Notice this class is returned both by the ArcParser and WarcParser.
@@ -63,10 +66,13 @@ public class ArcEntry {
   private long offset;  
   private boolean hasBeenDecompressed=false;
   private boolean chunked=false;
+  private Boolean binaryChunked = null; // Result of isBinaryChunked, resolved on first call
   private byte[] cachedBinary;
   private long binaryTrueSize;
+  private long headerLength = -1; // Uncompressed bytes from the start of the entry to the binary. -1 if unknown
   private int status_code;
   private String header;//Both headers for WARC.
+  private byte[] headerBytes; // Raw version of header, decoded on first call to getHeader
   private String ip;
   private String url;
   private String contentCharset;
@@ -80,6 +86,7 @@ public class ArcEntry {
   private String contentEncoding;
   private String waybackDate; // format 20080331193532
   private String redirectUrl; //null if not redirect
+  private String payloadDigest; //WARC-Payload-Digest, null if not available
   
   
   
@@ -161,6 +168,23 @@ public void setOffset(long offset) {
 public void setBinaryArraySize(long binaryArraySize) {
     this.binaryTrueSize = binaryArraySize;
 }
+
+  /**
+   * @return the number of uncompressed bytes from the start of the entry to the start of the binary content,
+   *         including all (W)ARC and HTTP headers. -1 if unknown.
+   */
+  public long getHeaderLength() {
+    return headerLength;
+  }
+
+  /**
+   * Setting the header length allows {@link #getBinaryRaw()} to go directly to the binary content, without
+   * parsing the headers again.
+   * @param headerLength the number of uncompressed bytes from the start of the entry to the start of the binary.
+   */
+  public void setHeaderLength(long headerLength) {
+    this.headerLength = headerLength;
+  }
 /**
    * Lenient setter for content-encoding (compression).
    * Will trim leading and trailing whitespace and remove {@code "}-characters.
@@ -189,11 +213,25 @@ public void setBinaryArraySize(long binaryArraySize) {
     this.contentCharset = contentCharset == null ? null : contentCharset.trim().replace("\"", "");
   }
   public String getHeader() {
+    if (header == null && headerBytes != null) {
+      header = new String(headerBytes, StandardCharsets.ISO_8859_1);
+    }
     return header;
   }
 
   public void setHeader(String header) {
     this.header = header;
+    this.headerBytes = null;
+  }
+
+  /**
+   * Set the header as bytes. Conversion to String is postponed until {@link #getHeader()} is called, as most
+   * callers never use the header.
+   * @param headerBytes the header bytes, using ISO-8859-1 encoding for textual content.
+   */
+  public void setHeaderBytes(byte[] headerBytes) {
+    this.header = null;
+    this.headerBytes = headerBytes;
   }
   public String getIp() {
     return ip;
@@ -214,6 +252,17 @@ public void setBinaryArraySize(long binaryArraySize) {
     this.redirectUrl = redirectUrl;
   } 
   
+  /**
+   * @return the WARC-Payload-Digest for the entry, e.g. {@code sha1:C4HTYCUOGJ2PCQIKSRDAOCIDMFMFAWKK}.
+   *         null if the (W)ARC does not state a digest.
+   */
+  public String getPayloadDigest() {
+    return payloadDigest;
+  }
+  public void setPayloadDigest(String payloadDigest) {
+    this.payloadDigest = payloadDigest;
+  }
+
   public boolean isHasBeenDecompressed() {
     return hasBeenDecompressed;
   }
@@ -230,6 +279,7 @@ public TYPE getType() {
   }
 public void setChunked(boolean chunked) {
     this.chunked = chunked;
+    this.binaryChunked = null;
 }
 
 
@@ -259,7 +309,35 @@ public void setFormat(FORMAT format) {
         if (cachedBinary != null) {
             return new BufferedInputStream(new ByteArrayInputStream(cachedBinary));
         }
-        // TODO: If binaryArraySize is "small" this should be cached
+        PayloadCache payloadCache = PayloadCache.getInstance();
+        if (arcSource != null && payloadCache.isCacheable(binaryTrueSize)) {
+            byte[] binary = payloadCache.get(arcSource.getSource(), offset);
+            if (binary == null) {
+                try (InputStream in = loadBinaryRaw()) {
+                    binary = IOUtils.toByteArray(in);
+                } catch (IOException | RuntimeException e) {
+                    // Typically a truncated (W)ARC. The lazy stream delivers the bytes that can be read
+                    log.debug("Unable to read the full binary for {}#{} for caching. Using lazy loading: {}",
+                              arcSource.getSource(), offset, e.getMessage());
+                    return loadBinaryRaw();
+                }
+                if (binary.length == binaryTrueSize) { // Incomplete binaries are not cached
+                    payloadCache.put(arcSource.getSource(), offset, binary);
+                }
+            }
+            return new BufferedInputStream(new ByteArrayInputStream(binary));
+        }
+        return loadBinaryRaw();
+    }
+
+    /**
+     * @return the binary for this entry, read from the (W)ARC.
+     */
+    private BufferedInputStream loadBinaryRaw() throws IOException {
+        if (headerLength >= 0 && arcSource != null) {
+            // The headers are already parsed, so go directly to the binary
+            return ArcWarcFileParserAbstract.loadBinary(arcSource, offset, headerLength, binaryTrueSize);
+        }
         switch (format) {
             case ARC:
                 return ArcParser.lazyLoadContent(arcSource, offset);
@@ -272,6 +350,103 @@ public void setFormat(FORMAT format) {
         }
     }
 
+    /**
+     * Constructs a stream for the binary content for this (W)ARC entry, starting {@code binaryOffset} bytes into
+     * the binary. The content is the same as {@link #getBinaryRaw()} delivers.
+     * <p>
+     * For large entries in gzip-compressed (W)ARCs with a
+     * {@link dk.kb.netarchivesuite.solrwayback.util.GzipCheckpointIndex}, the start of the binary does not need to
+     * be inflated.
+     * @param binaryOffset the start position in the binary.
+     * @return a stream with the binary content from this (W)ARC entry, starting at {@code binaryOffset}.
+     * @throws IOException if the binary could not be read.
+     */
+    public BufferedInputStream getBinaryRaw(long binaryOffset) throws IOException {
+        if (binaryOffset == 0) {
+            return getBinaryRaw();
+        }
+        if (cachedBinary == null && headerLength >= 0 && arcSource != null &&
+            !PayloadCache.getInstance().isCacheable(binaryTrueSize)) {
+            return ArcWarcFileParserAbstract.loadBinary(
+                    arcSource, offset, headerLength, binaryTrueSize, binaryOffset);
+        }
+        BufferedInputStream binary = getBinaryRaw();
+        try {
+            IOUtils.skipFully(binary, binaryOffset);
+        } catch (IOException | RuntimeException e) {
+            binary.close();
+            throw e;
+        }
+        return binary;
+    }
+
+    /**
+     * Checks whether the raw binary can be delivered with {@link #transferBinaryRaw(long, long, WritableByteChannel)},
+     * which requires the headers to be parsed and the entry to be in an uncompressed (W)ARC on the local file system.
+     * Binaries that are small enough for the {@link PayloadCache} are served from the cache instead.
+     * @return true if the raw binary can be transferred directly from the (W)ARC.
+     */
+    public boolean isBinaryTransferable() {
+        return cachedBinary == null && headerLength >= 0 && arcSource != null && arcSource.isLocalFile() &&
+               !arcSource.getSource().toLowerCase(Locale.ROOT).endsWith(".gz") &&
+               !PayloadCache.getInstance().isCacheable(binaryTrueSize);
+    }
+
+    /**
+     * Transfers the bytes that {@link #getBinaryRaw(long)} would deliver directly from the (W)ARC to the target,
+     * using {@link java.nio.channels.FileChannel#transferTo}. This avoids copying the binary through a chain of
+     * buffered streams. The bytes only bypass the Java heap if the target is a file or socket channel.
+     * @param binaryOffset the start position in the binary.
+     * @param length       the maximum number of bytes to transfer.
+     * @param target       the receiver of the binary. The target is not closed.
+     * @return the number of transferred bytes.
+     * @throws IOException if the binary could not be transferred.
+     * @throws IllegalStateException if {@link #isBinaryTransferable()} is false.
+     */
+    public long transferBinaryRaw(long binaryOffset, long length, WritableByteChannel target) throws IOException {
+        if (!isBinaryTransferable()) {
+            throw new IllegalStateException("The binary for '" + url + "' in '" + arcSource + "' is not transferable");
+        }
+        long count = Math.max(0, Math.min(length, binaryTrueSize - binaryOffset));
+        return arcSource.transferTo(getBinaryFilePosition() + binaryOffset, count, target);
+    }
+
+    /**
+     * The position of the raw binary in the (W)ARC file, for delivery of the binary by other means than
+     * {@link #transferBinaryRaw(long, long, WritableByteChannel)}, such as servlet container sendfile.
+     * @return the position of the first byte of the raw binary in {@link ArcSource#getLocalFile()}.
+     * @throws IllegalStateException if {@link #isBinaryTransferable()} is false.
+     */
+    public long getBinaryFilePosition() {
+        if (!isBinaryTransferable()) {
+            throw new IllegalStateException("The binary for '" + url + "' in '" + arcSource + "' is not transferable");
+        }
+        return offset + headerLength;
+    }
+
+    /**
+     * Checks whether {@link #getBinaryNoChunking()} de-chunks the binary. If not, the binaries from
+     * {@link #getBinaryRaw()} and {@link #getBinaryNoChunking()} are the same and positions in the binary can be
+     * accessed directly with {@link #getBinaryRaw(long)}.
+     * <p>
+     * As chunking is also detected for entries without a {@code Transfer-Encoding: chunked} header, the start of
+     * the binary is read if the entry is not marked as chunked. The result is remembered, so that the binary is
+     * only read on the first call.
+     * @return true if the binary is chunked.
+     * @throws IOException if the binary could not be read.
+     */
+    public boolean isBinaryChunked() throws IOException {
+        if (chunked) {
+            return true;
+        }
+        if (binaryChunked == null) {
+            try (InputStream binary = maybeDechunk(getBinaryRaw())) {
+                binaryChunked = binary instanceof ChunkedInputStream;
+            }
+        }
+        return binaryChunked;
+    }
+
     /**
      * De-chunks (see https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/Transfer-Encoding#chunked_encoding) the
      * binary delivered form {@link #getBinaryRaw()} but does not change anything else.
@@ -455,7 +630,7 @@ public void setFormat(FORMAT format) {
   private InputStream maybeUnzip(InputStream before) throws IOException {
       if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
 //          this.setContentEncoding("identity");
-          return new GZIPInputStream(before);
+          return new PooledGZIPInputStream(before, true);
       }
       else {
           return before;
@@ -473,13 +648,15 @@ public void setFormat(FORMAT format) {
    * @see <a href="https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/Transfer-Encoding">Transfer-Encoding</a>
    */
   public static InputStream maybeDechunk(InputStream input) throws IOException {
-      final BufferedInputStream buf = new BufferedInputStream(input) {
-          @Override
-          public void close() throws IOException {
-              super.close();
-              input.close();
-          }
-      };
+      // Avoid double buffering as the binaries from the parsers are already buffered
+      final BufferedInputStream buf = input instanceof BufferedInputStream ? (BufferedInputStream) input :
+              new BufferedInputStream(input) {
+                  @Override
+                  public void close() throws IOException {
+                      super.close();
+                      input.close();
+                  }
+              };
       buf.mark(1024); // Room for a lot of comments
       int pos = 0;
       int c = -1;
@@ -0,0 +1,159 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import org.apache.solr.common.SolrDocument;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Adjusts the page size (rows) for paging Solr requests toward a target response size and a target latency,
+ * measured from previous pages.
+ * <p>
+ * Documents with a few small fields can be requested in large pages to avoid chatty streams, while documents with
+ * heavy fields such as {@code content} or {@code links} must be requested in small pages to keep memory usage
+ * and latency down. The measurements are smoothed and the page size is at most doubled from one page to the next,
+ * to avoid oscillation and overshooting.
+ * <p>
+ * The latency target only stops growth of the page size and never shrinks it below the initial page size: Deep
+ * cursorMark pages have a large fixed cost per request, so latency is not proportional to the number of rows and
+ * smaller pages would mean more requests, each paying the fixed cost.
+ * <p>
+ * The response size is estimated from the values in the received documents and is not the exact number of bytes
+ * transferred from Solr.
+ */
+public class AdaptivePageSize {
+    /**
+     * Weight of the latest measurement when updating the smoothed averages.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    private final int initialPageSize;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final long targetBytes;
+    private final long targetNS;
+
+    private int pageSize;
+    private double bytesPerDoc = -1;
+    private double nsPerDoc = -1;
+
+    /**
+     * Create a page sizer with bounds and targets from {@link PropertiesLoader}.
+     * @param initialPageSize the page size for the first request.
+     * @param maxResults      the page size will not be adjusted above this.
+     */
+    public AdaptivePageSize(int initialPageSize, long maxResults) {
+        this(initialPageSize,
+             PropertiesLoader.SOLR_STREAM_PAGESIZE_MIN,
+             (int) Math.min(PropertiesLoader.SOLR_STREAM_PAGESIZE_MAX, maxResults),
+             PropertiesLoader.SOLR_STREAM_PAGESIZE_TARGET_KB*1024L,
+             PropertiesLoader.SOLR_STREAM_PAGESIZE_TARGET_MS);
+    }
+
+    /**
+     * @param initialPageSize the page size for the first request.
+     * @param minPageSize     the page size will not be adjusted below this.
+     * @param maxPageSize     the page size will not be adjusted above this.
+     * @param targetBytes     the wanted size of a response.
+     * @param targetMS        the wanted time for a response.
+     */
+    public AdaptivePageSize(int initialPageSize, int minPageSize, int maxPageSize, long targetBytes, long targetMS) {
+        this.initialPageSize = initialPageSize;
+        this.minPageSize = Math.max(1, minPageSize);
+        this.maxPageSize = Math.max(this.minPageSize, maxPageSize);
+        this.targetBytes = targetBytes;
+        this.targetNS = targetMS*1000000;
+        this.pageSize = initialPageSize;
+    }
+
+    /**
+     * @return the page size to use for the next request.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Update the page size from the measurements for a received page.
+     * @param docs  the number of documents in the page.
+     * @param bytes the estimated size of the documents, see {@link #estimateBytes(SolrDocument)}.
+     * @param ns    the time used for requesting and receiving the page.
+     * @return the page size to use for the next request.
+     */
+    public int update(int docs, long bytes, long ns) {
+        if (docs <= 0) {
+            return pageSize;
+        }
+        bytesPerDoc = smooth(bytesPerDoc, Math.max(1.0, (double) bytes / docs));
+        nsPerDoc = smooth(nsPerDoc, Math.max(1.0, (double) ns / docs));
+        // Latency only limits growth, see the class documentation
+        long wanted = (long) Math.min(targetBytes / bytesPerDoc, Math.max(initialPageSize, targetNS / nsPerDoc));
+        wanted = Math.max(minPageSize, Math.min(maxPageSize, wanted));
+        // Doubling is also the limit when the page size is raised to minPageSize
+        pageSize = (int) Math.max(1, Math.min(wanted, 2L*pageSize));
+        return pageSize;
+    }
+
+    private static double smooth(double average, double measurement) {
+        return average < 0 ? measurement : average*(1-SMOOTHING) + measurement*SMOOTHING;
+    }
+
+    /**
+     * Rough estimate of the size of the document in a Solr response, based on the field names and values.
+     * @param doc a Solr document.
+     * @return the estimated size of the document in bytes.
+     */
+    public static long estimateBytes(SolrDocument doc) {
+        long bytes = 0;
+        for (Map.Entry<String, Object> entry: doc) {
+            bytes += entry.getKey().length() + estimateBytes(entry.getValue());
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length();
+        }
+        if (value instanceof Number || value instanceof Date || value instanceof Boolean) {
+            return 8;
+        }
+        if (value instanceof Collection) {
+            long bytes = 0;
+            for (Object element: (Collection<?>) value) {
+                bytes += estimateBytes(element);
+            }
+            return bytes;
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return value.toString().length();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "AdaptivePageSize(pageSize=%d [%d-%d], bytes/doc=%.0f, ms/doc=%.3f)",
+                             pageSize, minPageSize, maxPageSize, bytesPerDoc, nsPerDoc/1000000);
+    }
+}
@@ -31,18 +31,50 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Caching wrapper for SolrClient. Only caches queries. puts, pings etc. are passed directly.
+ * <p>
+ * Concurrent cache misses for the same key are coalesced: Only the first caller issues the request to the inner
+ * SolrClient while the other callers wait for the result of that request.
+ * <p>
+ * When the backing index changes, {@link #indexChanged(Date, Date)} keeps cached responses for queries that cannot
+ * be affected by the new documents: Queries with a filter on {@code index_time} or {@code crawl_date} with an upper
+ * bound before the new documents.
  */
 public class CachingSolrClient extends SolrClient {
     private static final Logger log = LoggerFactory.getLogger(CachingSolrClient.class);
 
+    /**
+     * The maximum number of index changes to remember for revalidation. Cached entries older than this are discarded.
+     */
+    static final int MAX_INDEX_CHANGES = 1000;
+
+    // Matches filter queries consisting solely of a range on index_time or crawl_date with a fixed upper bound
+    private static final Pattern TIME_RANGE_FILTER = Pattern.compile(
+            "\\s*\\(?\\s*(index_time|crawl_date):[\\[{]\\S+ TO " +
+            "([0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{2}:[0-9]{2}:[0-9]{2}(?:[.][0-9]+)?Z)([\\]}])\\s*\\)?\\s*");
+
     private final SolrClient inner;
     private final int maxConnections;
     protected final Semaphore connection;
@@ -51,6 +83,14 @@ public class CachingSolrClient extends SolrClient {
     final TimeCache<QueryResponse> queryCache;
     final TimeCache<NamedList<Object>> namedCache;
 
+    // Requests currently being processed by the inner SolrClient, used for coalescing concurrent cache misses
+    private final Map<String, CompletableFuture<QueryResponse>> inFlightQueries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<NamedList<Object>>> inFlightRequests = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    // Index changes with the cache generation they lead to
+    private final NavigableMap<Long, IndexChange> indexChanges = new ConcurrentSkipListMap<>();
+
     /**
      * Wrap a cache around the given inner SolrClient
      * @param inner the SolrClient to handle the calls that are not already cached.
@@ -63,10 +103,30 @@ public class CachingSolrClient extends SolrClient {
      */
     public CachingSolrClient(SolrClient inner,
                              int maxCachedEntries, int maxCacheTimeSeconds, int maxConcurrentConnections) {
+        this(inner, maxCachedEntries, -1, maxCacheTimeSeconds, maxConcurrentConnections);
+    }
+
+    /**
+     * Wrap a cache around the given inner SolrClient
+     * @param inner the SolrClient to handle the calls that are not already cached.
+     * @param maxCachedEntries the maximum number of entries in the cache.
+     *                         Setting this to -1 disables this limit.
+     * @param maxCachedBytes the maximum number of bytes on the heap used by the entries in the cache.
+     *                       The size of the entries is approximated using {@link #estimateHeap(Object)}.
+     *                       Setting this to -1 disables this limit.
+     * @param maxCacheTimeSeconds the maximum age of entries in the cache.
+     *                            Setting this to -1 disables this limit.
+     * @param maxConcurrentConnections the maximum number of concurrent connections against the inner SolrClient.
+     *                                 Setting this to -1 disable this limit.
+     */
+    public CachingSolrClient(SolrClient inner, int maxCachedEntries, long maxCachedBytes,
+                             int maxCacheTimeSeconds, int maxConcurrentConnections) {
         this.inner = inner;
         int maxCapacity = maxCachedEntries == -1 ? Integer.MAX_VALUE : maxCachedEntries;
-        long maxAgeMS= maxCacheTimeSeconds == -1 ? Integer.MAX_VALUE / 4 : maxCacheTimeSeconds * 1000L;        
-        queryCache = new TimeCache<>(maxCapacity,maxAgeMS);
+        long maxAgeMS= maxCacheTimeSeconds == -1 ? Integer.MAX_VALUE / 4 : maxCacheTimeSeconds * 1000L;
+        queryCache = maxCachedBytes == -1 ?
+                new TimeCache<>(maxCapacity, maxAgeMS) :
+                new TimeCache<>(maxCapacity, maxAgeMS, maxCachedBytes, CachingSolrClient::estimateHeap);
         namedCache = queryCache.createLinked();
         this.maxConnections = maxConcurrentConnections;
         connection = new Semaphore(maxConcurrentConnections == -1 ? Integer.MAX_VALUE : maxConcurrentConnections, true);
@@ -81,6 +141,103 @@ public class CachingSolrClient extends SolrClient {
         namedCache.clear();
     }
 
+    /**
+     * Signal that the backing index has changed by the addition of new documents. Cached entries are lazily
+     * revalidated: Entries for requests with a filter query on {@code index_time} with an upper bound of at most
+     * {@code previousMaxIndexTime} or on {@code crawl_date} with an upper bound before {@code minNewCrawlDate} are
+     * kept. All other entries are discarded upon lookup.
+     * @param previousMaxIndexTime the max {@code index_time} in the index before the new documents were added.
+     *                             If null, all entries are discarded.
+     * @param minNewCrawlDate      the minimum {@code crawl_date} for the new documents.
+     *                             If null, {@code crawl_date} is not used for revalidation.
+     */
+    public void indexChanged(Date previousMaxIndexTime, Date minNewCrawlDate) {
+        if (previousMaxIndexTime == null) {
+            log.debug("Index changed without previous max index time. Clearing cached queries");
+            clearCache();
+            return;
+        }
+        log.debug("Index changed with previousMaxIndexTime={}, minNewCrawlDate={}. Marking cached queries for revalidation",
+                  previousMaxIndexTime, minNewCrawlDate);
+        IndexChange change = new IndexChange(
+                previousMaxIndexTime.toInstant(), minNewCrawlDate == null ? null : minNewCrawlDate.toInstant());
+        // Caches are linked and updated at the same time, so their generations are equal
+        indexChanges.put(queryCache.getGeneration()+1, change);
+        queryCache.newGeneration(this::isStillValid);
+        namedCache.newGeneration(this::isStillValid);
+        while (indexChanges.size() > MAX_INDEX_CHANGES) {
+            indexChanges.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Check whether a cached entry from the given generation is unaffected by all index changes since the generation.
+     * @param key        the key for the cached entry. This holds the Solr parameters for the request.
+     * @param generation the generation of the cached entry.
+     * @return true if the cached entry is still valid.
+     */
+    boolean isStillValid(String key, long generation) {
+        NavigableMap<Long, IndexChange> changes = indexChanges.tailMap(generation, false);
+        if (changes.isEmpty() || !indexChanges.containsKey(generation+1)) {
+            return false; // Changes are no longer known
+        }
+        // max index_time increases for each change, so the first one is the most restrictive
+        Instant maxIndexTime = changes.firstEntry().getValue().previousMaxIndexTime;
+        Instant minCrawlDate = Instant.MAX;
+        for (IndexChange change: changes.values()) {
+            if (change.minNewCrawlDate == null) {
+                minCrawlDate = null;
+                break;
+            }
+            if (change.minNewCrawlDate.isBefore(minCrawlDate)) {
+                minCrawlDate = change.minNewCrawlDate;
+            }
+        }
+
+        String[] params = key.split("&");
+        for (int i = 0 ; i < params.length ; i++) {
+            String param = params[i];
+            if (i == 0) { // The first param is prefixed with collection and for requests also path etc.
+                if (param.contains("_params=")) {
+                    param = param.substring(param.lastIndexOf("_params=") + "_params=".length());
+                } else if (param.startsWith("collection=") && param.contains("_fq=")) {
+                    param = param.substring(param.indexOf("_fq=") + 1);
+                }
+            }
+            if (!param.startsWith("fq=")) {
+                continue;
+            }
+            String filter;
+            try {
+                filter = URLDecoder.decode(param.substring(3), StandardCharsets.UTF_8.name());
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                continue;
+            }
+            Matcher matcher = TIME_RANGE_FILTER.matcher(filter);
+            if (!matcher.matches()) {
+                continue;
+            }
+            Instant upper;
+            try {
+                upper = Instant.parse(matcher.group(2));
+            } catch (DateTimeParseException e) {
+                continue;
+            }
+            boolean inclusive = "]".equals(matcher.group(3));
+            if ("index_time".equals(matcher.group(1))) {
+                // New documents all have index_time > maxIndexTime
+                if (!upper.isAfter(maxIndexTime)) {
+                    return true;
+                }
+            } else if (minCrawlDate != null) {
+                if (inclusive ? upper.isBefore(minCrawlDate) : !upper.isAfter(minCrawlDate)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * @return the number of cached elements.
      */
@@ -88,6 +245,21 @@ public class CachingSolrClient extends SolrClient {
         return queryCache.size() + namedCache.size();
     }
 
+    /**
+     * @return the approximate number of bytes on the heap used by the cached elements.
+     *         0 if the cache is not bounded by bytes.
+     */
+    public long getCachedBytes() {
+        return queryCache.getWeight() + namedCache.getWeight();
+    }
+
+    /**
+     * @return the maximum number of bytes on the heap for the cached elements, -1 if not bounded.
+     */
+    public long getMaxCachedBytes() {
+        return queryCache.getMaxWeight() == Long.MAX_VALUE ? -1 : queryCache.getMaxWeight();
+    }
+
     /**
      * @return the number of request calls issued to this SolrClient.
      */
@@ -102,26 +274,102 @@ public class CachingSolrClient extends SolrClient {
         return queryCache.getHits() + namedCache.getHits();
     }
 
+    /**
+     * @return the number of cached elements that were kept after index changes.
+     */
+    public long getRevalidated() {
+        return queryCache.getRevalidated() + namedCache.getRevalidated();
+    }
+
+    /**
+     * @return the number of request calls that were not cached, but were satisfied by waiting for an already
+     *         running request for the same key.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of requests to the inner SolrClient currently running.
+     */
+    public int getInFlight() {
+        return inFlightQueries.size() + inFlightRequests.size();
+    }
+
     /**
      * Return the result of the call immediately if it is cached, else evaluate the solrCall, store it in the cache
-     * and return it.
+     * and return it. If another call for the same key is already running, its result is awaited and returned.
      * @param key      cache entry key.
      * @param solrCall call to perform to populate the cache.
-     * @return
+     * @return the result of the solrCall.
      */
     protected QueryResponse cachedSolrCall(String key, Supplier<QueryResponse> solrCall) {
-        return queryCache.get(key, () -> {
-            QueryResponse response;
+        return singleFlight(queryCache, inFlightQueries, key, solrCall);
+    }
+
+    /**
+     * Return the cached value for the key if available. Else either perform the call or, if a call for the same key
+     * is already running, wait for the result of that call.
+     * @param cache    the cache to use for the call.
+     * @param inFlight calls currently running for the cache.
+     * @param key      cache entry key.
+     * @param call     call to perform to populate the cache.
+     * @return the result of the call.
+     */
+    private <T> T singleFlight(TimeCache<T> cache, Map<String, CompletableFuture<T>> inFlight,
+                               String key, Supplier<T> call) {
+        T cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CompletableFuture<T> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.incrementAndGet();
             try {
-                connection.acquire();
-                response = solrCall.get();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted while trying to acquire a connection", e);
-            } finally {
-                connection.release();
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error)e.getCause();
+                }
+                throw e;
             }
-            return response;
-        });
+        }
+
+        try {
+            T result = callWithConnection(call);
+            if (result != null) {
+                cache.put(key, result);
+            }
+            future.complete(result);
+            return result;
+        } catch (Throwable e) { // Errors such as OutOfMemoryError must also release the waiters
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Perform the call, guarded by {@link #connection}.
+     * @param call the call to perform.
+     * @return the result of the call.
+     */
+    private <T> T callWithConnection(Supplier<T> call) {
+        try {
+            connection.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to acquire a connection", e);
+        }
+        try {
+            return call.get();
+        } finally {
+            connection.release();
+        }
     }
 
     /**
@@ -135,13 +383,76 @@ public class CachingSolrClient extends SolrClient {
                 "qp=" + query.getQueryParams() + "_params=" + query.getParams();
     }
 
+    /**
+     * Approximate the number of bytes on the heap retained by the given object, intended for Solr responses.
+     * Known structures ({@link NamedList}, {@link Map}, {@link Collection}, {@link String}...) are traversed and
+     * their sizes estimated for a 64 bit JVM with compressed pointers. Other objects are given a fixed size.
+     * @param o an object, typically a {@link QueryResponse} or {@link NamedList}.
+     * @return the approximate number of bytes retained by the object.
+     */
+    static long estimateHeap(Object o) {
+        if (o == null) {
+            return 0;
+        }
+        if (o instanceof QueryResponse) {
+            // The parsed parts of a QueryResponse are views on the raw response
+            return 64 + estimateHeap(((QueryResponse)o).getResponse());
+        }
+        if (o instanceof String) {
+            return 40 + ((String)o).length();
+        }
+        if (o instanceof Long || o instanceof Double || o instanceof Date) {
+            return 24;
+        }
+        if (o instanceof Number || o instanceof Boolean) {
+            return 16;
+        }
+        if (o instanceof byte[]) {
+            return 16 + ((byte[])o).length;
+        }
+        if (o instanceof NamedList) {
+            NamedList<?> namedList = (NamedList<?>)o;
+            long size = 40 + 8L * namedList.size();
+            for (int i = 0 ; i < namedList.size() ; i++) {
+                size += estimateHeap(namedList.getName(i)) + estimateHeap(namedList.getVal(i));
+            }
+            return size;
+        }
+        if (o instanceof Map) { // SolrDocument is a Map
+            long size = 64;
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>)o).entrySet()) {
+                size += 40 + estimateHeap(entry.getKey()) + estimateHeap(entry.getValue());
+            }
+            return size;
+        }
+        if (o instanceof Collection) { // SolrDocumentList is a Collection
+            long size = 40 + 4L * ((Collection<?>)o).size();
+            for (Object element: (Collection<?>)o) {
+                size += estimateHeap(element);
+            }
+            return size;
+        }
+        if (o instanceof Object[]) {
+            long size = 16 + 4L * ((Object[])o).length;
+            for (Object element: (Object[])o) {
+                size += estimateHeap(element);
+            }
+            return size;
+        }
+        return 32;
+    }
+
     @Override
     public String toString() {
         return "CachingSolrClient{" +
                "maxConnections=" + maxConnections +
                ", size/capacity=" + size() + "/" + queryCache.capacity() +
+               ", bytes/maxBytes=" + getCachedBytes() + "/" + getMaxCachedBytes() +
                ", maxAgeSeconds=" + queryCache.getMaxAgeMS()/1000 +
                ", hits/calls=" + getHits() + "/" + getCalls() +
+               ", coalesced=" + getCoalesced() +
+               ", revalidated/invalidated=" + getRevalidated() + "/" +
+               (queryCache.getInvalidated() + namedCache.getInvalidated()) +
                '}';
     }
 
@@ -252,17 +563,12 @@ public class CachingSolrClient extends SolrClient {
     @Override
     public NamedList<Object> request(SolrRequest request, String collection) {
         final String key = "collection=" + collection + "_" + getKey(request);
-        return namedCache.get(key, () -> {
+        return singleFlight(namedCache, inFlightRequests, key, () -> {
             try {
-                connection.acquire();
                 return inner.request(request, collection);
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted while trying to acquire a connection", e);
             } catch (SolrServerException | IOException e) {
                 throw new RuntimeException(
                         "Exception while executing SolrClient collection='" + collection + "', request=" + request, e);
-            } finally {
-                connection.release();
             }
         });
     }
@@ -565,4 +871,17 @@ public class CachingSolrClient extends SolrClient {
     public void close() throws IOException {
         inner.close();
     }
+
+    /**
+     * Describes a change to the backing index.
+     */
+    private static class IndexChange {
+        final Instant previousMaxIndexTime;
+        final Instant minNewCrawlDate;
+
+        IndexChange(Instant previousMaxIndexTime, Instant minNewCrawlDate) {
+            this.previousMaxIndexTime = previousMaxIndexTime;
+            this.minNewCrawlDate = minNewCrawlDate;
+        }
+    }
 }
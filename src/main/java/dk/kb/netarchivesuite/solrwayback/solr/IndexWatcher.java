@@ -52,6 +52,7 @@ public class IndexWatcher {
     }
 
     public static final String TIME_FIELD = "index_time";
+    public static final String CRAWL_DATE_FIELD = "crawl_date";
 
     private final SolrClient solrClient;
     private final long intervalSeconds;
@@ -60,6 +61,10 @@ public class IndexWatcher {
 
     private STATUS status = STATUS.undetermined;
     private String lastMaxIndexTime = null;
+    private volatile Date lastMaxIndexDate = null;
+    // Describes the latest change
+    private volatile Date previousMaxIndexDate = null;
+    private volatile Date minNewCrawlDate = null;
 
     /**
      *
@@ -97,6 +102,28 @@ public class IndexWatcher {
         return status;
     }
 
+    /**
+     * @return the current max {@code index_time}, null if it has not been determined.
+     */
+    public Date getMaxIndexTime() {
+        return lastMaxIndexDate;
+    }
+
+    /**
+     * @return the max {@code index_time} before the latest index change, null if no change has been detected.
+     */
+    public Date getPreviousMaxIndexTime() {
+        return previousMaxIndexDate;
+    }
+
+    /**
+     * @return the minimum {@code crawl_date} for the documents added in the latest index change.
+     *         null if no change has been detected or if the minimum could not be determined.
+     */
+    public Date getMinNewCrawlDate() {
+        return minNewCrawlDate;
+    }
+
     /**
      * Close down the watcher. If a check is running during close and the index has changed, {@code callback} will
      * be triggered.
@@ -166,6 +193,7 @@ public class IndexWatcher {
         try {
             Date maxDate = (Date)rsp.getFieldStatsInfo().get(TIME_FIELD).getMax();
             lastMaxIndexTime = DateUtils.getSolrDateFull(maxDate);
+            lastMaxIndexDate = maxDate;
             log.debug("Initial max {} was '{}', retrieved in {}ms", TIME_FIELD, lastMaxIndexTime, queryTime);
         } catch (Exception e) {
             log.warn("Got result for initial max {} with stats request but was unable to retrieve the value",
@@ -177,6 +205,7 @@ public class IndexWatcher {
      * Performs a range query for documents newer than last recorded max time stamp.
      * The query is (hopefully) cached by Solr so checks against a non-changed index are fast.
      * When the index has changed, the request takes longer, scaling up with index size.
+     * The minimum {@code crawl_date} for the new documents is requested as part of the query.
      * @return true if the index has changed since last call to the method.
      */
     private boolean hasIndexChanged() throws SolrServerException, IOException {
@@ -194,6 +223,8 @@ public class IndexWatcher {
         solrQuery.setSort(TIME_FIELD, SolrQuery.ORDER.desc);
         solrQuery.setRows(1);
         solrQuery.setFields(TIME_FIELD);
+        solrQuery.set("stats", "true");
+        solrQuery.set("stats.field", "{!min=true}" + CRAWL_DATE_FIELD);
 
         // Only check for changes means passing exceptions to the caller
         long queryTime = -System.currentTimeMillis();
@@ -203,16 +234,27 @@ public class IndexWatcher {
         if (rsp.getResults().getNumFound() == 0) {
             return false;
         }
+        Date previousMaxDate = lastMaxIndexDate;
         try {
             Date maxDate = (Date)rsp.getResults().get(0).getFieldValue(TIME_FIELD);
             lastMaxIndexTime = DateUtils.getSolrDateFull(maxDate);
+            lastMaxIndexDate = maxDate;
         } catch (Exception e) {
             log.warn("Got result for changes documents with query '{}' but was unable to retrieve new max index " +
                      "time from field {}", changedQuery, TIME_FIELD);
             return false;
         }
-        log.debug("Received new max {} '{}' from query '{}' in {}ms",
-                  TIME_FIELD, lastMaxIndexTime, changedQuery, queryTime);
+        Date minCrawlDate = null;
+        try {
+            minCrawlDate = (Date)rsp.getFieldStatsInfo().get(CRAWL_DATE_FIELD).getMin();
+        } catch (Exception e) {
+            log.debug("Unable to retrieve min {} for changed documents with query '{}'",
+                      CRAWL_DATE_FIELD, changedQuery);
+        }
+        minNewCrawlDate = minCrawlDate;
+        previousMaxIndexDate = previousMaxDate;
+        log.debug("Received new max {} '{}' and min {} '{}' from query '{}' in {}ms",
+                  TIME_FIELD, lastMaxIndexTime, CRAWL_DATE_FIELD, minCrawlDate, changedQuery, queryTime);
         return true;
     }
 
@@ -0,0 +1,458 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDocShort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent cache for resolving {@code url_norm} + timestamp to the nearest capture, represented as
+ * {@link IndexDocShort}. Used beneath the in-heap {@link CachingSolrClient} to avoid repeated {@code url_norm}
+ * lookups for resources shared between pages, such as CSS, JavaScript and logos.
+ * <p>
+ * Timestamps are grouped in buckets of a fixed duration: All lookups for a given URL with timestamps in the same
+ * bucket resolve to the same capture. This is an approximation, trading exactness for hit rate.
+ * <p>
+ * The cache is stored in a memory mapped file with a fixed size, so it is off-heap and survives restarts.
+ * The file holds an open addressing hash table of record positions followed by an append-only record area.
+ * When either is full, the cache is cleared.
+ * <p>
+ * The file records the max {@code index_time} of the index it was populated from. See {@link #validate(Date)} and
+ * {@link #indexChanged(Date, Date)} for keeping the cache in sync with the index.
+ */
+public class NearestCaptureCache implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(NearestCaptureCache.class);
+
+    private static final int MAGIC = 0x53574e43; // SWNC
+    private static final int VERSION = 1;
+    // magic(int), version(int), slots(int), reserved(int), dataEnd(long), maxIndexTime(long), entries(long)
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_SLOTS = 8;
+    private static final int HEADER_DATA_END = 16;
+    private static final int HEADER_MAX_INDEX_TIME = 24;
+    private static final int HEADER_ENTRIES = 32;
+    // keyHash(long), recordPosition(long)
+    private static final int SLOT_SIZE = 16;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    // Average record size used for calculating the number of slots
+    private static final int EXPECTED_RECORD_SIZE = 256;
+    private static final double MAX_LOAD = 0.7;
+
+    /**
+     * Namespaces for the keys, as direct and lenient resolving can give different results.
+     */
+    public enum NAMESPACE { direct, lenient }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final long dataStart;
+    private final long bucketMS;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong clears = new AtomicLong(0);
+    // Entries are not served before it is known that they match the index
+    private volatile boolean validated = false;
+
+    /**
+     * Open or create a cache backed by the given file.
+     * If the file exists and has the same layout, the content is reused.
+     * @param file      the file to hold the cache.
+     * @param sizeBytes the size of the file. Maximum is {@link Integer#MAX_VALUE}.
+     * @param bucketMS  the duration of time buckets in milliseconds.
+     * @throws IOException if the file could not be created or mapped.
+     */
+    public NearestCaptureCache(Path file, long sizeBytes, long bucketMS) throws IOException {
+        if (sizeBytes > Integer.MAX_VALUE || sizeBytes < HEADER_SIZE + 1024) {
+            throw new IllegalArgumentException(
+                    "The size must be between " + (HEADER_SIZE + 1024) + " and " + Integer.MAX_VALUE +
+                    " bytes, but was " + sizeBytes);
+        }
+        if (bucketMS <= 0) {
+            throw new IllegalArgumentException("The bucket duration must be positive but was " + bucketMS + "ms");
+        }
+        this.file = file;
+        this.bucketMS = bucketMS;
+        this.slots = Integer.highestOneBit((int) (sizeBytes / (SLOT_SIZE + EXPECTED_RECORD_SIZE)));
+        this.dataStart = HEADER_SIZE + (long)slots * SLOT_SIZE;
+
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean reuse = channel.size() == sizeBytes;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeBytes);
+        if (reuse && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(HEADER_SLOTS) == slots) {
+            log.info("Opened existing nearest capture cache '{}' with {} entries", file, size());
+        } else {
+            clearInternal();
+            log.info("Created new nearest capture cache '{}' of {} bytes with {} slots", file, sizeBytes, slots);
+        }
+    }
+
+    /**
+     * Locate cached captures for the given URLs.
+     * @param namespace the namespace for the lookup.
+     * @param urlNorms  normalised URLs.
+     * @param isoTime   the timestamp to find the nearest capture for, as {@code YYYY-MM-ddTHH:MM:SSZ}.
+     * @return a map from {@code url_norm} to capture for the URLs that were present in the cache.
+     */
+    public Map<String, IndexDocShort> get(NAMESPACE namespace, Collection<String> urlNorms, String isoTime) {
+        Map<String, IndexDocShort> found = new HashMap<>();
+        Long bucket = getBucket(isoTime);
+        if (bucket == null || !validated) {
+            return found;
+        }
+        lock.readLock().lock();
+        try {
+            for (String urlNorm: urlNorms) {
+                calls.incrementAndGet();
+                IndexDocShort doc = getInternal(createKey(namespace, bucket, urlNorm));
+                if (doc != null) {
+                    hits.incrementAndGet();
+                    found.put(urlNorm, doc);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    /**
+     * Add the given captures to the cache, keyed on their {@code url_norm}.
+     * @param namespace the namespace for the captures.
+     * @param docs      captures resolved for the given timestamp.
+     * @param isoTime   the timestamp the captures were resolved for, as {@code YYYY-MM-ddTHH:MM:SSZ}.
+     */
+    public void put(NAMESPACE namespace, Collection<IndexDocShort> docs, String isoTime) {
+        Long bucket = getBucket(isoTime);
+        if (bucket == null || docs.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (IndexDocShort doc: docs) {
+                if (doc.getUrl_norm() == null) {
+                    continue;
+                }
+                putInternal(createKey(namespace, bucket, doc.getUrl_norm()), bucket * bucketMS, doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Check that the cache was populated from an index with the given max {@code index_time}. If not, the cache is
+     * cleared. Until this method has been called, lookups will not return any captures.
+     * @param maxIndexTime the current max {@code index_time} for the index. If null, the cache is cleared.
+     */
+    public void validate(Date maxIndexTime) {
+        lock.writeLock().lock();
+        try {
+            long current = maxIndexTime == null ? Long.MIN_VALUE : maxIndexTime.getTime();
+            if (buffer.getLong(HEADER_MAX_INDEX_TIME) != current || current == Long.MIN_VALUE) {
+                log.info("Clearing nearest capture cache '{}' with {} entries as it does not match index with " +
+                         "max index_time {}", file, size(), maxIndexTime);
+                clearInternal();
+                buffer.putLong(HEADER_MAX_INDEX_TIME, current);
+            }
+            validated = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove entries where the added documents might contain nearer captures.
+     * @param newMaxIndexTime the max {@code index_time} after the change.
+     * @param minNewCrawlDate the minimum {@code crawl_date} for the added documents.
+     *                        If null, all entries are removed.
+     */
+    public void indexChanged(Date newMaxIndexTime, Date minNewCrawlDate) {
+        lock.writeLock().lock();
+        try {
+            if (minNewCrawlDate == null) {
+                clearInternal();
+            } else {
+                long removed = 0;
+                long minNew = minNewCrawlDate.getTime();
+                for (int slot = 0 ; slot < slots ; slot++) {
+                    long recordPos = buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+                    if (recordPos == EMPTY || recordPos == DELETED) {
+                        continue;
+                    }
+                    int keyLength = buffer.getInt((int) recordPos);
+                    long bucketStart = buffer.getLong((int) recordPos + 4 + keyLength);
+                    long crawlDate = buffer.getLong((int) recordPos + 4 + keyLength + 8);
+                    // The nearest new capture could be at minNew. For all timestamps in the bucket, the cached
+                    // capture must be at least as near. The bucket end is the worst case
+                    long bucketEnd = bucketStart + bucketMS;
+                    if (minNew - bucketEnd < Math.abs(bucketEnd - crawlDate)) {
+                        buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, DELETED);
+                        removed++;
+                    }
+                }
+                buffer.putLong(HEADER_ENTRIES, size() - removed);
+                log.debug("Removed {} entries from nearest capture cache due to index change with min crawl_date {}",
+                          removed, minNewCrawlDate);
+            }
+            buffer.putLong(HEADER_MAX_INDEX_TIME, newMaxIndexTime == null ? Long.MIN_VALUE : newMaxIndexTime.getTime());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearInternal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries in the cache.
+     */
+    public long size() {
+        return buffer.getLong(HEADER_ENTRIES);
+    }
+
+    /**
+     * @return the number of URL lookups.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of URL lookups that were satisfied by the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Flush changes to storage and release the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            buffer.force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NearestCaptureCache{" +
+               "file='" + file + "'" +
+               ", size/capacity=" + size() + "/" + (int)(slots * MAX_LOAD) +
+               ", bytes/maxBytes=" + (buffer.getLong(HEADER_DATA_END) - dataStart) + "/" +
+               (buffer.capacity() - dataStart) +
+               ", bucketSeconds=" + bucketMS/1000 +
+               ", hits/calls=" + getHits() + "/" + getCalls() +
+               ", clears=" + clears.get() +
+               ", validated=" + validated +
+               '}';
+    }
+
+    /* Internal methods. Must be called under lock */
+
+    private IndexDocShort getInternal(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        int slot = (int) (hash & (slots-1));
+        for (int probes = 0 ; probes < slots ; probes++) {
+            int slotPos = HEADER_SIZE + slot * SLOT_SIZE;
+            long recordPos = buffer.getLong(slotPos + 8);
+            if (recordPos == EMPTY) {
+                return null;
+            }
+            if (recordPos != DELETED && buffer.getLong(slotPos) == hash && keyEquals((int) recordPos, keyBytes)) {
+                return readRecord((int) recordPos + 4 + keyBytes.length);
+            }
+            slot = (slot + 1) & (slots-1);
+        }
+        return null;
+    }
+
+    private void putInternal(String key, long bucketStart, IndexDocShort doc) {
+        long crawlDate;
+        try {
+            crawlDate = Instant.parse(doc.getCrawlDate()).toEpochMilli();
+        } catch (NullPointerException | DateTimeParseException e) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[][] strings = new byte[][]{
+                bytes(doc.getSource_file_path()), bytes(doc.getCrawlDate()), bytes(doc.getUrl()), bytes(doc.getUrl_norm())};
+        int recordSize = 4 + keyBytes.length + 8 + 8 + 8;
+        for (byte[] string: strings) {
+            recordSize += 4 + string.length;
+        }
+        if (recordSize > (buffer.capacity() - dataStart) / 16) {
+            return; // Unreasonably large
+        }
+
+        long dataEnd = buffer.getLong(HEADER_DATA_END);
+        if (dataEnd + recordSize > buffer.capacity() || size() + 1 > slots * MAX_LOAD) {
+            log.info("Nearest capture cache '{}' is full with {} entries. Clearing cache", file, size());
+            clearInternal();
+            dataEnd = buffer.getLong(HEADER_DATA_END);
+        }
+
+        // Write record
+        ByteBuffer record = buffer.duplicate();
+        record.position((int) dataEnd);
+        record.putInt(keyBytes.length).put(keyBytes);
+        record.putLong(bucketStart).putLong(crawlDate).putLong(doc.getOffset());
+        for (byte[] string: strings) {
+            record.putInt(string.length).put(string);
+        }
+        buffer.putLong(HEADER_DATA_END, dataEnd + recordSize);
+
+        // Update slot, replacing existing entry with the same key if present
+        long hash = hash(keyBytes);
+        int slot = (int) (hash & (slots-1));
+        int firstDeleted = -1;
+        for (int probes = 0 ; probes < slots ; probes++) {
+            int slotPos = HEADER_SIZE + slot * SLOT_SIZE;
+            long recordPos = buffer.getLong(slotPos + 8);
+            if (recordPos == EMPTY) {
+                break;
+            }
+            if (recordPos == DELETED) {
+                if (firstDeleted == -1) {
+                    firstDeleted = slotPos;
+                }
+            } else if (buffer.getLong(slotPos) == hash && keyEquals((int) recordPos, keyBytes)) {
+                buffer.putLong(slotPos + 8, dataEnd);
+                return;
+            }
+            slot = (slot + 1) & (slots-1);
+        }
+        int target = firstDeleted == -1 ? HEADER_SIZE + slot * SLOT_SIZE : firstDeleted;
+        buffer.putLong(target, hash);
+        buffer.putLong(target + 8, dataEnd);
+        buffer.putLong(HEADER_ENTRIES, size() + 1);
+    }
+
+    private void clearInternal() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(HEADER_SLOTS, slots);
+        buffer.putLong(HEADER_DATA_END, dataStart);
+        buffer.putLong(HEADER_ENTRIES, 0);
+        for (int slot = 0 ; slot < slots ; slot++) {
+            buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, 0);
+            buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, EMPTY);
+        }
+        clears.incrementAndGet();
+    }
+
+    private boolean keyEquals(int recordPos, byte[] keyBytes) {
+        if (buffer.getInt(recordPos) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0 ; i < keyBytes.length ; i++) {
+            if (buffer.get(recordPos + 4 + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pos the position of the record content after the key.
+     */
+    private IndexDocShort readRecord(int pos) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(pos + 16); // Skip bucketStart and crawlDate
+        IndexDocShort doc = new IndexDocShort();
+        doc.setOffset(record.getLong());
+        doc.setSource_file_path(readString(record));
+        doc.setCrawlDate(readString(record));
+        doc.setUrl(readString(record));
+        doc.setUrl_norm(readString(record));
+        return doc;
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String createKey(NAMESPACE namespace, long bucket, String urlNorm) {
+        return namespace.name().charAt(0) + Long.toString(bucket) + " " + urlNorm;
+    }
+
+    private Long getBucket(String isoTime) {
+        try {
+            return Math.floorDiv(Instant.parse(isoTime).toEpochMilli(), bucketMS);
+        } catch (NullPointerException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * FNV-1a 64 bit.
+     */
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b: bytes) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -1,12 +1,14 @@
 package dk.kb.netarchivesuite.solrwayback.solr;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -57,6 +59,7 @@ public class NetarchiveSolrClient {
     protected static SolrClient noCacheSolrServer;
     protected static NetarchiveSolrClient instance = null;
     protected static IndexWatcher indexWatcher = null;
+    protected static NearestCaptureCache nearestCache = null;
     protected static Pattern TAGS_VALID_PATTERN = Pattern.compile("[-_.a-zA-Z0-9Ã¦Ã¸Ã¥Ã†Ã˜Ã…]+");
     private final AtomicLong lenientAttempts = new AtomicLong(0);
     private final AtomicLong lenientSuccesses = new AtomicLong(0);
@@ -79,8 +82,11 @@ public class NetarchiveSolrClient {
         if (PropertiesLoader.SOLR_SERVER_CACHING) {
             int maxCachingEntries = PropertiesLoader.SOLR_SERVER_CACHING_MAX_ENTRIES;
             int maxCachingSeconds = PropertiesLoader.SOLR_SERVER_CACHING_AGE_SECONDS;
-            solrServer = new CachingSolrClient(innerSolrClient, maxCachingEntries,  maxCachingSeconds, -1); //-1 means no maximum number of connections 
-            log.info("SolrClient initialized with caching properties: maxCachedEntrie="+maxCachingEntries +" cacheAgeSeconds="+maxCachingSeconds);
+            long maxCachingBytes = PropertiesLoader.SOLR_SERVER_CACHING_MAX_MEGABYTES == -1 ? -1 :
+                    PropertiesLoader.SOLR_SERVER_CACHING_MAX_MEGABYTES * 1024L * 1024L;
+            solrServer = new CachingSolrClient(innerSolrClient, maxCachingEntries, maxCachingBytes, maxCachingSeconds, -1); //-1 means no maximum number of connections 
+            log.info("SolrClient initialized with caching properties: maxCachedEntrie="+maxCachingEntries +
+                     " maxCachedBytes=" + maxCachingBytes + " cacheAgeSeconds="+maxCachingSeconds);
         } else {
             solrServer = innerSolrClient;
             log.info("SolrClient initialized without caching");
@@ -94,6 +100,22 @@ public class NetarchiveSolrClient {
 
         instance = new NetarchiveSolrClient();
 
+        if (PropertiesLoader.SOLR_SERVER_CACHING_NEAREST_FILE != null) {
+            try {
+                nearestCache = new NearestCaptureCache(
+                        Path.of(PropertiesLoader.SOLR_SERVER_CACHING_NEAREST_FILE),
+                        PropertiesLoader.SOLR_SERVER_CACHING_NEAREST_MEGABYTES * 1024L * 1024L,
+                        PropertiesLoader.SOLR_SERVER_CACHING_NEAREST_BUCKET_MINUTES * 60 * 1000L);
+                if (PropertiesLoader.SOLR_SERVER_CHECK_INTERVAL <= 0) {
+                    // Without index watching, there is no way of knowing if persisted entries are valid
+                    nearestCache.validate(null);
+                }
+            } catch (Exception e) {
+                log.error("Unable to create nearest capture cache at '" +
+                          PropertiesLoader.SOLR_SERVER_CACHING_NEAREST_FILE + "'. Continuing without", e);
+            }
+        }
+
         if (PropertiesLoader.SOLR_SERVER_CHECK_INTERVAL > 0) {
             indexWatcher = new IndexWatcher(
                     innerSolrClient, PropertiesLoader.SOLR_SERVER_CHECK_INTERVAL, instance::indexStatusChanged);
@@ -102,6 +124,23 @@ public class NetarchiveSolrClient {
         log.info("SolrClient initialized with solr server url:" + solrServerUrl);
     }
 
+    /**
+     * Stop index watching and flush persistent caches. Called when the web app is shut down.
+     */
+    public static void shutdown() {
+        if (indexWatcher != null) {
+            indexWatcher.close();
+        }
+        if (nearestCache != null) {
+            try {
+                nearestCache.close();
+            } catch (IOException e) {
+                log.warn("Exception closing nearest capture cache", e);
+            }
+            nearestCache = null;
+        }
+    }
+
     public static NetarchiveSolrClient getInstance() {
         if (instance == null) {
             throw new IllegalArgumentException("SolrClient not initialized");
@@ -113,11 +152,22 @@ public class NetarchiveSolrClient {
         switch (status) {
             case changed:
                 if (solrServer instanceof CachingSolrClient) {
-                    ((CachingSolrClient)solrServer).clearCache();
+                    if (indexWatcher == null) {
+                        ((CachingSolrClient)solrServer).clearCache();
+                    } else {
+                        ((CachingSolrClient)solrServer).indexChanged(
+                                indexWatcher.getPreviousMaxIndexTime(), indexWatcher.getMinNewCrawlDate());
+                    }
+                }
+                if (nearestCache != null) {
+                    nearestCache.indexChanged(indexWatcher.getMaxIndexTime(), indexWatcher.getMinNewCrawlDate());
                 }
                 break;
             case available:
                 solrAvailable = true;
+                if (nearestCache != null) {
+                    nearestCache.validate(indexWatcher.getMaxIndexTime());
+                }
                 break;
             case unavailable:
                 solrAvailable = false;
@@ -139,6 +189,14 @@ public class NetarchiveSolrClient {
         return solrAvailable;
     }
 
+    /**
+     * @return statistics for the Solr response cache or {@code N/A} if caching is not enabled.
+     */
+    public String getCacheStats() {
+        String stats = solrServer instanceof CachingSolrClient ? solrServer.toString() : "N/A";
+        return nearestCache == null ? stats : stats + "\n" + nearestCache;
+    }
+
     /*
      * Delegate
      */
@@ -874,9 +932,7 @@ public class NetarchiveSolrClient {
     }
 
     public ArrayList<IndexDocShort> findNearestHarvestTimeForMultipleUrlsFewFields(Collection<String> urls, String timeStamp){
-        return findNearestDocuments(SolrUtils.indexDocFieldListShort, timeStamp, urls.stream())
-                .map(SolrUtils::solrDocument2IndexDocShort)
-                .collect(Collectors.toCollection(ArrayList::new));
+        return findNearestUrlsShort(urls, timeStamp, false);
     }
 
 
@@ -892,6 +948,45 @@ public class NetarchiveSolrClient {
      * @return a list of {@link IndexDocShort} for the given URLs.
      */
     public ArrayList<IndexDocShort> findNearestUrlsShort(Collection<String> urls, String timeStamp, boolean lenient) {
+        if (nearestCache == null) {
+            return findNearestUrlsShortUncached(urls, timeStamp, lenient);
+        }
+
+        // Resolve as much as possible from the persistent cache
+        Function<String, String> normaliser = lenient ?
+                UrlUtils::punyCodeAndNormaliseUrlSafe :
+                NetarchiveSolrClient::normalizeUrlSafe;
+        NearestCaptureCache.NAMESPACE namespace = lenient ?
+                NearestCaptureCache.NAMESPACE.lenient :
+                NearestCaptureCache.NAMESPACE.direct;
+        Map<String, String> normalised = new HashMap<>(urls.size()); // url -> url_norm
+        for (String url: urls) {
+            String urlNorm = url.startsWith("data:") ? null : normaliser.apply(url);
+            if (urlNorm != null) {
+                normalised.put(url, urlNorm);
+            }
+        }
+        Map<String, IndexDocShort> cached = nearestCache.get(namespace, normalised.values(), timeStamp);
+        if (cached.size() == normalised.size()) {
+            return new ArrayList<>(cached.values());
+        }
+
+        // Resolve the rest using Solr
+        List<String> uncachedURLs = urls.stream()
+                .filter(url -> !cached.containsKey(normalised.get(url)))
+                .collect(Collectors.toList());
+        ArrayList<IndexDocShort> resolved = findNearestUrlsShortUncached(uncachedURLs, timeStamp, lenient);
+        nearestCache.put(namespace, resolved, timeStamp);
+        resolved.addAll(cached.values());
+        return resolved;
+    }
+
+    /**
+     * Resolves {@link IndexDocShort}s for the given URLs using Solr.
+     * @see #findNearestUrlsShort(Collection, String, boolean)
+     */
+    private ArrayList<IndexDocShort> findNearestUrlsShortUncached(
+            Collection<String> urls, String timeStamp, boolean lenient) {
         Stream<SolrDocument> docs = lenient ?
                 findNearestDocumentsLenient(SolrUtils.indexDocFieldListShort, timeStamp, urls.stream()) :
                 findNearestDocuments(SolrUtils.indexDocFieldListShort, timeStamp, urls.stream());
@@ -1704,6 +1799,17 @@ public class NetarchiveSolrClient {
         return Normalisation.canonicaliseURL(url);
     }
 
+    /**
+     * @return the normalised URL or null if it could not be normalised.
+     */
+    private static String normalizeUrlSafe(String url) {
+        try {
+            return normalizeUrl(url);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
 
     /**
      * Performs a Solr call, logging the time it took; both measured and reported
@@ -182,6 +182,13 @@ public class RestrictedSolrClient extends SolrClient {
                 "Restriction of SolrRequests that are not QueryRequests not supported yet");
     }
 
+    /**
+     * @return the {@code SolrClient} that calls are delegated to.
+     */
+    public SolrClient getInner() {
+        return inner;
+    }
+
     /* Delegates below where restrict(...) and defaultCollection are applied when possible */
 
     @Override
@@ -21,6 +21,7 @@ import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.HighlightParams;
 import org.apache.solr.common.params.StatsParams;
@@ -35,6 +36,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -99,7 +101,13 @@ public class SRequest {
     public Stream<String> queries = null;
     public List<String> filterQueries;
     public int pageSize = SolrStreamDirect.DEFAULT_PAGESIZE;
+    public boolean adaptivePageSize = PropertiesLoader.SOLR_STREAM_PAGESIZE_ADAPTIVE;
     public boolean usePaging = true;
+    public int prefetchPages = PropertiesLoader.SOLR_STREAM_PREFETCH_PAGES;
+    public boolean streamingResponse = PropertiesLoader.SOLR_STREAM_STREAMING_RESPONSE;
+    public boolean exportHandler = PropertiesLoader.SOLR_STREAM_EXPORT_HANDLER;
+    public String cursorMark = null;
+    public Consumer<String> cursorMarkListener = null;
     public int queryBatchSize = SolrStreamDirect.DEFAULT_QUERY_BATCHSIZE;
     public List<String> shards = null;
     public String collection = null;
@@ -709,6 +717,24 @@ public class SRequest {
         return this;
     }
 
+    /**
+     * Adjust the page size (rows) for each request toward a target response size and latency, measured from the
+     * previous pages. {@link #pageSize(int)} is used for the first request. The bounds and targets are controlled
+     * with the {@code solr.export.pagesize.*} properties, see {@link AdaptivePageSize}.
+     * <p>
+     * Note: Only honoured by {@link SolrStreamDirect} and only when cursorMark paging is used. Group based paging,
+     * used for single field {@link #deduplicateFields(String...)}, always uses {@link #pageSize(int)}.
+     * Disable this if the caller depends on the number of documents in each page, e.g. for mapping
+     * {@link #cursorMarkListener(Consumer)} cursorMarks to positions.
+     * @param adaptivePageSize if true, the page size is adjusted during streaming.
+     *                         Default is {@link PropertiesLoader#SOLR_STREAM_PAGESIZE_ADAPTIVE}.
+     * @return the SRequest adjusted with the provided value.
+     */
+    public SRequest adaptivePageSize(boolean adaptivePageSize) {
+        this.adaptivePageSize = adaptivePageSize;
+        return this;
+    }
+
     /**
      * Disables paging through result sets, so that only {@link #pageSize(int)} results are processed for each query.
      * <p>
@@ -727,6 +753,84 @@ public class SRequest {
         return this;
     }
 
+    /**
+     * Request pages from Solr in the background while the current page is processed, so that Solr latency and
+     * processing of the documents overlaps. Prefetching is not used if all documents fits in a single page.
+     * <p>
+     * Note: Only honoured by {@link SolrStreamDirect}.
+     * @param prefetchPages the maximum number of pages to request ahead of the page being processed.
+     *                      0 disables prefetching. Default is {@link PropertiesLoader#SOLR_STREAM_PREFETCH_PAGES}.
+     * @return the SRequest adjusted with the provided value.
+     */
+    public SRequest prefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+        return this;
+    }
+
+    /**
+     * Decode the Solr responses as streams, delivering documents in chunks while the rest of the page is being
+     * received, instead of waiting for the full response. This lowers the time to first document as well as the
+     * number of documents held in memory for large page sizes.
+     * <p>
+     * Note: Only honoured by {@link SolrStreamDirect} and only when {@link #prefetchPages(int)} is active.
+     * Ignored if the {@link #solrClient} is a {@link CachingSolrClient}.
+     * @param streamingResponse if true, the Solr responses are streamed.
+     *                          Default is {@link PropertiesLoader#SOLR_STREAM_STREAMING_RESPONSE}.
+     * @return the SRequest adjusted with the provided value.
+     */
+    public SRequest streamingResponse(boolean streamingResponse) {
+        this.streamingResponse = streamingResponse;
+        return this;
+    }
+
+    /**
+     * Allow the use of the Solr {@code /export} handler instead of paging through {@code /select}. The export handler
+     * sorts the result set once and streams all documents in a single response, but it requires that all fields
+     * in {@code fl} and {@code sort} have docValues. It is only used if the request and the Solr topology allows
+     * for it, see {@link SolrStreamExport}.
+     * <p>
+     * Note: The default sort {@link #DEFAULT_SORT} uses score, which is not supported by the export handler.
+     * @param exportHandler if true, the export handler is used when possible.
+     *                      Default is {@link PropertiesLoader#SOLR_STREAM_EXPORT_HANDLER}.
+     * @return the SRequest adjusted with the provided value.
+     */
+    public SRequest exportHandler(boolean exportHandler) {
+        this.exportHandler = exportHandler;
+        return this;
+    }
+
+    /**
+     * Start cursorMark paging from the given cursorMark instead of from the beginning of the result set.
+     * <p>
+     * Use case: Resuming a long running export, see {@link #cursorMarkListener(Consumer)}.
+     * <p>
+     * Note: Only honoured by {@link SolrStreamDirect} and not compatible with {@link #deduplicateFields(String...)}
+     * with a single field, as that uses grouping instead of cursorMark.
+     * @param cursorMark a cursorMark from a previous request with the same query, filters and sort.
+     * @return the SRequest adjusted with the provided value.
+     */
+    public SRequest cursorMark(String cursorMark) {
+        this.cursorMark = cursorMark;
+        return this;
+    }
+
+    /**
+     * Register a listener that receives the cursorMark for each page, before the documents from the page are
+     * delivered. As all pages except the last holds {@link #pageSize} documents, the cursorMark for the page holding
+     * any given document can be derived from the position of the document in the result set.
+     * <p>
+     * Note: Only called by {@link SolrStreamDirect} and only when cursorMark paging is used.
+     * The listener is always called from the thread that consumes the documents, also when
+     * {@link #prefetchPages(int)} is used.
+     * @param cursorMarkListener receives cursorMarks in page order.
+     * @return the SRequest adjusted with the provided value.
+     * @see #cursorMark(String)
+     */
+    public SRequest cursorMarkListener(Consumer<String> cursorMarkListener) {
+        this.cursorMarkListener = cursorMarkListener;
+        return this;
+    }
+
     /**
      * Set the collection to query. If not changed, the collection will be the default collection from the overall
      * SolrWayback setup ({@code solrwayback.properties}).
@@ -934,6 +1038,10 @@ public class SRequest {
 
         solrQuery.set(CommonParams.ROWS, (int) Math.min(maxResults, pageSize));
 
+        if (cursorMark != null) {
+            solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        }
+
         // Disable irrelevant processing
         solrQuery.set(FacetParams.FACET, false);
         solrQuery.set(StatsParams.STATS, false);
@@ -1056,9 +1164,15 @@ public class SRequest {
                 filterQueries(copy(filterQueries)).
                 expandResourcesFilterQueries(copy(expandResourcesFilterQueries)).
                 pageSize(pageSize).
+                adaptivePageSize(adaptivePageSize).
                 collection(collection).
                 shards(copy(shards)).
-                shardDivide(shardDivide);
+                shardDivide(shardDivide).
+                prefetchPages(prefetchPages).
+                streamingResponse(streamingResponse).
+                exportHandler(exportHandler).
+                cursorMark(cursorMark).
+                cursorMarkListener(cursorMarkListener);
         copy.idealTime = idealTime;
         return copy;
     }
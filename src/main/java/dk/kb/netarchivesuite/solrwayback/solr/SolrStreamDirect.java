@@ -6,7 +6,14 @@ import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.impl.BaseHttpSolrClient;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.impl.LBSolrClient;
+import org.apache.solr.client.solrj.impl.StreamingBinaryResponseParser;
+import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
@@ -16,12 +23,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
 import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -81,7 +98,7 @@ import java.util.stream.StreamSupport;
  *     Stream<Solrdocuments> docs = SRequest.builder().query("foo").fields("url_norm).stream();
  * </pre>
  */
-public class SolrStreamDirect implements Iterable<SolrDocument> {
+public class SolrStreamDirect implements Iterable<SolrDocument>, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(SolrStreamDirect.class);
 
     /**
@@ -120,6 +137,41 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
 
     static final AtomicLong solrRequests = new AtomicLong(0);
     static final AtomicLong totalDelivered = new AtomicLong(0);
+    // Time spend waiting for Solr responses, by the consumer waiting for pages and by the consumer processing pages
+    static final AtomicLong totalSolrNS = new AtomicLong(0);
+    static final AtomicLong totalWaitNS = new AtomicLong(0);
+    static final AtomicLong totalProcessNS = new AtomicLong(0);
+
+    /**
+     * If a prefetched page has not been requested by the consumer within this time, the prefetching thread is
+     * released. Prefetching is restarted if the consumer requests more documents.
+     * <p>
+     * This also limits the time that a prefetching thread is held by a stream that is abandoned without being
+     * closed, e.g. after {@code limit} or {@code findFirst}.
+     */
+    static long PREFETCH_PARK_MS = 10*1000;
+    static long POLL_TIMEOUT_MS = 1000;
+    /**
+     * When streaming responses, decoded documents are handed to the consumer in chunks of at least this size,
+     * before the full page has been received.
+     */
+    static int STREAM_CHUNK_DOCS = 100;
+
+    /**
+     * Shared executor for prefetching of pages.
+     * <p>
+     * The thread pool size is unbounded to avoid deadlocks caused by queues blocking threads.
+     */
+    private static final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        int threadCount = 0;
+        @SuppressWarnings("NullableProblems")
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SolrPrefetch_" + threadCount++);
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
     private final String collection;           // The collection (typically the default collection) to query against
     private final SRequest request;
@@ -135,6 +187,24 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
 
     private SolrDocumentList undelivered = null; // Leftover form previous call to keep deliveries below pageSize
 
+    private final boolean prefetch;              // If true, pages are requested by a background thread
+    private BlockingQueue<Page> prefetched = null;
+    private Future<?> prefetcher = null;
+    private volatile Page parked = null;         // Page that was not requested before PREFETCH_PARK_MS
+    private boolean prefetchDepleted = false;
+    private volatile boolean closed = false;     // If true, the prefetcher stops
+    private final List<String> pendingCursorMarks = new ArrayList<>(); // Prefetcher only. Added to the next Page
+    private final boolean streamResponse;        // If true, documents are delivered while the Solr response is decoded
+    private int streamedDocs = 0;                // Documents from the current Solr response delivered while decoding
+    private final AdaptivePageSize pageSizer;    // If not null, rows are adjusted from the previous responses
+    private long responseBytes = 0;              // Estimated size of the documents in the latest Solr response
+    private long responseNS = 0;                 // Time used for the latest Solr response
+
+    private final AtomicLong solrNS = new AtomicLong(0); // Updated by the prefetcher
+    private long waitNS = 0;
+    private long processNS = 0;
+    private long lastDeliveryNS = -1;
+
 
     /**
      * The default SolrClient is simple and non-caching as streaming exports typically makes unique requests.
@@ -169,7 +239,16 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
      */
     public static Iterator<SolrDocument> iterate(SRequest request) throws IllegalArgumentException {
         SolrStreamDirect base = new SolrStreamDirect(request);
-        return SolrStreamFactory.addPostProcessors(base.iterator(), base.request, String.join(",", base.adjustedFields));
+        Iterator<SolrDocument> docs = SolrStreamFactory.addPostProcessors(
+                base.iterator(), base.request, String.join(",", base.adjustedFields));
+        // Ensure that prefetching is stopped if processing is stopped before all documents are delivered
+        return new CollectionUtils.CloseableIterator<SolrDocument>(docs, new AtomicBoolean(true)) {
+            @Override
+            public void close() {
+                base.close();
+                super.close();
+            }
+        };
     }
 
     /**
@@ -192,6 +271,13 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
         queryDepleted = request.isMultiQuery(); // Single query starts assigned, multi are initialized later
 
         setupPaging(solrQuery, request);
+        prefetch = request.prefetchPages > 0 && paging != PAGING.none && request.maxResults > request.pageSize;
+        streamResponse = request.streamingResponse && prefetch && supportsStreamingResponse(request.solrClient);
+        // Group based paging uses the number of groups in the previous page to position the next page, so rows
+        // must be fixed for that
+        pageSizer = request.adaptivePageSize && paging == PAGING.cursorMark && request.maxResults > request.pageSize ?
+                new AdaptivePageSize(request.pageSize, request.maxResults) :
+                null;
 
         this.adjustedFields = Arrays.asList(solrQuery.getFields().split(","));
 
@@ -261,7 +347,8 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
      * @return a stream of SolrDocuments.
      */
     public Stream<SolrDocument> stream() {
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), 0), false);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), 0), false)
+                .onClose(this::close);
     }
 
     /**
@@ -304,6 +391,24 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
         };
     }
 
+    /**
+     * Streaming of responses requires that the client decodes the binary response from Solr with the
+     * {@link StreamingBinaryResponseParser} from the request. This is the case for the HTTP based clients, but not
+     * for {@link org.apache.solr.client.solrj.embedded.EmbeddedSolrServer}, which decodes the response itself.
+     * The {@link CachingSolrClient} would cache the empty streamed response and skip the callback for cache hits.
+     * @param solrClient a SolrClient.
+     * @return true if the client supports streaming of responses.
+     */
+    static boolean supportsStreamingResponse(SolrClient solrClient) {
+        if (solrClient instanceof RestrictedSolrClient) {
+            return supportsStreamingResponse(((RestrictedSolrClient) solrClient).getInner());
+        }
+        return solrClient instanceof BaseHttpSolrClient ||
+               solrClient instanceof Http2SolrClient ||
+               solrClient instanceof LBSolrClient ||
+               solrClient instanceof CloudSolrClient;
+    }
+
     /**
      * @param defaultSolrClient the SolrClient that will be used if no SolrClient is provided for the calls.
      */
@@ -312,12 +417,180 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
     }
 
     /**
-     * @return at least 1 and at most {@link SRequest#pageSize} documents or null if there are no more documents.
+     * @return at least 1 and at most {@code rows} documents or null if there are no more documents.
      *         Call {@link #hasFinished()} to see if more document lists are available.
+     *         {@code rows} is {@link SRequest#pageSize}, unless {@link SRequest#adaptivePageSize} is enabled.
      * @throws SolrServerException if Solr could not handle a request for new documents.
      * @throws IOException if general communication with Solr failed.
      */
     protected SolrDocumentList nextDocuments() throws SolrServerException, IOException {
+        long startNS = System.nanoTime();
+        if (lastDeliveryNS != -1) {
+            processNS += startNS - lastDeliveryNS;
+            totalProcessNS.addAndGet(startNS - lastDeliveryNS);
+        }
+
+        SolrDocumentList docs = prefetch ? nextPrefetched() : fetchDocuments();
+
+        lastDeliveryNS = System.nanoTime();
+        waitNS += lastDeliveryNS - startNS;
+        totalWaitNS.addAndGet(lastDeliveryNS - startNS);
+        if (docs == null || hasFinished()) {
+            log.debug("nextDocuments(): Finished with " + getTimingStats());
+        }
+        return docs;
+    }
+
+    /**
+     * Take the next page from the {@link #prefetcher}, starting the prefetcher if needed.
+     * @return at least 1 and at most {@code rows} documents or null if there are no more documents.
+     */
+    private SolrDocumentList nextPrefetched() throws SolrServerException, IOException {
+        if (prefetchDepleted) {
+            return null;
+        }
+        if (prefetched == null) {
+            // 1 page is held by the prefetcher while it waits for the consumer
+            prefetched = request.prefetchPages == 1 ?
+                    new SynchronousQueue<>() :
+                    new ArrayBlockingQueue<>(request.prefetchPages-1);
+            startPrefetcher();
+        }
+
+        Page page;
+        try {
+            while ((page = prefetched.poll()) == null) {
+                if (prefetcher.isDone() && prefetched.isEmpty()) { // The prefetcher has been parked
+                    page = parked;
+                    parked = null;
+                    if (page == null) {
+                        throw new IOException("Prefetching of Solr pages stopped unexpectedly for " + request);
+                    }
+                    if (!page.isLast()) {
+                        startPrefetcher();
+                    }
+                    break;
+                }
+                if ((page = prefetched.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) != null) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Solr page", e);
+        }
+
+        if (page.isLast()) {
+            prefetchDepleted = true;
+        }
+        if (page.cursorMarks != null) {
+            page.cursorMarks.forEach(request.cursorMarkListener);
+        }
+        if (page.exception instanceof SolrServerException) {
+            throw (SolrServerException) page.exception;
+        }
+        if (page.exception instanceof IOException) {
+            throw (IOException) page.exception;
+        }
+        if (page.exception != null) {
+            throw new RuntimeException("Exception requesting Solr page", page.exception);
+        }
+        return page.docs;
+    }
+
+    /**
+     * Request pages with {@link #fetchDocuments()} in the background and offer them to {@link #prefetched}.
+     */
+    private void startPrefetcher() {
+        prefetcher = prefetchExecutor.submit(() -> {
+            Page page;
+            do {
+                try {
+                    page = createPage(fetchDocuments(), null);
+                } catch (Exception e) {
+                    page = createPage(null, e);
+                }
+                try {
+                    if (!offerPrefetched(page)) {
+                        if (!closed) {
+                            log.debug("Prefetched page not requested within " + PREFETCH_PARK_MS + "ms. " +
+                                      "Parking prefetcher for " + request);
+                        }
+                        parked = closed ? null : page;
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    parked = closed ? null : page;
+                    return;
+                }
+            } while (!page.isLast() && !closed);
+        });
+    }
+
+    /**
+     * Offer the page to {@link #prefetched}, waiting at most {@link #PREFETCH_PARK_MS} for the consumer.
+     * <p>
+     * The wait is done in slices of {@link #POLL_TIMEOUT_MS} so that {@link #close()} can stop the prefetcher
+     * without interrupting it: An interrupt during a Solr request can close channels shared by the Solr index
+     * readers (e.g. with an embedded Solr).
+     * @return true if the page was accepted, false if the consumer did not request it in time or if closed.
+     */
+    private boolean offerPrefetched(Page page) throws InterruptedException {
+        final long deadline = System.nanoTime() + PREFETCH_PARK_MS*1000000L;
+        while (!closed) {
+            long waitMS = Math.min(POLL_TIMEOUT_MS, (deadline-System.nanoTime())/1000000L);
+            if (prefetched.offer(page, Math.max(0, waitMS), TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create a page for the consumer, moving {@link #pendingCursorMarks} to the page. Called by the prefetcher.
+     */
+    private Page createPage(SolrDocumentList docs, Exception exception) {
+        List<String> cursorMarks = null;
+        if (!pendingCursorMarks.isEmpty()) {
+            cursorMarks = new ArrayList<>(pendingCursorMarks);
+            pendingCursorMarks.clear();
+        }
+        return new Page(docs, exception, cursorMarks);
+    }
+
+    /**
+     * Stop prefetching of pages. Further calls to {@link #hasFinished()} will return true.
+     * <p>
+     * Called when the stream from {@link #stream()} or the iterator from {@link #iterate(SRequest)} is closed.
+     * If the documents are not fully consumed, closing ensures that the prefetching thread is released after its
+     * current Solr request or within {@link #POLL_TIMEOUT_MS}, instead of after {@link #PREFETCH_PARK_MS}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (prefetch) {
+            prefetchDepleted = true;
+            if (prefetcher != null) {
+                prefetcher.cancel(false); // Interrupting a Solr request is not safe
+            }
+            if (prefetched != null) {
+                prefetched.clear();
+            }
+            parked = null;
+        } else {
+            hasMoreQueries = false;
+            undelivered = null;
+        }
+    }
+
+    /**
+     * Synchronous request for the next page of documents.
+     * @return at least 1 and at most {@code rows} documents or null if there are no more documents.
+     */
+    private SolrDocumentList fetchDocuments() throws SolrServerException, IOException {
         while (hasMoreQueries || (undelivered != null && !undelivered.isEmpty())) {
 
             // Return batch if undelivered contains any documents
@@ -328,14 +601,27 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
             }
 
             // Perform the Solr request
+            if (paging == PAGING.cursorMark && request.cursorMarkListener != null) {
+                String cursorMark = solrQuery.get(CursorMarkParams.CURSOR_MARK_PARAM);
+                if (prefetch) { // Called from the consumer thread by nextPrefetched
+                    pendingCursorMarks.add(cursorMark);
+                } else {
+                    request.cursorMarkListener.accept(cursorMark);
+                }
+            }
             QueryResponse rsp = performQuery();
             undelivered = rsp.getResults();
-            if (undelivered.size() < solrQuery.getRows() || rsp.getResults().getNumFound() <= solrQuery.getRows()) {
+            if (streamedDocs + undelivered.size() < solrQuery.getRows() ||
+                rsp.getResults().getNumFound() <= solrQuery.getRows()) {
                 queryDepleted = true;
             }
 
             updatePaging(rsp); // Must be called before check for queryDepleted as paging might trigger that
 
+            if (pageSizer != null) {
+                solrQuery.setRows(pageSizer.update(streamedDocs + undelivered.size(), responseBytes, responseNS));
+            }
+
             if (queryDepleted) {
                 nextQuery();
             }
@@ -345,6 +631,11 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
 
     /**
      * Issue a Solr request using {@link #solrQuery}, updates stats and return the Solr response to the caller.
+     * <p>
+     * If {@link #streamResponse} is true, some of the documents might be delivered to {@link #prefetched} while
+     * the response is being received. The number of those documents is stored in {@link #streamedDocs} and only the
+     * remaining documents are part of the returned response. At least 1 document is always part of the response
+     * if any documents were received, as {@link #updatePaging(QueryResponse)} might need it.
      * @return the response from the Solr request.
      * @throws SolrServerException if Solr fails.
      * @throws IOException if sending the Solr request or retrieving the Solr response fails.
@@ -355,16 +646,47 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
         //log.debug("Issuing '{}'", SolrUtils.fieldValueToString(solrQuery));
 
         QueryResponse rsp;
-        long st = System.currentTimeMillis();
+        streamedDocs = 0;
+        long startNS = System.nanoTime();
         try {
-            rsp = request.solrClient.query(collection, solrQuery, METHOD.POST);
+            rsp = streamResponse ?
+                    performStreamingQuery() :
+                    request.solrClient.query(collection, solrQuery, METHOD.POST);
         } catch (HttpSolrClient.RemoteSolrException e) {
             log.warn("RemoteSolrException for POST request to collection '" + request.getCollectionGuaranteed() + "': " +
                      SolrUtils.fieldValueToString(solrQuery), e);
             throw e;
+        } finally {
+            responseNS = System.nanoTime() - startNS;
+            solrNS.addAndGet(responseNS);
+            totalSolrNS.addAndGet(responseNS);
         }
-        ;
-        totalDelivered.addAndGet(rsp.getResults().size());
+        totalDelivered.addAndGet(streamedDocs + rsp.getResults().size());
+        if (pageSizer != null && !streamResponse) {
+            responseBytes = 0;
+            rsp.getResults().forEach(doc -> responseBytes += AdaptivePageSize.estimateBytes(doc));
+        }
+        return rsp;
+    }
+
+    /**
+     * Issue a Solr request using {@link #solrQuery} and handle the documents with a {@link DocumentStreamer} as they
+     * are decoded from the binary response.
+     * <p>
+     * Note: {@link SolrClient#queryAndStreamResponse} is not used as it issues GET requests, which does not work with
+     * large multi-queries.
+     * @return the response from the Solr request, containing the documents that were not delivered while streaming.
+     */
+    private QueryResponse performStreamingQuery() throws SolrServerException, IOException {
+        DocumentStreamer streamer = new DocumentStreamer();
+        QueryRequest streamRequest = new QueryRequest(solrQuery, METHOD.POST);
+        streamRequest.setStreamingResponseCallback(streamer);
+        streamRequest.setResponseParser(new StreamingBinaryResponseParser(streamer));
+        QueryResponse rsp = streamRequest.process(request.solrClient, collection);
+        // The streaming parser delivers an empty document list with numFound etc.
+        rsp.getResults().addAll(streamer.docs);
+        streamedDocs = streamer.streamed;
+        responseBytes = streamer.bytes;
         return rsp;
     }
 
@@ -448,7 +770,93 @@ public class SolrStreamDirect implements Iterable<SolrDocument> {
      * @return true if there are no more documents, false if there might be more documents.
      */
     public boolean hasFinished() {
+        if (prefetch) {
+            return prefetchDepleted;
+        }
         return !hasMoreQueries && (undelivered == null || undelivered.isEmpty());
     }
 
+    /**
+     * The time spend by Solr is measured from the request is issued until the response has been received.
+     * With prefetching, Solr time overlaps processing time, so that wait time is lower than Solr time.
+     * @return human readable statistics for time spend waiting for Solr and processing documents.
+     */
+    public String getTimingStats() {
+        return String.format(Locale.ROOT, "prefetch=%b, solr=%dms, consumerWait=%dms, consumerProcess=%dms, rows=%s",
+                             prefetch, solrNS.get()/1000000, waitNS/1000000, processNS/1000000,
+                             pageSizer == null ? solrQuery.getRows() : pageSizer);
+    }
+
+    /**
+     * @return accumulated human readable statistics for all {@code SolrStreamDirect}s.
+     * @see #getTimingStats()
+     */
+    public static String getTotalTimingStats() {
+        return String.format(Locale.ROOT, "requests=%d, delivered=%d, solr=%dms, consumerWait=%dms, consumerProcess=%dms",
+                             solrRequests.get(), totalDelivered.get(), totalSolrNS.get()/1000000,
+                             totalWaitNS.get()/1000000, totalProcessNS.get()/1000000);
+    }
+
+    /**
+     * Receives documents from Solr as they are decoded and offers them to {@link #prefetched} in chunks of at least
+     * {@link #STREAM_CHUNK_DOCS}, if the consumer is ready. Offers never block, so that a slow consumer does not
+     * stall the Solr connection. Documents that could not be offered are kept in {@link #docs}.
+     */
+    private class DocumentStreamer extends StreamingResponseCallback {
+        SolrDocumentList docs = new SolrDocumentList();
+        int streamed = 0;
+        long bytes = 0;
+        int nextOffer = STREAM_CHUNK_DOCS+1;
+
+        @Override
+        public void streamSolrDocument(SolrDocument doc) {
+            if (pageSizer != null) {
+                bytes += AdaptivePageSize.estimateBytes(doc);
+            }
+            docs.add(doc);
+            if (docs.size() < nextOffer) {
+                return;
+            }
+            // The last document is kept for updatePaging
+            SolrDocument last = docs.remove(docs.size()-1);
+            Page page = createPage(docs, null);
+            if (prefetched.offer(page)) {
+                streamed += docs.size();
+                docs = new SolrDocumentList();
+                nextOffer = STREAM_CHUNK_DOCS+1;
+            } else {
+                if (page.cursorMarks != null) { // Keep them for the next page
+                    pendingCursorMarks.addAll(0, page.cursorMarks);
+                }
+                nextOffer += STREAM_CHUNK_DOCS; // Avoid trying to offer for every document
+            }
+            docs.add(last);
+        }
+
+        @Override
+        public void streamDocListInfo(long numFound, long start, Float maxScore) {
+            // numFound is part of the response from the StreamingBinaryResponseParser
+        }
+    }
+
+    /**
+     * A page of documents from the {@link #prefetcher}. If both docs and exception are null, there are no more pages.
+     * If cursorMarks is not null, it holds the cursorMarks for the Solr requests issued since the previous page.
+     */
+    private static class Page {
+        final SolrDocumentList docs;
+        final Exception exception;
+        final List<String> cursorMarks;
+
+        Page(SolrDocumentList docs, Exception exception, List<String> cursorMarks) {
+            this.docs = docs;
+            this.exception = exception;
+            this.cursorMarks = cursorMarks;
+        }
+
+        boolean isLast() {
+            return docs == null || exception != null;
+        }
+    }
+
 }
@@ -0,0 +1,432 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.netarchivesuite.solrwayback.util.CollectionUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.InputStreamResponseParser;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.GroupParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+
+/**
+ * Delivers documents using the Solr {@code /export} handler instead of paging through {@code /select}.
+ * <p>
+ * With cursorMark paging, every page is a new search with scoring and sorting of the full result set. The export
+ * handler sorts the result set once and streams all documents in a single response, making the cost per document
+ * independent of the depth of the result set. It requires that all fields in {@code fl} and {@code sort} have
+ * docValues and it does not support scoring or grouping. {@link #canExport(SRequest)} checks the requirements
+ * against the schema for the collection.
+ * <p>
+ * The export handler works on a single Solr core, so it must only be used for standalone Solrs and collections with
+ * a single shard. {@link SolrStreamFactory} takes care of this.
+ */
+public class SolrStreamExport implements Iterator<SolrDocument>, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(SolrStreamExport.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Collection -> (field name -> field type class) for all fields with docValues.
+     */
+    private static final Map<String, Map<String, String>> docValuesCache = new ConcurrentHashMap<>();
+
+    private final SRequest request;
+    private final Map<String, Function<Object, Object>> converters = new HashMap<>();
+    private InputStream in;
+    private Closeable response; // The HTTP response, if delivered by the SolrClient
+    private JsonParser parser;
+    private SolrDocument next = null;
+    private boolean finished = false;
+    private long delivered = 0;
+
+    /**
+     * Generic delivery of Solr documents using the export handler, with post-processing as specified in the request.
+     * If the export could not be started, e.g. because the Solr does not provide the export handler, the documents
+     * are delivered using {@link SolrStreamDirect#iterate(SRequest)}.
+     * <p>
+     * Note: This does not check if the request can be handled by the export handler.
+     * Call {@link #canExport(SRequest)} before calling this method.
+     * @param request stream setup.
+     * @return an iterator of {@code SolrDocument}s, as specified in the {@code request}.
+     */
+    public static CollectionUtils.CloseableIterator<SolrDocument> iterate(SRequest request) {
+        final SolrStreamExport export;
+        try {
+            export = new SolrStreamExport(request);
+        } catch (Exception e) {
+            log.warn("Unable to start export handler based streaming. " +
+                     "Falling back to paging based streaming for " + request, e);
+            return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+        }
+        Iterator<SolrDocument> docs = SolrStreamFactory.addPostProcessors(
+                export, request, String.join(",", request.getExpandedFieldList()));
+        // Ensure that the connection to Solr is closed if processing is stopped before all documents are delivered
+        return new CollectionUtils.CloseableIterator<SolrDocument>(docs, new AtomicBoolean(true)) {
+            @Override
+            public boolean hasNext() {
+                if (super.hasNext()) {
+                    return true;
+                }
+                export.close();
+                return false;
+            }
+
+            @Override
+            public void close() {
+                export.close();
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * Checks if the request can be handled by the Solr export handler: The request must not use features that are
+     * specific to {@code /select}, such as grouping or cursorMarks, and all fields in {@code fl} and {@code sort}
+     * must have docValues.
+     * <p>
+     * Note: This does not check the topology of the Solr. See {@link SolrStreamExport}.
+     * @param request stream setup.
+     * @return true if the request can be handled by the Solr export handler.
+     */
+    public static boolean canExport(SRequest request) {
+        return isExportCompatible(request) && canExport(request, getDocValuesFields(request));
+    }
+
+    /**
+     * Checks the parts of the request that does not depend on the schema.
+     * @param request stream setup.
+     * @return true if the request does not use features that are unsupported by the export handler.
+     */
+    static boolean isExportCompatible(SRequest request) {
+        return request.exportHandler &&
+               request.usePaging &&
+               request.maxResults > request.pageSize && // A single /select is cheaper for small results
+               !request.isMultiQuery() &&
+               request.deduplicateFields == null && // Uses grouping
+               !request.expandResources &&
+               request.shards == null &&
+               request.cursorMark == null && request.cursorMarkListener == null &&
+               !(request.solrClient instanceof CachingSolrClient) && // Would cache the response stream
+               (request.solrQuery == null || !request.solrQuery.getBool(GroupParams.GROUP, false)) &&
+               getSortFields(request) != null;
+    }
+
+    /**
+     * @param request stream setup.
+     * @return the fields used by the sort or null if the sort uses score or functions.
+     */
+    private static List<String> getSortFields(SRequest request) {
+        List<String> fields = new ArrayList<>();
+        for (String clause: request.getFullSort().split(", *")) {
+            Matcher sortMatcher = SolrStreamShard.SORT_FIELD_PATTERN.matcher(clause);
+            if (!sortMatcher.matches() || "score".equals(sortMatcher.group(1))) {
+                return null;
+            }
+            fields.add(sortMatcher.group(1));
+        }
+        return fields;
+    }
+
+    /**
+     * Checks that all fields in {@code fl} and {@code sort} are part of the given {@code docValuesFields}.
+     * @param request         stream setup.
+     * @param docValuesFields the fields with docValues.
+     * @return true if all fields needed by the request has docValues.
+     */
+    static boolean canExport(SRequest request, Map<String, String> docValuesFields) {
+        List<String> sortFields = getSortFields(request);
+        if (sortFields == null) {
+            log.debug("canExport: Sort '{}' is not field based", request.getFullSort());
+            return false;
+        }
+        for (String field: sortFields) {
+            if (!docValuesFields.containsKey(field)) {
+                log.debug("canExport: Sort field '{}' does not have docValues", field);
+                return false;
+            }
+        }
+        for (String field: request.getExpandedFieldList()) {
+            if (!docValuesFields.containsKey(field)) {
+                log.debug("canExport: Field '{}' does not have docValues", field);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolve the fields with docValues for the collection from the request, using the Solr schema API.
+     * The result is cached. If the schema cannot be resolved, an empty map is returned and the resolving is retried
+     * on the next call.
+     * @param request stream setup.
+     * @return field name -> field type class for all fields with docValues.
+     */
+    private static Map<String, String> getDocValuesFields(SRequest request) {
+        // computeIfAbsent does not cache null, which is returned by resolveDocValuesFields if the schema failed
+        Map<String, String> docValuesFields = docValuesCache.computeIfAbsent(
+                request.getCollectionGuaranteed(), collection -> resolveDocValuesFields(request.solrClient, collection));
+        return docValuesFields == null ? Collections.emptyMap() : docValuesFields;
+    }
+
+    /**
+     * @return field name -> field type class for all fields with docValues or null if the schema could not be resolved.
+     */
+    private static Map<String, String> resolveDocValuesFields(SolrClient solrClient, String collection) {
+        try {
+            Map<String, String> typeClasses = new HashMap<>();
+            for (Object type: (List<?>) schemaRequest(solrClient, collection, "/schema/fieldtypes").get("fieldTypes")) {
+                typeClasses.put((String) getAttribute(type, "name"), (String) getAttribute(type, "class"));
+            }
+            Map<String, String> docValuesFields = new HashMap<>();
+            for (Object field: (List<?>) schemaRequest(solrClient, collection, "/schema/fields").get("fields")) {
+                if (Boolean.TRUE.equals(getAttribute(field, "docValues"))) {
+                    docValuesFields.put((String) getAttribute(field, "name"),
+                                        typeClasses.get((String) getAttribute(field, "type")));
+                }
+            }
+            log.info("Resolved {} docValues fields for collection '{}'", docValuesFields.size(), collection);
+            return docValuesFields;
+        } catch (Exception e) {
+            log.warn("Unable to resolve docValues fields for collection '" + collection + "'. " +
+                     "The Solr export handler will not be used", e);
+            return null;
+        }
+    }
+
+    /**
+     * Uses a {@link QueryRequest} with {@code qt} as path, as {@link RestrictedSolrClient} only supports those.
+     */
+    private static NamedList<Object> schemaRequest(SolrClient solrClient, String collection, String path)
+            throws SolrServerException, IOException {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.QT, path);
+        params.set("showDefaults", true);
+        return solrClient.request(new QueryRequest(params), collection);
+    }
+
+    private static Object getAttribute(Object entry, String key) {
+        if (entry instanceof NamedList) {
+            return ((NamedList<?>) entry).get(key);
+        }
+        if (entry instanceof Map) {
+            return ((Map<?, ?>) entry).get(key);
+        }
+        return null;
+    }
+
+    /**
+     * The export handler delivers JSON, where the type of numbers depends on the values and dates are strings.
+     * The converter ensures that the values are of the same type as the ones delivered by {@code /select}.
+     * @param typeClass the class for the Solr field type, such as {@code solr.DatePointField}.
+     * @return a converter for the values of fields of the given type.
+     */
+    static Function<Object, Object> getConverter(String typeClass) {
+        String type = typeClass == null ? "" : typeClass.substring(typeClass.lastIndexOf('.')+1);
+        if (type.contains("Date")) {
+            return value -> value instanceof String ? Date.from(Instant.parse((String) value)) : value;
+        }
+        if (type.contains("Long")) {
+            return value -> value instanceof Number ? (Object) ((Number) value).longValue() : value;
+        }
+        if (type.contains("Int")) {
+            return value -> value instanceof Number ? (Object) ((Number) value).intValue() : value;
+        }
+        if (type.contains("Double")) {
+            return value -> value instanceof Number ? (Object) ((Number) value).doubleValue() : value;
+        }
+        if (type.contains("Float")) {
+            return value -> value instanceof Number ? (Object) ((Number) value).floatValue() : value;
+        }
+        return Function.identity();
+    }
+
+    /**
+     * Start the export. Use {@link #iterate(SRequest)} to get an iterator with post-processing.
+     * @param request stream setup.
+     * @throws SolrServerException if Solr could not handle the export request.
+     * @throws IOException if the export could not be started.
+     */
+    protected SolrStreamExport(SRequest request) throws SolrServerException, IOException {
+        this.request = request;
+        getDocValuesFields(request).forEach((field, typeClass) -> converters.put(field, getConverter(typeClass)));
+
+        SolrQuery exportQuery = request.getMergedSolrQuery();
+        exportQuery.remove(CommonParams.ROWS);
+        exportQuery.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+        exportQuery.set(CommonParams.QT, "/export");
+        exportQuery.set(CommonParams.WT, "json");
+        QueryRequest exportRequest = new QueryRequest(exportQuery, METHOD.POST);
+        exportRequest.setResponseParser(new InputStreamResponseParser("json"));
+
+        NamedList<Object> response = request.solrClient.request(exportRequest, request.getCollectionGuaranteed());
+        in = (InputStream) response.get("stream");
+        // SolrJ HttpSolrClient delivers the HTTP response, which must be closed to abort the connection:
+        // Closing only the stream makes HttpClient read the rest of the export before releasing the connection
+        if (response.get("closeableResponse") instanceof Closeable) {
+            this.response = (Closeable) response.get("closeableResponse");
+        }
+        Object status = response.get("responseStatus");
+        if (status instanceof Integer && (Integer) status != 200) {
+            String message = IOUtils.toString(in, StandardCharsets.UTF_8);
+            close();
+            throw new IOException("Export request failed with status " + status + ": " + SRequest.limit(message, 200));
+        }
+        parser = mapper.getFactory().createParser(in);
+        try {
+            seekDocs();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        log.debug("Started export handler based streaming for {}", request);
+    }
+
+    /**
+     * Position the parser at the start of the {@code response.docs} array.
+     */
+    private void seekDocs() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.FIELD_NAME && "docs".equals(parser.getCurrentName())) {
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IOException("Expected an array of documents from the export handler");
+                }
+                return;
+            }
+        }
+        throw new IOException("No documents array in the response from the export handler");
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readDocument();
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException("Exception reading from export handler for " + request, e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more elements");
+        }
+        SolrDocument doc = next;
+        next = null;
+        delivered++;
+        return doc;
+    }
+
+    /**
+     * @return the next document or null if there are no more documents.
+     */
+    private SolrDocument readDocument() throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            log.debug("Finished export handler based streaming with {} documents for {}", delivered, request);
+            close();
+            return null;
+        }
+        Map<?, ?> fields = mapper.readValue(parser, Map.class);
+        if (fields.containsKey("EXCEPTION")) { // The export handler reports errors after the response has started
+            throw new IOException("Export handler failed: " + fields.get("EXCEPTION"));
+        }
+        SolrDocument doc = new SolrDocument();
+        fields.forEach((key, value) -> {
+            String field = key.toString();
+            Function<Object, Object> converter = converters.getOrDefault(field, Function.identity());
+            if (value instanceof List) {
+                List<Object> values = new ArrayList<>(((List<?>) value).size());
+                ((List<?>) value).forEach(v -> values.add(converter.apply(v)));
+                doc.setField(field, values);
+            } else {
+                doc.setField(field, converter.apply(value));
+            }
+        });
+        return doc;
+    }
+
+    /**
+     * Close the connection to Solr. Further calls to {@link #hasNext()} will return false.
+     * <p>
+     * The HTTP response is closed before the stream, so that the connection is aborted instead of drained if the
+     * export has not been fully read.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        next = null;
+        try {
+            if (response != null) {
+                response.close();
+            }
+        } catch (IOException e) {
+            log.debug("Exception closing export handler response for " + request, e);
+        }
+        try {
+            if (parser != null) {
+                parser.close();
+            }
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.debug("Exception closing export handler stream for " + request, e);
+        }
+        response = null;
+        parser = null;
+        in = null;
+    }
+
+    @Override
+    public String toString() {
+        return "SolrStreamExport(delivered=" + delivered + ", finished=" + finished + ", request=" + request + ")";
+    }
+}
@@ -31,8 +31,7 @@ import java.util.stream.Stream;
  * Handles {@link SolrDocument} stream creation with decorators defined in {@link SRequest}s.
  * <p>
  * Depending on {@link SRequest} properties, configuration and backing Solr (Cloud), streams can be generated from 
- * "standard" Solr requests, merged from separate shard requests or using Solr streaming export.
- * TODO: Implement Solr streaming export
+ * "standard" Solr requests, merged from separate shard requests or using the Solr export handler.
  */
 public class SolrStreamFactory {
     private static final Logger log = LoggerFactory.getLogger(SolrStreamFactory.class);
@@ -79,14 +78,14 @@ public class SolrStreamFactory {
         switch (request.shardDivide) {
             case never: // Never shardDivide
                 log.debug("Using collection oriented Solr document stream as shardDivide == never");
-                return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+                return iterateCollection(request);
 
             case always: // Always shardDivide (if possible)
                 shards = resolveShards(request);
                 if (shards == null) {
                     log.warn("shardDivide == always, but shards could not be resolved. " +
                              "Falling back to collection oriented Solr document streaming");
-                    return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+                    return iterateCollection(request);
                 }
                 if (shards.size() == 1) {
                     log.warn("shardDivide == always, but only 1 shard is specified/available: '{}'. " +
@@ -109,31 +108,31 @@ public class SolrStreamFactory {
                 if (shards == null) {
                     log.debug("shardDivide == auto, but shards could not be resolved. " +
                               "Falling back to collection oriented Solr document streaming");
-                    return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+                    return iterateCollection(request);
                 }
                 if (shards.size() == 1) {
                     log.debug("shardDivide == auto, but only 1 shard is specified/available: '{}'. " +
                               "Using collection oriented Solr document streaming", shards.get(0));
-                    return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+                    return iterateCollection(request);
                 }
                 if (shards.size() < request.shardDivideAutoMinShards) {
                     log.debug("shardDivide == auto, but only {} shards are specified/available with " +
                               "shardDivideAutoMinShards = {}. Using collection oriented Solr document streaming",
                               shards.size(), request.shardDivideAutoMinShards);
-                    return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+                    return iterateCollection(request);
                 }
                 long hits = SolrStreamShard.getApproximateHits(request);
                 if (hits < request.shardDivideAutoMinHits) {
                     log.debug("shardDivide == auto, but approximate hitcount {} is < limit {}. " +
                               "Falling back to collection oriented Solr document streaming",
                               hits, request.shardDivideAutoMinHits);
-                    return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+                    return iterateCollection(request);
                 }
                 if (hits <= request.maxResults) {
                     log.debug("shardDivide == auto, but approximate hitcount {} is <= maxResults {}. " +
                               "Falling back to collection oriented Solr document streaming",
                               hits, request.maxResults);
-                    return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+                    return iterateCollection(request);
                 }
                 log.debug("shardDivide == auto, and hitcount {} is >= limit {}. " +
                           "Using shard dividing Solr document streaming for {} shards ",
@@ -146,6 +145,27 @@ public class SolrStreamFactory {
         }
     }
 
+    /**
+     * Collection oriented document search & delivery. If the request allows for it and the collection has at most
+     * 1 shard, the Solr export handler is used, else standard paging.
+     * @param request stream setup.
+     * @return an iterator of {@code SolrDocument}s, as specified in the {@code request}.
+     * @see SolrStreamExport
+     */
+    private static CollectionUtils.CloseableIterator<SolrDocument> iterateCollection(SRequest request) {
+        if (request.isSingleCollection() && SolrStreamExport.canExport(request)) {
+            // The export handler only delivers documents from a single core
+            List<SolrUtils.Shard> shards = resolveShards(request);
+            if (shards == null || shards.size() == 1) {
+                log.debug("Using Solr export handler based document stream");
+                return SolrStreamExport.iterate(request);
+            }
+            log.debug("Request is compatible with the Solr export handler, but the collection has {} shards. " +
+                      "Using paging based document stream", shards.size());
+        }
+        return CollectionUtils.CloseableIterator.single(SolrStreamDirect.iterate(request));
+    }
+
     /**
      * Resolve shards primarily from the {@code request}, secondarily from the backing Solr (Cloud).
      * If not possible, {@code null} will be returned.
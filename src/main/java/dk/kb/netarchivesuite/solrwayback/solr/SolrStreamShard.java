@@ -44,6 +44,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -105,7 +106,8 @@ public class SolrStreamShard {
     /**
      * Sets up an individual {@link SolrStreamDirect} for each shard in the collection, or each shard in the
      * {@code request} is shards are explicitly stated there. The resulting documents are merged using
-     * {@link dk.kb.netarchivesuite.solrwayback.util.CollectionUtils#mergeIterators(Collection, Comparator)} and
+     * {@link dk.kb.netarchivesuite.solrwayback.util.CollectionUtils#mergeIterators(Collection, Function, Comparator)}
+     * with {@link SortKey}s and
      * relevant post-processors are added using {@link SolrStreamFactory#addPostProcessors(Iterator, SRequest, String)}.
      * The end result from the returned iterator should be exactly the same as a direct call to
      * {@link SolrStreamDirect#iterate(SRequest)} but with better performance for large result sized.
@@ -126,6 +128,7 @@ public class SolrStreamShard {
         }
         final SRequest base = request.deepCopy();
         base.shardDivide(SRequest.CHOICE.never);
+        base.prefetchPages(0); // The shard divided streams are buffered below
         // Ensure sort fields are delivered by the shard divided streams
         Set<String> fl = base.getExpandedFieldList();
         fl.addAll(getSortFieldNames(base));
@@ -152,7 +155,8 @@ public class SolrStreamShard {
                 .map(iterator -> CollectionUtils.BufferingIterator.of(iterator, executor, base.pageSize, continueProcessing))
                 .collect(Collectors.toList());
         // Merge all shard divisions to one iterator
-        Iterator<SolrDocument> docs = CollectionUtils.mergeIterators(documentIterators, getDocumentComparator(base));
+        Iterator<SolrDocument> docs = CollectionUtils.mergeIterators(
+                documentIterators, getSortKeyExtractor(base), Comparator.naturalOrder());
         // Needed for proper maxResult limiting. If not here, the subsequent CloseableIterator might close too early
         docs = makeDeduplicatingIfStated(docs, base);
         // Limit the amount of results
@@ -243,7 +247,7 @@ public class SolrStreamShard {
             String origoS = proximityMatcher.group(1);
             String field = proximityMatcher.group(2);
             int dir = "asc".equals(proximityMatcher.group(3)) ? 1 : -1;
-            final long origoEpoch = Instant.from(DateTimeFormatter.ISO_INSTANT.parse(origoS)).getEpochSecond();
+            final long origoEpoch = Instant.from(DateTimeFormatter.ISO_INSTANT.parse(origoS)).toEpochMilli();
             return (doc1, doc2) -> {
                 Object o1 = doc1.getFieldValue(field);
                 Object o2 = doc2.getFieldValue(field);
@@ -259,6 +263,117 @@ public class SolrStreamShard {
         throw new UnsupportedOperationException("Unable to recognize sort clause '" + sortElement + "'");
     }
 
+    /**
+     * Creates an extractor for {@link SortKey}s, matching the order of {@link #getDocumentComparator(SRequest)}.
+     * The sort clauses are parsed once and the field values are resolved once per document, which makes
+     * the keys cheaper to compare than documents with the comparator, when merging many shard divided streams.
+     * @param request a request with a comma separates sort chain in {@link SRequest#sort}.
+     * @return an extractor of sort keys for documents delivered by the {@code request}.
+     */
+    public static Function<SolrDocument, SortKey> getSortKeyExtractor(SRequest request) {
+        List<String> fields = new ArrayList<>();
+        List<Long> origos = new ArrayList<>(); // null for plain fields
+        List<Integer> directions = new ArrayList<>();
+        Matcher clauseMatcher = SORT_CLAUSES_PATTERN.matcher(request.getFullSort());
+        while (clauseMatcher.find()) {
+            String clause = clauseMatcher.group(1);
+            Matcher fieldMatcher = SORT_FIELD_PATTERN.matcher(clause);
+            Matcher proximityMatcher = SORT_FIELD_TIME_PROXIMITY_PATTERN.matcher(clause);
+            if (fieldMatcher.matches()) {
+                fields.add(fieldMatcher.group(1));
+                origos.add(null);
+                directions.add("asc".equals(fieldMatcher.group(2)) ? 1 : -1);
+            } else if (proximityMatcher.matches()) {
+                fields.add(proximityMatcher.group(2));
+                origos.add(Instant.from(DateTimeFormatter.ISO_INSTANT.parse(proximityMatcher.group(1))).toEpochMilli());
+                directions.add("asc".equals(proximityMatcher.group(3)) ? 1 : -1);
+            } else {
+                throw new UnsupportedOperationException("Unable to recognize sort clause '" + clause + "'");
+            }
+        }
+        final String[] fieldsA = fields.toArray(new String[0]);
+        final Long[] origosA = origos.toArray(new Long[0]);
+        final int[] directionsA = directions.stream().mapToInt(Integer::intValue).toArray();
+        return doc -> {
+            SortKey key = new SortKey(directionsA);
+            for (int i = 0 ; i < fieldsA.length ; i++) {
+                Object value = doc.getFieldValue(fieldsA[i]);
+                if (origosA[i] == null) {
+                    key.set(i, value);
+                } else if (value instanceof Date) {
+                    key.setLong(i, Math.abs(origosA[i]-((Date)value).getTime()));
+                } // Non-Date values for time proximity are treated as missing
+            }
+            return key;
+        };
+    }
+
+    /**
+     * Sort key for a {@link SolrDocument}, holding the values for all sort clauses. Numbers and dates are stored
+     * as primitive {@code long}s that can be compared without boxing or type checks. Other values are kept as
+     * {@link Comparable}s.
+     * <p>
+     * As with {@link #getDocumentComparator(SRequest)}, a clause where one of the values is missing or not
+     * comparable with the other does not influence the order.
+     */
+    public static final class SortKey implements Comparable<SortKey> {
+        private static final byte MISSING = 0;
+        private static final byte INTEGRAL = 1;
+        private static final byte FLOATING = 2;
+        private static final byte OBJECT = 3;
+
+        private final int[] directions;
+        private final byte[] types;
+        private final long[] longs;
+        private final Object[] objects;
+
+        private SortKey(int[] directions) {
+            this.directions = directions;
+            this.types = new byte[directions.length];
+            this.longs = new long[directions.length];
+            this.objects = new Object[directions.length];
+        }
+
+        private void setLong(int clause, long value) {
+            types[clause] = INTEGRAL;
+            longs[clause] = value;
+        }
+
+        private void set(int clause, Object value) {
+            if (value instanceof Date) {
+                setLong(clause, ((Date)value).getTime());
+            } else if (value instanceof Long || value instanceof Integer ||
+                       value instanceof Short || value instanceof Byte) {
+                setLong(clause, ((Number)value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                // Bit representation that orders as Double.compare when compared as signed longs
+                long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+                types[clause] = FLOATING;
+                longs[clause] = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+            } else if (value instanceof Comparable) {
+                types[clause] = OBJECT;
+                objects[clause] = value;
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        @Override
+        public int compareTo(SortKey other) {
+            for (int i = 0 ; i < types.length ; i++) {
+                if (types[i] != other.types[i] || types[i] == MISSING) {
+                    continue;
+                }
+                int c = types[i] == OBJECT ?
+                        ((Comparable)objects[i]).compareTo(other.objects[i]) :
+                        Long.compare(longs[i], other.longs[i]);
+                if (c != 0) {
+                    return directions[i]*c;
+                }
+            }
+            return 0;
+        }
+    }
+
     // score and plain fields work the same from a sorting perspective
     public static final Pattern SORT_FIELD_PATTERN = Pattern.compile("^([a-zA-Z_][a-zA-Z0-9_]*) (asc|desc)$");
     public static final Pattern SORT_FIELD_TIME_PROXIMITY_PATTERN = Pattern.compile(
@@ -18,67 +18,110 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 /**
  * Time oriented cache where oldest entry can be evicted either due to not being accessed in a given time or the cache
  * being full. The cache can share size with other TimeCaches when checking for fullness.
+ * <p>
+ * The cache is striped into segments, each holding a {@link ConcurrentHashMap} for lookups and an insertion ordered
+ * queue for eviction. Reads are lock-free: A hit only marks the entry as referenced. Writes lock a single segment.
+ * Eviction is approximate LRU using the CLOCK (second chance) algorithm: The globally oldest queued entry is evicted
+ * unless it has been referenced since it was queued, in which case it is re-queued as the youngest entry.
+ * Expired entries are removed lazily on lookup and from the head of a segment queue when that segment is written to.
+ * <p>
+ * Besides the maximum number of entries, the cache can be bounded by total weight, typically the approximate number
+ * of bytes on the heap used by the cached objects. The weight of an object is calculated once, when it is added.
+ * <p>
+ * Entries are tagged with the generation of the cache at the time they were added. Calling
+ * {@link #newGeneration(Revalidator)} marks all existing entries as potentially stale. Stale entries are lazily
+ * checked with the {@link Revalidator} upon lookup and either promoted to the current generation or removed.
  */
 public class TimeCache<O> implements Map<String, O> {
     private static final Logger log = LoggerFactory.getLogger(TimeCache.class);
 
-    private final Map<String, TimeEntry<O>> inner;
+    /**
+     * Number of segments for the cache. Must be a power of 2.
+     */
+    static final int SEGMENTS = 16;
+
+    private final List<Segment> segments;
     private final int maxCapacity;
     private final long maxAgeMS;
+    private final long maxWeight;
+    private final ToLongFunction<Object> weigher;
+    private final AtomicLong weight = new AtomicLong(0);
     private final AtomicLong calls = new AtomicLong(0);
     private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong revalidated = new AtomicLong(0);
+    private final AtomicLong invalidated = new AtomicLong(0);
+    // Revalidator must be assigned before generation is increased, so that a new generation implies new revalidator
+    private volatile Revalidator revalidator = null;
+    private volatile long generation = 0;
+    // Global insertion/reinsertion order across segments, used for selecting the segment to evict from
+    private final AtomicLong clock = new AtomicLong(0);
 
-    private final Set<TimeCache<?>> linkedCaches = new HashSet<>();
+    private final Set<TimeCache<?>> linkedCaches = new CopyOnWriteArraySet<>();
 
     /**
      * @param maxCapacity the maximum numbers of entries to hold in the cache.
      * @param maxAgeMS    the maximum number og milliseconds that an object can exist in the cache.
      */
     public TimeCache(int maxCapacity, long maxAgeMS) {
+        this(maxCapacity, maxAgeMS, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param maxCapacity the maximum numbers of entries to hold in the cache.
+     * @param maxAgeMS    the maximum number og milliseconds that an object can exist in the cache.
+     * @param maxWeight   the maximum total weight of the entries in the cache.
+     * @param weigher     calculates the weight of cached objects. If null, all objects have weight 0.
+     */
+    public TimeCache(int maxCapacity, long maxAgeMS, long maxWeight, ToLongFunction<Object> weigher) {
         super();
         this.maxCapacity = maxCapacity;
         this.maxAgeMS = maxAgeMS;
-        this.inner = Collections.synchronizedMap(new LinkedHashMap<String, TimeEntry<O>>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, TimeEntry<O>> eldest) {
-                int totalSize = size() + linkedCaches.stream().mapToInt(TimeCache::size).sum();
-                return totalSize > maxCapacity || eldest.getValue().isTooOld();
-            }
-        });
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.segments = new ArrayList<>(SEGMENTS);
+        for (int i = 0 ; i < SEGMENTS ; i++) {
+            segments.add(new Segment());
+        }
     }
 
     /**
      * Create a new cache, typically with another type, that is linked to this cache.
-     * Linked cache has shared capacity.
+     * Linked cache has shared capacity and weight.
      * @param <T> the type of the cache.
-     * @return a new cache with limits (max count and age) shared with this cache.
+     * @return a new cache with limits (max count, weight and age) shared with this cache.
      */
     public <T> TimeCache<T> createLinked() {
-        TimeCache<T> other = new TimeCache<T>(maxCapacity, maxAgeMS);
+        TimeCache<T> other = new TimeCache<T>(maxCapacity, maxAgeMS, maxWeight, weigher);
         other.link(this);
         return other;
     }
-    
+
     /**
      * Link this cache to the other cache. maxCapacity must be equal and current capacity will be the sum.
      * More than 2 caches can be linked.
      * @param other another cache to link to.
      */
     private void link(TimeCache<?> other) {
-        if (linkedCaches.contains(other)) {
+        if (other == this || linkedCaches.contains(other)) {
             return; // Already linked. Needed to avoid endless loop
         }
         linkedCaches.add(other);
-        linkedCaches.forEach(c -> link(this));
+        other.link(this);
+        // Transitive linking so that all caches in a group knows each other
+        linkedCaches.forEach(c -> c.link(other));
+        other.linkedCaches.forEach(this::link);
     }
 
     /**
@@ -111,16 +154,21 @@ public class TimeCache<O> implements Map<String, O> {
             return null;
         }
         calls.incrementAndGet();
-        TimeEntry<O> o = inner.get(key);
+        Segment segment = segmentFor(key);
+        TimeEntry<O> o = segment.map.get(key);
         if (o == null) {
             return null;
         }
         if (o.isTooOld()) {
-            inner.remove(key);
+            segment.remove((String)key, o);
+            return null;
+        }
+        if (!isCurrent(o)) {
+            segment.remove((String)key, o);
             return null;
         }
         hits.incrementAndGet();
-        inner.put((String)key, o);
+        o.markReferenced();
         return o.getValue();
     }
 
@@ -129,6 +177,59 @@ public class TimeCache<O> implements Map<String, O> {
         return Optional.ofNullable(get(key)).orElse(defaultValue);
     }
 
+    /**
+     * Mark all existing entries in the cache as belonging to an older generation. Upon lookup, entries from older
+     * generations are checked with the given revalidator and either promoted to the current generation or removed.
+     * @param revalidator decides whether an entry from an older generation is still valid.
+     *                    If null, all entries from older generations are considered invalid.
+     * @return the new generation.
+     */
+    public synchronized long newGeneration(Revalidator revalidator) {
+        this.revalidator = revalidator;
+        return ++generation;
+    }
+
+    /**
+     * @return the current generation for the cache.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Check if the entry belongs to the current generation, revalidating it if needed.
+     * @param entry an entry in the cache.
+     * @return true if the entry is valid for the current generation.
+     */
+    private boolean isCurrent(TimeEntry<O> entry) {
+        long current = generation;
+        if (entry.generation == current) {
+            return true;
+        }
+        Revalidator validator = revalidator;
+        if (validator != null && validator.isValid(entry.getKey(), entry.generation)) {
+            entry.generation = current;
+            revalidated.incrementAndGet();
+            return true;
+        }
+        invalidated.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * The number of times an entry from an older generation was found to be valid for the current generation.
+     */
+    public long getRevalidated() {
+        return revalidated.get();
+    }
+
+    /**
+     * The number of times an entry from an older generation was found to be invalid and removed.
+     */
+    public long getInvalidated() {
+        return invalidated.get();
+    }
+
     /**
      * The number of times a value was requested from the cache.
      */
@@ -145,7 +246,11 @@ public class TimeCache<O> implements Map<String, O> {
 
     @Override
     public int size() {
-        return inner.size();
+        int size = 0;
+        for (Segment segment: segments) {
+            size += segment.map.size();
+        }
+        return size;
     }
 
     public int capacity() {
@@ -156,48 +261,84 @@ public class TimeCache<O> implements Map<String, O> {
         return maxAgeMS;
     }
 
+    /**
+     * @return the total weight of the entries in this cache. Linked caches are not included.
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return the maximum total weight of this cache and linked caches. {@link Long#MAX_VALUE} if not bounded.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
     @Override
     public boolean isEmpty() {
-        return inner.isEmpty();
+        for (Segment segment: segments) {
+            if (!segment.map.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public boolean containsKey(Object key) {
-        return inner.containsKey(key);
+        return key != null && segmentFor(key).map.containsKey(key);
     }
 
     @Override
     public boolean containsValue(Object value) {
-        synchronized (inner) {
-            return inner.values().stream()
-                    .map(TimeEntry::getValue)
-                    .anyMatch(value::equals);
-        }
+        return segments.stream()
+                .flatMap(segment -> segment.map.values().stream())
+                .map(TimeEntry::getValue)
+                .anyMatch(value::equals);
     }
 
+    /**
+     * Add the value to the cache. If the weight of the entry is above {@link #getMaxWeight()}, it is not added,
+     * as it would evict all other entries without fitting in the cache itself. Any existing value for the key is
+     * removed in that case.
+     * @param key   the key for the value.
+     * @param value the value to cache.
+     * @return the previous value for the key or null if there was none.
+     */
     @Override
     public O put(String key, O value) {
-        TimeEntry<O> entry = new TimeEntry<>(value);
-        return Optional.ofNullable(inner.put(key, entry))
-                .map(TimeEntry::getValue)
-                .orElse(null);
+        TimeEntry<O> entry = new TimeEntry<>(key, value);
+        if (entry.weight > maxWeight) {
+            log.debug("Refusing to cache entry for key '{}' with weight {} > maxWeight {}",
+                      key, entry.weight, maxWeight);
+            return remove(key);
+        }
+        TimeEntry<O> old = segmentFor(key).put(entry);
+        evictIfNeeded();
+        return old == null ? null : old.getValue();
     }
 
     @Override
     public O remove(Object key) {
-        return Optional.ofNullable(inner.remove(key))
+        if (!(key instanceof String)) {
+            return null;
+        }
+        return Optional.ofNullable(segmentFor(key).remove((String)key, null))
                 .map(TimeEntry::getValue)
                 .orElse(null);
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends O> m) {
-        m.forEach((key, value) -> inner.put(key, new TimeEntry<>(value)));
+        m.forEach(this::put);
     }
 
     @Override
     public void clear() {
-        inner.clear();
+        for (Segment segment: segments) {
+            segment.clear();
+        }
     }
 
     /**
@@ -205,9 +346,9 @@ public class TimeCache<O> implements Map<String, O> {
      */
     @Override
     public Set<String> keySet() {
-        synchronized (inner) {
-            return new HashSet<>(inner.keySet());
-        }
+        return segments.stream()
+                .flatMap(segment -> segment.map.keySet().stream())
+                .collect(Collectors.toSet());
     }
 
     /**
@@ -215,11 +356,10 @@ public class TimeCache<O> implements Map<String, O> {
      */
     @Override
     public Collection<O> values() {
-        synchronized (inner) {
-            return inner.values().stream()
-                    .map(TimeEntry::getValue)
-                    .collect(Collectors.toList());
-        }
+        return segments.stream()
+                .flatMap(segment -> segment.map.values().stream())
+                .map(TimeEntry::getValue)
+                .collect(Collectors.toList());
     }
 
     /**
@@ -227,33 +367,268 @@ public class TimeCache<O> implements Map<String, O> {
      */
     @Override
     public Set<Entry<String, O>> entrySet() {
-        synchronized (inner) {
-            return inner.entrySet().stream()
-                    .map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().getValue()))
-                    .collect(Collectors.toSet());
+        return segments.stream()
+                .flatMap(segment -> segment.map.entrySet().stream())
+                .map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().getValue()))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return the number of entries in this cache and all linked caches.
+     */
+    private int totalSize() {
+        int totalSize = size();
+        for (TimeCache<?> linked: linkedCaches) {
+            totalSize += linked.size();
+        }
+        return totalSize;
+    }
+
+    /**
+     * @return the weight of the entries in this cache and all linked caches.
+     */
+    private long totalWeight() {
+        long totalWeight = weight.get();
+        for (TimeCache<?> linked: linkedCaches) {
+            totalWeight += linked.weight.get();
         }
+        return totalWeight;
     }
 
-    /* Helper class */
+    /**
+     * Evict entries from this cache until the total size and weight of this and linked caches is within
+     * {@link #maxCapacity} and {@link #maxWeight}.
+     */
+    private void evictIfNeeded() {
+        while (totalSize() > maxCapacity || (maxWeight != Long.MAX_VALUE && totalWeight() > maxWeight)) {
+            if (!evictOne()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Perform CLOCK steps on the segment with the oldest queued entry until one entry has been evicted.
+     * @return true if an entry was evicted, false if there were no entries to evict.
+     */
+    private boolean evictOne() {
+        while (true) {
+            Segment oldest = null;
+            long oldestTick = Long.MAX_VALUE;
+            for (Segment segment: segments) {
+                long headTick = segment.headTick;
+                if (headTick < oldestTick) {
+                    oldest = segment;
+                    oldestTick = headTick;
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+            Boolean evicted = oldest.clockStep();
+            if (evicted != null && evicted) {
+                return true;
+            }
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments.get(h & (SEGMENTS-1));
+    }
+
+    /* Helper classes */
+
+    /**
+     * A stripe of the cache. Lookups are performed directly on {@link #map}, while all changes to the segment
+     * happens under {@link #lock}.
+     */
+    private class Segment {
+        private final ConcurrentHashMap<String, TimeEntry<O>> map = new ConcurrentHashMap<>();
+        // Entries in insertion order. Might contain stale entries (removed or replaced), which are skipped
+        private final ArrayDeque<TimeEntry<O>> queue = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        // The tick for the head of the queue, Long.MAX_VALUE if the queue is empty
+        private volatile long headTick = Long.MAX_VALUE;
+
+        TimeEntry<O> put(TimeEntry<O> entry) {
+            lock.lock();
+            try {
+                TimeEntry<O> old = map.put(entry.getKey(), entry);
+                entry.tick = clock.incrementAndGet();
+                queue.addLast(entry);
+                weight.addAndGet(entry.weight);
+                if (old != null) {
+                    weight.addAndGet(-old.weight);
+                    compactIfNeeded();
+                }
+                expireHead();
+                updateHeadTick();
+                return old;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @param key      the key for the entry to remove.
+         * @param expected if not null, the entry is only removed if it is the same object as the one in the cache.
+         * @return the removed entry or null if nothing was removed.
+         */
+        TimeEntry<O> remove(String key, TimeEntry<O> expected) {
+            lock.lock();
+            try {
+                TimeEntry<O> removed;
+                if (expected == null) {
+                    removed = map.remove(key);
+                } else {
+                    removed = map.remove(key, expected) ? expected : null;
+                }
+                if (removed != null) {
+                    weight.addAndGet(-removed.weight);
+                    compactIfNeeded();
+                    updateHeadTick();
+                }
+                return removed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                map.values().forEach(entry -> weight.addAndGet(-entry.weight));
+                map.clear();
+                queue.clear();
+                updateHeadTick();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Perform a single CLOCK step on the queue.
+         * @return true if an entry was evicted, false if an entry was given a second chance, null if the segment
+         *         was changed by another thread, making the step a no-op.
+         */
+        Boolean clockStep() {
+            lock.lock();
+            try {
+                TimeEntry<O> head = queue.pollFirst();
+                if (head == null) {
+                    return null;
+                }
+                try {
+                    if (map.get(head.getKey()) != head) {
+                        return null; // Stale
+                    }
+                    if (head.referenced && !head.isTooOld()) {
+                        head.referenced = false;
+                        head.tick = clock.incrementAndGet();
+                        queue.addLast(head);
+                        return false;
+                    }
+                    map.remove(head.getKey(), head);
+                    weight.addAndGet(-head.weight);
+                    return true;
+                } finally {
+                    updateHeadTick();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove expired and stale entries from the head of the queue. Must be called under lock.
+         */
+        private void expireHead() {
+            TimeEntry<O> head;
+            while ((head = queue.peekFirst()) != null) {
+                if (map.get(head.getKey()) != head) {
+                    queue.pollFirst(); // Stale
+                } else if (head.isTooOld()) {
+                    queue.pollFirst();
+                    map.remove(head.getKey(), head);
+                    weight.addAndGet(-head.weight);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Remove stale entries from the queue if they make up the majority of the queue. Must be called under lock.
+         */
+        private void compactIfNeeded() {
+            if (queue.size() > map.size() * 2 + 16) {
+                queue.removeIf(e -> map.get(e.getKey()) != e);
+            }
+        }
+
+        private void updateHeadTick() {
+            TimeEntry<O> head = queue.peekFirst();
+            headTick = head == null ? Long.MAX_VALUE : head.tick;
+        }
+    }
+
+    /**
+     * Decides whether cached entries from older generations are still valid.
+     */
+    @FunctionalInterface
+    public interface Revalidator {
+        /**
+         * @param key        the key for a cached entry.
+         * @param generation the generation of the cached entry.
+         * @return true if the entry is valid for the current generation of the cache.
+         */
+        boolean isValid(String key, long generation);
+    }
 
     public class TimeEntry<O> {
+        private final String key;
         private final O value;
-        private final Instant created = Instant.now();
+        private final long created = System.currentTimeMillis();
+        private final long weight;
+        // The generation of the cache when the entry was added or last revalidated
+        private volatile long generation = TimeCache.this.generation;
+        // Position in the eviction queue. Only changed under segment lock
+        private long tick;
+        // Set on lookup, cleared when the entry is given a second chance during eviction
+        private volatile boolean referenced = false;
 
-        public TimeEntry(O o) {
+        public TimeEntry(String key, O o) {
+            this.key = key;
             this.value = o;
+            this.weight = weigher == null ? 0 : weigher.applyAsLong(key) + weigher.applyAsLong(o);
+        }
+
+        public String getKey() {
+            return key;
         }
 
         public Instant getCreated() {
-            return created;
+            return Instant.ofEpochMilli(created);
         }
 
         public O getValue() {
             return value;
         }
 
+        public long getWeight() {
+            return weight;
+        }
+
         public boolean isTooOld() {
-            return getCreated().plus(maxAgeMS, ChronoUnit.MILLIS).isBefore(Instant.now());
+            return created + maxAgeMS < System.currentTimeMillis();
+        }
+
+        void markReferenced() {
+            if (!referenced) { // Avoid needless writes to shared memory
+                referenced = true;
+            }
         }
     }
 }
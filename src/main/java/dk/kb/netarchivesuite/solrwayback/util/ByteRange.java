@@ -0,0 +1,195 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import java.util.Locale;
+
+/**
+ * A single byte range from a HTTP {@code Range} header, resolved against the length of the content
+ * (see https://developer.mozilla.org/en-US/docs/Web/HTTP/Range_requests).
+ * <p>
+ * Only single ranges are supported. Requests for multiple ranges are ignored, which means that the full content
+ * is delivered. This is allowed by RFC 7233 and is what most browsers and media players can handle.
+ * <p>
+ * The class also holds helpers for the entity tags used with {@code If-Range} and {@code If-None-Match}.
+ */
+public class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+    private final long end;     // Inclusive
+    private final long length;  // Full content
+
+    private ByteRange(long start, long end, long length) {
+        this.start = start;
+        this.end = end;
+        this.length = length;
+    }
+
+    /**
+     * Parse a HTTP {@code Range} header value.
+     * @param rangeHeader the value of the {@code Range} header, e.g. {@code bytes=1000-1999} or {@code bytes=-500}.
+     * @param length      the full length of the content.
+     * @return the range or null if there is no range or the range is invalid or not supported, in which case the
+     *         full content should be delivered. If the range cannot be satisfied, a range where
+     *         {@link #isSatisfiable()} is false is returned.
+     */
+    public static ByteRange parse(String rangeHeader, long length) {
+        if (rangeHeader == null || length < 0) {
+            return null;
+        }
+        String range = rangeHeader.trim();
+        if (!range.toLowerCase(Locale.ROOT).startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        range = range.substring(BYTES_UNIT.length()).trim();
+        if (range.contains(",")) { // Multiple ranges
+            return null;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long first = parseNumber(range.substring(0, dash));
+        long last = parseNumber(range.substring(dash+1));
+
+        if (dash == 0) { // Suffix: bytes=-500
+            if (last < 0) {
+                return null;
+            }
+            if (last == 0 || length == 0) {
+                return new ByteRange(-1, -1, length);
+            }
+            return new ByteRange(Math.max(0, length-last), length-1, length);
+        }
+        if (first < 0 || (dash < range.length()-1 && (last < 0 || last < first))) {
+            return null;
+        }
+        if (first >= length) {
+            return new ByteRange(-1, -1, length);
+        }
+        last = dash == range.length()-1 ? length-1 : Math.min(last, length-1);
+        return new ByteRange(first, last, length);
+    }
+
+    /**
+     * @return the number or -1 if the input was not a non-negative number.
+     */
+    private static long parseNumber(String number) {
+        number = number.trim();
+        if (number.isEmpty() || number.length() > 18) {
+            return -1;
+        }
+        for (int i = 0 ; i < number.length() ; i++) {
+            if (number.charAt(i) < '0' || number.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(number);
+    }
+
+    /**
+     * Evaluate a HTTP {@code If-Range} header. A range must only be delivered if the If-Range condition holds.
+     * Only entity tags are supported: An {@code If-Range} with a date never holds.
+     * @param ifRangeHeader the value of the {@code If-Range} header. Can be null.
+     * @param etag          the quoted entity tag for the content. Can be null.
+     * @return true if there is no {@code If-Range} or if it strongly matches the entity tag.
+     */
+    public static boolean ifRangeHolds(String ifRangeHeader, String etag) {
+        if (ifRangeHeader == null) {
+            return true;
+        }
+        return etag != null && !etag.startsWith("W/") && ifRangeHeader.trim().equals(etag);
+    }
+
+    /**
+     * Evaluate a HTTP {@code If-None-Match} header, using weak comparison as required by RFC 7232.
+     * @param ifNoneMatchHeader the value of the {@code If-None-Match} header. Can be null.
+     * @param etag              the quoted entity tag for the content. Can be null.
+     * @return true if the entity tag is matched, meaning that {@code 304 Not Modified} should be returned.
+     */
+    public static boolean ifNoneMatchMatches(String ifNoneMatchHeader, String etag) {
+        if (ifNoneMatchHeader == null || etag == null) {
+            return false;
+        }
+        String opaque = stripWeak(etag);
+        for (String candidate: ifNoneMatchHeader.split(",")) {
+            candidate = candidate.trim();
+            if ("*".equals(candidate) || stripWeak(candidate).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Create a strong entity tag from a WARC payload digest.
+     * @param payloadDigest a digest such as {@code sha1:C4HTYCUOGJ2PCQIKSRDAOCIDMFMFAWKK}. Can be null.
+     * @return the quoted entity tag or null if there is no digest.
+     */
+    public static String toETag(String payloadDigest) {
+        if (payloadDigest == null || payloadDigest.isEmpty()) {
+            return null;
+        }
+        return "\"" + payloadDigest.replace("\"", "") + "\"";
+    }
+
+    /**
+     * @return false if the range cannot be satisfied, meaning that {@code 416 Range Not Satisfiable} should be
+     *         returned.
+     */
+    public boolean isSatisfiable() {
+        return start >= 0;
+    }
+
+    /**
+     * @return the first byte in the range.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the last byte in the range, inclusive.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the number of bytes in the range.
+     */
+    public long getRangeLength() {
+        return isSatisfiable() ? end-start+1 : 0;
+    }
+
+    /**
+     * @return the value for the HTTP {@code Content-Range} header, e.g. {@code bytes 1000-1999/5000}.
+     */
+    public String getContentRange() {
+        return isSatisfiable() ?
+                "bytes " + start + "-" + end + "/" + length :
+                "bytes */" + length;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteRange(" + getContentRange() + ")";
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.PriorityQueue;
 import java.util.Spliterator;
@@ -633,7 +634,7 @@ public class CollectionUtils {
 
     /**
      * Order based merge of {@code streams}. The elements in the {@code streams} must be in the same order as
-     * ensured by the provided {@code comparator}. The merge uses a {@link PriorityQueue} for ordering the
+     * ensured by the provided {@code comparator}. The merge uses a {@link LoserTreeIterator} for ordering the
      * {@code streams} and have a total processing time of {@code O(n*log(s)} where {@code n} is the total
      * number of elements in all streams combined and {@code s} is the number of streams.
      * <p>
@@ -656,7 +657,7 @@ public class CollectionUtils {
 
     /**
      * Order based merge of {@code iterators}. The elements in the {@code iterators} must be in the same order as
-     * ensured by the provided {@code comparator}. The merge uses a {@link PriorityQueue} for ordering the
+     * ensured by the provided {@code comparator}. The merge uses a {@link LoserTreeIterator} for ordering the
      * {@code iterators} and have a total processing time of {@code O(n*log(s)} where {@code n} is the total
      * number of elements in all iterators combined and {@code s} is the number of iterators.
      * @param iterators  0 or more iterators where the elements are in {@code comparator} order.
@@ -664,37 +665,160 @@ public class CollectionUtils {
      * @return a stream delivering all elements in all provided {@code iterators} in {@code comparator} order.
      * @param <T> any class.
      * @see #mergeStreams(Collection, Comparator)            
+     * @see #mergeIterators(Collection, Function, Comparator)
      */
     public static <T> Iterator<T> mergeIterators(Collection<Iterator<T>> iterators, Comparator<T> comparator) {
-        // Wrap iterators as peekable and add them all to a prority queue using the given comparator (also wrapped)
-        Comparator<PeekableIterator<T>> peekComparator = (o1, o2) -> comparator.compare(o1.peek(), o2.peek());
-        final PriorityQueue<PeekableIterator<T>> pq = new PriorityQueue<>(iterators.size(), peekComparator);
-        iterators.stream()
-                // All iterators needs at least 1 element to be relevant
-                .filter(Iterator::hasNext)
-                .map(PeekableIterator::new)
-                .forEach(pq::add);
-        // Create a new iterator that
-        // 1) pop iterator from the top of the priority queue
-        // 2) deliver the next()element from the iterator
-        // 3) push the iterator back on the queue, if the iterator hasNext()
-        return new Iterator<T>() {
-            @Override
-            public boolean hasNext() {
-                return !pq.isEmpty();
+        return mergeIterators(iterators, Function.identity(), comparator);
+    }
+
+    /**
+     * Order based merge of {@code iterators}, where the order is determined by keys extracted from the elements.
+     * The elements in the {@code iterators} must be in the same order as ensured by the provided
+     * {@code keyComparator} applied to the keys from {@code keyExtractor}.
+     * <p>
+     * The key for an element is extracted exactly once, when the element becomes the head of its iterator.
+     * This makes it possible to resolve costly lookups, such as field values from a {@link SolrDocument},
+     * to a compact key up front, instead of repeating them for every comparison.
+     * <p>
+     * The merge uses a {@link LoserTreeIterator} and have a total processing time of {@code O(n*log(s)} where
+     * {@code n} is the total number of elements in all iterators combined and {@code s} is the number of iterators.
+     * @param iterators     0 or more iterators where the elements are in key order.
+     * @param keyExtractor  extracts the sort key from an element.
+     * @param keyComparator a comparator for the extracted keys, matching the order in the {@code iterators}.
+     * @return an iterator delivering all elements in all provided {@code iterators} in key order.
+     * @param <T> any class.
+     * @param <K> the key class.
+     */
+    public static <T, K> Iterator<T> mergeIterators(
+            Collection<Iterator<T>> iterators, Function<T, K> keyExtractor, Comparator<K> keyComparator) {
+        return new LoserTreeIterator<>(iterators, keyExtractor, keyComparator);
+    }
+
+    /**
+     * Tournament tree (loser tree) merge of ordered iterators.
+     * <p>
+     * The tree holds the key and the head element for each iterator. The internal nodes hold the loser of the
+     * match between their two sub trees, while the overall winner is kept at the top. When the winner has been
+     * delivered, the next element from the same iterator replays the matches along its path to the root only.
+     * This requires exactly {@code ceil(log2(s))} comparisons per element for {@code s} iterators, about half
+     * the number of comparisons needed by the sift-down in a binary heap such as {@link PriorityQueue}.
+     * <p>
+     * Elements from different iterators with equal keys are delivered in iterator order.
+     */
+    public static class LoserTreeIterator<T, K> implements Iterator<T> {
+        private final Iterator<T>[] sources;
+        private final Function<T, K> keyExtractor;
+        private final Comparator<K> keyComparator;
+        private final int size;
+
+        private final T[] heads;
+        private final K[] keys;
+        private final boolean[] depleted;
+        /**
+         * tree[0] is the current winner, tree[1..size-1] are the losers at the internal nodes.
+         * The leaf for source {@code i} is the virtual node {@code size+i}.
+         */
+        private final int[] tree;
+
+        /**
+         * @param iterators     0 or more iterators where the elements are in key order.
+         * @param keyExtractor  extracts the sort key from an element.
+         * @param keyComparator a comparator for the extracted keys, matching the order in the {@code iterators}.
+         */
+        @SuppressWarnings("unchecked")
+        public LoserTreeIterator(
+                Collection<Iterator<T>> iterators, Function<T, K> keyExtractor, Comparator<K> keyComparator) {
+            this.keyExtractor = keyExtractor;
+            this.keyComparator = keyComparator;
+            // All iterators needs at least 1 element to be relevant
+            List<Iterator<T>> nonEmpty = iterators.stream()
+                    .filter(Iterator::hasNext)
+                    .collect(Collectors.toList());
+            size = nonEmpty.size();
+            sources = nonEmpty.toArray(new Iterator[0]);
+            heads = (T[]) new Object[size];
+            keys = (K[]) new Object[size];
+            depleted = new boolean[size];
+            tree = new int[Math.max(1, size)];
+            for (int i = 0 ; i < size ; i++) {
+                advance(i);
+            }
+            if (size > 0) {
+                tree[0] = build(1);
             }
+        }
 
-            @SuppressWarnings("ConstantConditions")
-            @Override
-            public T next() {
-                PeekableIterator<T> pi = pq.poll();
-                T response = pi.next(); // We only insert iterators that hasNext() so we can skip the extra check
-                if (pi.hasNext()) {
-                    pq.add(pi);
+        /**
+         * Recursively plays the initial matches for the sub tree at {@code node}.
+         * @param node a node in the tree.
+         * @return the winner of the sub tree.
+         */
+        private int build(int node) {
+            if (node >= size) { // Leaf
+                return node-size;
+            }
+            int left = build(2*node);
+            int right = build(2*node+1);
+            if (beats(left, right)) {
+                tree[node] = right;
+                return left;
+            }
+            tree[node] = left;
+            return right;
+        }
+
+        /**
+         * @return true if the head of source {@code a} should be delivered before the head of source {@code b}.
+         */
+        private boolean beats(int a, int b) {
+            if (depleted[a]) {
+                return false;
+            }
+            if (depleted[b]) {
+                return true;
+            }
+            int c = keyComparator.compare(keys[a], keys[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /**
+         * Moves the head of source {@code i} to its next element and extracts the key for the element.
+         */
+        private void advance(int i) {
+            if (sources[i].hasNext()) {
+                heads[i] = sources[i].next();
+                keys[i] = keyExtractor.apply(heads[i]);
+            } else {
+                heads[i] = null;
+                keys[i] = null;
+                depleted[i] = true;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return size > 0 && !depleted[tree[0]];
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("next() called when hasNext() == false");
+            }
+            int winner = tree[0];
+            T response = heads[winner];
+            advance(winner);
+            // Replay the matches from the leaf of the winner to the root
+            for (int node = (winner+size) >>> 1 ; node > 0 ; node >>>= 1) {
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
                 }
-                return response;
             }
-        };
+            tree[0] = winner;
+            return response;
+        }
     }
 
     /**
@@ -852,7 +976,7 @@ public class CollectionUtils {
 
     /**
      * Order based merge of {@code iterators}. The elements in the {@code iterators} must be in the same order as
-     * ensured by the provided {@code comparator}. The merge uses a {@link PriorityQueue} for ordering the
+     * ensured by the provided {@code comparator}. The merge uses a {@link LoserTreeIterator} for ordering the
      * {@code iterators} and have a total processing time of {@code O(n*log(s)} where {@code n} is the total
      * number of elements in all iterators combined and {@code s} is the number of iterators.
      * <p>
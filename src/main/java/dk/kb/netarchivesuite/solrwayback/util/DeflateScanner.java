@@ -0,0 +1,358 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Decoder for raw deflate streams (RFC 1951) that reports the positions of deflate block boundaries.
+ * <p>
+ * {@link java.util.zip.Inflater} does not expose block boundaries, which are needed to create checkpoints where
+ * inflation can be resumed with a fresh Inflater. This implementation follows the structure of {@code puff.c}
+ * from the zlib distribution and is considerably slower than Inflater. It is intended for batch jobs such as
+ * building {@link GzipCheckpointIndex}es, not for delivering content.
+ * <p>
+ * Only boundaries that are byte aligned are reported, as {@link java.util.zip.Inflater} cannot start mid-byte.
+ */
+public class DeflateScanner {
+    /**
+     * The deflate window: Back references can be at most this far back.
+     */
+    public static final int WINDOW_SIZE = 32768;
+    private static final int WINDOW_MASK = WINDOW_SIZE-1;
+
+    private static final int MAXBITS = 15;
+    private static final int MAXLCODES = 286;
+    private static final int MAXDCODES = 30;
+    private static final int MAXCODES = MAXLCODES+MAXDCODES;
+    private static final int FIXLCODES = 288;
+
+    private static final short[] LBASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final short[] LEXT = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final short[] DBASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+            8193, 12289, 16385, 24577};
+    private static final short[] DEXT = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11,
+            12, 12, 13, 13};
+    private static final short[] ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final Huffman FIXED_LENCODE = new Huffman(FIXLCODES);
+    private static final Huffman FIXED_DISTCODE = new Huffman(MAXDCODES);
+    static {
+        short[] lengths = new short[FIXLCODES];
+        int symbol = 0;
+        for (; symbol < 144 ; symbol++) lengths[symbol] = 8;
+        for (; symbol < 256 ; symbol++) lengths[symbol] = 9;
+        for (; symbol < 280 ; symbol++) lengths[symbol] = 7;
+        for (; symbol < FIXLCODES ; symbol++) lengths[symbol] = 8;
+        FIXED_LENCODE.construct(lengths, 0, FIXLCODES);
+        for (symbol = 0 ; symbol < MAXDCODES ; symbol++) lengths[symbol] = 5;
+        FIXED_DISTCODE.construct(lengths, 0, MAXDCODES);
+    }
+
+    /**
+     * Receiver of block boundaries.
+     */
+    public interface BoundaryListener {
+        /**
+         * Called at the start of each byte aligned deflate block, except the first.
+         * @param byteOffset         the number of bytes from the start of the deflate stream to the block.
+         * @param uncompressedOffset the number of uncompressed bytes delivered before the block.
+         * @param scanner            the scanner, for access to {@link #getWindow()}.
+         */
+        void boundary(long byteOffset, long uncompressedOffset, DeflateScanner scanner) throws IOException;
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[65536];
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+    private long bytesRead = 0;
+    private int bitBuf = 0;
+    private int bitCnt = 0;
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private long outCount = 0;
+
+    private final Huffman lencode = new Huffman(MAXLCODES);
+    private final Huffman distcode = new Huffman(MAXDCODES);
+    private final short[] lengths = new short[MAXCODES];
+
+    /**
+     * @param in a stream positioned at the start of raw deflate data, e.g. right after a gzip header.
+     */
+    public DeflateScanner(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Decode the full deflate stream.
+     * @param listener receiver of block boundaries. Can be null.
+     * @return the number of bytes in the deflate stream.
+     * @throws IOException if the stream could not be read or was not valid deflate.
+     */
+    public long scan(BoundaryListener listener) throws IOException {
+        boolean last;
+        do {
+            if (listener != null && outCount > 0 && bitCnt == 0) {
+                listener.boundary(bytesRead, outCount, this);
+            }
+            last = bits(1) == 1;
+            int type = bits(2);
+            switch (type) {
+                case 0: stored(); break;
+                case 1: codes(FIXED_LENCODE, FIXED_DISTCODE); break;
+                case 2: dynamic(); break;
+                default: throw new ZipException("Invalid deflate block type 3 at byte " + bytesRead);
+            }
+        } while (!last);
+        return bytesRead; // The remaining bits in the current byte are padding
+    }
+
+    /**
+     * @return the number of uncompressed bytes delivered so far.
+     */
+    public long getUncompressedCount() {
+        return outCount;
+    }
+
+    /**
+     * @return the last (at most {@link #WINDOW_SIZE}) uncompressed bytes, needed as dictionary for resuming
+     *         inflation at the current position.
+     */
+    public byte[] getWindow() {
+        int size = (int) Math.min(WINDOW_SIZE, outCount);
+        byte[] result = new byte[size];
+        int end = (int) (outCount & WINDOW_MASK);
+        if (size <= end) {
+            System.arraycopy(window, end-size, result, 0, size);
+        } else {
+            int head = size-end;
+            System.arraycopy(window, WINDOW_SIZE-head, result, 0, head);
+            System.arraycopy(window, 0, result, head, end);
+        }
+        return result;
+    }
+
+    private int nextByte() throws IOException {
+        if (bufferPos == bufferLimit) {
+            int read = in.read(buffer, 0, buffer.length);
+            if (read <= 0) {
+                throw new EOFException("Unexpected end of deflate stream after " + bytesRead + " bytes");
+            }
+            bufferPos = 0;
+            bufferLimit = read;
+        }
+        bytesRead++;
+        return buffer[bufferPos++] & 0xFF;
+    }
+
+    private int bits(int need) throws IOException {
+        int val = bitBuf;
+        while (bitCnt < need) {
+            val |= nextByte() << bitCnt;
+            bitCnt += 8;
+        }
+        bitBuf = val >>> need;
+        bitCnt -= need;
+        return val & ((1 << need) - 1);
+    }
+
+    private void put(byte b) {
+        window[(int) (outCount++ & WINDOW_MASK)] = b;
+    }
+
+    private void stored() throws IOException {
+        bitBuf = 0; // Discard leftover bits from current byte
+        bitCnt = 0;
+        int len = nextByte() | (nextByte() << 8);
+        int nlen = nextByte() | (nextByte() << 8);
+        if (len != (~nlen & 0xFFFF)) {
+            throw new ZipException("Stored block length did not match one's complement at byte " + bytesRead);
+        }
+        while (len > 0) {
+            if (bufferPos == bufferLimit) {
+                put((byte) nextByte());
+                len--;
+                continue;
+            }
+            int chunk = Math.min(len, bufferLimit-bufferPos);
+            for (int i = 0 ; i < chunk ; i++) {
+                put(buffer[bufferPos++]);
+            }
+            bytesRead += chunk;
+            len -= chunk;
+        }
+    }
+
+    private void codes(Huffman lencode, Huffman distcode) throws IOException {
+        int symbol;
+        do {
+            symbol = decode(lencode);
+            if (symbol < 256) {
+                put((byte) symbol);
+            } else if (symbol > 256) {
+                symbol -= 257;
+                if (symbol >= 29) {
+                    throw new ZipException("Invalid length symbol at byte " + bytesRead);
+                }
+                int len = LBASE[symbol] + bits(LEXT[symbol]);
+                symbol = decode(distcode);
+                if (symbol >= 30) {
+                    throw new ZipException("Invalid distance symbol at byte " + bytesRead);
+                }
+                int dist = DBASE[symbol] + bits(DEXT[symbol]);
+                if (dist > outCount) {
+                    throw new ZipException("Distance too far back at byte " + bytesRead);
+                }
+                while (len-- > 0) {
+                    put(window[(int) ((outCount - dist) & WINDOW_MASK)]);
+                }
+            }
+        } while (symbol != 256);
+    }
+
+    private void dynamic() throws IOException {
+        int nlen = bits(5) + 257;
+        int ndist = bits(5) + 1;
+        int ncode = bits(4) + 4;
+        if (nlen > MAXLCODES || ndist > MAXDCODES) {
+            throw new ZipException("Too many length or distance codes at byte " + bytesRead);
+        }
+
+        int index;
+        for (index = 0 ; index < ncode ; index++) {
+            lengths[ORDER[index]] = (short) bits(3);
+        }
+        for (; index < 19 ; index++) {
+            lengths[ORDER[index]] = 0;
+        }
+        if (lencode.construct(lengths, 0, 19) != 0) {
+            throw new ZipException("Incomplete code length code at byte " + bytesRead);
+        }
+
+        index = 0;
+        while (index < nlen + ndist) {
+            int symbol = decode(lencode);
+            if (symbol < 16) {
+                lengths[index++] = (short) symbol;
+            } else {
+                short len = 0;
+                if (symbol == 16) {
+                    if (index == 0) {
+                        throw new ZipException("Repeat with no first length at byte " + bytesRead);
+                    }
+                    len = lengths[index-1];
+                    symbol = 3 + bits(2);
+                } else if (symbol == 17) {
+                    symbol = 3 + bits(3);
+                } else {
+                    symbol = 11 + bits(7);
+                }
+                if (index + symbol > nlen + ndist) {
+                    throw new ZipException("Too many code lengths at byte " + bytesRead);
+                }
+                while (symbol-- > 0) {
+                    lengths[index++] = len;
+                }
+            }
+        }
+        if (lengths[256] == 0) {
+            throw new ZipException("No end-of-block code at byte " + bytesRead);
+        }
+
+        int err = lencode.construct(lengths, 0, nlen);
+        if (err < 0 || (err > 0 && nlen - lencode.count[0] != 1)) {
+            throw new ZipException("Incomplete literal/length code at byte " + bytesRead);
+        }
+        err = distcode.construct(lengths, nlen, ndist);
+        if (err < 0 || (err > 0 && ndist - distcode.count[0] != 1)) {
+            throw new ZipException("Incomplete distance code at byte " + bytesRead);
+        }
+        codes(lencode, distcode);
+    }
+
+    private int decode(Huffman h) throws IOException {
+        int code = 0;
+        int first = 0;
+        int index = 0;
+        for (int len = 1 ; len <= MAXBITS ; len++) {
+            code |= bits(1);
+            int count = h.count[len];
+            if (code - count < first) {
+                return h.symbol[index + (code - first)];
+            }
+            index += count;
+            first += count;
+            first <<= 1;
+            code <<= 1;
+        }
+        throw new ZipException("Ran out of Huffman codes at byte " + bytesRead);
+    }
+
+    /**
+     * Canonical Huffman code as counts per code length and symbols ordered by code.
+     */
+    private static class Huffman {
+        final short[] count = new short[MAXBITS+1];
+        final short[] symbol;
+        private final short[] offs = new short[MAXBITS+1];
+
+        Huffman(int maxSymbols) {
+            symbol = new short[maxSymbols];
+        }
+
+        /**
+         * @return 0 for a complete code, negative for an over-subscribed code, positive for an incomplete code.
+         */
+        int construct(short[] length, int offset, int n) {
+            java.util.Arrays.fill(count, (short) 0);
+            for (int sym = 0 ; sym < n ; sym++) {
+                count[length[offset+sym]]++;
+            }
+            if (count[0] == n) {
+                return 0;
+            }
+            int left = 1;
+            for (int len = 1 ; len <= MAXBITS ; len++) {
+                left <<= 1;
+                left -= count[len];
+                if (left < 0) {
+                    return left;
+                }
+            }
+            offs[1] = 0;
+            for (int len = 1 ; len < MAXBITS ; len++) {
+                offs[len+1] = (short) (offs[len] + count[len]);
+            }
+            for (int sym = 0 ; sym < n ; sym++) {
+                if (length[offset+sym] != 0) {
+                    symbol[offs[length[offset+sym]]++] = (short) sym;
+                }
+            }
+            return left;
+        }
+    }
+}
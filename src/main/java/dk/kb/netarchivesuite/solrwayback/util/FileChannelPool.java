@@ -0,0 +1,461 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of open read-only {@link FileChannel}s for (W)ARC files.
+ * <p>
+ * Reading a record from a (W)ARC normally requires open, skip and close of the file. With the pool, channels are
+ * kept open and records are read using positional reads, which does not change the state of the channel. This allows
+ * any number of concurrent readers to share the same channel. The pool holds at most {@code maxOpen} channels and
+ * channels that have not been used for {@code maxIdleMS} milliseconds are closed.
+ * <p>
+ * FileChannels are interruptible: If a thread is interrupted while reading, the shared channel is closed for all
+ * readers. Closed channels are removed from the pool when detected and readers that encounter a channel closed by
+ * another thread reopens the file and retries once.
+ * <p>
+ * The number of channels is controlled with the property {@code warc.file.resolver.source.file.channels}.
+ */
+public class FileChannelPool {
+    private static final Logger log = LoggerFactory.getLogger(FileChannelPool.class);
+
+    public static final long DEFAULT_MAX_IDLE_MS = 60*1000;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static FileChannelPool instance = null;
+
+    private final int maxOpen;
+    private final long maxIdleMS;
+    /**
+     * Access ordered, so that the first entries are the least recently used.
+     */
+    private final LinkedHashMap<Path, PooledChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong opens = new AtomicLong(0);
+
+    /**
+     * @return a shared pool, sized from {@link PropertiesLoader#WARC_SOURCE_FILE_CHANNELS}.
+     */
+    public static synchronized FileChannelPool getInstance() {
+        if (instance == null) {
+            instance = new FileChannelPool(PropertiesLoader.WARC_SOURCE_FILE_CHANNELS, DEFAULT_MAX_IDLE_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxOpen   the maximum number of open channels.
+     * @param maxIdleMS channels that has not been used for this number of milliseconds are closed.
+     */
+    public FileChannelPool(int maxOpen, long maxIdleMS) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("maxOpen must be at least 1 but was " + maxOpen);
+        }
+        this.maxOpen = maxOpen;
+        this.maxIdleMS = maxIdleMS;
+    }
+
+    /**
+     * Create an InputStream that reads from the given file, starting at the given offset.
+     * The stream must be closed after use in order to release the underlying channel.
+     * @param file   a file on the local file system.
+     * @param offset the starting point for the stream.
+     * @return an InputStream positioned at {@code offset}.
+     * @throws FileNotFoundException if the file does not exist.
+     * @throws IOException if the file could not be opened.
+     */
+    public InputStream getInputStream(Path file, long offset) throws IOException {
+        return new PositionalInputStream(acquire(file), offset);
+    }
+
+    /**
+     * Transfer a region of the given file to the target with {@link FileChannel#transferTo}, using a pooled channel.
+     * This allows the operating system to copy the bytes without passing them through buffers on the Java heap.
+     * @param file     a file on the local file system.
+     * @param position the starting point in the file.
+     * @param count    the number of bytes to transfer. Bytes beyond the end of the file are ignored.
+     * @param target   the receiver of the bytes. The target is not closed.
+     * @return the number of transferred bytes.
+     * @throws FileNotFoundException if the file does not exist.
+     * @throws IOException if the file could not be opened or the transfer failed.
+     */
+    public long transferTo(Path file, long position, long count, WritableByteChannel target) throws IOException {
+        PooledChannel pooled = acquire(file);
+        long[] transferred = new long[1];
+        try {
+            try {
+                return transferFully(pooled.channel, position, count, target, transferred);
+            } catch (ClosedChannelException e) {
+                if (!isRetryable(e, pooled)) {
+                    throw e;
+                }
+                pooled = reacquire(pooled, e);
+                long done = transferred[0];
+                return done + transferFully(pooled.channel, position + done, count - done, target, new long[1]);
+            }
+        } finally {
+            release(pooled);
+        }
+    }
+
+    /**
+     * Call {@link FileChannel#transferTo} until the full region has been transferred, as a single call might
+     * transfer fewer bytes than requested.
+     * @param channel  the source of the bytes.
+     * @param position the starting point in the channel.
+     * @param count    the number of bytes to transfer. Bytes beyond the end of the channel are ignored.
+     * @param target   the receiver of the bytes. The target is not closed.
+     * @return the number of transferred bytes.
+     * @throws IOException if the transfer failed.
+     */
+    public static long transferFully(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        return transferFully(channel, position, count, target, new long[1]);
+    }
+
+    /**
+     * As {@link #transferFully(FileChannel, long, long, WritableByteChannel)}, with the number of transferred bytes
+     * continuously updated in {@code transferred[0]}, so that it is available if the transfer fails.
+     */
+    private static long transferFully(FileChannel channel, long position, long count, WritableByteChannel target,
+                                      long[] transferred) throws IOException {
+        long end = Math.min(position + count, channel.size());
+        long current = position;
+        while (current < end) {
+            long delta = channel.transferTo(current, end - current, target);
+            if (delta <= 0) {
+                throw new EOFException("Unable to transfer more than " + (current - position) + "/" + (end - position) +
+                                       " bytes from position " + position);
+            }
+            current += delta;
+            transferred[0] = current - position;
+        }
+        return Math.max(0, current - position);
+    }
+
+    /**
+     * @return the number of currently open channels.
+     */
+    public synchronized int size() {
+        return channels.size();
+    }
+
+    /**
+     * @return the number of requested streams.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of times a channel was opened.
+     */
+    public long getOpens() {
+        return opens.get();
+    }
+
+    /**
+     * Close all idle channels. Channels in use are closed when released.
+     */
+    public synchronized void clear() {
+        channels.values().forEach(PooledChannel::evict);
+        channels.clear();
+    }
+
+    private PooledChannel acquire(Path file) throws IOException {
+        calls.incrementAndGet();
+        synchronized (this) {
+            closeIdle();
+            PooledChannel pooled = channels.get(file);
+            if (pooled != null && pooled.channel.isOpen()) {
+                pooled.refs++;
+                return pooled;
+            }
+            if (pooled != null) { // Closed, typically due to an interrupted reader
+                log.debug("Removing closed channel for '{}' from the pool", file);
+                channels.remove(file);
+                pooled.evict();
+            }
+        }
+
+        // Opening might be slow on networked storage, so it is done outside of the lock
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("The file '" + file + "' does not exist");
+        }
+        opens.incrementAndGet();
+
+        List<PooledChannel> evicted = new ArrayList<>();
+        PooledChannel pooled;
+        synchronized (this) {
+            pooled = channels.get(file);
+            if (pooled != null && !pooled.channel.isOpen()) {
+                channels.remove(file);
+                pooled.evict();
+                pooled = null;
+            }
+            if (pooled == null) {
+                pooled = new PooledChannel(file, channel);
+                channels.put(file, pooled);
+                Iterator<PooledChannel> lru = channels.values().iterator();
+                while (channels.size() > maxOpen) {
+                    evicted.add(lru.next());
+                    lru.remove();
+                }
+            } else {
+                evicted.add(new PooledChannel(file, channel)); // Lost the race: Discard the new channel
+            }
+            pooled.refs++;
+            evicted.forEach(PooledChannel::evict);
+        }
+        return pooled;
+    }
+
+    /**
+     * @return true if the exception was caused by the channel being closed by another thread, in which case a retry
+     *         with a reopened channel is possible. If the current thread was interrupted, a retry would also fail.
+     */
+    private static boolean isRetryable(ClosedChannelException e, PooledChannel pooled) {
+        return !(e instanceof ClosedByInterruptException) && !pooled.channel.isOpen();
+    }
+
+    /**
+     * Release the closed channel, remove it from the pool and acquire a new channel for the same file.
+     * @param closed a channel that has been closed.
+     * @param cause  the exception signalling that the channel was closed.
+     * @return a new open channel for the file.
+     */
+    private PooledChannel reacquire(PooledChannel closed, ClosedChannelException cause) throws IOException {
+        log.debug("Channel for '{}' was closed by another thread. Reopening: {}", closed.file, cause.toString());
+        PooledChannel reopened = acquire(closed.file); // Also removes the closed channel from the pool
+        synchronized (this) {
+            channels.remove(closed.file, closed);
+            closed.evicted = true;
+            release(closed);
+        }
+        return reopened;
+    }
+
+    private synchronized void release(PooledChannel pooled) {
+        pooled.refs--;
+        pooled.lastUsed = System.currentTimeMillis();
+        if (pooled.evicted) {
+            pooled.closeIfUnused();
+        }
+    }
+
+    /**
+     * Close the least recently used channels if they have been idle for too long.
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledChannel> lru = channels.values().iterator();
+        while (lru.hasNext()) {
+            PooledChannel pooled = lru.next();
+            if (pooled.refs > 0 || now - pooled.lastUsed < maxIdleMS) {
+                break;
+            }
+            lru.remove();
+            pooled.evict();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FileChannelPool(open=" + channels.size() + "/" + maxOpen + ", opens=" + opens.get() +
+               ", calls=" + calls.get() + ", maxIdleMS=" + maxIdleMS + ")";
+    }
+
+    /**
+     * A channel with reference count. Guarded by the pool monitor.
+     */
+    private static class PooledChannel {
+        final Path file;
+        final FileChannel channel;
+        int refs = 0;
+        boolean evicted = false;
+        long lastUsed = System.currentTimeMillis();
+
+        PooledChannel(Path file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        void evict() {
+            evicted = true;
+            closeIfUnused();
+        }
+
+        void closeIfUnused() {
+            if (refs > 0) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Exception closing channel for '" + file + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Buffered InputStream using positional reads on a shared channel.
+     */
+    private class PositionalInputStream extends InputStream {
+        private PooledChannel pooled;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position; // Position in the channel for the first byte after the buffer
+        private boolean closed = false;
+
+        PositionalInputStream(PooledChannel pooled, long position) {
+            this.pooled = pooled;
+            this.position = position;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && fill() == -1) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (buffer.hasRemaining()) {
+                int fromBuffer = Math.min(len, buffer.remaining());
+                buffer.get(b, off, fromBuffer);
+                return fromBuffer;
+            }
+            if (len >= BUFFER_SIZE) { // Large read: Bypass the buffer
+                ensureOpen();
+                int read = readChannel(ByteBuffer.wrap(b, off, len));
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+            if (fill() == -1) {
+                return -1;
+            }
+            return read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            ensureOpen();
+            long fromBuffer = Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + (int) fromBuffer);
+            long direct = Math.max(0, Math.min(n - fromBuffer, channelSize() - position));
+            position += direct;
+            return fromBuffer + direct;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ensureOpen();
+            return (int) Math.min(Integer.MAX_VALUE, buffer.remaining() + Math.max(0, channelSize() - position));
+        }
+
+        private int fill() throws IOException {
+            ensureOpen();
+            buffer.clear();
+            int read = readChannel(buffer);
+            buffer.flip();
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        /**
+         * Positional read from the channel at {@link #position}, retrying once with a reopened channel if the
+         * channel was closed by another thread.
+         */
+        private int readChannel(ByteBuffer destination) throws IOException {
+            try {
+                return pooled.channel.read(destination, position);
+            } catch (ClosedChannelException e) {
+                if (!isRetryable(e, pooled)) {
+                    throw e;
+                }
+                pooled = reacquire(pooled, e);
+                return pooled.channel.read(destination, position);
+            }
+        }
+
+        /**
+         * @return the size of the file, retrying once with a reopened channel if the channel was closed by another
+         *         thread.
+         */
+        private long channelSize() throws IOException {
+            try {
+                return pooled.channel.size();
+            } catch (ClosedChannelException e) {
+                if (!isRetryable(e, pooled)) {
+                    throw e;
+                }
+                pooled = reacquire(pooled, e);
+                return pooled.channel.size();
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("The stream for '" + pooled.file + "' has been closed");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(pooled);
+            }
+        }
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.solr.TimeCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Sidecar index for gzip-compressed (W)ARCs, holding inflate checkpoints inside large gzip members.
+ * <p>
+ * Records in compressed (W)ARCs are normally only reachable by inflating from the start of their gzip member. For
+ * large records (video, PDFs...) this means that a read from the middle of the payload requires the full payload
+ * before that point to be inflated. A checkpoint holds the position of a deflate block boundary together with the
+ * preceding 32KB of uncompressed data, which is all that is needed to resume inflation from the boundary.
+ * This is the same principle as {@code zran.c} from the zlib distribution, restricted to byte aligned boundaries.
+ * <p>
+ * The index is stored as {@code <warc-filename>.gzidx}, either next to the (W)ARC or in the folder stated by the
+ * property {@code warc.file.gzindex.folder}. Indexes are created by the batch job in {@link #main(String[])}.
+ * Windows are read from the sidecar file on demand, so only the checkpoint positions are held in memory.
+ */
+public class GzipCheckpointIndex {
+    private static final Logger log = LoggerFactory.getLogger(GzipCheckpointIndex.class);
+
+    public static final String SUFFIX = ".gzidx";
+    /**
+     * Default distance in uncompressed bytes between checkpoints.
+     */
+    public static final long DEFAULT_SPAN = 1024*1024;
+    /**
+     * Default minimum uncompressed size of gzip members for them to be indexed.
+     */
+    public static final long DEFAULT_MIN_MEMBER_SIZE = 4*1024*1024;
+
+    private static final int MAGIC = 0x475A4958; // GZIX
+    private static final int VERSION = 1;
+    private static final Pattern GZ_WARC = Pattern.compile(".*[.](warc|arc)[.]gz$");
+
+    private static final GzipCheckpointIndex EMPTY = new GzipCheckpointIndex(null, -1, new long[0], new Checkpoint[0][]);
+    private static final TimeCache<GzipCheckpointIndex> indexCache = new TimeCache<>(1000, 10*60*1000);
+
+    private final Path indexFile;
+    private final long warcSize;
+    private final long[] memberOffsets;     // Sorted
+    private final Checkpoint[][] checkpoints; // Per member, sorted by uncompressedOffset
+
+    /**
+     * A position in a gzip member from which inflation can be resumed.
+     */
+    public static class Checkpoint {
+        /**
+         * Absolute position in the (W)ARC of the deflate block.
+         */
+        public final long fileOffset;
+        /**
+         * Position in the uncompressed content of the member.
+         */
+        public final long uncompressedOffset;
+        private final long windowPosition; // In the index file
+        private final int windowLength;    // Deflated
+        private final byte[] window;       // Only used while building
+
+        Checkpoint(long fileOffset, long uncompressedOffset, long windowPosition, int windowLength, byte[] window) {
+            this.fileOffset = fileOffset;
+            this.uncompressedOffset = uncompressedOffset;
+            this.windowPosition = windowPosition;
+            this.windowLength = windowLength;
+            this.window = window;
+        }
+    }
+
+    private GzipCheckpointIndex(Path indexFile, long warcSize, long[] memberOffsets, Checkpoint[][] checkpoints) {
+        this.indexFile = indexFile;
+        this.warcSize = warcSize;
+        this.memberOffsets = memberOffsets;
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Get the index for the given source, if it exists. Indexes, and the absence of indexes, are cached.
+     * @param source a gzip-compressed (W)ARC.
+     * @return the index for the source or null if there is no index.
+     */
+    public static GzipCheckpointIndex get(ArcSource source) {
+        if (!PropertiesLoader.WARC_GZINDEX_ENABLED || !GZ_WARC.matcher(source.getSource()).matches()) {
+            return null;
+        }
+        GzipCheckpointIndex index = indexCache.get(source.getSource(), () -> load(source.getSource()));
+        return index == EMPTY ? null : index;
+    }
+
+    private static GzipCheckpointIndex load(String source) {
+        Path indexFile = getIndexPath(source);
+        if (indexFile == null || !Files.isReadable(indexFile)) {
+            return EMPTY;
+        }
+        try {
+            GzipCheckpointIndex index = read(indexFile);
+            if (!isLocal(source)) {
+                return index;
+            }
+            long warcSize = Files.size(Path.of(source));
+            if (warcSize != index.warcSize) {
+                log.warn("Ignoring gzip index '{}' as it was created for a WARC of size {} but '{}' has size {}",
+                         indexFile, index.warcSize, source, warcSize);
+                return EMPTY;
+            }
+            return index;
+        } catch (Exception e) {
+            log.warn("Unable to load gzip index '" + indexFile + "' for '" + source + "'", e);
+            return EMPTY;
+        }
+    }
+
+    /**
+     * @param source a (W)ARC path or URL.
+     * @return the location of the sidecar index for the source or null if the location could not be determined.
+     */
+    public static Path getIndexPath(String source) {
+        String folder = PropertiesLoader.WARC_GZINDEX_FOLDER;
+        if (folder != null && !folder.isEmpty()) {
+            return Path.of(folder, source.substring(source.lastIndexOf('/')+1) + SUFFIX);
+        }
+        return isLocal(source) ? Path.of(source + SUFFIX) : null;
+    }
+
+    private static boolean isLocal(String source) {
+        return !source.startsWith("http://") && !source.startsWith("https://");
+    }
+
+    /**
+     * Locate the last checkpoint at or before the given position.
+     * @param memberOffset       the offset of the gzip member in the (W)ARC.
+     * @param uncompressedOffset position in the uncompressed content of the member.
+     * @return the best checkpoint or null if there are no checkpoints before the position.
+     */
+    public Checkpoint find(long memberOffset, long uncompressedOffset) {
+        int member = Arrays.binarySearch(memberOffsets, memberOffset);
+        if (member < 0) {
+            return null;
+        }
+        Checkpoint[] memberPoints = checkpoints[member];
+        int low = 0;
+        int high = memberPoints.length-1;
+        Checkpoint best = null;
+        while (low <= high) {
+            int mid = (low+high) >>> 1;
+            if (memberPoints[mid].uncompressedOffset <= uncompressedOffset) {
+                best = memberPoints[mid];
+                low = mid+1;
+            } else {
+                high = mid-1;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Open a stream at the given position in the uncompressed content of a gzip member, using the nearest
+     * checkpoint before the position.
+     * <p>
+     * The returned stream delivers uncompressed data until the end of the gzip member.
+     * @param source             the (W)ARC for the index.
+     * @param memberOffset       the offset of the gzip member in the (W)ARC.
+     * @param uncompressedOffset position in the uncompressed content of the member.
+     * @return a stream positioned at {@code uncompressedOffset} or null if there is no usable checkpoint.
+     * @throws IOException if the (W)ARC or the index could not be read.
+     */
+    public InputStream open(ArcSource source, long memberOffset, long uncompressedOffset) throws IOException {
+        Checkpoint checkpoint = find(memberOffset, uncompressedOffset);
+        if (checkpoint == null) {
+            return null;
+        }
+        byte[] window = readWindow(checkpoint);
+        Inflater inflater = new Inflater(true);
+        InputStream raw = null;
+        try {
+            inflater.setDictionary(window);
+            raw = source.get(checkpoint.fileOffset);
+            InputStream inflated = new InflaterInputStream(raw, inflater, 65536) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end(); // Not done by InflaterInputStream for custom Inflaters
+                    }
+                }
+            };
+            InputStreamUtils.skipFully(inflated, uncompressedOffset - checkpoint.uncompressedOffset);
+            return inflated;
+        } catch (IOException | RuntimeException e) {
+            inflater.end();
+            if (raw != null) {
+                raw.close();
+            }
+            throw e;
+        }
+    }
+
+    private byte[] readWindow(Checkpoint checkpoint) throws IOException {
+        byte[] deflated = new byte[checkpoint.windowLength];
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(deflated);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, checkpoint.windowPosition + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of gzip index '" + indexFile + "'");
+                }
+            }
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] window = new byte[DeflateScanner.WINDOW_SIZE];
+            int length = 0;
+            while (!inflater.finished() && length < window.length) {
+                int produced = inflater.inflate(window, length, window.length-length);
+                if (produced == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Truncated checkpoint window in '" + indexFile + "'");
+                }
+                length += produced;
+            }
+            return length == window.length ? window : Arrays.copyOf(window, length);
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt checkpoint window in '" + indexFile + "': " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the number of gzip members with checkpoints.
+     */
+    public int getMemberCount() {
+        return memberOffsets.length;
+    }
+
+    /**
+     * @return the total number of checkpoints.
+     */
+    public int getCheckpointCount() {
+        return Arrays.stream(checkpoints).mapToInt(c -> c.length).sum();
+    }
+
+    /**
+     * Build an index for the given (W)ARC.
+     * @param warc          a gzip-compressed (W)ARC.
+     * @param span          the minimum distance in uncompressed bytes between checkpoints.
+     * @param minMemberSize the minimum uncompressed size for gzip members to get checkpoints.
+     * @return an index that has not been stored. Call {@link #write(Path)} to store it.
+     * @throws IOException if the (W)ARC could not be read or was not valid gzip.
+     */
+    public static GzipCheckpointIndex build(Path warc, long span, long minMemberSize) throws IOException {
+        List<Long> members = new ArrayList<>();
+        List<Checkpoint[]> memberPoints = new ArrayList<>();
+        long warcSize;
+        try (FileChannel channel = FileChannel.open(warc, StandardOpenOption.READ)) {
+            warcSize = channel.size();
+            long offset = 0;
+            while (offset < warcSize) {
+                long dataStart = offset + gzipHeaderLength(channel, offset);
+                long[] sizes = inflateMember(channel, dataStart);
+                if (sizes[1] >= minMemberSize) {
+                    Checkpoint[] points = scanMember(channel, dataStart, span);
+                    if (points.length > 0) {
+                        members.add(offset);
+                        memberPoints.add(points);
+                    }
+                }
+                offset = dataStart + sizes[0] + 8; // CRC32 and ISIZE
+            }
+        }
+        return new GzipCheckpointIndex(
+                null, warcSize, members.stream().mapToLong(Long::longValue).toArray(),
+                memberPoints.toArray(new Checkpoint[0][]));
+    }
+
+    /**
+     * @return the number of bytes in the gzip header at the given offset.
+     */
+    private static long gzipHeaderLength(FileChannel channel, long offset) throws IOException {
+        HeaderReader in = new HeaderReader(
+                new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 1024));
+        if (in.next() != 0x1f || in.next() != 0x8b || in.next() != 8) {
+            throw new ZipException("Not in GZIP format at offset " + offset);
+        }
+        int flags = in.next();
+        for (int i = 0 ; i < 6 ; i++) { // MTIME, XFL, OS
+            in.next();
+        }
+        if ((flags & 4) != 0) { // FEXTRA
+            int extraLength = in.next() | (in.next() << 8);
+            for (int i = 0 ; i < extraLength ; i++) {
+                in.next();
+            }
+        }
+        if ((flags & 8) != 0) { // FNAME
+            while (in.next() != 0);
+        }
+        if ((flags & 16) != 0) { // FCOMMENT
+            while (in.next() != 0);
+        }
+        if ((flags & 2) != 0) { // FHCRC
+            in.next();
+            in.next();
+        }
+        return in.count;
+    }
+
+    /**
+     * Inflate a member with {@link Inflater}, which is much faster than {@link DeflateScanner}.
+     * @return the number of deflate bytes and the number of uncompressed bytes.
+     */
+    private static long[] inflateMember(FileChannel channel, long dataStart) throws IOException {
+        InputStream in = Channels.newInputStream(channel.position(dataStart));
+        Inflater inflater = new Inflater(true);
+        try {
+            byte[] input = new byte[65536];
+            byte[] output = new byte[65536];
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    int read = in.read(input);
+                    if (read <= 0) {
+                        throw new EOFException("Unexpected end of gzip member with data starting at " + dataStart);
+                    }
+                    inflater.setInput(input, 0, read);
+                }
+                inflater.inflate(output);
+            }
+            return new long[]{inflater.getBytesRead(), inflater.getBytesWritten()};
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflate data starting at " + dataStart + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Checkpoint[] scanMember(FileChannel channel, long dataStart, long span) throws IOException {
+        List<Checkpoint> points = new ArrayList<>();
+        DeflateScanner scanner = new DeflateScanner(Channels.newInputStream(channel.position(dataStart)));
+        scanner.scan((byteOffset, uncompressedOffset, s) -> {
+            long last = points.isEmpty() ? 0 : points.get(points.size()-1).uncompressedOffset;
+            if (uncompressedOffset - last >= span) {
+                points.add(new Checkpoint(dataStart + byteOffset, uncompressedOffset, -1, -1, s.getWindow()));
+            }
+        });
+        return points.toArray(new Checkpoint[0]);
+    }
+
+    /**
+     * Store the index. The index is written to a temporary file, which is then moved to the destination.
+     * @param destination where to store the index.
+     * @throws IOException if the index could not be stored.
+     */
+    public void write(Path destination) throws IOException {
+        // Deflate all windows up front to calculate their positions
+        List<byte[]> windows = new ArrayList<>();
+        int checkpointCount = 0;
+        for (Checkpoint[] memberPoints: checkpoints) {
+            for (Checkpoint checkpoint: memberPoints) {
+                windows.add(deflate(checkpoint.window));
+                checkpointCount++;
+            }
+        }
+        long windowPosition = 4+4+8+4 + memberOffsets.length*(8+4L) + checkpointCount*(8+8+8+4L);
+
+        Path tmp = destination.resolveSibling(destination.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(warcSize);
+            out.writeInt(memberOffsets.length);
+            int windowIndex = 0;
+            for (int member = 0 ; member < memberOffsets.length ; member++) {
+                out.writeLong(memberOffsets[member]);
+                out.writeInt(checkpoints[member].length);
+                for (Checkpoint checkpoint: checkpoints[member]) {
+                    out.writeLong(checkpoint.fileOffset);
+                    out.writeLong(checkpoint.uncompressedOffset);
+                    out.writeLong(windowPosition);
+                    int windowLength = windows.get(windowIndex++).length;
+                    out.writeInt(windowLength);
+                    windowPosition += windowLength;
+                }
+            }
+            for (byte[] window: windows) {
+                out.write(window);
+            }
+        }
+        Files.move(tmp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] deflate(byte[] window) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(window);
+            deflater.finish();
+            byte[] buffer = new byte[window.length + 1024];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length*2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length-length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Load the checkpoint positions from a stored index. Windows are read on demand.
+     * @param indexFile an index created with {@link #write(Path)}.
+     * @return the index.
+     * @throws IOException if the index could not be read or was invalid.
+     */
+    public static GzipCheckpointIndex read(Path indexFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("The file '" + indexFile + "' is not a gzip index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported gzip index version " + version + " in '" + indexFile + "'");
+            }
+            long warcSize = in.readLong();
+            int memberCount = in.readInt();
+            long[] memberOffsets = new long[memberCount];
+            Checkpoint[][] checkpoints = new Checkpoint[memberCount][];
+            for (int member = 0 ; member < memberCount ; member++) {
+                memberOffsets[member] = in.readLong();
+                checkpoints[member] = new Checkpoint[in.readInt()];
+                for (int i = 0 ; i < checkpoints[member].length ; i++) {
+                    checkpoints[member][i] = new Checkpoint(
+                            in.readLong(), in.readLong(), in.readLong(), in.readInt(), null);
+                }
+            }
+            return new GzipCheckpointIndex(indexFile, warcSize, memberOffsets, checkpoints);
+        }
+    }
+
+    /**
+     * Batch job for building indexes for all gzip-compressed (W)ARCs in the given files and folders.
+     * (W)ARCs where the index is newer than the (W)ARC are skipped.
+     * <p>
+     * Usage: {@code GzipCheckpointIndex [-o output_folder] [-s span_MB] [-m min_member_MB] [-t threads]
+     * <warc|folder>...}
+     * <p>
+     * Without {@code -o}, indexes are stored next to the (W)ARCs. If {@code -o} is specified, the property
+     * {@code warc.file.gzindex.folder} must be set to the same folder.
+     */
+    public static void main(String[] args) throws Exception {
+        Path outputFolder = null;
+        long span = DEFAULT_SPAN;
+        long minMemberSize = DEFAULT_MIN_MEMBER_SIZE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0 ; i < args.length ; i++) {
+            switch (args[i]) {
+                case "-o": outputFolder = Path.of(args[++i]); break;
+                case "-s": span = (long) (Double.parseDouble(args[++i])*1024*1024); break;
+                case "-m": minMemberSize = (long) (Double.parseDouble(args[++i])*1024*1024); break;
+                case "-t": threads = Integer.parseInt(args[++i]); break;
+                default: inputs.add(Path.of(args[i]));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: GzipCheckpointIndex [-o output_folder] [-s span_MB] [-m min_member_MB] " +
+                               "[-t threads] <warc|folder>...");
+            System.exit(2);
+        }
+        if (outputFolder != null) {
+            Files.createDirectories(outputFolder);
+        }
+
+        List<Path> warcs = new ArrayList<>();
+        for (Path input: inputs) {
+            try (Stream<Path> files = Files.walk(input)) {
+                warcs.addAll(files.filter(Files::isRegularFile)
+                                     .filter(p -> GZ_WARC.matcher(p.getFileName().toString()).matches())
+                                     .collect(Collectors.toList()));
+            }
+        }
+
+        final Path folder = outputFolder;
+        final long finalSpan = span;
+        final long finalMinMemberSize = minMemberSize;
+        AtomicInteger processed = new AtomicInteger(0);
+        AtomicInteger failed = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> jobs = new ArrayList<>(warcs.size());
+            for (Path warc: warcs) {
+                jobs.add(executor.submit(() -> {
+                    Path destination = folder == null ?
+                            warc.resolveSibling(warc.getFileName() + SUFFIX) :
+                            folder.resolve(warc.getFileName() + SUFFIX);
+                    try {
+                        if (Files.exists(destination) &&
+                            Files.getLastModifiedTime(destination).compareTo(Files.getLastModifiedTime(warc)) > 0) {
+                            return;
+                        }
+                        long startTime = System.currentTimeMillis();
+                        GzipCheckpointIndex index = build(warc, finalSpan, finalMinMemberSize);
+                        index.write(destination);
+                        System.out.println(String.format(
+                                Locale.ROOT, "%d/%d: Indexed %s with %d checkpoints in %d members in %d ms",
+                                processed.incrementAndGet(), warcs.size(), warc, index.getCheckpointCount(),
+                                index.getMemberCount(), System.currentTimeMillis()-startTime));
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        System.err.println("Unable to index " + warc + ": " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> job: jobs) {
+                job.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println("Indexed " + processed.get() + " (W)ARCs with " + failed.get() + " failures out of " +
+                           warcs.size() + " gzip-compressed (W)ARCs");
+    }
+
+    private static class HeaderReader {
+        private final InputStream in;
+        private long count = 0;
+
+        HeaderReader(InputStream in) {
+            this.in = in;
+        }
+
+        int next() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Unexpected end of gzip header after " + count + " bytes");
+            }
+            count++;
+            return b;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GzipCheckpointIndex(indexFile=" + indexFile + ", members=" + getMemberCount() +
+               ", checkpoints=" + getCheckpointCount() + ")";
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP client for reading byte ranges from remote (W)ARC files.
+ * <p>
+ * Connections are kept alive and shared between requests using the connection pool of {@link HttpClient}.
+ * To allow reuse of connections, all requests are for bounded ranges and the responses are fully read.
+ * The number of concurrent requests to the same host is limited to {@code maxConnectionsPerHost}.
+ * <p>
+ * Multiple ranges from the same resource can be requested with {@link #getRanges(URI, List)}, which merges nearby
+ * ranges and issues a single multi-range request.
+ * <p>
+ * The server must support HTTP range requests: https://developer.mozilla.org/en-US/docs/Web/HTTP/Range_requests
+ */
+public class HTTPRangeClient {
+    private static final Logger log = LoggerFactory.getLogger(HTTPRangeClient.class);
+
+    /**
+     * Ranges with gaps smaller than this are merged into one range, as the overhead of a range is larger than
+     * transferring the gap.
+     */
+    public static final int MERGE_GAP = 16*1024;
+    /**
+     * Servers typically limits the number of ranges in a request.
+     */
+    public static final int MAX_RANGES_PER_REQUEST = 50;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes ([0-9]+)-([0-9]+)/([0-9]+|[*])");
+    private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+
+    private static HTTPRangeClient instance = null;
+
+    private final HttpClient client;
+    private final int maxConnectionsPerHost;
+    private final Duration timeout;
+    private final Map<String, Semaphore> hostLimits = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong ranges = new AtomicLong(0);
+
+    /**
+     * @return a shared client, configured from {@link PropertiesLoader#WARC_SOURCE_HTTP_MAX_CONNECTIONS}.
+     */
+    public static synchronized HTTPRangeClient getInstance() {
+        if (instance == null) {
+            instance = new HTTPRangeClient(PropertiesLoader.WARC_SOURCE_HTTP_MAX_CONNECTIONS, Duration.ofSeconds(60));
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxConnectionsPerHost the maximum number of concurrent requests to the same host.
+     * @param timeout               connect and request timeout.
+     */
+    public HTTPRangeClient(int maxConnectionsPerHost, Duration timeout) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.timeout = timeout;
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    /**
+     * Get the bytes from {@code start} to {@code end} (exclusive) from the resource. If the resource is shorter than
+     * {@code end}, fewer bytes are returned.
+     * @param uri   a HTTP or HTTPS URI.
+     * @param start the start of the range.
+     * @param end   the end of the range, exclusive.
+     * @return the bytes in the range. Empty if start is at or beyond the end of the resource.
+     * @throws FileNotFoundException if the server responded 404.
+     * @throws IOException if the range could not be retrieved.
+     */
+    public byte[] getRange(URI uri, long start, long end) throws IOException {
+        ranges.incrementAndGet();
+        HttpResponse<byte[]> response = send(uri, "bytes=" + start + "-" + (end-1));
+        switch (response.statusCode()) {
+            case 206: {
+                long[] contentRange = parseContentRange(response, uri);
+                return slice(response.body(), contentRange[0], start, end);
+            }
+            case 416: return new byte[0]; // Range Not Satisfiable: Beyond the end of the resource
+            case 200: throw new IOException("The server does not support HTTP Range Requests for " + uri);
+            default: throw statusException(response, uri);
+        }
+    }
+
+    /**
+     * Get multiple ranges from the resource. Nearby ranges are merged and all ranges are requested using as
+     * few multi-range requests as possible.
+     * @param uri    a HTTP or HTTPS URI.
+     * @param ranges pairs of {@code [start, end[}.
+     * @return the bytes for each range, in the same order as the given ranges.
+     * @throws IOException if the ranges could not be retrieved.
+     */
+    public List<byte[]> getRanges(URI uri, List<long[]> ranges) throws IOException {
+        List<long[]> merged = merge(ranges);
+        Map<Long, byte[]> parts = new HashMap<>(); // merged start -> bytes
+        for (int i = 0 ; i < merged.size() ; i += MAX_RANGES_PER_REQUEST) {
+            parts.putAll(getMerged(uri, merged.subList(i, Math.min(merged.size(), i+MAX_RANGES_PER_REQUEST))));
+        }
+
+        List<byte[]> result = new ArrayList<>(ranges.size());
+        for (long[] range: ranges) {
+            long[] containing = merged.stream()
+                    .filter(m -> m[0] <= range[0] && range[1] <= m[1])
+                    .findFirst().orElseThrow(() -> new IllegalStateException("Merged ranges does not cover range"));
+            byte[] part = parts.get(containing[0]);
+            result.add(part == null ? new byte[0] : slice(part, containing[0], range[0], range[1]));
+        }
+        return result;
+    }
+
+    /**
+     * Request the given non-overlapping ranges in a single request.
+     * @return merged start -> bytes.
+     */
+    private Map<Long, byte[]> getMerged(URI uri, List<long[]> merged) throws IOException {
+        if (merged.size() == 1) {
+            long[] range = merged.get(0);
+            return Map.of(range[0], getRange(uri, range[0], range[1]));
+        }
+        this.ranges.addAndGet(merged.size());
+        StringBuilder rangeHeader = new StringBuilder("bytes=");
+        for (long[] range: merged) {
+            if (rangeHeader.length() > 6) {
+                rangeHeader.append(",");
+            }
+            rangeHeader.append(range[0]).append("-").append(range[1]-1);
+        }
+
+        HttpResponse<byte[]> response = send(uri, rangeHeader.toString());
+        Map<Long, byte[]> parts = new HashMap<>();
+        switch (response.statusCode()) {
+            case 206: break;
+            case 416: return parts;
+            case 200: throw new IOException("The server does not support HTTP Range Requests for " + uri);
+            default: throw statusException(response, uri);
+        }
+
+        Optional<String> contentType = response.headers().firstValue("Content-Type");
+        Matcher boundary = BOUNDARY.matcher(contentType.orElse(""));
+        if (!contentType.orElse("").startsWith("multipart/byteranges") || !boundary.find()) {
+            // The server might have merged the ranges into a single range
+            long[] contentRange = parseContentRange(response, uri);
+            for (long[] range: merged) {
+                parts.put(range[0], slice(response.body(), contentRange[0], range[0], range[1]));
+            }
+            return parts;
+        }
+        parseMultipart(response.body(), boundary.group(1), uri).forEach((start, bytes) -> {
+            // The server is allowed to merge or reorder the ranges
+            for (long[] range: merged) {
+                if (start <= range[0] && range[0] < start + bytes.length) {
+                    parts.put(range[0], slice(bytes, start, range[0], range[1]));
+                }
+            }
+        });
+        return parts;
+    }
+
+    private HttpResponse<byte[]> send(URI uri, String range) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(timeout)
+                .header("User-Agent", "Java Client; SolrWayback")
+                .header("Range", range)
+                .GET()
+                .build();
+        Semaphore hostLimit = hostLimits.computeIfAbsent(
+                uri.getHost() + ":" + uri.getPort(), host -> new Semaphore(maxConnectionsPerHost, true));
+        try {
+            hostLimit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for connection to " + uri, e);
+        }
+        try {
+            requests.incrementAndGet();
+            return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while requesting " + range + " from " + uri, e);
+        } finally {
+            hostLimit.release();
+        }
+    }
+
+    /**
+     * Sort the ranges and merge overlapping or nearby ranges.
+     */
+    static List<long[]> merge(List<long[]> ranges) {
+        List<long[]> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range: sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size()-1);
+            if (last != null && range[0] <= last[1] + MERGE_GAP) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[]{range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Parse a {@code multipart/byteranges} body.
+     * @return part start -> part bytes.
+     */
+    static Map<Long, byte[]> parseMultipart(byte[] body, String boundary, URI uri) throws IOException {
+        Map<Long, byte[]> parts = new HashMap<>();
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        int pos = indexOf(body, delimiter, 0);
+        while (pos != -1) {
+            pos += delimiter.length;
+            if (pos+1 < body.length && body[pos] == '-' && body[pos+1] == '-') {
+                break; // Closing delimiter
+            }
+            int headersEnd = indexOf(body, "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), pos);
+            if (headersEnd == -1) {
+                throw new IOException("Malformed multipart/byteranges response from " + uri);
+            }
+            String headers = new String(body, pos, headersEnd-pos, StandardCharsets.ISO_8859_1);
+            Matcher contentRange = CONTENT_RANGE.matcher(headers);
+            if (!contentRange.find()) {
+                throw new IOException("Missing Content-Range in multipart/byteranges response from " + uri);
+            }
+            long start = Long.parseLong(contentRange.group(1));
+            int length = (int) (Long.parseLong(contentRange.group(2)) - start + 1);
+            int dataStart = headersEnd + 4;
+            if (dataStart + length > body.length) {
+                throw new IOException("Truncated multipart/byteranges response from " + uri);
+            }
+            parts.put(start, Arrays.copyOfRange(body, dataStart, dataStart + length));
+            pos = indexOf(body, delimiter, dataStart + length);
+        }
+        return parts;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from ; i <= data.length - pattern.length ; i++) {
+            for (int j = 0 ; j < pattern.length ; j++) {
+                if (data[i+j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code [start, end, total]} from the Content-Range header. total is -1 if unknown.
+     */
+    private static long[] parseContentRange(HttpResponse<?> response, URI uri) throws IOException {
+        String header = response.headers().firstValue("Content-Range").orElseThrow(
+                () -> new IOException("Missing Content-Range in response from " + uri));
+        Matcher matcher = CONTENT_RANGE.matcher(header);
+        if (!matcher.find()) {
+            throw new IOException("Unsupported Content-Range '" + header + "' in response from " + uri);
+        }
+        return new long[]{
+                Long.parseLong(matcher.group(1)),
+                Long.parseLong(matcher.group(2)),
+                "*".equals(matcher.group(3)) ? -1 : Long.parseLong(matcher.group(3))};
+    }
+
+    /**
+     * Extract the part {@code [start, end[} from {@code bytes}, which starts at {@code bytesStart}.
+     * If the bytes does not cover the full range, only the available part is returned.
+     */
+    private static byte[] slice(byte[] bytes, long bytesStart, long start, long end) {
+        int from = (int) Math.max(0, Math.min(bytes.length, start - bytesStart));
+        int to = (int) Math.max(from, Math.min(bytes.length, end - bytesStart));
+        return from == 0 && to == bytes.length ? bytes : Arrays.copyOfRange(bytes, from, to);
+    }
+
+    private static IOException statusException(HttpResponse<?> response, URI uri) {
+        if (response.statusCode() == 404) {
+            return new FileNotFoundException("HTTP 404 for " + uri);
+        }
+        return new IOException(String.format(Locale.ROOT, "Unexpected HTTP status %d for %s",
+                                             response.statusCode(), uri));
+    }
+
+    /**
+     * @return the number of HTTP requests issued.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of ranges requested. If this is larger than {@link #getRequests()}, ranges were merged.
+     */
+    public long getRanges() {
+        return ranges.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HTTPRangeClient(maxConnectionsPerHost=" + maxConnectionsPerHost + ", hosts=" + hostLimits.size() +
+               ", requests=" + requests.get() + ", ranges=" + ranges.get() + ")";
+    }
+}
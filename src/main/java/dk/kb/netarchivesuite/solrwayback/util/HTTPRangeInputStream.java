@@ -0,0 +1,126 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * InputStream for a remote resource, where the content is fetched as a sequence of bounded HTTP range requests
+ * using {@link HTTPRangeClient}. The size of the requested ranges starts small and doubles for each request, so that
+ * small records are fetched with a single request and large records are streamed with few requests.
+ * <p>
+ * As each range is fully read, the underlying connection is released to the pool after each request instead of
+ * being kept open by the stream.
+ */
+public class HTTPRangeInputStream extends InputStream {
+    public static final int INITIAL_CHUNK = 64*1024;
+    public static final int MAX_CHUNK = 4*1024*1024;
+
+    private final HTTPRangeClient client;
+    private final URI uri;
+
+    private long position; // Position in the resource for the first byte after the chunk
+    private byte[] chunk;
+    private int chunkPos = 0;
+    private int nextChunkSize = INITIAL_CHUNK;
+    private boolean eof = false;
+
+    /**
+     * @param client the client to use for requests.
+     * @param uri    a HTTP or HTTPS resource.
+     * @param offset the start position in the resource.
+     * @param head   the first bytes of the resource from {@code offset}, e.g. from a previous prefetch.
+     *               Can be null.
+     */
+    public HTTPRangeInputStream(HTTPRangeClient client, URI uri, long offset, byte[] head) {
+        this.client = client;
+        this.uri = uri;
+        this.chunk = head == null ? new byte[0] : head;
+        this.position = offset + chunk.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return chunk[chunkPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int read = Math.min(len, chunk.length - chunkPos);
+        System.arraycopy(chunk, chunkPos, b, off, read);
+        chunkPos += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long fromChunk = Math.min(n, chunk.length - chunkPos);
+        chunkPos += (int) fromChunk;
+        // Skipping beyond the end of the resource is not detected until next read
+        position += n - fromChunk;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - chunkPos;
+    }
+
+    /**
+     * @return true if there are bytes available in {@link #chunk}.
+     */
+    private boolean ensureData() throws IOException {
+        if (chunkPos < chunk.length) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+        chunk = client.getRange(uri, position, position + nextChunkSize);
+        chunkPos = 0;
+        if (chunk.length < nextChunkSize) {
+            eof = true;
+        }
+        position += chunk.length;
+        nextChunkSize = Math.min(MAX_CHUNK, nextChunkSize*2);
+        return chunk.length > 0;
+    }
+
+    @Override
+    public void close() {
+        chunk = new byte[0];
+        chunkPos = 0;
+        eof = true;
+    }
+
+    @Override
+    public String toString() {
+        return "HTTPRangeInputStream(uri=" + uri + ", position=" + position + ", eof=" + eof + ")";
+    }
+}
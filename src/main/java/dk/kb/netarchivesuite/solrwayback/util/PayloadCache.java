@@ -0,0 +1,259 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache for the binaries of small (W)ARC records, keyed by (W)ARC source and offset.
+ * <p>
+ * Shared resources such as CSS, JavaScript, icons and fonts are requested for nearly every page view.
+ * Without caching, each request opens the (W)ARC, parses the headers and inflates the record.
+ * <p>
+ * The cache is a segmented LRU with a total byte budget. New binaries are kept on the heap in a probation segment.
+ * Binaries that are requested again are promoted to a protected segment, where they are stored in direct (off-heap)
+ * buffers. The protected segment can use at most {@link #PROTECTED_FRACTION} of the budget and the probation segment
+ * the rest, so the heap usage is bounded by the smaller share. New binaries only evict binaries from the probation
+ * segment. This means that a single pass over many records, such as an export,
+ * does not evict the binaries that are requested repeatedly. It also means that only binaries with proven reuse
+ * are copied to off-heap memory.
+ * <p>
+ * Only records up to a given size are cached.
+ * (W)ARCs are expected to be immutable: Cached binaries are not invalidated if a (W)ARC is changed.
+ * <p>
+ * The raw binaries from {@link dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry#getBinaryRaw()} are cached,
+ * not the decoded binaries. The raw binary is the basis for all other representations: De-chunked and decompressed
+ * content for playback, byte ranges and entity tags for downloads and the unmodified payload for WARC export.
+ * Decoding a small binary from memory is cheap compared to opening the (W)ARC and parsing the record.
+ * <p>
+ * The cache is controlled with the properties {@code warc.file.payload.cache.megabytes} and
+ * {@code warc.file.payload.cache.maxrecord.kilobytes}.
+ */
+public class PayloadCache {
+    /**
+     * The maximum fraction of the byte budget used for binaries that have been requested more than once.
+     */
+    public static final double PROTECTED_FRACTION = 0.8;
+
+    private static PayloadCache instance = null;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private final long maxProbationBytes;
+    private final int maxRecordBytes;
+    /**
+     * Binaries that have been added but not requested since. Insertion ordered, so that the first entries are
+     * the oldest.
+     */
+    private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<>(1000);
+    /**
+     * Binaries that have been requested after being added. Access ordered, so that the first entries are the least
+     * recently used.
+     */
+    private final LinkedHashMap<String, ByteBuffer> protectedEntries = new LinkedHashMap<>(1000, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @return a shared cache, sized from {@link PropertiesLoader#WARC_PAYLOAD_CACHE_MEGABYTES} and
+     *         {@link PropertiesLoader#WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES}.
+     */
+    public static synchronized PayloadCache getInstance() {
+        if (instance == null) {
+            instance = new PayloadCache(PropertiesLoader.WARC_PAYLOAD_CACHE_MEGABYTES*1024L*1024,
+                                        PropertiesLoader.WARC_PAYLOAD_CACHE_MAX_RECORD_KILOBYTES*1024);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxBytes       the maximum number of bytes for all cached binaries. 0 disables the cache.
+     * @param maxRecordBytes binaries larger than this or the probation segment are not cached.
+     */
+    public PayloadCache(long maxBytes, int maxRecordBytes) {
+        if (maxBytes < 0 || maxRecordBytes < 0) {
+            throw new IllegalArgumentException(
+                    "maxBytes and maxRecordBytes must be >= 0 but were " + maxBytes + " and " + maxRecordBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_FRACTION);
+        this.maxProbationBytes = maxBytes - maxProtectedBytes;
+        this.maxRecordBytes = (int) Math.min(maxRecordBytes, maxProbationBytes);
+    }
+
+    /**
+     * @param binarySize the size of a binary.
+     * @return true if a binary of the given size can be cached.
+     */
+    public boolean isCacheable(long binarySize) {
+        return maxBytes > 0 && binarySize >= 0 && binarySize <= maxRecordBytes;
+    }
+
+    /**
+     * @param source the (W)ARC of the record, as stated by
+     *               {@link dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource#getSource()}.
+     * @param offset the offset of the record in the (W)ARC.
+     * @return the cached binary or null if it is not cached.
+     */
+    public byte[] get(String source, long offset) {
+        calls.incrementAndGet();
+        String key = getKey(source, offset);
+        ByteBuffer cached;
+        byte[] promote;
+        synchronized (this) {
+            cached = protectedEntries.get(key);
+            promote = cached == null ? probation.get(key) : null;
+        }
+        if (cached == null && promote == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        if (promote != null) {
+            promote(key, promote);
+            return promote.clone();
+        }
+        // Cached buffers are never changed, so copying outside of the lock is safe
+        byte[] binary = new byte[cached.remaining()];
+        cached.duplicate().get(binary);
+        return binary;
+    }
+
+    /**
+     * Move the binary from the probation segment to the protected segment, evicting the least recently used
+     * binaries from the protected segment if needed.
+     */
+    private void promote(String key, byte[] binary) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length);
+        buffer.put(binary).flip();
+        synchronized (this) {
+            if (probation.remove(key) == null) { // Promoted or evicted by another thread
+                return;
+            }
+            probationBytes -= binary.length;
+            protectedEntries.put(key, buffer);
+            protectedBytes += binary.length;
+            Iterator<ByteBuffer> lru = protectedEntries.values().iterator();
+            while (protectedBytes > maxProtectedBytes && lru.hasNext()) {
+                protectedBytes -= lru.next().capacity();
+                lru.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Add a binary to the probation segment of the cache, evicting the oldest binaries from the probation segment
+     * if its share of the byte budget is exceeded. Binaries that are not {@link #isCacheable(long)} or already cached are ignored.
+     * @param source the (W)ARC of the record.
+     * @param offset the offset of the record in the (W)ARC.
+     * @param binary the binary for the record.
+     */
+    public void put(String source, long offset, byte[] binary) {
+        if (!isCacheable(binary.length)) {
+            return;
+        }
+        String key = getKey(source, offset);
+        synchronized (this) {
+            if (protectedEntries.containsKey(key) || probation.containsKey(key)) {
+                return;
+            }
+            probation.put(key, binary.clone());
+            probationBytes += binary.length;
+            Iterator<byte[]> oldest = probation.values().iterator();
+            while (probationBytes > maxProbationBytes && oldest.hasNext()) {
+                probationBytes -= oldest.next().length;
+                oldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private String getKey(String source, long offset) {
+        return offset + "@" + source;
+    }
+
+    /**
+     * Remove all cached binaries.
+     */
+    public synchronized void clear() {
+        probation.clear();
+        protectedEntries.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    /**
+     * @return the number of cached binaries.
+     */
+    public synchronized int size() {
+        return probation.size() + protectedEntries.size();
+    }
+
+    /**
+     * @return the number of bytes used by cached binaries.
+     */
+    public synchronized long getBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    /**
+     * @return the number of bytes used by binaries that have been requested more than once.
+     */
+    public synchronized long getProtectedBytes() {
+        return protectedBytes;
+    }
+
+    /**
+     * @return the number of lookups.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of lookups that were served from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of binaries that were evicted to stay within the byte budget.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        long calls = getCalls();
+        return String.format(
+                Locale.ROOT, "PayloadCache(entries=%d, MB=%d/%d, protectedMB=%d, maxRecordKB=%d, hits=%d/%d (%.1f%%), " +
+                             "evictions=%d)",
+                size(), getBytes()/1048576, maxBytes/1048576, getProtectedBytes()/1048576, maxRecordBytes/1024,
+                getHits(), calls,
+                calls == 0 ? 0.0 : getHits()*100.0/calls, getEvictions());
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Replacement for {@link java.util.zip.GZIPInputStream} where the {@link Inflater} and the input buffer are reused
+ * per thread. Creating an Inflater allocates native zlib state and GZIPInputStream creates a new one for every
+ * record, which is a measurable part of the cost of reading small records from compressed (W)ARCs.
+ * <p>
+ * The pooled Inflater and buffer are handed back when the stream is closed, so callers must close the stream.
+ * If the thread already has an open stream, a non-pooled Inflater is used. Streams can be closed from other threads
+ * than the one that created them.
+ * <p>
+ * Per default only a single gzip member is delivered, which is what a record in a compressed (W)ARC is. This avoids
+ * reading into the following record. Use {@link #PooledGZIPInputStream(InputStream, boolean)} for content that
+ * might consist of concatenated members, such as gzip-compressed HTTP payloads.
+ */
+public class PooledGZIPInputStream extends InflaterInputStream {
+    private static final int BUFFER_SIZE = 65536;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final ThreadLocal<Decoder> pool = ThreadLocal.withInitial(() -> new Decoder(true));
+
+    private final Decoder decoder;
+    private final boolean concatenated;
+    private final CRC32 crc = new CRC32();
+    private int bufferPos = 0; // Used while parsing headers and trailers
+    private int members = 0;
+    private boolean eos = false;
+    private boolean released = false;
+
+    /**
+     * Inflater and input buffer, reused per thread.
+     */
+    private static class Decoder {
+        final Inflater inflater = new Inflater(true);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final boolean pooled;
+        volatile boolean inUse = false;
+
+        Decoder(boolean pooled) {
+            this.pooled = pooled;
+        }
+    }
+
+    /**
+     * Create a stream that delivers the content of the gzip member at the start of {@code in}.
+     * @param in a stream positioned at the start of a gzip member.
+     * @throws IOException if the gzip header could not be read.
+     */
+    public PooledGZIPInputStream(InputStream in) throws IOException {
+        this(in, false);
+    }
+
+    /**
+     * @param in           a stream positioned at the start of a gzip member.
+     * @param concatenated if true, following gzip members are also delivered, as {@link
+     *                     java.util.zip.GZIPInputStream} does.
+     * @throws IOException if the gzip header could not be read.
+     */
+    public PooledGZIPInputStream(InputStream in, boolean concatenated) throws IOException {
+        this(in, concatenated, acquire());
+    }
+
+    private PooledGZIPInputStream(InputStream in, boolean concatenated, Decoder decoder) throws IOException {
+        super(in, decoder.inflater, 1);
+        this.decoder = decoder;
+        this.concatenated = concatenated;
+        buf = decoder.buffer;
+        len = 0;
+        try {
+            if (!readHeader()) {
+                throw new EOFException("No gzip header");
+            }
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private static Decoder acquire() {
+        Decoder decoder = pool.get();
+        if (decoder.inUse) { // Nested use
+            return new Decoder(false);
+        }
+        decoder.inUse = true;
+        decoder.inflater.reset();
+        return decoder;
+    }
+
+    private void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (decoder.pooled) {
+            decoder.inflater.reset();
+            decoder.inUse = false;
+        } else {
+            decoder.inflater.end();
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int length) throws IOException {
+        if (released) {
+            throw new IOException("Stream closed");
+        }
+        while (!eos) {
+            int read = super.read(b, off, length);
+            if (read != -1) {
+                crc.update(b, off, read);
+                return read;
+            }
+            // The Inflater is finished: Trailer and maybe a new member
+            bufferPos = len - inf.getRemaining();
+            readTrailer();
+            if (!concatenated || !readHeader()) {
+                eos = true;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The inherited {@link InflaterInputStream#available()} returns 0 after the first member has been inflated, as
+     * its end-of-stream flag is not reset when a new member is started.
+     * @return 0 if the last member has been delivered, else 1.
+     */
+    @Override
+    public int available() throws IOException {
+        if (released) {
+            throw new IOException("Stream closed");
+        }
+        return eos ? 0 : 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Read the gzip header at {@link #bufferPos} and prepare the Inflater for the member.
+     * @return true if a header was read, false if the stream was at EOF or did not contain a gzip header.
+     */
+    private boolean readHeader() throws IOException {
+        int first = nextByteOrEOF();
+        if (first == -1) {
+            return false;
+        }
+        if (first != 0x1f || nextByte() != 0x8b) {
+            if (members > 0) { // Trailing garbage after a member
+                return false;
+            }
+            throw new ZipException("Not in GZIP format");
+        }
+        if (nextByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = nextByte();
+        skipBytes(6); // MTIME, XFL, OS
+        if ((flags & FEXTRA) != 0) {
+            skipBytes(nextByte() | (nextByte() << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            while (nextByte() != 0);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (nextByte() != 0);
+        }
+        if ((flags & FHCRC) != 0) {
+            skipBytes(2);
+        }
+        inf.reset();
+        crc.reset();
+        inf.setInput(buf, bufferPos, len - bufferPos);
+        members++;
+        return true;
+    }
+
+    private void readTrailer() throws IOException {
+        long expectedCRC = readInt();
+        long expectedSize = readInt();
+        if (expectedCRC != crc.getValue()) {
+            throw new ZipException("Corrupt GZIP trailer: CRC mismatch");
+        }
+        if (expectedSize != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer: Size mismatch");
+        }
+    }
+
+    private long readInt() throws IOException {
+        return (nextByte() | (nextByte() << 8) | (nextByte() << 16) | ((long) nextByte() << 24)) & 0xffffffffL;
+    }
+
+    private void skipBytes(int count) throws IOException {
+        for (int i = 0 ; i < count ; i++) {
+            nextByte();
+        }
+    }
+
+    private int nextByte() throws IOException {
+        int b = nextByteOrEOF();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of gzip stream");
+        }
+        return b;
+    }
+
+    private int nextByteOrEOF() throws IOException {
+        if (bufferPos == len) {
+            int read = in.read(buf, 0, buf.length);
+            if (read <= 0) {
+                return -1;
+            }
+            len = read;
+            bufferPos = 0;
+        }
+        return buf[bufferPos++] & 0xFF;
+    }
+}
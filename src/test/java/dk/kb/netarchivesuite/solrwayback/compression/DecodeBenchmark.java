@@ -0,0 +1,175 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.compression;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import dk.kb.netarchivesuite.solrwayback.util.PooledGZIPInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Micro benchmark for decoding of records in the compressed test WARCs. The WARCs are held in memory, so that only
+ * decoding is measured.
+ * <p>
+ * Decoding of the gzip members is measured with {@link GZIPInputStream} (before) and {@link PooledGZIPInputStream}
+ * (after), followed by the full {@link ArcEntry#getBinaryDecoded()} pipeline with header parsing, de-chunking
+ * and HTTP-level decompression.
+ * <p>
+ * Not a unit test: Run with {@code main}, optionally with the number of rounds as argument.
+ */
+public class DecodeBenchmark {
+    private static final String[] WARCS = new String[]{
+            "src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz",
+            "src/test/resources/compressions_warc/transfer_compression_none.warc.gz",
+            "src/test/resources/compressions_warc/transfer_compression_gzip.warc.gz",
+            "src/test/resources/compressions_warc/transfer_compression_gzip_chunked.warc.gz",
+            "src/test/resources/compressions_warc/transfer_compression_brotli.warc.gz"
+    };
+    private static final int REPEATS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        List<Record> records = loadRecords();
+        System.out.println("Loaded " + records.size() + " gzip members");
+
+        for (int round = 1 ; round <= rounds ; round++) {
+            measure(round, "GZIPInputStream      ", records, in -> new GZIPInputStream(in));
+            measure(round, "PooledGZIPInputStream", records, PooledGZIPInputStream::new);
+            measureEntries(round, records);
+        }
+    }
+
+    private interface Decoder {
+        InputStream open(InputStream in) throws IOException;
+    }
+
+    private static void measure(int round, String designation, List<Record> records, Decoder decoder)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        long bytes = 0;
+        long startNS = System.nanoTime();
+        for (int repeat = 0 ; repeat < REPEATS ; repeat++) {
+            for (Record record: records) {
+                try (InputStream in = decoder.open(
+                        new ByteArrayInputStream(record.warc, (int) record.offset, record.length))) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        bytes += read;
+                    }
+                }
+            }
+        }
+        report(round, designation, records.size()*REPEATS, bytes, System.nanoTime()-startNS);
+    }
+
+    private static void measureEntries(int round, List<Record> records) throws Exception {
+        byte[] buffer = new byte[8192];
+        long bytes = 0;
+        long decoded = 0;
+        long startNS = System.nanoTime();
+        for (int repeat = 0 ; repeat < REPEATS ; repeat++) {
+            for (Record record: records) {
+                if (!record.parsable) {
+                    continue;
+                }
+                ArcEntry entry = WarcParser.getWarcEntry(record.source, record.offset);
+                try (InputStream in = entry.getBinaryDecoded()) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        bytes += read;
+                    }
+                }
+                decoded++;
+            }
+        }
+        report(round, "ArcEntry decoded     ", decoded, bytes, System.nanoTime()-startNS);
+    }
+
+    private static void report(int round, String designation, long records, long bytes, long spendNS) {
+        System.out.println(String.format(
+                Locale.ROOT, "Round %2d: %s %d records (%d KB) in %d ms: %.0f ns/record, %.1f MB/s",
+                round, designation, records, bytes/1024, spendNS/1000000, spendNS*1.0/records,
+                bytes*1000.0/spendNS));
+    }
+
+    /**
+     * @return the gzip members in {@link #WARCS}.
+     */
+    private static List<Record> loadRecords() throws Exception {
+        List<Record> records = new ArrayList<>();
+        for (String warcName: WARCS) {
+            byte[] warc = FileUtils.readFileToByteArray(UnitTestUtils.getFile(warcName));
+            ArcSource source = new ArcSource(warcName, () -> new ByteArrayInputStream(warc));
+            List<Integer> offsets = new ArrayList<>();
+            for (int offset = 0 ; offset < warc.length-2 ; offset++) {
+                if ((warc[offset] & 0xFF) != 0x1f || (warc[offset+1] & 0xFF) != 0x8b || warc[offset+2] != 8) {
+                    continue;
+                }
+                if (isWarcRecord(warc, offset)) { // Else magic bytes inside of compressed data
+                    offsets.add(offset);
+                }
+            }
+            for (int i = 0 ; i < offsets.size() ; i++) {
+                int offset = offsets.get(i);
+                int length = (i < offsets.size()-1 ? offsets.get(i+1) : warc.length) - offset;
+                boolean parsable = true;
+                try {
+                    WarcParser.getWarcEntry(source, offset).getBinaryDecoded().close();
+                } catch (Exception e) {
+                    parsable = false; // Record types not supported by the parser, such as request and warcinfo
+                }
+                records.add(new Record(warc, source, offset, length, parsable));
+            }
+        }
+        return records;
+    }
+
+    private static boolean isWarcRecord(byte[] warc, int offset) {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(warc, offset, warc.length-offset))) {
+            byte[] start = new byte[5];
+            return IOUtils.read(in, start) == 5 && "WARC/".equals(new String(start, StandardCharsets.ISO_8859_1));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class Record {
+        final byte[] warc;
+        final ArcSource source;
+        final long offset;
+        final int length; // Compressed
+        final boolean parsable;
+
+        Record(byte[] warc, ArcSource source, long offset, int length, boolean parsable) {
+            this.warc = warc;
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+            this.parsable = parsable;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.export;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.solr.NetarchiveSolrTestClient;
+import dk.kb.netarchivesuite.solrwayback.solr.SolrStreamDirect;
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class ResumableWarcExportTest {
+    private static final Logger log = LoggerFactory.getLogger(ResumableWarcExportTest.class);
+
+    private static final String WARC = "example_warc/IAH-20080430204825-00000-blackbook.warc.gz";
+    private static final int TEST_RECORDS = 250; // More than 2 pages of 100 documents
+    private static final String SOLR_HOME = "target/test-classes/solr_9";
+    private static CoreContainer coreContainer= null;
+    private static EmbeddedSolrServer embeddedServer = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+
+        // Embedded Solr 9.1+ must have absolute home both as env and explicit param
+        System.setProperty("solr.install.dir", Path.of(SOLR_HOME).toAbsolutePath().toString());
+        coreContainer = CoreContainer.createAndLoad(Path.of(SOLR_HOME).toAbsolutePath());
+        coreContainer.load();
+        embeddedServer = new EmbeddedSolrServer(coreContainer,"netarchivebuilder");
+        NetarchiveSolrTestClient.initializeOverLoadUnitTest(embeddedServer);
+
+        // Remove any items from previous executions:
+        embeddedServer.deleteByQuery("*:*"); //This is not on the NetarchiveSolrClient API!
+
+        fillSolr();
+        SolrStreamDirect.setDefaultSolrClient(embeddedServer);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        coreContainer.shutdown();
+        embeddedServer.close();
+    }
+
+    @Test
+    public void testResumeFromOffset() throws IOException {
+        for (boolean gzip: new boolean[]{false, true}) {
+            // Small checkpoint interval to get checkpoints in different pages
+            ResumableWarcExport job = ResumableWarcExport.create("*:*", new String[0], gzip, TEST_RECORDS, 20*1024);
+            byte[] full = IOUtils.toByteArray(job.open(0));
+            log.debug("Full export with gzip={} has {} bytes and {} checkpoints",
+                      gzip, full.length, job.getCheckpointCount());
+            assertTrue("There should be checkpoints beyond the start with gzip=" + gzip,
+                       job.getCheckpointCount() > 3);
+
+            for (int offset: new int[]{1, 1000, full.length/3, full.length/2, full.length*4/5, full.length-1}) {
+                byte[] resumed = IOUtils.toByteArray(job.open(offset));
+                assertArrayEquals(String.format(
+                        Locale.ROOT, "Resuming at offset %d/%d with gzip=%b should deliver the tail of the export",
+                        offset, full.length, gzip), Arrays.copyOfRange(full, offset, full.length), resumed);
+            }
+        }
+    }
+
+    @Test
+    public void testResumeWithoutCheckpoints() throws IOException {
+        byte[] full = IOUtils.toByteArray(ResumableWarcExport.create("*:*", new String[0], false, TEST_RECORDS).open(0));
+
+        ResumableWarcExport job = ResumableWarcExport.create("*:*", new String[0], false, TEST_RECORDS);
+        int offset = full.length/2;
+        assertArrayEquals("Resuming a new job should deliver the tail of the export",
+                          Arrays.copyOfRange(full, offset, full.length), IOUtils.toByteArray(job.open(offset)));
+    }
+
+    @Test
+    public void testMaxRecords() throws IOException {
+        final int maxRecords = 150;
+        ResumableWarcExport job = ResumableWarcExport.create("*:*", new String[0], false, maxRecords, 20*1024);
+        byte[] full = IOUtils.toByteArray(job.open(0));
+        int offset = full.length*4/5; // Beyond the checkpoint for the first 100 records
+        assertArrayEquals("Resuming should respect the maximum number of records",
+                          Arrays.copyOfRange(full, offset, full.length), IOUtils.toByteArray(job.open(offset)));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testResumeBeyondEnd() throws IOException {
+        ResumableWarcExport job = ResumableWarcExport.create("*:*", new String[0], false, TEST_RECORDS);
+        byte[] full = IOUtils.toByteArray(job.open(0));
+        job.open(full.length + 10);
+    }
+
+    /**
+     * Index the first {@link #TEST_RECORDS} records from {@link #WARC}, using the offsets from its CDX.
+     */
+    private static void fillSolr() throws SolrServerException, IOException {
+        String warcPath = UnitTestUtils.getFile(WARC).getCanonicalPath();
+        List<String> cdx = Files.readAllLines(
+                UnitTestUtils.getFile(WARC + ".cdx").toPath(), StandardCharsets.UTF_8);
+        // The first line is the CDX header: " CDX N b a m s k r M S V g" where V is the offset
+        for (int i = 1 ; i <= TEST_RECORDS ; i++) {
+            SolrInputDocument document = new SolrInputDocument();
+            document.setField("id", String.format(Locale.ROOT, "doc_%04d", i));
+            document.addField("source_file_path", warcPath);
+            document.addField("source_file_offset", Long.parseLong(cdx.get(i).split(" ")[9]));
+            embeddedServer.add(document);
+        }
+        embeddedServer.commit();
+        log.info("Filled embedded server with {} documents", TEST_RECORDS);
+    }
+}
@@ -25,10 +25,13 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 public class AutoFileResolverTest {
     private static final String KNOWN_ARC_WITH_PATH = "example_arc/IAH-20080430204825-00000-blackbook.arc";
@@ -56,7 +59,87 @@ public class AutoFileResolverTest {
         }
     }
 
-    
+    @Test
+    public void parallelScan() throws IOException {
+        Path tmpdir = Files.createTempDirectory("autoresolver_");
+        try {
+            // Create a nested folder structure with 2 WARCs in each folder
+            for (int year = 2020 ; year < 2023 ; year++) {
+                for (int month = 1 ; month <= 12 ; month++) {
+                    Path folder = tmpdir.resolve(Integer.toString(year)).resolve(Integer.toString(month));
+                    Files.createDirectories(folder);
+                    Files.write(folder.resolve(year + "_" + month + "_a.warc.gz"), "moo".getBytes(StandardCharsets.UTF_8));
+                    Files.write(folder.resolve(year + "_" + month + "_b.arc"), "moo".getBytes(StandardCharsets.UTF_8));
+                    Files.write(folder.resolve("readme.txt"), "moo".getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            Map<String, String> config = new HashMap<>();
+            config.put(AutoFileResolver.ROOTS_KEY, tmpdir.toString());
+            config.put(AutoFileResolver.SCAN_THREADS_KEY, "4");
+            AutoFileResolver resolver = new AutoFileResolver();
+            resolver.setParameters(config);
+            resolver.initialize();
+
+            Path expected = tmpdir.resolve("2021").resolve("7").resolve("2021_7_b.arc");
+            assertEquals("The WARC should be resolved to the right folder",
+                         expected.toString(), resolver.resolveArcFileLocation("2021_7_b.arc").getSource());
+            assertTrue("Progress should state the number of WARCs but was " + resolver.getProgress(),
+                       resolver.getProgress().contains("with 72 WARCs"));
+        } finally {
+            try (Stream<Path> paths = Files.walk(tmpdir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void unchangedFolderSkip() throws IOException {
+        Path tmpdir = Files.createTempDirectory("autoresolver_");
+        try {
+            // Folders with modification times well before the scans, so that they qualify for skipping
+            FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60*1000);
+            for (String name: Arrays.asList("a", "b", "c")) {
+                Path folder = tmpdir.resolve(name);
+                Files.createDirectories(folder);
+                Files.write(folder.resolve(name + ".warc"), "moo".getBytes(StandardCharsets.UTF_8));
+                Files.setLastModifiedTime(folder, old);
+            }
+            Files.setLastModifiedTime(tmpdir, old);
+
+            Map<String, String> config = new HashMap<>();
+            config.put(AutoFileResolver.ROOTS_KEY, tmpdir.toString());
+            AutoFileResolver resolver = new AutoFileResolver();
+            resolver.setParameters(config);
+
+            // run() performs a single synchronous scan when rescan is disabled
+            resolver.run();
+            assertTrue("All folders should be listed on first scan but progress was " + resolver.getProgress(),
+                       resolver.getProgress().contains("4 folders (0 unchanged) with 3 WARCs"));
+            resolver.run();
+            assertTrue("No folders should be listed on unchanged rescan but progress was " + resolver.getProgress(),
+                       resolver.getProgress().contains("4 folders (4 unchanged) with 3 WARCs"));
+
+            // Touch folder a by adding a WARC. Add a WARC to folder b but keep its modification time
+            Files.write(tmpdir.resolve("a").resolve("new.warc"), "moo".getBytes(StandardCharsets.UTF_8));
+            Files.write(tmpdir.resolve("b").resolve("hidden.warc"), "moo".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(tmpdir.resolve("b"), old);
+
+            resolver.run();
+            assertTrue("Only the touched folder should be listed on rescan but progress was " + resolver.getProgress(),
+                       resolver.getProgress().contains("4 folders (3 unchanged) with 4 WARCs"));
+            assertEquals("The WARC in the touched folder should be resolved",
+                         tmpdir.resolve("a").resolve("new.warc").toString(),
+                         resolver.resolveArcFileLocation("new.warc").getSource());
+            assertEquals("The WARC in the folder with unchanged modification time should not be resolved",
+                         "hidden.warc", resolver.resolveArcFileLocation("hidden.warc").getSource());
+        } finally {
+            try (Stream<Path> paths = Files.walk(tmpdir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
     /**
     @Test
     public void testRescan() throws IOException, InterruptedException {
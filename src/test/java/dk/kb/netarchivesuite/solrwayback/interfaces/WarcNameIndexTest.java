@@ -0,0 +1,112 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.interfaces;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WarcNameIndexTest {
+
+    @Test
+    public void testLookup() {
+        WarcNameIndex index = new WarcNameIndex.Builder()
+                .add("foo.warc", "/a/b")
+                .add("bar.warc.gz", "/a/c")
+                .add("zoo.arc", "/a/b")
+                .add("æøå.warc", "/a/c")
+                .build();
+        assertEquals("All names should be indexed", 4, index.size());
+        assertEquals("Folders should only be stored once", 2, index.folderCount());
+        assertEquals("/a/b", index.get("foo.warc"));
+        assertEquals("/a/c", index.get("bar.warc.gz"));
+        assertEquals("/a/b", index.get("zoo.arc"));
+        assertEquals("Non-ASCII names should be resolvable", "/a/c", index.get("æøå.warc"));
+        assertNull("Unknown names should not be resolvable", index.get("unknown.warc"));
+        assertNull("Prefixes should not be resolvable", index.get("foo.war"));
+    }
+
+    @Test
+    public void testDuplicates() {
+        WarcNameIndex index = new WarcNameIndex.Builder()
+                .add("foo.warc", "/a/b")
+                .add("bar.warc", "/a/b")
+                .add("foo.warc", "/a/c")
+                .build();
+        assertEquals("Duplicates should be collapsed", 2, index.size());
+        assertEquals("The last added folder should be used for duplicates", "/a/c", index.get("foo.warc"));
+    }
+
+    @Test
+    public void testManyRandom() {
+        Random random = new Random(87);
+        WarcNameIndex.Builder builder = new WarcNameIndex.Builder();
+        String[] names = new String[10000];
+        for (int i = 0 ; i < names.length ; i++) {
+            names[i] = "warc_" + random.nextInt() + "_" + i + ".warc.gz";
+            builder.add(names[i], "/folder/" + (i % 17));
+        }
+        WarcNameIndex index = builder.build();
+        assertEquals(names.length, index.size());
+        for (int i = 0 ; i < names.length ; i++) {
+            assertEquals("The name '" + names[i] + "' should be resolvable",
+                         "/folder/" + (i % 17), index.get(names[i]));
+        }
+    }
+
+    @Test
+    public void testDiff() {
+        WarcNameIndex old = new WarcNameIndex.Builder()
+                .add("unchanged.warc", "/a")
+                .add("moved.warc", "/a")
+                .add("removed.warc", "/a")
+                .build();
+        WarcNameIndex current = new WarcNameIndex.Builder()
+                .add("unchanged.warc", "/a")
+                .add("moved.warc", "/b")
+                .add("added.warc", "/a")
+                .build();
+        assertEquals("Diff should contain added, moved and removed names",
+                     new HashSet<>(Arrays.asList("moved.warc", "removed.warc", "added.warc")),
+                     old.diff(current));
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        WarcNameIndex index = new WarcNameIndex.Builder()
+                .add("foo.warc", "/a/b")
+                .add("bar.warc.gz", "/a/c")
+                .build();
+        Path snapshot = Files.createTempFile("warcnames_", ".snapshot");
+        try {
+            index.write(snapshot);
+            WarcNameIndex loaded = WarcNameIndex.read(snapshot);
+            assertEquals("The loaded index should have the same size", index.size(), loaded.size());
+            assertEquals("/a/b", loaded.get("foo.warc"));
+            assertEquals("/a/c", loaded.get("bar.warc.gz"));
+            assertTrue("There should be no difference between stored and loaded index",
+                       index.diff(loaded).isEmpty());
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.RewriteLocationResolver;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArcParserFileResolverTest extends UnitTestUtils {
+
+  @Before
+  public void setUpProperties()  throws Exception{
+      PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+      ArcParserFileResolver.setArcFileLocationResolver(new RewriteLocationResolver()); // Fresh cache
+  }
+
+  @After
+  public void resetCache() {
+      PropertiesLoader.WARC_FILE_RESOLVER_CACHE_SIZE = 10000;
+      ArcParserFileResolver.setArcFileLocationResolver(new RewriteLocationResolver());
+  }
+
+  @Test
+  public void testCacheSizeBound() throws Exception {
+    PropertiesLoader.WARC_FILE_RESOLVER_CACHE_SIZE = 2;
+    ArcParserFileResolver.setArcFileLocationResolver(new RewriteLocationResolver());
+    final String[][] requests = new String[][]{
+            {getFile("compressions_warc/transfer_compression_none.warc.gz").getCanonicalPath(), "881"},
+            {getFile("compressions_warc/transfer_compression_gzip.warc.gz").getCanonicalPath(), "899"},
+            {getFile("example_warc/IAH-20080430204825-00000-blackbook.warc.gz").getCanonicalPath(), "0"}
+    };
+    ArcParserFileResolver.getArcEntries(
+            Arrays.asList(requests), request -> request[0], request -> Long.parseLong(request[1]));
+
+    assertEquals("The cache should use the size from the properties loaded before first use",
+                 2, ArcParserFileResolver.getCache().capacity());
+    assertTrue("The cache should hold at most 2 locations, but held " + ArcParserFileResolver.getCache().size(),
+               ArcParserFileResolver.getCache().size() <= 2);
+  }
+
+  @Test
+  public void testCacheMetrics() throws Exception {
+    final String WARC = getFile("compressions_warc/transfer_compression_none.warc.gz").getCanonicalPath();
+    ArcParserFileResolver.getArcEntry(WARC, 881);
+    ArcParserFileResolver.getArcEntry(WARC, 881);
+    ArcParserFileResolver.getArcEntry(WARC, 881);
+
+    assertEquals("All lookups should be counted", 3, ArcParserFileResolver.getCache().getCalls());
+    assertEquals("All lookups but the first should be hits", 2, ArcParserFileResolver.getCache().getHits());
+    assertTrue("The stats should include the hits, but was " + ArcParserFileResolver.getCacheStats(),
+               ArcParserFileResolver.getCacheStats().contains("hits=2/3"));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    final String WARC = getFile("compressions_warc/transfer_compression_none.warc.gz").getCanonicalPath();
+    final String OTHER = getFile("compressions_warc/transfer_compression_gzip.warc.gz").getCanonicalPath();
+    ArcParserFileResolver.getArcEntry(WARC, 881);
+    ArcParserFileResolver.getArcEntry(OTHER, 899);
+    assertTrue("The location should be cached", ArcParserFileResolver.getCache().containsKey(WARC));
+
+    ArcParserFileResolver.invalidate(Collections.singletonList("transfer_compression_none.warc.gz"));
+    assertFalse("The location for the invalidated file name should be removed",
+                ArcParserFileResolver.getCache().containsKey(WARC));
+    assertTrue("The location for other files should be kept",
+               ArcParserFileResolver.getCache().containsKey(OTHER));
+  }
+
+  @Test
+  public void testGetArcEntries() throws Exception {
+    final String ARC = getFile("example_arc/IAH-20080430204825-00000-blackbook.arc.gz").getCanonicalPath();
+    final String WARC = getFile("compressions_warc/transfer_compression_none.warc.gz").getCanonicalPath();
+    final String[][] requests = new String[][]{
+            {WARC, "881"},
+            {ARC, "124759"},
+            {WARC + "_nonexisting", "881"},
+            {WARC, "5"}, // Not the start of a record
+            {ARC, "124759"}
+    };
+
+    List<ArcEntry> entries = ArcParserFileResolver.getArcEntries(
+            Arrays.asList(requests), request -> request[0], request -> Long.parseLong(request[1]));
+
+    assertEquals("There should be an entry for each request", requests.length, entries.size());
+    assertEquals("The first entry should be from the WARC", 881, entries.get(0).getOffset());
+    assertEquals("The first entry should be from the WARC", ArcEntry.FORMAT.WARC, entries.get(0).getFormat());
+    assertEquals("The second entry should be from the ARC", ArcEntry.FORMAT.ARC, entries.get(1).getFormat());
+    assertNull("The entry for the non-existing WARC should be null", entries.get(2));
+    assertNull("The entry for the invalid offset should be null", entries.get(3));
+    assertEquals("The repeated ARC request should give the same record",
+                 entries.get(1).getUrl(), entries.get(4).getUrl());
+  }
+}
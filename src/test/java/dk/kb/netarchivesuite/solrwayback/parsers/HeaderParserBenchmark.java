@@ -0,0 +1,122 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Micro benchmark for header parsing of the records in the test WARCs. The records are decompressed and held in
+ * memory up front, so that only header parsing is measured.
+ * <p>
+ * Not a unit test: Run with {@code main}, optionally with the number of rounds as argument.
+ */
+public class HeaderParserBenchmark {
+    private static final String[] WARCS = new String[]{
+            "src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz",
+            "src/test/resources/compressions_warc/transfer_compression_none.warc.gz",
+            "src/test/resources/compressions_warc/transfer_compression_gzip.warc.gz",
+            "src/test/resources/compressions_warc/transfer_compression_brotli.warc.gz"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        List<byte[]> records = loadRecords();
+        System.out.println("Loaded " + records.size() + " records with parsable headers");
+
+        for (int round = 1 ; round <= rounds ; round++) {
+            long headerBytes = 0;
+            long parsed = 0;
+            long startNS = System.nanoTime();
+            for (int repeat = 0 ; repeat < 1000 ; repeat++) {
+                for (byte[] record: records) {
+                    ArcEntry entry = parse(record);
+                    headerBytes += entry.getHeaderLength();
+                    parsed++;
+                }
+            }
+            long spendNS = System.nanoTime() - startNS;
+            System.out.println(String.format(
+                    Locale.ROOT, "Round %2d: %d headers (%d MB) in %d ms: %.0f ns/header, %.0f MB/s",
+                    round, parsed, headerBytes/1048576, spendNS/1000000, spendNS*1.0/parsed,
+                    headerBytes*1000.0/spendNS));
+        }
+    }
+
+    private static ArcEntry parse(byte[] record) throws Exception {
+        return WarcParser.getWarcEntryNotZipped(
+                new ArcSource("benchmark.warc", () -> new ByteArrayInputStream(record)), 0);
+    }
+
+    /**
+     * @return the uncompressed records from {@link #WARCS} where the headers can be parsed.
+     */
+    private static List<byte[]> loadRecords() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (String warc: WARCS) {
+            byte[] content;
+            try (InputStream in = new GZIPInputStream(new FileInputStream(UnitTestUtils.getFile(warc)))) {
+                content = IOUtils.toByteArray(in); // All members
+            }
+            int offset = 0;
+            while (offset < content.length) {
+                int next = nextRecord(content, offset);
+                byte[] record = Arrays.copyOfRange(content, offset, next);
+                try {
+                    parse(record);
+                    records.add(record);
+                } catch (Exception e) {
+                    // Record types not supported by the parser, such as request and warcinfo
+                }
+                offset = next;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the offset of the record following the one at the given offset in an uncompressed WARC.
+     */
+    private static int nextRecord(byte[] content, int offset) throws IOException {
+        HeaderParser parser = HeaderParser.acquire(
+                new ByteArrayInputStream(content, offset, content.length-offset));
+        try {
+            long contentLength = -1;
+            while (parser.readLine()) {
+                if (parser.startsWith(HeaderParser.name("Content-Length:"))) {
+                    contentLength = parser.getLong("Content-Length:".length());
+                }
+            }
+            if (contentLength == -1) {
+                throw new IOException("No Content-Length for record at offset " + offset);
+            }
+            return (int) Math.min(content.length, offset + parser.getConsumed() + contentLength + 4); // CRLFCRLF
+        } finally {
+            parser.release();
+        }
+    }
+}
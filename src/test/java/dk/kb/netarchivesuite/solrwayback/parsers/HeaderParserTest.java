@@ -0,0 +1,149 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.parsers;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class HeaderParserTest {
+    private static final String HEADERS =
+            "WARC/1.0\r\n" +
+            "content-length:\t 1234 \r\n" +
+            "Content-Type: text/html; charset=\"utf-8\"\n" +
+            "\r\n" +
+            "binary";
+
+    @Test
+    public void testLines() throws IOException {
+        assertLines(new ByteArrayInputStream(HEADERS.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void testLinesSingleByteReads() throws IOException {
+        // Forces refills in the middle of lines and between CR and LF
+        assertLines(new FilterInputStream(new ByteArrayInputStream(HEADERS.getBytes(StandardCharsets.ISO_8859_1))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(1, len));
+            }
+        });
+    }
+
+    private void assertLines(InputStream in) throws IOException {
+        HeaderParser parser = HeaderParser.acquire(in);
+        try {
+            assertTrue(parser.readLine());
+            assertTrue("The first line should match the prefix", parser.startsWith(HeaderParser.name("WARC/")));
+
+            assertTrue(parser.readLine());
+            assertTrue("Header names should match regardless of case",
+                       parser.startsWith(HeaderParser.name("Content-Length:")));
+            assertEquals("Content-Length should be parsed past whitespace",
+                         1234, parser.getLong("Content-Length:".length()));
+
+            assertTrue(parser.readLine());
+            assertEquals("The value should be trimmed",
+                         "text/html; charset=\"utf-8\"", parser.getValue("Content-Type:".length()));
+
+            assertFalse("The empty line should end the header block", parser.readLine());
+            assertEquals("The consumed bytes should match the source line breaks",
+                         HEADERS.length() - "binary".length(), parser.getConsumed());
+            assertEquals("The header bytes should use CRLF as line breaks",
+                         "WARC/1.0\r\ncontent-length:\t 1234 \r\nContent-Type: text/html; charset=\"utf-8\"\r\n\r\n",
+                         new String(parser.getHeaderBytes(), StandardCharsets.ISO_8859_1));
+            assertEquals("The remaining stream should start after the headers",
+                         "binary", IOUtils.toString(parser.getRemaining(), StandardCharsets.ISO_8859_1));
+        } finally {
+            parser.release();
+        }
+    }
+
+    @Test
+    public void testStatusCode() throws IOException {
+        HeaderParser parser = HeaderParser.acquire(new ByteArrayInputStream(
+                "HTTP/1.1 302 Object moved\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        try {
+            parser.readLine();
+            assertEquals(302, parser.getStatusCode());
+        } finally {
+            parser.release();
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws IOException {
+        HeaderParser parser = HeaderParser.acquire(new ByteArrayInputStream(
+                "WARC/1.0\r\nContent-Len".getBytes(StandardCharsets.ISO_8859_1)));
+        try {
+            parser.readLine();
+            parser.readLine();
+        } finally {
+            parser.release();
+        }
+    }
+
+    @Test
+    public void testNested() throws IOException {
+        HeaderParser outer = HeaderParser.acquire(new ByteArrayInputStream("outer\n".getBytes(StandardCharsets.UTF_8)));
+        HeaderParser inner = HeaderParser.acquire(new ByteArrayInputStream("inner\n".getBytes(StandardCharsets.UTF_8)));
+        try {
+            assertNotSame("Parsers in use should not be handed out again", outer, inner);
+            outer.readLine();
+            inner.readLine();
+            assertEquals("outer", outer.getLine());
+            assertEquals("inner", inner.getLine());
+        } finally {
+            inner.release();
+            outer.release();
+        }
+    }
+
+    @Test
+    public void testArcEntry() throws Exception {
+        ArcSource source = ArcSource.fromFile(UnitTestUtils.getFile(
+                "src/test/resources/example_arc/IAH-20080430204825-00000-blackbook.arc.gz").getCanonicalPath());
+
+        ArcEntry robots = ArcParser.getArcEntry(source, 782);
+        assertEquals("http://www.archive.org/robots.txt", robots.getUrl());
+        assertEquals("robots.txt", robots.getFileName());
+        assertEquals("207.241.229.39", robots.getIp());
+        assertEquals("20080430204825", robots.getWaybackDate());
+        assertEquals("text/plain", robots.getContentType());
+        assertEquals(200, robots.getStatus_code());
+        assertTrue("The header should start with the ARC line",
+                   robots.getHeader().startsWith("http://www.archive.org/robots.txt 207.241.229.39 " +
+                                                 "20080430204825 text/plain 782\r\nHTTP/1.1 200 OK\r\n"));
+
+        ArcEntry image = ArcParser.getArcEntry(source, 7733);
+        assertEquals("image/jpeg", image.getContentType());
+        assertArrayEquals("The binary should be the same with and without re-parsing of the headers",
+                          IOUtils.toByteArray(ArcParser.lazyLoadContent(source, 7733)),
+                          IOUtils.toByteArray(image.getBinaryRaw()));
+        assertEquals("The binary should have the stated size",
+                     image.getBinaryArraySize(), IOUtils.toByteArray(image.getBinaryRaw()).length);
+    }
+}
@@ -17,14 +17,21 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
+import java.util.Set;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -243,6 +250,73 @@ public class TestExportWarcStreaming extends UnitTestUtils {
     }
   }
 
+  @Test
+  public void testMultiExportReadAheadLimits() throws Exception {
+    final String WARC = "example_warc/IAH-20080430204825-00000-blackbook.warc.gz";
+    final int RECORDS = 30;
+    // HTTP response records from the CDX: " CDX N b a m s k r M S V g" where a is the URL, m is the MIME type
+    // (warc/request and warc/metadata for non-response records) and V is the offset.
+    // The warcinfo, dns:, request and metadata records are skipped as ArcEntry does not represent them
+    List<String[]> entryList = new ArrayList<>();
+    for (String line: Files.readAllLines(getFile(WARC + ".cdx").toPath(), StandardCharsets.UTF_8)) {
+      String[] tokens = line.split(" ");
+      if (tokens.length > 9 && tokens[2].startsWith("http") && !tokens[3].startsWith("warc/")) {
+        entryList.add(new String[]{WARC, tokens[9]});
+      }
+      if (entryList.size() == RECORDS) {
+        break;
+      }
+    }
+    assertEquals("The CDX should hold enough HTTP records", RECORDS, entryList.size());
+    // Shuffled so that delivery order differs from (W)ARC offset order
+    Collections.shuffle(entryList, new Random(87));
+    final String[][] entries = entryList.toArray(new String[0][]);
+
+    // The expected export is the single record exports, in document order
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    Set<String> distinct = new HashSet<>();
+    for (String[] entry: entries) {
+      byte[] single = IOUtils.toByteArray(new StreamingSolrWarcExportBufferedInputStream(
+              getMockedSolrDocs(new String[][]{entry}), 1, false, 1));
+      assertTrue("The record at offset " + entry[1] + " should be exported", single.length > 0);
+      distinct.add(new String(single, StandardCharsets.ISO_8859_1));
+      expected.write(single);
+    }
+    assertEquals("All records should be distinct", entries.length, distinct.size());
+
+    // 1 byte means that no records are read ahead, 3000 bytes means that some records are read ahead and some
+    // records are too large for read-ahead
+    for (long maxInFlightBytes: new long[]{1, 3000, 10*1024*1024}) {
+      InputStream exportStream = new StreamingSolrWarcExportBufferedInputStream(
+              getMockedSolrDocs(entries), entries.length, false, maxInFlightBytes);
+
+      byte[] exported = IOUtils.toByteArray(exportStream);
+      assertArrayEquals("The records should be exported in document order with read-ahead limit " +
+                        maxInFlightBytes, expected.toByteArray(), exported);
+    }
+  }
+
+  @Test
+  public void testRecordListener() throws Exception {
+    final String WARC = getFile("compressions_warc/transfer_compression_none.warc.gz").getCanonicalPath();
+    final long OFFSET = 881;
+    final int EXPECTED_EXPORT_LENGTH = 1102;
+    final int records = 5;
+
+    List<long[]> delivered = new ArrayList<>();
+    InputStream exportStream = new StreamingSolrWarcExportBufferedInputStream(
+            getMockedSolrDocs(WARC, OFFSET, records, 1), records, false)
+            .setRecordListener((docs, bytes) -> delivered.add(new long[]{docs, bytes}));
+    IOUtils.toByteArray(exportStream);
+
+    assertEquals("There should be a notification for each record", records, delivered.size());
+    for (int i = 0 ; i < records ; i++) {
+      assertEquals("The document count should match for record #" + i, i+1, delivered.get(i)[0]);
+      assertEquals("The byte count should match for record #" + i,
+                   (long) EXPECTED_EXPORT_LENGTH*(i+1), delivered.get(i)[1]);
+    }
+  }
+
   /**
    * Checks that the last exported binary is exported correctly.
    *
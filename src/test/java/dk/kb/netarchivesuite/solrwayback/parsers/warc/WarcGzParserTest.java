@@ -4,13 +4,21 @@ import static org.junit.Assert.*;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.junit.Test;
 
 import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
 import dk.kb.netarchivesuite.solrwayback.facade.Facade;
 import dk.kb.netarchivesuite.solrwayback.image.ImageUtils;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
 import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
 
 
@@ -59,6 +67,44 @@ public class WarcGzParserTest  extends UnitTestUtils{
     
     }
 
+    @Test
+    public void testBinaryWithoutReparse() throws Exception {
+        File file = getFile("src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz");
+        for (long offset: new long[]{707, 2052, 11823, 16778, 48777}) {
+            ArcEntry arcEntry = Facade.getArcEntry(file.getCanonicalPath(), offset);
+            assertTrue("The header length should be known for offset " + offset, arcEntry.getHeaderLength() > 0);
+            assertArrayEquals("The binary for offset " + offset + " should match the re-parsed binary",
+                              IOUtils.toByteArray(WarcParser.lazyLoadBinary(arcEntry.getArcSource(), offset)),
+                              IOUtils.toByteArray(arcEntry.getBinaryRaw()));
+        }
+    }
+
+    @Test
+    public void testBinaryWithoutReparseNotZipped() throws Exception {
+        // Uncompressed copy of the robots.txt response entry, positioned after some padding
+        File gzFile = getFile("src/test/resources/example_warc/IAH-20080430204825-00000-blackbook.warc.gz");
+        ArcEntry gzEntry = Facade.getArcEntry(gzFile.getCanonicalPath(), 707);
+        byte[] entry;
+        try (InputStream is = new FileInputStream(gzFile)) {
+            IOUtils.skipFully(is, 707);
+            entry = IOUtils.toByteArray(new BoundedInputStream(new GZIPInputStream(is), 10000));
+        }
+        Path plain = Files.createTempFile("headerlength_", ".warc");
+        try {
+            byte[] padding = new byte[100];
+            Files.write(plain, padding);
+            Files.write(plain, entry, StandardOpenOption.APPEND);
+            ArcEntry arcEntry = Facade.getArcEntry(plain.toString(), padding.length);
+            assertEquals("The header length should match the compressed entry",
+                         gzEntry.getHeaderLength(), arcEntry.getHeaderLength());
+            assertArrayEquals("The binary should match the compressed entry",
+                              IOUtils.toByteArray(gzEntry.getBinaryRaw()),
+                              IOUtils.toByteArray(arcEntry.getBinaryRaw()));
+        } finally {
+            Files.delete(plain);
+        }
+    }
+
     /* The warc file used for these tests below can not be shared.
    
      @Test
@@ -0,0 +1,209 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.service;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import dk.kb.netarchivesuite.solrwayback.util.ByteRange;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SolrWaybackResourceTest {
+    // Uncompressed WARC with a non-chunked response record of 246 bytes
+    private static final String WARC = "compressions_warc/transfer_compression_none.warc";
+    private static final long OFFSET = 1198;
+    private static final int BINARY_SIZE = 246;
+    // Larger than the default maximum record size for the PayloadCache
+    private static final byte[] LARGE_PAYLOAD = new byte[200*1024];
+    static {
+        new Random(87).nextBytes(LARGE_PAYLOAD);
+    }
+
+    private ArcEntry arcEntry;
+    private String etag;
+    private byte[] binary;
+
+    @Before
+    public void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+        arcEntry = WarcParser.getWarcEntry(ArcSource.fromFile(UnitTestUtils.getFile(WARC).getCanonicalPath()), OFFSET);
+        etag = ByteRange.toETag(arcEntry.getPayloadDigest());
+        binary = toBytes(arcEntry.getBinaryNoChunking());
+        assertEquals("The test binary should have the expected size", BINARY_SIZE, binary.length);
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        Response response = new SolrWaybackResource().binaryResponse(arcEntry, request(null, null, null), etag).build();
+        assertEquals("Status should be OK", 200, response.getStatus());
+        assertEquals("ETag should be set", etag, response.getHeaderString("ETag"));
+        assertEquals("Ranges should be accepted", "bytes", response.getHeaderString("Accept-Ranges"));
+        assertArrayEquals("The full binary should be delivered", binary, toBytes(response.getEntity()));
+    }
+
+    @Test
+    public void testSingleRange() throws IOException {
+        Response response = new SolrWaybackResource().binaryResponse(
+                arcEntry, request("bytes=10-19", null, null), etag).build();
+        assertEquals("Status should be Partial Content", 206, response.getStatus());
+        assertEquals("Content-Range should match the request",
+                     "bytes 10-19/" + BINARY_SIZE, response.getHeaderString("Content-Range"));
+        assertEquals("Content-Length should be the range length", "10", response.getHeaderString("Content-Length"));
+        assertArrayEquals("The requested part of the binary should be delivered",
+                          Arrays.copyOfRange(binary, 10, 20), toBytes(response.getEntity()));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws IOException {
+        Response response = new SolrWaybackResource().binaryResponse(
+                arcEntry, request("bytes=1000-", null, null), etag).build();
+        assertEquals("Status should be Range Not Satisfiable", 416, response.getStatus());
+        assertEquals("Content-Range should state the full length",
+                     "bytes */" + BINARY_SIZE, response.getHeaderString("Content-Range"));
+        assertNull("There should be no entity", response.getEntity());
+    }
+
+    @Test
+    public void testETagMatch() throws IOException {
+        Response response = new SolrWaybackResource().binaryResponse(
+                arcEntry, request(null, etag, null), etag).build();
+        assertEquals("Status should be Not Modified", 304, response.getStatus());
+        assertEquals("ETag should be set", etag, response.getHeaderString("ETag"));
+        assertNull("There should be no entity", response.getEntity());
+    }
+
+    @Test
+    public void testIfRangeMismatch() throws IOException {
+        Response response = new SolrWaybackResource().binaryResponse(
+                arcEntry, request("bytes=10-19", null, "\"sha1:OTHER\""), etag).build();
+        assertEquals("Status should be OK as the If-Range entity tag does not match", 200, response.getStatus());
+        assertNull("There should be no Content-Range", response.getHeaderString("Content-Range"));
+        assertArrayEquals("The full binary should be delivered", binary, toBytes(response.getEntity()));
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        Path warc = createLargeWarc();
+        try {
+            ArcEntry largeEntry = WarcParser.getWarcEntry(ArcSource.fromFile(warc.toString()), 0);
+            assertTrue("The large binary should be transferable", largeEntry.isBinaryTransferable());
+            Response response = new SolrWaybackResource().binaryResponse(
+                    largeEntry, request("bytes=1000-1999", null, null), null).build();
+            assertEquals("Status should be Partial Content", 206, response.getStatus());
+            assertArrayEquals("The requested part of the binary should be transferred",
+                              Arrays.copyOfRange(LARGE_PAYLOAD, 1000, 2000), toBytes(response.getEntity()));
+        } finally {
+            Files.deleteIfExists(warc);
+        }
+    }
+
+    @Test
+    public void testSendfile() throws Exception {
+        Path warc = createLargeWarc();
+        try {
+            ArcEntry largeEntry = WarcParser.getWarcEntry(ArcSource.fromFile(warc.toString()), 0);
+            HttpServletRequest request = request("bytes=1000-1999", null, null);
+            when(request.getAttribute(SolrWaybackResource.SENDFILE_SUPPORT)).thenReturn(Boolean.TRUE);
+
+            Response response = new SolrWaybackResource().binaryResponse(largeEntry, request, null).build();
+            assertEquals("Status should be Partial Content", 206, response.getStatus());
+            assertEquals("Content-Length should be the range length", "1000", response.getHeaderString("Content-Length"));
+            assertEquals("The entity should be empty as Tomcat sends the file region",
+                         0, toBytes(response.getEntity()).length);
+
+            long binaryStart = Files.size(warc) - LARGE_PAYLOAD.length - 4; // The record ends with \r\n\r\n
+            verify(request).setAttribute(SolrWaybackResource.SENDFILE_FILENAME, warc.toAbsolutePath().toString());
+            verify(request).setAttribute(SolrWaybackResource.SENDFILE_START, binaryStart + 1000);
+            verify(request).setAttribute(SolrWaybackResource.SENDFILE_END, binaryStart + 2000);
+        } finally {
+            Files.deleteIfExists(warc);
+        }
+    }
+
+    /**
+     * Create an uncompressed WARC with a single response record, with a payload that is too large for the
+     * {@link dk.kb.netarchivesuite.solrwayback.util.PayloadCache}.
+     */
+    private static Path createLargeWarc() throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(("HTTP/1.1 200 OK\r\n" +
+                     "Content-Type: application/octet-stream\r\n" +
+                     "Content-Length: " + LARGE_PAYLOAD.length + "\r\n" +
+                     "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        block.write(LARGE_PAYLOAD);
+
+        Path warc = Files.createTempFile("resource_", ".warc");
+        try (OutputStream out = Files.newOutputStream(warc)) {
+            out.write(("WARC/1.0\r\n" +
+                       "WARC-Type: response\r\n" +
+                       "WARC-Record-ID: <urn:uuid:5f2b3c4e-0d6a-4e63-9a55-3c1f2a4b7e10>\r\n" +
+                       "WARC-Target-URI: <http://example.com/large.bin>\r\n" +
+                       "WARC-Date: 2019-08-15T14:06:11Z\r\n" +
+                       "Content-Type: application/http;msgtype=response\r\n" +
+                       "Content-Length: " + block.size() + "\r\n" +
+                       "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            block.writeTo(out);
+            out.write("\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return warc;
+    }
+
+    private static HttpServletRequest request(String range, String ifNoneMatch, String ifRange) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader("Range")).thenReturn(range);
+        when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+        when(request.getHeader("If-Range")).thenReturn(ifRange);
+        return request;
+    }
+
+    private static byte[] toBytes(Object entity) throws IOException {
+        if (entity instanceof byte[]) {
+            return (byte[]) entity;
+        }
+        if (entity instanceof InputStream) {
+            try (InputStream in = (InputStream) entity) {
+                return IOUtils.toByteArray(in);
+            }
+        }
+        if (entity instanceof StreamingOutput) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ((StreamingOutput) entity).write(out);
+            return out.toByteArray();
+        }
+        throw new IllegalArgumentException("Unsupported entity " + entity);
+    }
+}
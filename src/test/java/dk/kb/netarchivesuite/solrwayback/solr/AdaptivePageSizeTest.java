@@ -0,0 +1,103 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import org.apache.solr.common.SolrDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AdaptivePageSizeTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void testGrowSmallDocuments() {
+        AdaptivePageSize sizer = new AdaptivePageSize(100, 10, 10000, 1024*1024, 1000);
+        // 100 bytes/doc and 0.01 ms/doc: Both targets allow for more than 10000 docs
+        int previous = sizer.getPageSize();
+        for (int i = 0 ; i < 20 ; i++) {
+            int pageSize = sizer.getPageSize();
+            int next = sizer.update(pageSize, pageSize*100L, pageSize*MS/100);
+            assertTrue("The page size should at most double, but went from " + previous + " to " + next,
+                       next <= 2*previous);
+            previous = next;
+        }
+        assertEquals("The page size should grow to the maximum for small documents", 10000, sizer.getPageSize());
+    }
+
+    @Test
+    public void testShrinkLargeDocuments() {
+        AdaptivePageSize sizer = new AdaptivePageSize(1000, 10, 10000, 1024*1024, 1000);
+        // 100KB/doc: The size target allows for ~10 docs
+        for (int i = 0 ; i < 5 ; i++) {
+            int pageSize = sizer.getPageSize();
+            sizer.update(pageSize, pageSize*100*1024L, pageSize*MS/100);
+        }
+        assertEquals("The page size should shrink to match the target size", 10, sizer.getPageSize());
+    }
+
+    @Test
+    public void testLatency() {
+        AdaptivePageSize sizer = new AdaptivePageSize(100, 10, 10000, 1024*1024, 1000);
+        // 10 bytes/doc but 1ms/doc: The latency target allows for 1000 docs
+        for (int i = 0 ; i < 10 ; i++) {
+            int pageSize = sizer.getPageSize();
+            sizer.update(pageSize, pageSize*10L, pageSize*MS);
+        }
+        assertEquals("The page size should stop growing at the target latency", 1000, sizer.getPageSize());
+    }
+
+    @Test
+    public void testLatencyNoShrink() {
+        AdaptivePageSize sizer = new AdaptivePageSize(1000, 10, 10000, 1024*1024, 1000);
+        // 10 bytes/doc but 10ms/doc: The latency target allows for 100 docs
+        for (int i = 0 ; i < 5 ; i++) {
+            int pageSize = sizer.getPageSize();
+            sizer.update(pageSize, pageSize*10L, pageSize*10*MS);
+        }
+        assertEquals("Latency should not shrink the page size below the initial size", 1000, sizer.getPageSize());
+    }
+
+    @Test
+    public void testDeepPagingFixedCost() {
+        AdaptivePageSize sizer = new AdaptivePageSize(100, 10, 10000, 1024*1024, 1000);
+        // Deep cursorMark pages: 2 seconds of fixed cost per request and 0.01 ms/doc
+        for (int i = 0 ; i < 5 ; i++) {
+            int pageSize = sizer.getPageSize();
+            sizer.update(pageSize, pageSize*10L, 2000*MS + pageSize*MS/100);
+        }
+        assertEquals("A fixed cost per request should not shrink the page size", 100, sizer.getPageSize());
+    }
+
+    @Test
+    public void testSmallInitialPageSize() {
+        AdaptivePageSize sizer = new AdaptivePageSize(3, 10, 10000, 1024*1024, 1000);
+        // 100KB/doc: The size target allows for ~10 docs, which is the minimum
+        assertEquals("The page size should at most double toward the minimum",
+                     6, sizer.update(3, 3*100*1024L, 3*MS/100));
+        assertEquals("The page size should reach the minimum", 10, sizer.update(6, 6*100*1024L, 6*MS/100));
+    }
+
+    @Test
+    public void testEstimateBytes() {
+        SolrDocument doc = new SolrDocument();
+        doc.setField("url", "http://example.com/"); // 3 + 19
+        doc.setField("source_file_offset", 123L);  // 18 + 8
+        doc.setField("links", Arrays.asList("a", "bc")); // 5 + 3
+        assertEquals("The estimated size should be as expected", 56, AdaptivePageSize.estimateBytes(doc));
+    }
+}
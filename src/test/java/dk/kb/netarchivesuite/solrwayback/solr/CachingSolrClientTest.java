@@ -1,8 +1,26 @@
 package dk.kb.netarchivesuite.solrwayback.solr;
 
 import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
 import org.junit.Test;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /*
  *  Licensed under the Apache License, Version 2.0 (the "License");
  *  you may not use this file except in compliance with the License.
@@ -38,4 +56,185 @@ public class CachingSolrClientTest extends TestCase {
         assertEquals("The named cache (linked from query cache) time should match creation time",
                 CACHE_TIME_SECONDS*1000L, caching.namedCache.getMaxAgeMS());
     }
-}
\ No newline at end of file
+
+    public void testCoalescing() throws Exception {
+        final int THREADS = 5;
+        CachingSolrClient caching = new CachingSolrClient(null, 100, 100, 3);
+        QueryResponse response = new QueryResponse();
+        AtomicInteger solrCalls = new AtomicInteger(0);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<QueryResponse>> jobs = new ArrayList<>();
+            for (int i = 0 ; i < THREADS ; i++) {
+                jobs.add(executor.submit(() -> caching.cachedSolrCall("key", () -> {
+                    solrCalls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return response;
+                })));
+            }
+            long maxTime = System.currentTimeMillis() + 5000;
+            while (caching.getCoalesced() < THREADS-1 && System.currentTimeMillis() < maxTime) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<QueryResponse> job: jobs) {
+                assertSame("All callers should get the same response", response, job.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("The Solr call should only be issued once", 1, solrCalls.get());
+        assertEquals("All but one caller should be coalesced", THREADS-1, caching.getCoalesced());
+        assertEquals("There should be no in flight requests after processing", 0, caching.getInFlight());
+        assertSame("Subsequent calls should be served from cache",
+                response, caching.cachedSolrCall("key", () -> null));
+    }
+
+    public void testCoalescingException() {
+        CachingSolrClient caching = new CachingSolrClient(null, 100, 100, 3);
+        try {
+            caching.cachedSolrCall("key", () -> {
+                throw new IllegalStateException("Failing call");
+            });
+            fail("The call should throw an exception");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals("There should be no in flight requests after a failed call", 0, caching.getInFlight());
+        QueryResponse response = new QueryResponse();
+        assertSame("A failed call should not be cached", response, caching.cachedSolrCall("key", () -> response));
+    }
+
+    public void testCoalescingError() throws Exception {
+        CachingSolrClient caching = new CachingSolrClient(null, 100, 100, 3);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<QueryResponse> failing = executor.submit(() -> caching.cachedSolrCall("key", () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new StackOverflowError("Failing call");
+            }));
+            started.await(5, TimeUnit.SECONDS);
+            Future<QueryResponse> waiting = executor.submit(() -> caching.cachedSolrCall("key", QueryResponse::new));
+            long maxTime = System.currentTimeMillis() + 5000;
+            while (caching.getCoalesced() < 1 && System.currentTimeMillis() < maxTime) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<QueryResponse> job: Arrays.asList(failing, waiting)) {
+                try {
+                    job.get(5, TimeUnit.SECONDS);
+                    fail("The call should throw an Error");
+                } catch (ExecutionException e) {
+                    assertTrue("The cause should be the Error from the call, but was " + e.getCause(),
+                               e.getCause() instanceof StackOverflowError);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("There should be no in flight requests after a failed call", 0, caching.getInFlight());
+    }
+
+    public void testEstimateHeap() {
+        QueryResponse small = createResponse(1);
+        QueryResponse large = createResponse(1000);
+        long smallSize = CachingSolrClient.estimateHeap(small);
+        long largeSize = CachingSolrClient.estimateHeap(large);
+        assertTrue("A response with 1 document should be estimated to less than 1000 bytes, but was " + smallSize,
+                smallSize < 1000);
+        assertTrue("A response with 1000 documents should be estimated to be much larger than one with 1, but was " +
+                   largeSize + " vs. " + smallSize, largeSize > smallSize * 500);
+    }
+
+    public void testByteBoundedCache() {
+        QueryResponse response = createResponse(100);
+        long responseSize = CachingSolrClient.estimateHeap(response);
+        CachingSolrClient caching = new CachingSolrClient(null, 100, responseSize*5/2, 100, 3);
+        for (int i = 0 ; i < 10 ; i++) {
+            caching.cachedSolrCall("key" + i, () -> response);
+        }
+        assertEquals("Only 2 responses should fit in the cache", 2, caching.size());
+        assertTrue("The cached bytes should be within the limit",
+                caching.getCachedBytes() <= caching.getMaxCachedBytes());
+        assertTrue("toString should include the cached bytes", caching.toString().contains("bytes/maxBytes"));
+    }
+
+    private QueryResponse createResponse(int docCount) {
+        SolrDocumentList docs = new SolrDocumentList();
+        for (int i = 0 ; i < docCount ; i++) {
+            SolrDocument doc = new SolrDocument();
+            doc.setField("id", "doc_" + i);
+            doc.setField("url_norm", "http://example.com/some/path/page_" + i + ".html");
+            doc.setField("crawl_date", new java.util.Date());
+            docs.add(doc);
+        }
+        docs.setNumFound(docCount);
+        NamedList<Object> raw = new NamedList<>();
+        raw.add("response", docs);
+        QueryResponse response = new QueryResponse();
+        response.setResponse(raw);
+        return response;
+    }
+
+    public void testIndexChangedRevalidation() {
+        CachingSolrClient caching = new CachingSolrClient(null, 100, 100, 3);
+        SolrQuery indexTimeQuery = new SolrQuery("url_norm:\"http://example.com/\"");
+        indexTimeQuery.addFilterQuery("index_time:[* TO 2020-01-01T00:00:00Z]");
+        SolrQuery crawlDateQuery = new SolrQuery("*:*");
+        crawlDateQuery.addFilterQuery("domain:example.com");
+        crawlDateQuery.addFilterQuery("crawl_date:[2010-01-01T00:00:00Z TO 2015-01-01T00:00:00Z]");
+        SolrQuery openQuery = new SolrQuery("*:*");
+        openQuery.addFilterQuery("crawl_date:[2010-01-01T00:00:00Z TO *]");
+
+        QueryResponse response = new QueryResponse();
+        for (SolrQuery query: new SolrQuery[]{indexTimeQuery, crawlDateQuery, openQuery}) {
+            caching.cachedSolrCall("collection=foo_" + query, () -> response);
+        }
+
+        caching.indexChanged(Date.from(Instant.parse("2021-01-01T00:00:00Z")),
+                             Date.from(Instant.parse("2016-01-01T00:00:00Z")));
+        assertSame("index_time bounded query should be kept",
+                response, caching.cachedSolrCall("collection=foo_" + indexTimeQuery, QueryResponse::new));
+        assertSame("crawl_date bounded query before new documents should be kept",
+                response, caching.cachedSolrCall("collection=foo_" + crawlDateQuery, QueryResponse::new));
+        assertNotSame("Unbounded query should be discarded",
+                response, caching.cachedSolrCall("collection=foo_" + openQuery, QueryResponse::new));
+        assertEquals("The number of revalidated entries should be as expected", 2, caching.getRevalidated());
+
+        caching.indexChanged(Date.from(Instant.parse("2022-01-01T00:00:00Z")),
+                             Date.from(Instant.parse("2012-01-01T00:00:00Z")));
+        assertSame("index_time bounded query should be kept after second change",
+                response, caching.cachedSolrCall("collection=foo_" + indexTimeQuery, QueryResponse::new));
+        assertNotSame("crawl_date bounded query overlapping new documents should be discarded",
+                response, caching.cachedSolrCall("collection=foo_" + crawlDateQuery, QueryResponse::new));
+    }
+
+    public void testIndexChangedSkippedGenerations() {
+        CachingSolrClient caching = new CachingSolrClient(null, 100, 100, 3);
+        SolrQuery query = new SolrQuery("*:*");
+        query.addFilterQuery("crawl_date:[* TO 2015-01-01T00:00:00Z}");
+        QueryResponse response = new QueryResponse();
+        caching.cachedSolrCall(query.toString(), () -> response);
+
+        caching.indexChanged(Date.from(Instant.parse("2021-01-01T00:00:00Z")),
+                             Date.from(Instant.parse("2012-01-01T00:00:00Z")));
+        caching.indexChanged(Date.from(Instant.parse("2022-01-01T00:00:00Z")),
+                             Date.from(Instant.parse("2018-01-01T00:00:00Z")));
+        assertNotSame("Entry should be discarded as the first of two changes overlaps",
+                response, caching.cachedSolrCall(query.toString(), QueryResponse::new));
+    }
+}
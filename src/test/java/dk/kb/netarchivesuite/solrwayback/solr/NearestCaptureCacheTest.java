@@ -0,0 +1,153 @@
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.service.dto.IndexDocShort;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class NearestCaptureCacheTest extends TestCase {
+    private static final long DAY = 24*60*60*1000L;
+    private static final Date INDEX_TIME = Date.from(Instant.parse("2022-01-01T00:00:00Z"));
+
+    private Path cacheFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        cacheFile = Files.createTempFile("nearest_", ".cache");
+        Files.delete(cacheFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(cacheFile);
+    }
+
+    public void testPutGet() throws IOException {
+        try (NearestCaptureCache cache = new NearestCaptureCache(cacheFile, 1024*1024, DAY)) {
+            cache.validate(INDEX_TIME);
+            cache.put(NearestCaptureCache.NAMESPACE.direct, Arrays.asList(
+                    createDoc("http://example.com/a.css", "2020-05-01T10:00:00Z", 100),
+                    createDoc("http://example.com/b.js", "2020-05-03T10:00:00Z", 200)),
+                      "2020-05-02T12:00:00Z");
+            assertEquals("The cache should hold the added entries", 2, cache.size());
+
+            Map<String, IndexDocShort> hits = cache.get(NearestCaptureCache.NAMESPACE.direct, Arrays.asList(
+                    "http://example.com/a.css", "http://example.com/b.js", "http://example.com/c.png"),
+                                                        "2020-05-02T18:00:00Z");
+            assertEquals("Lookup within the same bucket should give hits for cached URLs", 2, hits.size());
+            IndexDocShort a = hits.get("http://example.com/a.css");
+            assertEquals("Offset should be preserved", 100, a.getOffset());
+            assertEquals("File path should be preserved", "/warcs/100.warc", a.getSource_file_path());
+            assertEquals("Crawl date should be preserved", "2020-05-01T10:00:00Z", a.getCrawlDate());
+
+            assertTrue("Lookup in another bucket should give no hits",
+                       cache.get(NearestCaptureCache.NAMESPACE.direct,
+                                 Collections.singletonList("http://example.com/a.css"),
+                                 "2020-05-05T12:00:00Z").isEmpty());
+            assertTrue("Lookup in another namespace should give no hits",
+                       cache.get(NearestCaptureCache.NAMESPACE.lenient,
+                                 Collections.singletonList("http://example.com/a.css"),
+                                 "2020-05-02T12:00:00Z").isEmpty());
+        }
+    }
+
+    public void testNotValidated() throws IOException {
+        try (NearestCaptureCache cache = new NearestCaptureCache(cacheFile, 1024*1024, DAY)) {
+            cache.put(NearestCaptureCache.NAMESPACE.direct, Collections.singletonList(
+                    createDoc("http://example.com/a.css", "2020-05-01T10:00:00Z", 100)), "2020-05-02T12:00:00Z");
+            assertTrue("Lookups before validation should give no hits",
+                       cache.get(NearestCaptureCache.NAMESPACE.direct,
+                                 Collections.singletonList("http://example.com/a.css"),
+                                 "2020-05-02T12:00:00Z").isEmpty());
+        }
+    }
+
+    public void testPersistence() throws IOException {
+        try (NearestCaptureCache cache = new NearestCaptureCache(cacheFile, 1024*1024, DAY)) {
+            cache.validate(INDEX_TIME);
+            cache.put(NearestCaptureCache.NAMESPACE.direct, Collections.singletonList(
+                    createDoc("http://example.com/a.css", "2020-05-01T10:00:00Z", 100)), "2020-05-02T12:00:00Z");
+        }
+
+        try (NearestCaptureCache cache = new NearestCaptureCache(cacheFile, 1024*1024, DAY)) {
+            cache.validate(INDEX_TIME);
+            assertEquals("Entries should survive reopening for an unchanged index",
+                         1, cache.get(NearestCaptureCache.NAMESPACE.direct,
+                                      Collections.singletonList("http://example.com/a.css"),
+                                      "2020-05-02T12:00:00Z").size());
+        }
+
+        try (NearestCaptureCache cache = new NearestCaptureCache(cacheFile, 1024*1024, DAY)) {
+            cache.validate(new Date(INDEX_TIME.getTime() + 1000));
+            assertEquals("Entries should be cleared for a changed index", 0, cache.size());
+        }
+    }
+
+    public void testIndexChanged() throws IOException {
+        try (NearestCaptureCache cache = new NearestCaptureCache(cacheFile, 1024*1024, DAY)) {
+            cache.validate(INDEX_TIME);
+            cache.put(NearestCaptureCache.NAMESPACE.direct, Arrays.asList(
+                    createDoc("http://example.com/old.css", "2010-05-01T10:00:00Z", 100),
+                    createDoc("http://example.com/recent.css", "2020-05-01T10:00:00Z", 200)),
+                      "2020-05-02T12:00:00Z");
+
+            // New captures from 2020-05-10 can be nearer than the 2010 capture but not than the 2020-05-01 capture
+            cache.indexChanged(new Date(INDEX_TIME.getTime() + 1000),
+                               Date.from(Instant.parse("2020-05-10T00:00:00Z")));
+            Map<String, IndexDocShort> hits = cache.get(NearestCaptureCache.NAMESPACE.direct, Arrays.asList(
+                    "http://example.com/old.css", "http://example.com/recent.css"), "2020-05-02T12:00:00Z");
+            assertEquals("Only the entry without possible nearer captures should remain", 1, hits.size());
+            assertTrue("The recent capture should remain", hits.containsKey("http://example.com/recent.css"));
+
+            cache.indexChanged(new Date(INDEX_TIME.getTime() + 2000), null);
+            assertEquals("Index change without crawl_date information should clear the cache", 0, cache.size());
+        }
+    }
+
+    public void testOverflow() throws IOException {
+        try (NearestCaptureCache cache = new NearestCaptureCache(cacheFile, 64*1024, DAY)) {
+            cache.validate(INDEX_TIME);
+            for (int i = 0 ; i < 10000 ; i++) {
+                cache.put(NearestCaptureCache.NAMESPACE.direct, Collections.singletonList(
+                        createDoc("http://example.com/" + i + ".css", "2020-05-01T10:00:00Z", i)),
+                          "2020-05-02T12:00:00Z");
+            }
+            assertTrue("The cache should hold some entries after overflowing", cache.size() > 0);
+            assertEquals("The latest entry should be available",
+                         1, cache.get(NearestCaptureCache.NAMESPACE.direct,
+                                      Collections.singletonList("http://example.com/9999.css"),
+                                      "2020-05-02T12:00:00Z").size());
+        }
+    }
+
+    private IndexDocShort createDoc(String url, String crawlDate, long offset) {
+        IndexDocShort doc = new IndexDocShort();
+        doc.setUrl(url);
+        doc.setUrl_norm(url);
+        doc.setCrawlDate(crawlDate);
+        doc.setOffset(offset);
+        doc.setSource_file_path("/warcs/" + offset + ".warc");
+        return doc;
+    }
+}
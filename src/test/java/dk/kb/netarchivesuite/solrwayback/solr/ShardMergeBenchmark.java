@@ -0,0 +1,135 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.util.CollectionUtils;
+import org.apache.solr.common.SolrDocument;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Micro benchmark for merging shard divided document streams, as done by
+ * {@link SolrStreamShard#iterateSharded(SRequest, List)}. The documents are generated and held in memory up front,
+ * so that only the merge is measured.
+ * <p>
+ * Three merges are compared for 2-64 shards:
+ * {@code heap} is a {@link PriorityQueue} with {@link SolrStreamShard#getDocumentComparator(SRequest)},
+ * {@code tree} is a loser tree with the same comparator and
+ * {@code keyed} is a loser tree with {@link SolrStreamShard#getSortKeyExtractor(SRequest)}.
+ * <p>
+ * Not a unit test: Run with {@code main}, optionally with the number of rounds and the total number of documents
+ * as arguments.
+ */
+public class ShardMergeBenchmark {
+    private static final int[] SHARDS = new int[]{2, 4, 8, 16, 32, 64};
+    private static final SRequest REQUEST = new SRequest().sort("crawl_date asc, id asc");
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int docCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        for (int round = 1 ; round <= rounds ; round++) {
+            for (int shards: SHARDS) {
+                List<List<SolrDocument>> shardDocs = generate(shards, docCount);
+                measure(round, shards, "heap", docCount, () -> mergeHeap(
+                        iterators(shardDocs), SolrStreamShard.getDocumentComparator(REQUEST)));
+                measure(round, shards, "tree", docCount, () -> CollectionUtils.mergeIterators(
+                        iterators(shardDocs), SolrStreamShard.getDocumentComparator(REQUEST)));
+                measure(round, shards, "keyed", docCount, () -> CollectionUtils.mergeIterators(
+                        iterators(shardDocs), SolrStreamShard.getSortKeyExtractor(REQUEST), Comparator.naturalOrder()));
+            }
+        }
+    }
+
+    private static void measure(int round, int shards, String merger, int docCount,
+                                Supplier<Iterator<SolrDocument>> mergeFactory) {
+        long checksum = 0;
+        long startNS = System.nanoTime();
+        Iterator<SolrDocument> merged = mergeFactory.get();
+        while (merged.hasNext()) {
+            checksum += merged.next().hashCode();
+        }
+        long spendNS = System.nanoTime() - startNS;
+        System.out.println(String.format(
+                Locale.ROOT, "Round %d, %2d shards, %-5s: %d docs in %4d ms: %5.0f ns/doc, %5.2f M docs/s (%d)",
+                round, shards, merger, docCount, spendNS/1000000, spendNS*1.0/docCount,
+                docCount*1000.0/spendNS, checksum % 10));
+    }
+
+    /**
+     * @return {@code docCount} documents ordered by {@link #REQUEST} and randomly distributed to {@code shards}.
+     */
+    private static List<List<SolrDocument>> generate(int shards, int docCount) {
+        Random random = new Random(87);
+        List<List<SolrDocument>> shardDocs = new ArrayList<>(shards);
+        for (int s = 0 ; s < shards ; s++) {
+            shardDocs.add(new ArrayList<>());
+        }
+        long crawlTime = 1262304000000L; // 2010-01-01
+        for (int i = 0 ; i < docCount ; i++) {
+            crawlTime += random.nextInt(3); // Plenty of ties to exercise the secondary sort
+            SolrDocument doc = new SolrDocument();
+            doc.setField("id", String.format(Locale.ROOT, "doc_%08d", i));
+            doc.setField("crawl_date", new Date(crawlTime));
+            shardDocs.get(random.nextInt(shards)).add(doc);
+        }
+        return shardDocs;
+    }
+
+    private static List<Iterator<SolrDocument>> iterators(List<List<SolrDocument>> shardDocs) {
+        List<Iterator<SolrDocument>> iterators = new ArrayList<>(shardDocs.size());
+        shardDocs.forEach(docs -> iterators.add(docs.iterator()));
+        return iterators;
+    }
+
+    /**
+     * Priority queue merge, as previously used by {@link CollectionUtils#mergeIterators(Collection, Comparator)}.
+     */
+    private static <T> Iterator<T> mergeHeap(Collection<Iterator<T>> iterators, Comparator<T> comparator) {
+        Comparator<CollectionUtils.PeekableIterator<T>> peekComparator =
+                (o1, o2) -> comparator.compare(o1.peek(), o2.peek());
+        final PriorityQueue<CollectionUtils.PeekableIterator<T>> pq =
+                new PriorityQueue<>(Math.max(1, iterators.size()), peekComparator);
+        iterators.stream()
+                .filter(Iterator::hasNext)
+                .map(CollectionUtils.PeekableIterator::of)
+                .forEach(pq::add);
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !pq.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                CollectionUtils.PeekableIterator<T> pi = pq.poll();
+                T response = pi.next();
+                if (pi.hasNext()) {
+                    pq.add(pi);
+                }
+                return response;
+            }
+        };
+    }
+}
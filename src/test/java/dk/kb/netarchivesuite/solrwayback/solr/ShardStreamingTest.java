@@ -34,6 +34,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -484,6 +485,50 @@ public class ShardStreamingTest {
                      1, desc.compare(doc1, doc2));
     }
 
+    @Test
+    public void testSortKey() {
+        SRequest request = new SRequest().sort("crawl_date desc, source_file_offset asc, id asc");
+        Comparator<SolrDocument> comparator = SolrStreamShard.getDocumentComparator(request);
+        Function<SolrDocument, SolrStreamShard.SortKey> extractor = SolrStreamShard.getSortKeyExtractor(request);
+
+        List<SolrDocument> docs = new ArrayList<>();
+        for (int i = 0 ; i < 20 ; i++) {
+            SolrDocument doc = new SolrDocument();
+            doc.setField("id", "id_" + (i % 7));
+            doc.setField("crawl_date", new Date(1000L * (i % 3)));
+            doc.setField("source_file_offset", (long) (i % 5) - 2);
+            docs.add(doc);
+        }
+        for (SolrDocument doc1: docs) {
+            for (SolrDocument doc2: docs) {
+                assertEquals("The sort keys should order " + doc1 + " and " + doc2 + " as the comparator",
+                             Integer.signum(comparator.compare(doc1, doc2)),
+                             Integer.signum(extractor.apply(doc1).compareTo(extractor.apply(doc2))));
+            }
+        }
+    }
+
+    @Test
+    public void testSortKeyTimeProximity() {
+        Function<SolrDocument, SolrStreamShard.SortKey> extractor = SolrStreamShard.getSortKeyExtractor(
+                new SRequest().sort("abs(sub(ms(1970-01-01T00:00:10Z), crawl_date)) asc, score desc"));
+
+        SolrDocument near = new SolrDocument();
+        near.setField("crawl_date", new Date(9000L));
+        near.setField("score", 0.5F);
+        SolrDocument far = new SolrDocument();
+        far.setField("crawl_date", new Date(20000L));
+        far.setField("score", 0.9F);
+        SolrDocument farLowScore = new SolrDocument();
+        farLowScore.setField("crawl_date", new Date(0L));
+        farLowScore.setField("score", -0.1F);
+
+        assertTrue("The document nearest to origo should be first",
+                   extractor.apply(near).compareTo(extractor.apply(far)) < 0);
+        assertTrue("Documents with the same distance should be ordered by descending score",
+                   extractor.apply(far).compareTo(extractor.apply(farLowScore)) < 0);
+    }
+
     /**
      * Calls {@link SolrStreamShard#iterateSharded(SRequest, List)} on the {@code request} and extracts all IDs,
      * also sets {@link SRequest#shardDivide} to {@code false} and call {@link SolrStreamDirect#iterate(SRequest)}
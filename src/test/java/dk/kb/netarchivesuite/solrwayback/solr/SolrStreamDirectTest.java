@@ -21,11 +21,21 @@ import dk.kb.netarchivesuite.solrwayback.service.exception.InvalidArgumentServic
 import dk.kb.netarchivesuite.solrwayback.util.DateUtils;
 import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.IOUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.ResponseParser;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.impl.BaseHttpSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.impl.StreamingBinaryResponseParser;
+import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.CoreContainer;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -33,14 +43,20 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
@@ -205,6 +221,149 @@ public class SolrStreamDirectTest {
                              .count());
     }
 
+    /**
+     * Prefetching of pages should not change the delivered documents.
+     */
+    @Test
+    public void testPrefetch() {
+        List<String> plain = SolrStreamDirect.stream(SRequest.create("*:*", "id").pageSize(7).prefetchPages(0))
+                .map(doc -> doc.getFieldValue("id").toString())
+                .collect(Collectors.toList());
+        assertEquals("All documents should be delivered without prefetch", TEST_DOCS, plain.size());
+
+        for (int prefetchPages: new int[]{1, 3}) {
+            List<String> prefetched = SolrStreamDirect.stream(
+                    SRequest.create("*:*", "id").pageSize(7).prefetchPages(prefetchPages))
+                    .map(doc -> doc.getFieldValue("id").toString())
+                    .collect(Collectors.toList());
+            assertEquals("The same documents should be delivered with prefetchPages=" + prefetchPages,
+                         plain, prefetched);
+        }
+    }
+
+    @Test
+    public void testStreamingResponse() {
+        int chunkDocs = SolrStreamDirect.STREAM_CHUNK_DOCS;
+        SolrStreamDirect.STREAM_CHUNK_DOCS = 2;
+        try {
+            List<String> plain = SolrStreamDirect.stream(
+                    SRequest.create("*:*", "id").pageSize(7).prefetchPages(1).streamingResponse(false))
+                    .map(doc -> doc.getFieldValue("id").toString())
+                    .collect(Collectors.toList());
+            assertEquals("All documents should be delivered without streaming", TEST_DOCS, plain.size());
+
+            for (int prefetchPages: new int[]{1, 3}) {
+                JavabinSolrClient javabinClient = new JavabinSolrClient(embeddedServer);
+                assertTrue("The javabin client should support streaming",
+                           SolrStreamDirect.supportsStreamingResponse(javabinClient));
+                List<String> streamed = SolrStreamDirect.stream(
+                        SRequest.create("*:*", "id").
+                                solrClient(javabinClient).
+                                pageSize(7).
+                                prefetchPages(prefetchPages).
+                                streamingResponse(true))
+                        .map(doc -> doc.getFieldValue("id").toString())
+                        .collect(Collectors.toList());
+                assertEquals("The same documents should be delivered with streaming and prefetchPages=" +
+                             prefetchPages, plain, streamed);
+                assertEquals("All documents should be decoded through the streaming callback with prefetchPages=" +
+                             prefetchPages, TEST_DOCS, javabinClient.streamedDocuments.get());
+            }
+        } finally {
+            SolrStreamDirect.STREAM_CHUNK_DOCS = chunkDocs;
+        }
+    }
+
+    @Test
+    public void testStreamingResponseSupport() throws IOException {
+        assertFalse("The embedded server decodes responses itself",
+                    SolrStreamDirect.supportsStreamingResponse(embeddedServer));
+        assertFalse("The caching client would cache the empty streamed responses",
+                    SolrStreamDirect.supportsStreamingResponse(new CachingSolrClient(embeddedServer, 10, 10, 10)));
+        try (SolrClient http = new HttpSolrClient.Builder("http://localhost:8983/solr").build()) {
+            assertTrue("HTTP clients should support streaming",
+                       SolrStreamDirect.supportsStreamingResponse(http));
+            assertTrue("Restricted HTTP clients should support streaming",
+                       SolrStreamDirect.supportsStreamingResponse(new RestrictedSolrClient(http, "netarchivebuilder")));
+        }
+    }
+
+    /**
+     * A consumer that pauses for longer than the prefetcher waits should still receive all documents.
+     */
+    @Test
+    public void testPrefetchParking() throws InterruptedException {
+        long parkMS = SolrStreamDirect.PREFETCH_PARK_MS;
+        SolrStreamDirect.PREFETCH_PARK_MS = 10;
+        try {
+            Iterator<SolrDocument> docs = SolrStreamDirect.iterate(
+                    SRequest.create("*:*", "id").pageSize(7).prefetchPages(1));
+            int count = 0;
+            while (docs.hasNext()) {
+                docs.next();
+                if (++count % 7 == 0) {
+                    Thread.sleep(50);
+                }
+            }
+            assertEquals("All documents should be delivered", TEST_DOCS, count);
+        } finally {
+            SolrStreamDirect.PREFETCH_PARK_MS = parkMS;
+        }
+    }
+
+    /**
+     * Closing the stream should stop prefetching, also when not all documents has been consumed.
+     */
+    @Test
+    public void testPrefetchClose() throws InterruptedException {
+        SolrStreamDirect base = new SolrStreamDirect(SRequest.create("*:*", "id").pageSize(7).prefetchPages(3));
+        try (Stream<SolrDocument> docs = base.stream()) {
+            assertEquals("The first documents should be delivered", 5, docs.limit(5).count());
+        }
+        assertTrue("The stream should be finished after close", base.hasFinished());
+        long requests = SolrStreamDirect.solrRequests.get();
+        Thread.sleep(100);
+        assertEquals("No Solr requests should be issued after close", requests, SolrStreamDirect.solrRequests.get());
+    }
+
+    @Test
+    public void testCursorMarkListenerThread() {
+        Set<Thread> threads = new HashSet<>();
+        long count = SolrStreamDirect.stream(SRequest.create("*:*", "id").
+                        pageSize(7).
+                        prefetchPages(2).
+                        cursorMarkListener(cursorMark -> threads.add(Thread.currentThread())))
+                .count();
+        assertEquals("All documents should be delivered", TEST_DOCS, count);
+        assertEquals("The cursorMarkListener should only be called from the consuming thread",
+                     Collections.singleton(Thread.currentThread()), threads);
+    }
+
+    /**
+     * Resume streaming from the cursorMark for a page, as received by the cursorMarkListener.
+     */
+    @Test
+    public void testCursorMarkResume() {
+        List<String> cursorMarks = new ArrayList<>();
+        List<String> allIDs = SolrStreamDirect.stream(SRequest.create("*:*", "id").
+                        pageSize(7).
+                        adaptivePageSize(false).
+                        cursorMarkListener(cursorMarks::add))
+                .map(doc -> doc.getFieldValue("id").toString())
+                .collect(Collectors.toList());
+        assertEquals("All documents should be delivered", TEST_DOCS, allIDs.size());
+        assertTrue("There should be a cursorMark for each page", cursorMarks.size() >= TEST_DOCS/7);
+
+        List<String> resumedIDs = SolrStreamDirect.stream(SRequest.create("*:*", "id").
+                        pageSize(7).
+                        adaptivePageSize(false).
+                        cursorMark(cursorMarks.get(2)))
+                .map(doc -> doc.getFieldValue("id").toString())
+                .collect(Collectors.toList());
+        assertEquals("Resuming from the third page should deliver the remaining documents",
+                     allIDs.subList(14, allIDs.size()), resumedIDs);
+    }
+
     /**
      * Flatten record with multi-value field to single-value by producing multiple single-field records.
      */
@@ -446,4 +605,49 @@ public class SolrStreamDirectTest {
         embeddedServer.add(document);
     }
 
+    /**
+     * Delivers responses from the embedded server as javabin to the response parser of the request, the way the
+     * HTTP based SolrJ clients do. This allows for testing of {@link SolrRequest#getStreamingResponseCallback()}.
+     */
+    private static class JavabinSolrClient extends BaseHttpSolrClient {
+        private final SolrClient inner;
+        final AtomicInteger streamedDocuments = new AtomicInteger(0);
+
+        JavabinSolrClient(SolrClient inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest<?> request, String collection)
+                throws SolrServerException, IOException {
+            NamedList<Object> response = inner.request(new QueryRequest(request.getParams()), collection);
+            ByteArrayOutputStream javabin = new ByteArrayOutputStream();
+            try (JavaBinCodec codec = new JavaBinCodec()) {
+                codec.marshal(response, javabin);
+            }
+            StreamingResponseCallback callback = request.getStreamingResponseCallback();
+            ResponseParser parser = callback == null ? request.getResponseParser() :
+                    new StreamingBinaryResponseParser(new StreamingResponseCallback() {
+                        @Override
+                        public void streamSolrDocument(SolrDocument doc) {
+                            streamedDocuments.incrementAndGet();
+                            callback.streamSolrDocument(doc);
+                        }
+
+                        @Override
+                        public void streamDocListInfo(long numFound, long start, Float maxScore) {
+                            callback.streamDocListInfo(numFound, start, maxScore);
+                        }
+                    });
+            if (parser == null) {
+                return response;
+            }
+            return parser.processResponse(new ByteArrayInputStream(javabin.toByteArray()), null);
+        }
+
+        @Override
+        public void close() {
+            // The inner client is closed by tearDown
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,285 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.solr;
+
+import dk.kb.netarchivesuite.solrwayback.UnitTestUtils;
+import dk.kb.netarchivesuite.solrwayback.properties.PropertiesLoader;
+import dk.kb.netarchivesuite.solrwayback.util.CollectionUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SolrStreamExportTest {
+    private final Map<String, String> docValuesFields = new HashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        PropertiesLoader.initProperties(UnitTestUtils.getFile("properties/solrwayback_unittest.properties").getPath());
+        for (String field: Arrays.asList("id", "url_norm", "source_file_path")) {
+            docValuesFields.put(field, "solr.StrField");
+        }
+        docValuesFields.put("source_file_offset", "solr.LongPointField");
+        docValuesFields.put("crawl_date", "solr.DatePointField");
+    }
+
+    @Test
+    public void testCanExport() {
+        SRequest request = SRequest.builder().query("*:*").fields("url_norm", "crawl_date").sort("crawl_date asc");
+        assertTrue("A field sorted request should be compatible", SolrStreamExport.isExportCompatible(request));
+        assertTrue("A request with docValues fields only should be exportable",
+                   SolrStreamExport.canExport(request, docValuesFields));
+
+        assertFalse("A request with a non-docValues field should not be exportable",
+                    SolrStreamExport.canExport(SRequest.builder().query("*:*").
+                            fields("url_norm", "content").sort("crawl_date asc"), docValuesFields));
+        assertFalse("A request sorted on a non-docValues field should not be exportable",
+                    SolrStreamExport.canExport(SRequest.builder().query("*:*").
+                            fields("url_norm").sort("title asc"), docValuesFields));
+    }
+
+    @Test
+    public void testIncompatible() {
+        assertFalse("The default sort uses score",
+                    SolrStreamExport.isExportCompatible(SRequest.builder().query("*:*").fields("url_norm")));
+        assertFalse("Function sorts are not supported",
+                    SolrStreamExport.isExportCompatible(SRequest.builder().query("*:*").fields("url_norm").
+                            sort("abs(sub(ms(2019-04-15T12:31:51Z), crawl_date)) asc")));
+        assertFalse("Grouping is not supported",
+                    SolrStreamExport.isExportCompatible(SRequest.builder().query("*:*").fields("url_norm").
+                            sort("crawl_date asc").deduplicateFields("url_norm")));
+        assertFalse("Resource expansion is not supported",
+                    SolrStreamExport.isExportCompatible(SRequest.builder().query("*:*").fields("url_norm").
+                            sort("crawl_date asc").expandResources(true)));
+        assertFalse("Results within a single page should use standard search",
+                    SolrStreamExport.isExportCompatible(SRequest.builder().query("*:*").fields("url_norm").
+                            sort("crawl_date asc").maxResults(10)));
+        assertFalse("Disabling the export handler should be respected",
+                    SolrStreamExport.isExportCompatible(SRequest.builder().query("*:*").fields("url_norm").
+                            sort("crawl_date asc").exportHandler(false)));
+    }
+
+    @Test
+    public void testConverters() {
+        assertEquals("Longs should be delivered as Long",
+                     5L, SolrStreamExport.getConverter("solr.LongPointField").apply(5));
+        assertEquals("Ints should be delivered as Integer",
+                     3, SolrStreamExport.getConverter("solr.IntPointField").apply(3L));
+        assertEquals("Dates should be delivered as Date",
+                     new Date(86400000L), SolrStreamExport.getConverter("solr.DatePointField").apply("1970-01-02T00:00:00Z"));
+        assertEquals("Strings should be delivered unchanged",
+                     "foo", SolrStreamExport.getConverter("solr.StrField").apply("foo"));
+    }
+
+    @Test
+    public void testStreamingRead() {
+        StubClient solr = new StubClient(EXPORT_RESPONSE);
+        List<SolrDocument> docs = new ArrayList<>();
+        try (CollectionUtils.CloseableIterator<SolrDocument> export = SolrStreamExport.iterate(exportRequest(solr))) {
+            export.forEachRemaining(docs::add);
+        }
+        assertEquals("The export handler should be used", Collections.singletonList("/export"), solr.paths);
+        assertEquals("All exported documents should be delivered", 3, docs.size());
+        assertEquals("The documents should be in export order", "doc_2", docs.get(1).getFieldValue("id"));
+        assertEquals("Offsets should be delivered as Long",
+                     200L, docs.get(1).getFieldValue("source_file_offset"));
+        assertEquals("Dates should be delivered as Date",
+                     new Date(86400000L), docs.get(0).getFieldValue("crawl_date"));
+        assertEquals("The HTTP response should be closed before the stream", Arrays.asList("response", "stream"),
+                     solr.closed);
+    }
+
+    @Test
+    public void testEarlyClose() {
+        StubClient solr = new StubClient(EXPORT_RESPONSE);
+        try (CollectionUtils.CloseableIterator<SolrDocument> export = SolrStreamExport.iterate(exportRequest(solr))) {
+            assertEquals("The first document should be delivered", "doc_1", export.next().getFieldValue("id"));
+        }
+        assertEquals("Closing before the end should abort the HTTP response before closing the stream",
+                     Arrays.asList("response", "stream"), solr.closed);
+    }
+
+    @Test
+    public void testSeekFailureFallback() {
+        // The export response has no docs array, so seeking fails and the documents are requested with /select
+        StubClient solr = new StubClient("{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":0}}");
+        List<SolrDocument> docs = new ArrayList<>();
+        try (CollectionUtils.CloseableIterator<SolrDocument> export = SolrStreamExport.iterate(exportRequest(solr))) {
+            export.forEachRemaining(docs::add);
+        }
+        assertEquals("The export handler should be tried before /select",
+                     "/export", solr.paths.get(0));
+        assertTrue("/select should be used after the failed export", solr.paths.contains("/select"));
+        // The JSON parser closes the stream when the end of the response is reached during seek
+        assertTrue("The HTTP response for the failed export should be closed", solr.closed.contains("response"));
+        assertEquals("All documents should be delivered from /select", 3, docs.size());
+    }
+
+    @Test
+    public void testStatusFallback() {
+        StubClient solr = new StubClient(EXPORT_RESPONSE);
+        solr.exportStatus = 400;
+        List<SolrDocument> docs = new ArrayList<>();
+        try (CollectionUtils.CloseableIterator<SolrDocument> export = SolrStreamExport.iterate(exportRequest(solr))) {
+            export.forEachRemaining(docs::add);
+        }
+        assertTrue("/select should be used after the failed export", solr.paths.contains("/select"));
+        assertEquals("All documents should be delivered from /select", 3, docs.size());
+    }
+
+    @Test
+    public void testSchemaFailureNotCached() {
+        StubClient solr = new StubClient(EXPORT_RESPONSE);
+        solr.schemaFails = true;
+        SRequest request = exportRequest(solr).collection("schemafailure");
+        assertFalse("A request should not be exportable when the schema fails", SolrStreamExport.canExport(request));
+        solr.schemaFails = false;
+        assertTrue("A request should be exportable when the schema is available again",
+                   SolrStreamExport.canExport(request));
+    }
+
+    private SRequest exportRequest(SolrClient solr) {
+        return SRequest.builder().
+                solrClient(solr).
+                query("*:*").
+                fields("id", "source_file_offset", "crawl_date").
+                sort("crawl_date asc").
+                pageSize(2).
+                exportHandler(true).
+                adaptivePageSize(false).
+                prefetchPages(0);
+    }
+
+    private static final String EXPORT_RESPONSE =
+            "{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":3,\"docs\":[" +
+            "{\"id\":\"doc_1\",\"source_file_offset\":100,\"crawl_date\":\"1970-01-02T00:00:00Z\"}," +
+            "{\"id\":\"doc_2\",\"source_file_offset\":200,\"crawl_date\":\"1970-01-03T00:00:00Z\"}," +
+            "{\"id\":\"doc_3\",\"source_file_offset\":300,\"crawl_date\":\"1970-01-04T00:00:00Z\"}]}}";
+
+    /**
+     * Answers schema, {@code /export} and {@code /select} requests the way SolrJ HttpSolrClient does with an
+     * InputStreamResponseParser for {@code /export}, recording the order in which the response and stream are closed.
+     */
+    private static class StubClient extends SolrClient {
+        final String exportResponse;
+        final List<String> paths = new ArrayList<>();
+        final List<String> closed = new ArrayList<>();
+        int exportStatus = 200;
+        boolean schemaFails = false;
+
+        StubClient(String exportResponse) {
+            this.exportResponse = exportResponse;
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest<?> request, String collection)
+                throws SolrServerException, IOException {
+            SolrParams params = request.getParams();
+            String path = params.get(CommonParams.QT, "/select");
+            if (path.startsWith("/schema")) {
+                if (schemaFails) {
+                    throw new SolrServerException("Schema not available");
+                }
+                return "/schema/fields".equals(path) ? schemaFields() : schemaFieldTypes();
+            }
+            paths.add(path);
+            NamedList<Object> response = new NamedList<>();
+            if ("/export".equals(path)) {
+                response.add("stream", new ByteArrayInputStream(exportResponse.getBytes(StandardCharsets.UTF_8)) {
+                    @Override
+                    public void close() throws IOException {
+                        if (!closed.contains("stream")) { // Closed by both the JSON parser and SolrStreamExport
+                            closed.add("stream");
+                        }
+                        super.close();
+                    }
+                });
+                response.add("closeableResponse", (Closeable) () -> closed.add("response"));
+                response.add("responseStatus", exportStatus);
+                return response;
+            }
+            // /select with cursorMark: All documents are delivered in the first page
+            String cursorMark = params.get(CursorMarkParams.CURSOR_MARK_PARAM, CursorMarkParams.CURSOR_MARK_START);
+            SolrDocumentList docs = new SolrDocumentList();
+            if (CursorMarkParams.CURSOR_MARK_START.equals(cursorMark)) {
+                for (int i = 1 ; i <= 3 ; i++) {
+                    SolrDocument doc = new SolrDocument();
+                    doc.setField("id", "doc_" + i);
+                    doc.setField("source_file_offset", i*100L);
+                    doc.setField("crawl_date", new Date(i*86400000L));
+                    docs.add(doc);
+                }
+            }
+            docs.setNumFound(3);
+            response.add("response", docs);
+            response.add(CursorMarkParams.CURSOR_MARK_NEXT, "end");
+            return response;
+        }
+
+        private NamedList<Object> schemaFieldTypes() {
+            NamedList<Object> response = new NamedList<>();
+            response.add("fieldTypes", Arrays.asList(
+                    attributes("name", "string", "class", "solr.StrField"),
+                    attributes("name", "plong", "class", "solr.LongPointField"),
+                    attributes("name", "pdate", "class", "solr.DatePointField")));
+            return response;
+        }
+
+        private NamedList<Object> schemaFields() {
+            NamedList<Object> response = new NamedList<>();
+            response.add("fields", Arrays.asList(
+                    attributes("name", "id", "type", "string", "docValues", true),
+                    attributes("name", "source_file_path", "type", "string", "docValues", true),
+                    attributes("name", "source_file_offset", "type", "plong", "docValues", true),
+                    attributes("name", "crawl_date", "type", "pdate", "docValues", true)));
+            return response;
+        }
+
+        private static NamedList<Object> attributes(Object... keyValues) {
+            NamedList<Object> attributes = new SimpleOrderedMap<>();
+            for (int i = 0 ; i < keyValues.length ; i += 2) {
+                attributes.add((String) keyValues[i], keyValues[i+1]);
+            }
+            return attributes;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
@@ -3,6 +3,14 @@ package dk.kb.netarchivesuite.solrwayback.solr;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /*
  *  Licensed under the Apache License, Version 2.0 (the "License");
  *  you may not use this file except in compliance with the License.
@@ -48,4 +56,91 @@ public class TimeCacheTest extends TestCase {
         assertFalse("First entry should not be available after second has been added",
                 timeCache.containsKey("first"));
     }
-}
\ No newline at end of file
+
+    public void testReferencedSurvivesEviction() {
+        TimeCache<Integer> timeCache = new TimeCache<>(3, 50000);
+        timeCache.put("first", 1);
+        timeCache.put("second", 2);
+        timeCache.put("third", 3);
+        assertEquals("Looking up first should be a hit", Integer.valueOf(1), timeCache.get("first"));
+        timeCache.put("fourth", 4);
+        assertTrue("First entry should survive as it was accessed",
+                timeCache.containsKey("first"));
+        assertFalse("Second entry should be evicted as it was the oldest non-accessed entry",
+                timeCache.containsKey("second"));
+        assertEquals("The cache should be at capacity", 3, timeCache.size());
+    }
+
+    public void testLinkedCapacity() {
+        TimeCache<Integer> timeCache = new TimeCache<>(2, 50000);
+        TimeCache<String> linked = timeCache.createLinked();
+        timeCache.put("first", 1);
+        linked.put("second", "2");
+        timeCache.put("third", 3);
+        assertEquals("The combined size should be the shared capacity",
+                2, timeCache.size() + linked.size());
+        assertFalse("First entry should be evicted as the linked cache shares capacity",
+                timeCache.containsKey("first"));
+        linked.put("fourth", "4");
+        assertEquals("The combined size should still be the shared capacity after adding to linked",
+                2, timeCache.size() + linked.size());
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final int CAPACITY = 100;
+        final int THREADS = 8;
+        TimeCache<Integer> timeCache = new TimeCache<>(CAPACITY, 50000);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (int t = 0 ; t < THREADS ; t++) {
+                final int seed = t;
+                jobs.add(executor.submit(() -> {
+                    for (int i = 0 ; i < 10000 ; i++) {
+                        int key = (i * 31 + seed) % 500;
+                        Integer value = timeCache.get(Integer.toString(key), () -> key);
+                        assertEquals("The cached value should match the key", Integer.valueOf(key), value);
+                    }
+                }));
+            }
+            for (Future<?> job: jobs) {
+                job.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue("The cache should not exceed its capacity, but had size " + timeCache.size(),
+                timeCache.size() <= CAPACITY);
+        assertEquals("All lookups should be counted", THREADS * 10000, timeCache.getCalls());
+        assertTrue("There should be cache hits", timeCache.getHits() > 0);
+    }
+
+    public void testWeightBasedCaching() {
+        TimeCache<String> timeCache = new TimeCache<>(100, 50000, 100, o -> ((String)o).length());
+        timeCache.put("a", "12345678901234567890123456789012345678901234567890");
+        assertEquals("The weight should be the length of key and value", 51, timeCache.getWeight());
+        timeCache.put("b", "12345678901234567890123456789012345678901234567890");
+        assertFalse("First entry should be evicted as weight exceeds max weight",
+                timeCache.containsKey("a"));
+        assertTrue("Second entry should be available", timeCache.containsKey("b"));
+        assertEquals("The weight should only be for the second entry", 51, timeCache.getWeight());
+        timeCache.remove("b");
+        assertEquals("The weight should be 0 after removal", 0, timeCache.getWeight());
+    }
+
+    public void testOverweightEntry() {
+        TimeCache<String> timeCache = new TimeCache<>(100, 50000, 100, o -> ((String)o).length());
+        timeCache.put("a", "1234567890");
+        timeCache.put("b", "1234567890");
+        assertNull("An entry heavier than max weight should not be added",
+                   timeCache.put("c", String.join("", Collections.nCopies(11, "1234567890"))));
+        assertFalse("The overweight entry should not be cached", timeCache.containsKey("c"));
+        assertTrue("Existing entries should not be evicted by the overweight entry",
+                   timeCache.containsKey("a") && timeCache.containsKey("b"));
+        assertEquals("The weight should only be for the existing entries", 22, timeCache.getWeight());
+
+        assertEquals("Replacing with an overweight value should return the old value",
+                     "1234567890", timeCache.put("a", String.join("", Collections.nCopies(11, "1234567890"))));
+        assertFalse("The replaced entry should be removed", timeCache.containsKey("a"));
+    }
+}
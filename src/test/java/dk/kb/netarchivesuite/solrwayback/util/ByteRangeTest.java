@@ -0,0 +1,56 @@
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testRanges() {
+        assertEquals("bytes 0-99/1000", ByteRange.parse("bytes=0-99", 1000).getContentRange());
+        assertEquals("bytes 500-999/1000", ByteRange.parse("bytes=500-", 1000).getContentRange());
+        assertEquals("bytes 900-999/1000", ByteRange.parse("bytes=-100", 1000).getContentRange());
+        assertEquals("Suffix larger than content", "bytes 0-999/1000", ByteRange.parse("bytes=-5000", 1000).getContentRange());
+        assertEquals("End beyond content", "bytes 10-999/1000", ByteRange.parse("bytes=10-5000", 1000).getContentRange());
+        assertEquals("Unit is case insensitive", "bytes 1-1/1000", ByteRange.parse("Bytes= 1-1", 1000).getContentRange());
+        assertEquals(100, ByteRange.parse("bytes=0-99", 1000).getRangeLength());
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull("No header", ByteRange.parse(null, 1000));
+        assertNull("Unknown unit", ByteRange.parse("items=0-10", 1000));
+        assertNull("Multiple ranges", ByteRange.parse("bytes=0-10,20-30", 1000));
+        assertNull("Last before first", ByteRange.parse("bytes=20-10", 1000));
+        assertNull("Garbage", ByteRange.parse("bytes=a-b", 1000));
+        assertNull("Only dash", ByteRange.parse("bytes=-", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        ByteRange range = ByteRange.parse("bytes=1000-", 1000);
+        assertFalse(range.isSatisfiable());
+        assertEquals("bytes */1000", range.getContentRange());
+        assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+        assertFalse(ByteRange.parse("bytes=-10", 0).isSatisfiable());
+    }
+
+    @Test
+    public void testETags() {
+        String etag = ByteRange.toETag("sha1:C4HTYCUOGJ2PCQIKSRDAOCIDMFMFAWKK");
+        assertEquals("\"sha1:C4HTYCUOGJ2PCQIKSRDAOCIDMFMFAWKK\"", etag);
+        assertNull(ByteRange.toETag(null));
+
+        assertTrue("No If-Range", ByteRange.ifRangeHolds(null, etag));
+        assertTrue(ByteRange.ifRangeHolds(etag, etag));
+        assertFalse("Weak tags must not match", ByteRange.ifRangeHolds("W/" + etag, "W/" + etag));
+        assertFalse("Dates are not supported", ByteRange.ifRangeHolds("Wed, 21 Oct 2015 07:28:00 GMT", etag));
+        assertFalse("No etag", ByteRange.ifRangeHolds(etag, null));
+
+        assertTrue(ByteRange.ifNoneMatchMatches("\"other\", W/" + etag, etag));
+        assertTrue(ByteRange.ifNoneMatchMatches("*", etag));
+        assertFalse(ByteRange.ifNoneMatchMatches("\"other\"", etag));
+        assertFalse(ByteRange.ifNoneMatchMatches(null, etag));
+    }
+}
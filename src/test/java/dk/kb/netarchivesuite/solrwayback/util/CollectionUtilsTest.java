@@ -7,6 +7,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
@@ -193,6 +195,51 @@ public class CollectionUtilsTest {
         assertEquals("[1, 2, 3, 3, 4, 5]", mergedL.toString());
     }
 
+    @Test
+    public void testMergeIteratorsMany() {
+        Random random = new Random(87);
+        for (int sources = 0 ; sources <= 17 ; sources++) {
+            List<Iterator<Integer>> iterators = new ArrayList<>();
+            List<Integer> expected = new ArrayList<>();
+            for (int s = 0 ; s < sources ; s++) {
+                List<Integer> values = new ArrayList<>();
+                int length = random.nextInt(20); // Some sources are empty
+                for (int i = 0 ; i < length ; i++) {
+                    values.add(random.nextInt(50));
+                }
+                values.sort(Integer::compare);
+                expected.addAll(values);
+                iterators.add(values.iterator());
+            }
+            expected.sort(Integer::compare);
+            List<Integer> mergedL = new ArrayList<>();
+            CollectionUtils.mergeIterators(iterators, Integer::compare).forEachRemaining(mergedL::add);
+            assertEquals("Merging " + sources + " sources should deliver all elements in order",
+                         expected, mergedL);
+        }
+    }
+
+    @Test
+    public void testMergeIteratorsKeyed() {
+        Iterator<String> i1 = Arrays.asList("b1", "a3", "c5").iterator();
+        Iterator<String> i2 = Arrays.asList("a2", "b3", "a4").iterator();
+        Iterator<String> merged = CollectionUtils.mergeIterators(
+                Arrays.asList(i1, i2), s -> Integer.parseInt(s.substring(1)), Integer::compare);
+        List<String> mergedL = new ArrayList<>();
+        merged.forEachRemaining(mergedL::add);
+        assertEquals("Elements should be ordered by key with ties in iterator order",
+                     "[b1, a2, a3, b3, a4, c5]", mergedL.toString());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testMergeIteratorsExhausted() {
+        Iterator<Integer> merged = CollectionUtils.mergeIterators(
+                Arrays.asList(Arrays.asList(1).iterator(), Arrays.asList(2).iterator()), Integer::compare);
+        merged.next();
+        merged.next();
+        merged.next();
+    }
+
     @Test
     public void testBufferingMerge() throws InterruptedException {
         Executor executor = Executors.newCachedThreadPool();
@@ -0,0 +1,155 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FileChannelPoolTest {
+    private Path file1;
+    private Path file2;
+    private byte[] content;
+
+    @Before
+    public void createFiles() throws IOException {
+        content = new byte[100000];
+        for (int i = 0 ; i < content.length ; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        file1 = Files.createTempFile("channelpool_", ".warc");
+        file2 = Files.createTempFile("channelpool_", ".warc");
+        Files.write(file1, content);
+        Files.write(file2, content);
+    }
+
+    @After
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(file1);
+        Files.deleteIfExists(file2);
+    }
+
+    @Test
+    public void testOffsetRead() throws IOException {
+        FileChannelPool pool = new FileChannelPool(10, 60000);
+        for (long offset: new long[]{0, 1, 8191, 8192, 50000, 99999}) {
+            try (InputStream in = pool.getInputStream(file1, offset)) {
+                assertEquals("The first byte at offset " + offset + " should be as expected",
+                             content[(int) offset], (byte) in.read());
+            }
+        }
+        try (InputStream in = pool.getInputStream(file1, 100)) {
+            byte[] read = IOUtils.toByteArray(in);
+            assertEquals("Reading to the end should give the rest of the file", content.length-100, read.length);
+            assertEquals("The last byte should be as expected", content[content.length-1], read[read.length-1]);
+        }
+        try (InputStream in = pool.getInputStream(file1, 100)) {
+            assertEquals("Skipping should be supported", 1000, in.skip(1000));
+            assertEquals("The byte after skip should be as expected", content[1100], (byte) in.read());
+        }
+        assertEquals("The file should only be opened once", 1, pool.getOpens());
+    }
+
+    @Test
+    public void testTransfer() throws IOException {
+        FileChannelPool pool = new FileChannelPool(10, 60000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals("The requested number of bytes should be transferred",
+                     20000, pool.transferTo(file1, 1000, 20000, Channels.newChannel(out)));
+        byte[] transferred = out.toByteArray();
+        assertEquals("The first transferred byte should be as expected", content[1000], transferred[0]);
+        assertEquals("The last transferred byte should be as expected", content[20999], transferred[19999]);
+
+        out.reset();
+        assertEquals("Transfer should stop at the end of the file",
+                     100, pool.transferTo(file1, content.length-100, 1000, Channels.newChannel(out)));
+        assertEquals("The file should only be opened once", 1, pool.getOpens());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        FileChannelPool pool = new FileChannelPool(1, 60000);
+        try (InputStream in1 = pool.getInputStream(file1, 10)) {
+            try (InputStream in2 = pool.getInputStream(file2, 20)) {
+                assertEquals("Only 1 channel should be pooled", 1, pool.size());
+                assertEquals("The evicted but in use channel should still be readable", content[10], (byte) in1.read());
+                assertEquals("The new channel should be readable", content[20], (byte) in2.read());
+            }
+        }
+        assertEquals("Both files should have been opened", 2, pool.getOpens());
+    }
+
+    @Test
+    public void testIdle() throws IOException, InterruptedException {
+        FileChannelPool pool = new FileChannelPool(10, 1);
+        pool.getInputStream(file1, 0).close();
+        Thread.sleep(10);
+        pool.getInputStream(file2, 0).close();
+        assertEquals("The idle channel should have been closed", 1, pool.size());
+    }
+
+    @Test
+    public void testInterruptedReader() throws Exception {
+        FileChannelPool pool = new FileChannelPool(10, 60000);
+        try (InputStream in = pool.getInputStream(file1, 0)) {
+            assertEquals("The first byte should be as expected", content[0], (byte) in.read());
+
+            // Reading from an interrupted thread closes the shared channel
+            AtomicReference<Exception> interruptedException = new AtomicReference<>();
+            Thread interrupted = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try (InputStream other = pool.getInputStream(file1, 50000)) {
+                    other.read();
+                } catch (Exception e) {
+                    interruptedException.set(e);
+                }
+            });
+            interrupted.start();
+            interrupted.join();
+            assertTrue("The interrupted reader should fail with ClosedByInterruptException, but got " +
+                       interruptedException.get(), interruptedException.get() instanceof ClosedByInterruptException);
+
+            assertEquals("The existing stream should skip as expected", 20000, in.skip(20000));
+            assertEquals("The existing stream should be readable after the shared channel was closed",
+                         content[20001], (byte) in.read());
+        }
+        try (InputStream in = pool.getInputStream(file1, 100)) {
+            assertEquals("A new stream should be readable after the shared channel was closed",
+                         content[100], (byte) in.read());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals("Transfer should work after the shared channel was closed",
+                     10, pool.transferTo(file1, 1000, 10, Channels.newChannel(out)));
+        assertEquals("The file should have been reopened exactly once", 2, pool.getOpens());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissing() throws IOException {
+        new FileChannelPool(10, 60000).getInputStream(file1.resolveSibling("non_existing.warc"), 0);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import dk.kb.netarchivesuite.solrwayback.interfaces.ArcSource;
+import dk.kb.netarchivesuite.solrwayback.parsers.WarcParser;
+import dk.kb.netarchivesuite.solrwayback.service.dto.ArcEntry;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class GzipCheckpointIndexTest {
+    private static final String[] WORDS = {"archive", "harvest", "web", "record", "payload", "<div>", "</div>", "\n"};
+
+    private Path warc;
+    private byte[] small;
+    private byte[] large;
+    private long largeOffset;
+
+    @Before
+    public void createWarc() throws IOException {
+        Random random = new Random(87);
+        small = "Small record".getBytes(StandardCharsets.UTF_8);
+        // Mix of compressible text (Huffman coded blocks) and random bytes (stored blocks)
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (content.size() < 3*1024*1024) {
+            if (random.nextInt(10) == 0) {
+                byte[] noise = new byte[random.nextInt(100000)];
+                random.nextBytes(noise);
+                content.write(noise);
+            } else {
+                for (int i = 0 ; i < 10000 ; i++) {
+                    content.write((WORDS[random.nextInt(WORDS.length)] + " ").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        large = content.toByteArray();
+
+        warc = Files.createTempFile("gzindex_", ".warc.gz");
+        try (OutputStream out = Files.newOutputStream(warc)) {
+            writeMember(out, small);
+            largeOffset = Files.size(warc); // The output stream is unbuffered
+            writeMember(out, large);
+            writeMember(out, small);
+        }
+    }
+
+    @After
+    public void deleteWarc() throws IOException {
+        Files.deleteIfExists(warc);
+        Files.deleteIfExists(GzipCheckpointIndex.getIndexPath(warc.toString()));
+    }
+
+    @Test
+    public void testScanner() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(large);
+        }
+        byte[] bytes = compressed.toByteArray();
+        DeflateScanner scanner = new DeflateScanner(new ByteArrayInputStream(bytes, 10, bytes.length-10));
+        long deflateLength = scanner.scan((byteOffset, uncompressedOffset, s) -> {
+            byte[] window = s.getWindow();
+            assertArrayEquals("The window at " + uncompressedOffset + " should be the preceding content",
+                              Arrays.copyOfRange(large, (int) (uncompressedOffset-window.length), (int) uncompressedOffset),
+                              window);
+        });
+        assertEquals("All content should be decoded", large.length, scanner.getUncompressedCount());
+        assertEquals("The deflate length should exclude header and trailer", bytes.length-10-8, deflateLength);
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        GzipCheckpointIndex built = GzipCheckpointIndex.build(warc, 256*1024, 1024*1024);
+        assertEquals("Only the large member should be indexed", 1, built.getMemberCount());
+        assertTrue("There should be checkpoints", built.getCheckpointCount() > 2);
+
+        Path indexFile = GzipCheckpointIndex.getIndexPath(warc.toString());
+        built.write(indexFile);
+        GzipCheckpointIndex index = GzipCheckpointIndex.read(indexFile);
+        assertEquals(built.getCheckpointCount(), index.getCheckpointCount());
+
+        assertNull("There should be no checkpoint in the small member", index.find(0, 5));
+        ArcSource source = ArcSource.fromFile(warc.toString());
+        byte[] member = record(large); // Offsets are in the uncompressed member, not the payload
+        for (int offset: new int[]{0, 300000, 1024*1024, 2*1024*1024+17, member.length-100}) {
+            try (InputStream in = index.open(source, largeOffset, offset)) {
+                if (in == null) {
+                    assertNull("No stream should only happen before the first checkpoint",
+                               index.find(largeOffset, offset));
+                    continue;
+                }
+                byte[] read = new byte[100];
+                IOUtils.readFully(in, read);
+                assertArrayEquals("Content at offset " + offset + " should be as expected",
+                                  Arrays.copyOfRange(member, offset, offset+100), read);
+            }
+        }
+    }
+
+    @Test
+    public void testEntryWithIndex() throws Exception {
+        GzipCheckpointIndex.build(warc, 256*1024, 1024*1024).write(GzipCheckpointIndex.getIndexPath(warc.toString()));
+        ArcSource source = ArcSource.fromFile(warc.toString());
+        assertNotNull("The index should be located", GzipCheckpointIndex.get(source));
+
+        ArcEntry entry = WarcParser.getWarcEntry(source, largeOffset);
+        assertEquals(large.length, entry.getBinaryArraySize());
+        for (int offset: new int[]{0, 1, 700000, large.length-10}) {
+            try (InputStream in = entry.getBinaryRaw(offset)) {
+                assertArrayEquals("The binary from offset " + offset + " should be as expected",
+                                  Arrays.copyOfRange(large, offset, large.length), IOUtils.toByteArray(in));
+            }
+        }
+    }
+
+    private static void writeMember(OutputStream out, byte[] payload) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            @Override
+            public void close() throws IOException {
+                finish(); // Keep the underlying stream open
+            }
+        };
+        gzip.write(record(payload));
+        gzip.close();
+    }
+
+    private static byte[] record(byte[] payload) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(("WARC/1.0\r\n" +
+                      "WARC-Type: resource\r\n" +
+                      "WARC-Target-URI: http://example.com/big.bin\r\n" +
+                      "WARC-Date: 2020-01-01T00:00:00Z\r\n" +
+                      "Content-Type: application/octet-stream\r\n" +
+                      "Content-Length: " + payload.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        record.write(payload);
+        record.write("\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        return record.toByteArray();
+    }
+}
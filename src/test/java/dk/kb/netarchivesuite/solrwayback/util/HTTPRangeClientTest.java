@@ -0,0 +1,207 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HTTPRangeClient} and {@link HTTPRangeInputStream} against an embedded HTTP server with support for
+ * single and multi-range requests.
+ */
+public class HTTPRangeClientTest {
+    private static final String BOUNDARY = "RANGE_BOUNDARY";
+
+    private HttpServer server;
+    private byte[] content;
+    private URI uri;
+    private final AtomicInteger requests = new AtomicInteger(0);
+
+    @Before
+    public void startServer() throws IOException {
+        content = new byte[1000000];
+        for (int i = 0 ; i < content.length ; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/warcs/test.warc", this::handleRange);
+        server.start();
+        uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/warcs/test.warc");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        HTTPRangeClient client = new HTTPRangeClient(4, Duration.ofSeconds(10));
+        byte[] range = client.getRange(uri, 1000, 2000);
+        assertArrayEquals("The range should be as expected", Arrays.copyOfRange(content, 1000, 2000), range);
+        assertEquals("A range beyond the end should be shortened",
+                     100, client.getRange(uri, content.length-100, content.length+100).length);
+        assertEquals("A range after the end should be empty",
+                     0, client.getRange(uri, content.length+100, content.length+200).length);
+    }
+
+    @Test
+    public void testMultiRange() throws IOException {
+        HTTPRangeClient client = new HTTPRangeClient(4, Duration.ofSeconds(10));
+        List<long[]> ranges = Arrays.asList(
+                new long[]{500000, 501000},
+                new long[]{1000, 2000},
+                new long[]{2500, 3000}, // Should be merged with the previous
+                new long[]{900000, 900100});
+        List<byte[]> result = client.getRanges(uri, ranges);
+        assertEquals("There should be a result for each range", ranges.size(), result.size());
+        for (int i = 0 ; i < ranges.size() ; i++) {
+            assertArrayEquals("Range #" + i + " should be as expected",
+                              Arrays.copyOfRange(content, (int) ranges.get(i)[0], (int) ranges.get(i)[1]),
+                              result.get(i));
+        }
+        assertEquals("All ranges should be fetched with a single request", 1, requests.get());
+    }
+
+    @Test
+    public void testMerge() {
+        List<long[]> merged = HTTPRangeClient.merge(Arrays.asList(
+                new long[]{100000, 100010},
+                new long[]{0, 100},
+                new long[]{50, 200},
+                new long[]{200 + HTTPRangeClient.MERGE_GAP + 1, 200 + HTTPRangeClient.MERGE_GAP + 10}));
+        assertEquals("Overlapping ranges should be merged while distant ranges should not", 3, merged.size());
+        assertArrayEquals(new long[]{0, 200}, merged.get(0));
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        HTTPRangeClient client = new HTTPRangeClient(4, Duration.ofSeconds(10));
+        try (InputStream in = new HTTPRangeInputStream(client, uri, 10, null)) {
+            byte[] read = IOUtils.toByteArray(in);
+            assertArrayEquals("Streaming from an offset should give the rest of the content",
+                              Arrays.copyOfRange(content, 10, content.length), read);
+        }
+        int before = requests.get();
+        byte[] head = Arrays.copyOfRange(content, 20, 30);
+        try (InputStream in = new HTTPRangeInputStream(client, uri, 20, head)) {
+            byte[] buffer = new byte[10];
+            assertEquals(10, IOUtils.read(in, buffer));
+            assertArrayEquals("Reading within the head should be as expected", head, buffer);
+            assertEquals("Reading within the head should not issue requests", before, requests.get());
+            assertEquals("Reading beyond the head should continue at the right position", content[30], (byte) in.read());
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissing() throws IOException {
+        HTTPRangeClient client = new HTTPRangeClient(4, Duration.ofSeconds(10));
+        client.getRange(uri.resolve("/warcs/missing.warc"), 0, 100);
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        HTTPRangeClient client = new HTTPRangeClient(2, Duration.ofSeconds(10));
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger(0);
+        for (int t = 0 ; t < 8 ; t++) {
+            final int start = t * 10000;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0 ; i < 10 ; i++) {
+                        byte[] range = client.getRange(uri, start + i*100, start + i*100 + 100);
+                        if (!Arrays.equals(Arrays.copyOfRange(content, start + i*100, start + i*100 + 100), range)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals("There should be no failures", 0, failures.get());
+    }
+
+    /**
+     * Minimal range request handler supporting {@code bytes=a-b(,c-d)*}.
+     */
+    private void handleRange(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+        List<long[]> ranges = new ArrayList<>();
+        for (String range: rangeHeader.substring("bytes=".length()).split(",")) {
+            String[] tokens = range.split("-");
+            long start = Long.parseLong(tokens[0]);
+            long end = Math.min(content.length-1, Long.parseLong(tokens[1]));
+            if (start < content.length) {
+                ranges.add(new long[]{start, end});
+            }
+        }
+        if (ranges.isEmpty()) {
+            exchange.getResponseHeaders().add("Content-Range", "bytes */" + content.length);
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] body;
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            exchange.getResponseHeaders().add(
+                    "Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + content.length);
+            body = Arrays.copyOfRange(content, (int) range[0], (int) range[1]+1);
+        } else {
+            exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY);
+            ByteArrayOutputStream multi = new ByteArrayOutputStream();
+            for (long[] range: ranges) {
+                multi.write(("\r\n--" + BOUNDARY + "\r\nContent-Type: application/warc\r\nContent-Range: bytes " +
+                             range[0] + "-" + range[1] + "/" + content.length + "\r\n\r\n")
+                                    .getBytes(StandardCharsets.ISO_8859_1));
+                multi.write(content, (int) range[0], (int) (range[1]-range[0]+1));
+            }
+            multi.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            body = multi.toByteArray();
+        }
+        exchange.sendResponseHeaders(206, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PayloadCacheTest {
+
+    @Test
+    public void testBasics() {
+        PayloadCache cache = new PayloadCache(1000, 100);
+        assertNull(cache.get("a.warc.gz", 0));
+        cache.put("a.warc.gz", 0, new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get("a.warc.gz", 0));
+        assertNull("Other offsets should not match", cache.get("a.warc.gz", 1));
+        assertNull("Other sources should not match", cache.get("b.warc.gz", 0));
+
+        cache.put("a.warc.gz", 10, new byte[101]);
+        assertNull("Binaries above the record limit should not be cached", cache.get("a.warc.gz", 10));
+        assertEquals(1, cache.getHits());
+        assertEquals(5, cache.getCalls());
+    }
+
+    @Test
+    public void testEviction() {
+        PayloadCache cache = new PayloadCache(250, 50); // 200 bytes protected, 50 bytes probation
+        for (int i = 1 ; i <= 4 ; i++) {
+            cache.put("a", i, new byte[50]);
+            assertNotNull("Entry " + i + " should be cached", cache.get("a", i));
+        }
+        assertNotNull("Access should make entry 1 the most recently used", cache.get("a", 1));
+        cache.put("a", 5, new byte[50]);
+        assertNotNull("Entry 5 should be promoted", cache.get("a", 5));
+
+        assertNull("The least recently used entry should be evicted", cache.get("a", 2));
+        assertNotNull(cache.get("a", 1));
+        assertNotNull(cache.get("a", 3));
+        assertEquals(200, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testProbationLimit() {
+        PayloadCache cache = new PayloadCache(500, 100); // 400 bytes protected, 100 bytes probation
+        assertFalse("Binaries larger than the probation segment should not be cacheable", cache.isCacheable(101));
+        for (int i = 0 ; i < 10 ; i++) {
+            cache.put("a", i, new byte[50]);
+        }
+        assertEquals("The probation segment should stay within its share", 100, cache.getBytes());
+        assertEquals(8, cache.getEvictions());
+        assertNull("The oldest entry should be evicted", cache.get("a", 0));
+        assertNotNull("The newest entry should be cached", cache.get("a", 9));
+    }
+
+    @Test
+    public void testScanResistance() {
+        PayloadCache cache = new PayloadCache(1000, 100);
+        for (int i = 0 ; i < 5 ; i++) {
+            cache.put("hot", i, new byte[100]);
+            assertNotNull("Entry " + i + " should be cached", cache.get("hot", i));
+        }
+        assertEquals("Requested entries should be protected", 500, cache.getProtectedBytes());
+
+        for (int i = 0 ; i < 100 ; i++) { // Single pass, as an export
+            cache.put("scan", i, new byte[100]);
+        }
+        for (int i = 0 ; i < 5 ; i++) {
+            assertNotNull("Protected entry " + i + " should survive the scan", cache.get("hot", i));
+        }
+        assertEquals("The scan should only fill the probation segment", 700, cache.getBytes());
+        assertEquals(500, cache.getProtectedBytes());
+    }
+
+    @Test
+    public void testDisabled() {
+        PayloadCache cache = new PayloadCache(0, 100);
+        assertFalse(cache.isCacheable(0));
+        cache.put("a", 1, new byte[0]);
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.netarchivesuite.solrwayback.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.*;
+
+public class PooledGZIPInputStreamTest {
+    private static final byte[] FIRST = content("first", 100000); // Larger than the input buffer when compressed
+    private static final byte[] SECOND = content("second", 1000);
+
+    @Test
+    public void testSingleMember() throws IOException {
+        try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(gzip(FIRST)))) {
+            assertArrayEquals("The content should be inflated", FIRST, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testConcatenatedMembers() throws IOException {
+        byte[] both = concat(gzip(FIRST), gzip(SECOND));
+        try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(both))) {
+            assertArrayEquals("Per default only the first member should be delivered",
+                              FIRST, IOUtils.toByteArray(in));
+        }
+        try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(both), true)) {
+            assertArrayEquals("In concatenated mode all members should be delivered",
+                              concat(FIRST, SECOND), IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testTrailingGarbage() throws IOException {
+        byte[] withGarbage = concat(gzip(FIRST), "garbage".getBytes(StandardCharsets.UTF_8));
+        try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(withGarbage), true)) {
+            assertArrayEquals("Trailing non-gzip bytes should be ignored", FIRST, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testAvailable() throws IOException {
+        byte[] both = concat(gzip(FIRST), gzip(SECOND));
+        try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(both), true)) {
+            IOUtils.readFully(in, new byte[FIRST.length + 1]);
+            assertTrue("Bytes should be available in the second member", in.available() > 0);
+            IOUtils.readFully(in, new byte[SECOND.length - 1]);
+            assertEquals("The stream should be depleted", -1, in.read());
+            assertEquals("Nothing should be available after the last member", 0, in.available());
+        }
+    }
+
+    @Test
+    public void testCRCMismatch() throws IOException {
+        byte[] corrupt = gzip(FIRST);
+        corrupt[corrupt.length - 8] ^= 0x01; // First byte of the CRC32 in the trailer
+        assertCorrupt("CRC mismatch", corrupt);
+    }
+
+    @Test
+    public void testSizeMismatch() throws IOException {
+        byte[] corrupt = gzip(FIRST);
+        corrupt[corrupt.length - 4] ^= 0x01; // First byte of ISIZE in the trailer
+        assertCorrupt("Size mismatch", corrupt);
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] full = gzip(FIRST);
+        for (int length: new int[]{full.length/2, full.length - 3}) { // In the deflate data and in the trailer
+            try (InputStream in = new PooledGZIPInputStream(
+                    new ByteArrayInputStream(Arrays.copyOf(full, length)))) {
+                IOUtils.toByteArray(in);
+                fail("Reading a stream truncated to " + length + "/" + full.length + " bytes should fail");
+            } catch (EOFException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void testNotGzip() throws IOException {
+        new PooledGZIPInputStream(new ByteArrayInputStream("WARC/1.0".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testNestedAcquire() throws IOException {
+        try (InputStream outer = new PooledGZIPInputStream(new ByteArrayInputStream(gzip(FIRST)))) {
+            assertEquals("The outer stream should deliver the first byte", FIRST[0], (byte) outer.read());
+            try (InputStream inner = new PooledGZIPInputStream(new ByteArrayInputStream(gzip(SECOND)))) {
+                assertArrayEquals("The nested stream should use its own Inflater",
+                                  SECOND, IOUtils.toByteArray(inner));
+            }
+            assertArrayEquals("The outer stream should be unaffected by the nested stream",
+                              Arrays.copyOfRange(FIRST, 1, FIRST.length), IOUtils.toByteArray(outer));
+        }
+        try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(gzip(SECOND)))) {
+            assertArrayEquals("The pooled Inflater should be reusable after nested use",
+                              SECOND, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testCloseFromOtherThread() throws Exception {
+        InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(gzip(FIRST)));
+        assertEquals("The stream should deliver the first byte", FIRST[0], (byte) in.read());
+        Thread closer = new Thread(() -> {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        closer.start();
+        closer.join();
+        try {
+            in.read();
+            fail("Reading from a closed stream should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        try (InputStream next = new PooledGZIPInputStream(new ByteArrayInputStream(gzip(SECOND)))) {
+            assertArrayEquals("A new stream on the creating thread should work after close from another thread",
+                              SECOND, IOUtils.toByteArray(next));
+        }
+    }
+
+    private void assertCorrupt(String message, byte[] corrupt) throws IOException {
+        try (InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(corrupt))) {
+            IOUtils.toByteArray(in);
+            fail("Reading should fail with " + message);
+        } catch (ZipException e) {
+            assertTrue("The exception should state '" + message + "' but was '" + e.getMessage() + "'",
+                       e.getMessage().contains(message));
+        }
+    }
+
+    private static byte[] content(String prefix, int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < lines ; i++) {
+            sb.append(prefix).append(" line ").append(i * 7919 % 10007).append("\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+}